@@ -0,0 +1,77 @@
+package com.jonas.speech.service;
+
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.json.JSONUtil;
+import com.jonas.speech.common.RecognitionMessage;
+import com.jonas.speech.service.impl.MicrosoftSpeechService;
+import com.jonas.speech.util.TextSegmenter;
+import com.vdurmont.emoji.EmojiParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 每个请求都会经过的文本处理基准：去除表情、分句、微软SSML模板、SSE消息序列化
+ * 运行：mvn -Pbenchmark verify -Djmh.includes=TextPathBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TextPathBenchmark {
+
+    // 中英混合、带表情的对话文本，按需要的长度重复截取
+    private static final String SAMPLE = "好的😊，我来帮你查一下明天的天气。明天北京晴，最高气温26度，最低气温15度，"
+            + "适合出门走走！Remember to bring a jacket in the evening. 还有什么需要帮忙的吗？👍";
+
+    @Param({"10", "200", "2000"})
+    private int length;
+
+    private String text;
+    private RecognitionMessage message;
+
+    @Setup
+    public void setup() {
+        StringBuilder builder = new StringBuilder(length + SAMPLE.length());
+        while (builder.length() < length) {
+            builder.append(SAMPLE);
+        }
+        // 不在代理对中间截断
+        int end = Character.isLowSurrogate(builder.charAt(length)) ? length + 1 : length;
+        text = builder.substring(0, end);
+        message = new RecognitionMessage("partial", text, 1200);
+    }
+
+    @Benchmark
+    public String removeEmojis() {
+        return EmojiParser.removeAllEmojis(text);
+    }
+
+    @Benchmark
+    public List<String> segment() {
+        return TextSegmenter.split(TextSegmenter.normalize(text), 6, 150);
+    }
+
+    @Benchmark
+    public String ssmlTemplate() {
+        return StrUtil.format(MicrosoftSpeechService.SSML_TEMPLATE, text);
+    }
+
+    @Benchmark
+    public String sseSerialize() {
+        return JSONUtil.toJsonStr(message);
+    }
+}
@@ -0,0 +1,65 @@
+package com.jonas.speech.service.audio;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 重采样吞吐量基准，每次转换1秒音频，结果为每秒可以处理的音频秒数
+ * 运行：mvn -Pbenchmark verify -Djmh.includes=PcmConverterBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PcmConverterBenchmark {
+
+    @Param({"16000:1:16>8000", "44100:2:16>16000", "48000:2:24>16000", "8000:1:16>16000"})
+    private String conversion;
+
+    private AudioSpec source;
+    private AudioSpec target;
+    private byte[] input;
+    private byte[] output;
+
+    @Setup
+    public void setup() {
+        String[] parts = conversion.split(">");
+        String[] spec = parts[0].split(":");
+        source = new AudioSpec(Integer.parseInt(spec[0]), Integer.parseInt(spec[1]), Integer.parseInt(spec[2]));
+        target = Integer.parseInt(parts[1]) == 8000 ? AudioSpec.PCM_8K : AudioSpec.PCM_16K;
+        input = PcmConverterTests.tone(source, 440, 1.0);
+        output = new byte[PcmConverter.outputBytes(source, target, input.length)];
+    }
+
+    @Benchmark
+    public int oneShot() {
+        return new PcmConverter(source, target).convert(input, 0, input.length, output, 0);
+    }
+
+    /**
+     * 实时识别按20ms一帧输入
+     */
+    @Benchmark
+    public int streaming() {
+        PcmConverter converter = new PcmConverter(source, target);
+        int chunk = source.sampleRate() / 50 * source.frameBytes();
+        int written = 0;
+        for (int offset = 0; offset < input.length; offset += chunk) {
+            written += converter.convert(input, offset, Math.min(chunk, input.length - offset), output, written);
+        }
+        return written;
+    }
+}
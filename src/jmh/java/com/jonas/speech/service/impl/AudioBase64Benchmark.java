@@ -0,0 +1,65 @@
+package com.jonas.speech.service.impl;
+
+import cn.hutool.core.codec.Base64;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 音频Base64编解码基准
+ * 百度、微软、SSE下发使用hutool编码，腾讯、讯飞上传使用JDK编码，分句合成使用hutool解码
+ * 运行：mvn -Pbenchmark verify -Djmh.includes=AudioBase64Benchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AudioBase64Benchmark {
+
+    // 1KB为实时识别的一帧，64KB为一句合成音频，2MB为一分钟16k音频
+    @Param({"1024", "65536", "2097152"})
+    private int size;
+
+    private byte[] audio;
+    private String encoded;
+
+    @Setup
+    public void setup() {
+        audio = new byte[size];
+        new Random(size).nextBytes(audio);
+        encoded = java.util.Base64.getEncoder().encodeToString(audio);
+    }
+
+    @Benchmark
+    public String hutoolEncode() {
+        return Base64.encode(audio);
+    }
+
+    @Benchmark
+    public String jdkEncode() {
+        return java.util.Base64.getEncoder().encodeToString(audio);
+    }
+
+    @Benchmark
+    public byte[] hutoolDecode() {
+        return Base64.decode(encoded);
+    }
+
+    @Benchmark
+    public byte[] jdkDecode() {
+        return java.util.Base64.getDecoder().decode(encoded);
+    }
+}
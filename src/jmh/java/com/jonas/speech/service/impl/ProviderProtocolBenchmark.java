@@ -0,0 +1,79 @@
+package com.jonas.speech.service.impl;
+
+import cn.hutool.json.JSONUtil;
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONObject;
+import com.google.gson.Gson;
+import com.jonas.speech.util.HmacSigner;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 服务商协议处理基准：讯飞鉴权地址签名，以及讯飞(Gson)、阿里云(fastjson)、微软(hutool)响应解析
+ * 讯飞合成响应的大小取决于每帧音频，其余响应与实际大小相当
+ * 运行：mvn -Pbenchmark verify -Djmh.includes=ProviderProtocolBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProviderProtocolBenchmark {
+
+    private static final String ALIYUN_SENTENCE_END = "{\"header\":{\"namespace\":\"SpeechTranscriber\",\"name\":\"SentenceEnd\","
+            + "\"status\":20000000,\"message_id\":\"1d2f3e4a5b6c7d8e9f0a1b2c3d4e5f6a\",\"task_id\":\"0a1b2c3d4e5f6a7b8c9d0e1f2a3b4c5d\","
+            + "\"status_text\":\"Gateway:SUCCESS:Success.\"},\"payload\":{\"index\":3,\"time\":5320,\"result\":\"今天天气怎么样，适合出去走走吗\","
+            + "\"confidence\":0.92,\"begin_time\":2100,\"status\":0}}";
+    private static final String MICROSOFT_RESULT = "{\"RecognitionStatus\":\"Success\",\"Offset\":1800000,\"Duration\":32300000,"
+            + "\"DisplayText\":\"今天天气怎么样，适合出去走走吗？\"}";
+
+    // 讯飞合成每帧音频的字节数
+    @Param({"1280", "8192"})
+    private int frameBytes;
+
+    private final Gson gson = new Gson();
+    private final HmacSigner hmacSigner = new HmacSigner("HmacSHA256", "0123456789abcdef0123456789abcdef");
+    private String xunfeiFrame;
+
+    @Setup
+    public void setup() {
+        byte[] audio = new byte[frameBytes];
+        new Random(frameBytes).nextBytes(audio);
+        xunfeiFrame = "{\"code\":0,\"message\":\"success\",\"sid\":\"tts000e1f2a@dx18f2a3b4c5d6e7f8a9\",\"data\":{\"audio\":\""
+                + java.util.Base64.getEncoder().encodeToString(audio) + "\",\"status\":1,\"ced\":\"12\"}}";
+    }
+
+    @Benchmark
+    public String xunfeiAuthUrl() throws Exception {
+        return XunFeiSpeechService.getAuthUrl("https://tts-api.xfyun.cn/v2/tts", "0123456789abcdef0123456789abcdef", hmacSigner);
+    }
+
+    @Benchmark
+    public String xunfeiTtsFrameGson() {
+        return gson.fromJson(xunfeiFrame, XunFeiSpeechService.JsonParse.class).data.audio;
+    }
+
+    @Benchmark
+    public String aliyunSentenceFastjson() {
+        JSONObject message = JSON.parseObject(ALIYUN_SENTENCE_END);
+        return message.getJSONObject("header").getString("name") + message.getJSONObject("payload").getString("result");
+    }
+
+    @Benchmark
+    public String microsoftResultHutool() {
+        return JSONUtil.parseObj(MICROSOFT_RESULT).getStr("DisplayText");
+    }
+}
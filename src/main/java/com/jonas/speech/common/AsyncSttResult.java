@@ -0,0 +1,29 @@
+package com.jonas.speech.common;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * 异步识别任务的结果，轮询接口返回，指定了客户端ID时完成后经SSE推送
+ *
+ * @author shenjy
+ * @time 2024/8/19 14:15
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class AsyncSttResult {
+    // 任务ID
+    private String taskId;
+    // 任务状态
+    private AsyncSttStatus status;
+    // 识别文本，成功时才有
+    private String text;
+    // 识别失败时的错误信息
+    private String error;
+    // 提交时间戳，毫秒
+    private long submitTime;
+    // 识别耗时，识别中为0，毫秒
+    private long elapsedMs;
+}
@@ -0,0 +1,18 @@
+package com.jonas.speech.common;
+
+/**
+ * 异步识别任务状态
+ *
+ * @author shenjy
+ * @time 2024/8/19 14:10
+ */
+public enum AsyncSttStatus {
+    // 识别中
+    PENDING,
+    // 识别完成，文本可能为空
+    SUCCESS,
+    // 识别失败
+    FAILED,
+    // 超过 speech.stt.asyncTimeout 仍未返回
+    TIMEOUT
+}
@@ -0,0 +1,28 @@
+package com.jonas.speech.common;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * 批量识别中一条音频的结果
+ *
+ * @author shenjy
+ * @time 2024/7/30 14:10
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class BatchResult {
+    // 音频在请求中的序号，从0开始
+    private int index;
+    // 上传的文件名
+    private String name;
+    private String text;
+    // 识别失败时的错误信息
+    private String error;
+    // 音频时长，无法解析WAV头时为0，毫秒
+    private long audioMs;
+    // 识别耗时，毫秒
+    private long elapsedMs;
+}
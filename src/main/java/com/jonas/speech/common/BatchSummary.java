@@ -0,0 +1,28 @@
+package com.jonas.speech.common;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * 批量识别的汇总，作为结果流的最后一行返回
+ *
+ * @author shenjy
+ * @time 2024/7/30 14:15
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class BatchSummary {
+    private int total;
+    private int succeeded;
+    private int failed;
+    // 音频总时长，毫秒
+    private long audioMs;
+    // 批量识别总耗时，毫秒
+    private long elapsedMs;
+    // 每秒识别的音频条数
+    private double clipsPerSecond;
+    // 每秒识别的音频秒数
+    private double audioSecondsPerSecond;
+}
@@ -0,0 +1,31 @@
+package com.jonas.speech.common;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * 缓存统计信息
+ *
+ * @author shenjy
+ * @time 2024/6/12 15:40
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class CacheStats {
+    // 缓存层级
+    private String tier;
+    // 条目数
+    private int entries;
+    // 已用字节数
+    private long usedBytes;
+    // 字节预算
+    private long maxBytes;
+    // 命中次数
+    private long hits;
+    // 未命中次数
+    private long misses;
+    // 淘汰次数
+    private long evictions;
+}
@@ -0,0 +1,29 @@
+package com.jonas.speech.common;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * 到其他节点的转发连接统计
+ *
+ * @author shenjy
+ * @time 2024/8/21 11:20
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ClusterPeerStats {
+    // 节点地址
+    private String address;
+    // 是否已连接
+    private boolean connected;
+    // 队列中待发送的消息数
+    private int queueDepth;
+    // 已发送消息数
+    private long sent;
+    // 未连接、队列满或断开时丢弃的消息数
+    private long dropped;
+    // 连接成功次数，大于1说明发生过重连
+    private long connects;
+}
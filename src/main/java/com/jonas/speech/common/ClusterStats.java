@@ -0,0 +1,33 @@
+package com.jonas.speech.common;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * SSE跨节点转发统计
+ *
+ * @author shenjy
+ * @time 2024/8/21 11:20
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ClusterStats {
+    // 本节点ID，未开启时为空
+    private String nodeId;
+    // 本节点上的客户端数
+    private int localClients;
+    // 已知在其他节点上的客户端数
+    private int remoteClients;
+    // 转给其他节点的消息数
+    private long forwarded;
+    // 其他节点转来的消息数
+    private long received;
+    // 转来时本节点上已没有该客户端连接的消息数
+    private long undeliverable;
+    // 到各节点的连接
+    private List<ClusterPeerStats> peers;
+}
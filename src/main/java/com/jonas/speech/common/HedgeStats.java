@@ -0,0 +1,33 @@
+package com.jonas.speech.common;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * 对冲请求统计信息，按主备服务商组合统计
+ *
+ * @author shenjy
+ * @time 2024/7/12 10:40
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class HedgeStats {
+    // 主服务商
+    private String primary;
+    // 对冲服务商
+    private String secondary;
+    // 主服务商的请求数
+    private long requests;
+    // 发出对冲的次数
+    private long hedged;
+    // 对冲后主服务商先返回的次数
+    private long primaryWins;
+    // 对冲后对冲服务商先返回的次数
+    private long secondaryWins;
+    // 对冲率
+    private double hedgeRate;
+    // 对冲服务商胜出率
+    private double winRate;
+}
@@ -0,0 +1,35 @@
+package com.jonas.speech.common;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * 服务商限流统计信息
+ *
+ * @author shenjy
+ * @time 2024/7/15 10:20
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class LimiterStats {
+    // 服务商
+    private String provider;
+    // 每秒请求数上限，0表示不限制
+    private double qps;
+    // 令牌桶剩余令牌
+    private double tokens;
+    // 当前的自适应并发上限
+    private double limit;
+    // 进行中的请求数
+    private int inFlight;
+    // 排队中的请求数
+    private int queued;
+    // 获得许可的次数
+    private long accepted;
+    // 排队超时或队列已满被拒绝的次数
+    private long rejected;
+    // 服务商返回限流的次数
+    private long throttled;
+}
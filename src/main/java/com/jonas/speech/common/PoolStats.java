@@ -0,0 +1,31 @@
+package com.jonas.speech.common;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * HTTP连接池统计信息
+ *
+ * @author shenjy
+ * @time 2024/6/3 10:21
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class PoolStats {
+    // 服务商
+    private String provider;
+    // 连接总数
+    private int totalConnections;
+    // 空闲连接数
+    private int idleConnections;
+    // 活跃连接数
+    private int activeConnections;
+    // 新建连接次数
+    private long newConnections;
+    // 获取连接次数
+    private long acquiredConnections;
+    // 连接复用率
+    private double reuseRatio;
+}
@@ -0,0 +1,23 @@
+package com.jonas.speech.common;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * 实时语音识别推送给客户端的消息
+ *
+ * @author shenjy
+ * @time 2024/6/18 11:05
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class RecognitionMessage {
+    // 消息类型：partial、final、error、complete
+    private String type;
+    // 识别文本或错误信息
+    private String text;
+    // 距离连接建立的毫秒数
+    private long elapsed;
+}
@@ -0,0 +1,35 @@
+package com.jonas.speech.common;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * SDK识别器池统计信息
+ *
+ * @author shenjy
+ * @time 2024/8/16 15:20
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class RecognizerPoolStats {
+    // 服务商
+    private String provider;
+    // 使用中的识别器数
+    private int active;
+    // 识别器数上限
+    private int maxRecognizers;
+    // 等待识别器的请求数
+    private int waiting;
+    // 未释放的SDK本地句柄数，包括语音配置、识别器、音频配置和音频输入流
+    private int nativeHandles;
+    // 累计租用次数
+    private long leased;
+    // 超过最长租用时间被强制回收的次数
+    private long timeouts;
+    // 平均租用时长，毫秒
+    private long avgLease;
+    // 最大租用时长，毫秒
+    private long maxLease;
+}
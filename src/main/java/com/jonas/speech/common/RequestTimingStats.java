@@ -0,0 +1,29 @@
+package com.jonas.speech.common;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.Map;
+
+/**
+ * 单个请求的阶段耗时
+ *
+ * @author shenjy
+ * @time 2024/8/12 10:20
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class RequestTimingStats {
+    // 操作，如 speechToText
+    private String operation;
+    // 最后一次调用的服务商
+    private String provider;
+    // 请求开始时间，毫秒时间戳
+    private long startTime;
+    // 总耗时，毫秒
+    private double totalMs;
+    // 各阶段耗时，毫秒，ttfb 为相对请求开始的时间
+    private Map<String, Double> phases;
+}
@@ -0,0 +1,37 @@
+package com.jonas.speech.common;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * 服务商路由统计信息
+ *
+ * @author shenjy
+ * @time 2024/7/8 14:25
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class RouteStats {
+    // 服务商
+    private String provider;
+    // 熔断状态
+    private String state;
+    // 路由权重
+    private double weight;
+    // 窗口内的调用次数
+    private int windowCalls;
+    // 窗口内的错误率
+    private double errorRate;
+    // 窗口内的耗时中位数，毫秒
+    private long p50;
+    // 窗口内的耗时99分位，毫秒
+    private long p99;
+    // 累计调用次数
+    private long calls;
+    // 累计失败次数
+    private long failures;
+    // 熔断拒绝次数
+    private long rejected;
+}
@@ -0,0 +1,35 @@
+package com.jonas.speech.common;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * WebSocket会话池统计信息
+ *
+ * @author shenjy
+ * @time 2024/7/18 16:30
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class SessionPoolStats {
+    // 服务商
+    private String provider;
+    // 已预热的空闲会话数
+    private int warm;
+    // 使用中和正在建立的会话数
+    private int busy;
+    // 会话数上限
+    private int maxSessions;
+    // 累计建立的会话数
+    private long created;
+    // 使用预热会话的请求数
+    private long warmHits;
+    // 现场建立会话的请求数
+    private long coldStarts;
+    // 平均首包耗时，毫秒
+    private long avgFirstAudio;
+    // 最大首包耗时，毫秒
+    private long maxFirstAudio;
+}
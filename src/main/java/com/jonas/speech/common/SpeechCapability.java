@@ -0,0 +1,18 @@
+package com.jonas.speech.common;
+
+/**
+ * 语音服务支持的操作，路由时只会选择支持对应操作的服务商
+ *
+ * @author shenjy
+ * @time 2024/7/8 14:20
+ */
+public enum SpeechCapability {
+    // 同步语音识别
+    SPEECH_TO_TEXT,
+    // 实时流式语音识别
+    SPEECH_TO_TEXT_STREAM,
+    // 同步语音合成
+    TEXT_TO_SPEECH,
+    // 流式语音合成
+    TEXT_TO_SPEECH_STREAM
+}
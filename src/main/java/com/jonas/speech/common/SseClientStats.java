@@ -0,0 +1,39 @@
+package com.jonas.speech.common;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * SSE客户端发送统计
+ *
+ * @author shenjy
+ * @time 2024/6/24 10:08
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class SseClientStats {
+    // 客户端ID
+    private Long clientId;
+    // 是否有连接，断开后在保留时间内等待重连
+    private boolean connected;
+    // 队列中待发送的消息数
+    private int queueDepth;
+    // 队列中待发送的字节数
+    private long queueBytes;
+    // 重放缓冲区中的字节数
+    private long replayBytes;
+    // 已发送消息数
+    private long sent;
+    // 丢弃消息数
+    private long dropped;
+    // 合并消息数
+    private long coalesced;
+    // 重连后重发的消息数
+    private long replayed;
+    // 平均发送耗时，微秒
+    private long avgWriteMicros;
+    // 最大发送耗时，微秒
+    private long maxWriteMicros;
+}
@@ -0,0 +1,17 @@
+package com.jonas.speech.common;
+
+/**
+ * SSE客户端发送队列满时的处理策略
+ * 只作用于文本消息；音频不会被丢弃，等待 offerTimeout 后仍放不下时音频流以错误结束
+ *
+ * @author shenjy
+ * @time 2024/6/24 10:05
+ */
+public enum SseOverflowPolicy {
+    // 阻塞生产者，超时后丢弃当前消息
+    BLOCK,
+    // 丢弃最旧的文本消息
+    DROP_OLDEST,
+    // 同 DROP_OLDEST，另外把音频合并到队尾还未发送的音频中再等待
+    COALESCE
+}
@@ -0,0 +1,15 @@
+package com.jonas.speech.common;
+
+/**
+ * 服务商限流异常
+ * 服务商返回QPS、并发超限，或者本地限流排队超时时抛出，自适应并发限制据此收缩
+ *
+ * @author shenjy
+ * @time 2024/7/15 10:10
+ */
+public class ThrottledException extends RuntimeException {
+
+    public ThrottledException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,29 @@
+package com.jonas.speech.common;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * 长音频识别结果
+ *
+ * @author shenjy
+ * @time 2024/7/29 10:35
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class Transcript {
+    // 拼接后的完整文本
+    private String text;
+    // 是否所有片段都识别成功，部分失败时 text 不完整，失败的片段见 segments 中的 error
+    private boolean complete;
+    // 音频时长，毫秒
+    private long durationMs;
+    // 各片段的识别结果，按时间顺序
+    private List<TranscriptSegment> segments;
+    // 识别耗时，毫秒
+    private long elapsedMs;
+}
@@ -0,0 +1,25 @@
+package com.jonas.speech.common;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * 长音频识别中一个片段的结果
+ *
+ * @author shenjy
+ * @time 2024/7/29 10:30
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class TranscriptSegment {
+    // 片段在原音频中的开始时间，毫秒
+    private long startMs;
+    // 片段在原音频中的结束时间，毫秒
+    private long endMs;
+    // 识别文本，已修复与相邻片段衔接处的标点
+    private String text;
+    // 识别失败时的错误信息
+    private String error;
+}
@@ -0,0 +1,31 @@
+package com.jonas.speech.common;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * 识别音频上传统计信息
+ *
+ * @author shenjy
+ * @time 2024/8/14 11:30
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class UploadStats {
+    // 上传次数
+    private long uploads;
+    // 写入临时文件的次数
+    private long spilled;
+    // 上传的总字节数
+    private long bytes;
+    // 单个缓冲区的大小，即每个请求占用堆内存的上限
+    private int bufferSize;
+    // 已创建的缓冲区数
+    private int buffers;
+    // 正在使用的缓冲区数
+    private int buffersInUse;
+    // 同时使用缓冲区数的峰值
+    private int peakBuffersInUse;
+}
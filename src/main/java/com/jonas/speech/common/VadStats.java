@@ -0,0 +1,29 @@
+package com.jonas.speech.common;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * 静音裁剪统计信息
+ *
+ * @author shenjy
+ * @time 2024/7/26 15:20
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class VadStats {
+    // 处理的音频数，实时识别按连接计
+    private long calls;
+    // 实际裁掉了静音的音频数
+    private long trimmedCalls;
+    // 输入字节数
+    private long bytesIn;
+    // 发给服务商的字节数
+    private long bytesOut;
+    // 裁掉的音频时长，毫秒
+    private long savedMs;
+    // 平均处理耗时，微秒
+    private long avgCostMicros;
+}
@@ -0,0 +1,32 @@
+package com.jonas.speech.config;
+
+import com.jonas.speech.controller.SpeechToTextStreamHandler;
+import com.jonas.speech.controller.TextToSpeechStreamHandler;
+import lombok.RequiredArgsConstructor;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.socket.config.annotation.EnableWebSocket;
+import org.springframework.web.socket.config.annotation.WebSocketConfigurer;
+import org.springframework.web.socket.config.annotation.WebSocketHandlerRegistry;
+
+/**
+ * WebSocket配置
+ *
+ * @author shenjy
+ * @time 2024/6/18 11:40
+ */
+@Configuration
+@EnableWebSocket
+@RequiredArgsConstructor
+public class WebSocketConfig implements WebSocketConfigurer {
+
+    private final SpeechToTextStreamHandler speechToTextStreamHandler;
+    private final TextToSpeechStreamHandler textToSpeechStreamHandler;
+
+    @Override
+    public void registerWebSocketHandlers(WebSocketHandlerRegistry registry) {
+        registry.addHandler(speechToTextStreamHandler, "/speech/stream/speechToText")
+                .setAllowedOrigins("*");
+        registry.addHandler(textToSpeechStreamHandler, "/speech/stream/textToSpeech")
+                .setAllowedOrigins("*");
+    }
+}
@@ -0,0 +1,190 @@
+package com.jonas.speech.controller;
+
+import com.jonas.speech.common.CacheStats;
+import com.jonas.speech.common.ClusterStats;
+import com.jonas.speech.common.HedgeStats;
+import com.jonas.speech.common.LimiterStats;
+import com.jonas.speech.common.PoolStats;
+import com.jonas.speech.common.RecognizerPoolStats;
+import com.jonas.speech.common.RequestTimingStats;
+import com.jonas.speech.common.RouteStats;
+import com.jonas.speech.common.SessionPoolStats;
+import com.jonas.speech.common.SseClientStats;
+import com.jonas.speech.common.UploadStats;
+import com.jonas.speech.common.VadStats;
+import com.jonas.speech.service.SseService;
+import com.jonas.speech.service.audio.VoiceActivityDetector;
+import com.jonas.speech.service.cache.TtsCacheService;
+import com.jonas.speech.service.cluster.TcpMeshSseRelay;
+import com.jonas.speech.service.http.HttpClientManager;
+import com.jonas.speech.service.impl.MicrosoftRecognizerPool;
+import com.jonas.speech.service.impl.XunFeiTtsSessionPool;
+import com.jonas.speech.service.limit.SpeechLimiter;
+import com.jonas.speech.service.route.SpeechRouter;
+import com.jonas.speech.service.timing.RequestTimingService;
+import com.jonas.speech.service.upload.AudioUploadService;
+import lombok.RequiredArgsConstructor;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.List;
+
+/**
+ * 运维管理接口
+ *
+ * @author shenjy
+ * @time 2024/6/3 11:02
+ */
+@RestController
+@RequiredArgsConstructor
+@RequestMapping("/admin")
+public class AdminController {
+
+    private final HttpClientManager httpClientManager;
+    private final TtsCacheService ttsCacheService;
+    private final SseService sseService;
+    private final SpeechRouter speechRouter;
+    private final SpeechLimiter speechLimiter;
+    private final XunFeiTtsSessionPool xunFeiTtsSessionPool;
+    private final VoiceActivityDetector voiceActivityDetector;
+    private final RequestTimingService requestTimingService;
+    private final AudioUploadService audioUploadService;
+    private final MicrosoftRecognizerPool microsoftRecognizerPool;
+    private final TcpMeshSseRelay tcpMeshSseRelay;
+
+    /**
+     * HTTP连接池统计信息
+     *
+     * @return 各服务商连接池统计
+     */
+    @GetMapping("/httpPool")
+    public List<PoolStats> httpPool() {
+        return httpClientManager.stats();
+    }
+
+    /**
+     * 语音合成缓存统计信息
+     *
+     * @return 各层缓存统计
+     */
+    @GetMapping("/ttsCache")
+    public List<CacheStats> ttsCache() {
+        return ttsCacheService.stats();
+    }
+
+    /**
+     * 按服务商或发音人失效语音合成缓存，都不传则清空全部
+     *
+     * @param provider 服务商
+     * @param voice    发音人
+     * @return 失效的条目数
+     */
+    @PostMapping("/ttsCache/invalidate")
+    public int invalidateTtsCache(@RequestParam(required = false) String provider,
+                                  @RequestParam(required = false) String voice) {
+        return ttsCacheService.invalidate(provider, voice);
+    }
+
+    /**
+     * SSE客户端发送队列统计信息
+     *
+     * @return 各客户端队列深度与发送耗时
+     */
+    @GetMapping("/sse")
+    public List<SseClientStats> sse() {
+        return sseService.stats();
+    }
+
+    /**
+     * 服务商路由统计信息
+     *
+     * @return 各服务商熔断状态、错误率与耗时分位
+     */
+    @GetMapping("/router")
+    public List<RouteStats> router() {
+        return speechRouter.stats();
+    }
+
+    /**
+     * 对冲请求统计信息
+     *
+     * @return 各主备服务商组合的对冲率与胜出率
+     */
+    @GetMapping("/hedge")
+    public List<HedgeStats> hedge() {
+        return speechRouter.hedgeStats();
+    }
+
+    /**
+     * 服务商限流统计信息
+     *
+     * @return 各服务商令牌桶、并发上限与排队情况
+     */
+    @GetMapping("/limiter")
+    public List<LimiterStats> limiter() {
+        return speechLimiter.stats();
+    }
+
+    /**
+     * 讯飞语音合成连接池统计信息
+     *
+     * @return 预热连接数、预热命中率与首包耗时
+     */
+    @GetMapping("/xunfeiTts")
+    public SessionPoolStats xunfeiTts() {
+        return xunFeiTtsSessionPool.stats();
+    }
+
+    /**
+     * 静音裁剪统计信息
+     *
+     * @return 裁掉的字节数和音频时长
+     */
+    @GetMapping("/vad")
+    public VadStats vad() {
+        return voiceActivityDetector.stats();
+    }
+
+    /**
+     * 最近的慢请求，超过 speech.timing.slowThreshold 的同步识别和合成请求
+     *
+     * @return 各请求的阶段耗时，最新的在前
+     */
+    @GetMapping("/slowRequests")
+    public List<RequestTimingStats> slowRequests() {
+        return requestTimingService.slowRequests();
+    }
+
+    /**
+     * 识别音频上传统计信息
+     *
+     * @return 缓冲区使用峰值与写入临时文件的次数
+     */
+    @GetMapping("/uploads")
+    public UploadStats uploads() {
+        return audioUploadService.stats();
+    }
+
+    /**
+     * 微软SDK识别器统计信息
+     *
+     * @return 使用中的识别器数、未释放的本地句柄数与租用时长
+     */
+    @GetMapping("/microsoftRecognizer")
+    public RecognizerPoolStats microsoftRecognizer() {
+        return microsoftRecognizerPool.stats();
+    }
+
+    /**
+     * SSE跨节点转发统计信息
+     *
+     * @return 本节点与其他节点上的客户端数、转发消息数与各节点连接状态
+     */
+    @GetMapping("/cluster")
+    public ClusterStats cluster() {
+        return tcpMeshSseRelay.stats();
+    }
+}
@@ -1,16 +1,30 @@
 package com.jonas.speech.controller;
 
+import cn.hutool.json.JSONUtil;
+import com.jonas.speech.common.AsyncSttResult;
+import com.jonas.speech.common.BatchSummary;
+import com.jonas.speech.common.Transcript;
 import com.jonas.speech.service.SpeechBusinessService;
+import com.jonas.speech.service.stt.AsyncSttService;
+import com.jonas.speech.service.stt.BatchSttService;
+import com.jonas.speech.service.timing.RequestTimingService;
+import com.jonas.speech.service.upload.AudioUpload;
+import com.jonas.speech.service.upload.AudioUploadService;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import lombok.RequiredArgsConstructor;
 import lombok.SneakyThrows;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.multipart.MultipartFile;
 
+import java.io.PrintWriter;
+import java.util.List;
+
 /**
  * SpeechController
  *
@@ -22,38 +36,180 @@ import org.springframework.web.multipart.MultipartFile;
 @RequestMapping("/speech")
 public class SpeechController {
     private final SpeechBusinessService speechService;
+    private final BatchSttService batchSttService;
+    private final RequestTimingService requestTimingService;
+    private final AudioUploadService audioUploadService;
+    private final AsyncSttService asyncSttService;
 
     /**
      * 识别语音，转成文本
-     * 同步方法
+     * 同步方法，Server-Timing 响应头返回各阶段耗时
      *
      * @param audioData 音频二进制数据
+     * @param service   指定的服务商，不传由路由选择
      */
     @SneakyThrows
     @PostMapping("/speechToText")
-    public String speechToText(@RequestParam MultipartFile audioData) {
-        return speechService.speechToText(audioData.getBytes());
+    public String speechToText(@RequestParam MultipartFile audioData, @RequestParam(required = false) String service,
+                               HttpServletResponse response) {
+        String text;
+        try (AudioUpload upload = audioUploadService.read(audioData)) {
+            text = speechService.speechToText(upload, service);
+        }
+        serverTiming(response);
+        return text;
+    }
+
+    /**
+     * 识别语音，转成文本
+     * 请求体直接是音频，不经过表单解析，边接收边写入缓冲区
+     *
+     * @param request 请求，Content-Type 为 application/octet-stream 或 audio/wav
+     * @param service 指定的服务商，不传由路由选择
+     */
+    @SneakyThrows
+    @PostMapping(value = "/speechToText", consumes = {MediaType.APPLICATION_OCTET_STREAM_VALUE, "audio/wav"})
+    public String speechToTextRaw(HttpServletRequest request, @RequestParam(required = false) String service,
+                                  HttpServletResponse response) {
+        String text;
+        try (AudioUpload upload = audioUploadService.read(request.getInputStream(), request.getContentLengthLong())) {
+            text = speechService.speechToText(upload, service);
+        }
+        serverTiming(response);
+        return text;
+    }
+
+    /**
+     * 识别语音，转成文本
+     * 异步方法，立即返回任务ID；结果通过 speechToTextResult 轮询，传了 clientId 时同时通过SSE推送
+     *
+     * @param audioData 音频二进制数据
+     * @param service   指定的服务商，不传由路由选择
+     * @param clientId  SSE客户端ID，不传时只能轮询
+     */
+    @SneakyThrows
+    @PostMapping("/speechToTextAsync")
+    public AsyncSttResult speechToTextAsync(@RequestParam MultipartFile audioData,
+                                            @RequestParam(required = false) String service,
+                                            @RequestParam(required = false) Long clientId) {
+        // 上传的音频在识别结束时由异步识别服务关闭
+        return asyncSttService.submit(audioUploadService.read(audioData), service, clientId);
+    }
+
+    /**
+     * 查询异步识别结果
+     *
+     * @param taskId 任务ID
+     */
+    @GetMapping("/speechToTextResult")
+    public AsyncSttResult speechToTextResult(@RequestParam String taskId) {
+        AsyncSttResult result = asyncSttService.get(taskId);
+        if (null == result) {
+            throw new RuntimeException("任务不存在或已过期");
+        }
+        return result;
+    }
+
+    /**
+     * 识别长音频，转成带时间的分段文本
+     *
+     * @param audioData WAV音频二进制数据
+     * @param service   指定的服务商，不传由路由选择
+     */
+    @SneakyThrows
+    @PostMapping("/speechToTextLong")
+    public Transcript speechToTextLong(@RequestParam MultipartFile audioData, @RequestParam(required = false) String service,
+                                       HttpServletResponse response) {
+        Transcript transcript;
+        try (AudioUpload upload = audioUploadService.read(audioData)) {
+            transcript = speechService.speechToTextLong(upload, service);
+        }
+        serverTiming(response);
+        return transcript;
+    }
+
+    /**
+     * 批量识别语音
+     * 以NDJSON流式返回，每条音频识别完成后立即输出一行结果，按完成顺序排列，用 index 对应上传顺序；
+     * 最后一行是汇总，包含吞吐量。受上传大小限制，大的压缩包请用 application/zip 请求体上传
+     *
+     * @param audioData 多个音频文件，.zip 文件展开为其中的每个文件
+     * @param service   指定的服务商，不传由路由选择
+     */
+    @SneakyThrows
+    @PostMapping(value = "/speechToTextBatch", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+    public void speechToTextBatch(@RequestParam List<MultipartFile> audioData, @RequestParam(required = false) String service,
+                                  HttpServletResponse response) {
+        PrintWriter writer = ndjson(response);
+        BatchSummary summary = batchSttService.recognize(audioData, service, result -> write(writer, result));
+        writer.println(JSONUtil.toJsonStr(summary));
+        writer.flush();
+    }
+
+    /**
+     * 批量识别zip压缩包
+     * 请求体就是压缩包，边上传边解压识别，不经过 multipart 的上传大小限制，由批量识别的条目数和总字节数限制；
+     * 返回格式同 multipart 上传
+     *
+     * @param service 指定的服务商，不传由路由选择
+     */
+    @SneakyThrows
+    @PostMapping(value = "/speechToTextBatch", consumes = "application/zip")
+    public void speechToTextBatchZip(@RequestParam(required = false) String service, HttpServletRequest request,
+                                     HttpServletResponse response) {
+        PrintWriter writer = ndjson(response);
+        BatchSummary summary = batchSttService.recognize(request.getInputStream(), service, result -> write(writer, result));
+        writer.println(JSONUtil.toJsonStr(summary));
+        writer.flush();
     }
 
     /**
      * 识别文本，转成语音 //为了测试效果，直接进行播放，晚点将改为音频文件输出
      *
-     * @param text 文本
+     * @param text    文本
+     * @param service 指定的服务商，不传由路由选择
      */
     @SneakyThrows
     @PostMapping("/textToSpeech")
-    public String textToSpeech(@RequestParam String text) {
-        return speechService.textToSpeech(text);
+    public String textToSpeech(@RequestParam String text, @RequestParam(required = false) String service,
+                               HttpServletResponse response) {
+        String audio = speechService.textToSpeech(text, service);
+        serverTiming(response);
+        return audio;
     }
 
     /**
      * 识别文本，转成语音 //为了测试效果，直接进行播放，晚点将改为音频文件输出
      *
-     * @param text 文本
+     * @param text    文本
+     * @param service 指定的服务商，不传由路由选择
      */
     @SneakyThrows
     @PostMapping("/textToSpeechStream")
-    public void textToSpeechStream(@RequestParam String text, @RequestParam Long clientId) {
-        speechService.textToSpeechStream(text, clientId);
+    public void textToSpeechStream(@RequestParam String text, @RequestParam Long clientId,
+                                   @RequestParam(required = false) String service) {
+        speechService.textToSpeechStream(text, clientId, service);
+    }
+
+    @SneakyThrows
+    private PrintWriter ndjson(HttpServletResponse response) {
+        response.setCharacterEncoding("UTF-8");
+        response.setContentType("application/x-ndjson");
+        return response.getWriter();
+    }
+
+    private void write(PrintWriter writer, Object result) {
+        writer.println(JSONUtil.toJsonStr(result));
+        writer.flush();
+        if (writer.checkError()) {
+            throw new RuntimeException("客户端已断开");
+        }
+    }
+
+    private void serverTiming(HttpServletResponse response) {
+        String timing = requestTimingService.takeServerTiming();
+        if (null != timing) {
+            response.setHeader("Server-Timing", timing);
+        }
     }
 }
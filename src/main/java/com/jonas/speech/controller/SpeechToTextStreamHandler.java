@@ -0,0 +1,205 @@
+package com.jonas.speech.controller;
+
+import cn.hutool.json.JSONUtil;
+import com.jonas.speech.common.RecognitionMessage;
+import com.jonas.speech.common.SpeechCapability;
+import com.jonas.speech.service.SpeechToTextListener;
+import com.jonas.speech.service.SpeechToTextStream;
+import com.jonas.speech.service.audio.AudioNormalizer;
+import com.jonas.speech.service.audio.AudioSpec;
+import com.jonas.speech.service.audio.VoiceActivityDetector;
+import com.jonas.speech.service.limit.SpeechLimiter;
+import com.jonas.speech.service.metrics.SpeechMetrics;
+import com.jonas.speech.service.route.SpeechRouter;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.*;
+import org.springframework.web.socket.handler.AbstractWebSocketHandler;
+import org.springframework.web.socket.handler.ConcurrentWebSocketSessionDecorator;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+import org.springframework.web.util.UriComponentsBuilder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 实时语音识别
+ * 客户端以二进制帧持续上传 PCM（单帧不超过8KB），发送文本帧 end 表示音频结束，
+ * 服务端在识别过程中推送中间结果和最终结果。
+ * 音频格式默认 16k 16bit 单声道，可以通过连接参数 sampleRate、channels、bits 声明其他格式，服务端转换后再发给服务商，
+ * 开头的静音不会发给服务商
+ *
+ * @author shenjy
+ * @time 2024/6/18 11:10
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class SpeechToTextStreamHandler extends AbstractWebSocketHandler {
+
+    private static final String ATTR_STREAM = "speechToTextStream";
+    private static final String ATTR_LISTENER = "speechToTextListener";
+    private static final String END = "end";
+
+    private final SpeechRouter speechRouter;
+    private final AudioNormalizer audioNormalizer;
+    private final VoiceActivityDetector voiceActivityDetector;
+    private final SpeechMetrics speechMetrics;
+
+    @Override
+    public void afterConnectionEstablished(WebSocketSession session) throws Exception {
+        // 识别结果来自服务商的回调线程，发送需要串行化
+        WebSocketSession safeSession = new ConcurrentWebSocketSessionDecorator(session, 10000, 512 * 1024);
+        MultiValueMap<String, String> params = null == session.getUri() ? new LinkedMultiValueMap<>()
+                : UriComponentsBuilder.fromUri(session.getUri()).build().getQueryParams();
+        String service = params.getFirst("service");
+        long startTime = System.nanoTime();
+        try {
+            AudioSpec source = new AudioSpec(intParam(params, "sampleRate", 16000), intParam(params, "channels", 1),
+                    intParam(params, "bits", 16));
+            if (!source.isSupported()) {
+                throw new RuntimeException("不支持的音频格式：" + source);
+            }
+            StreamListener listener = new StreamListener(safeSession, startTime);
+            session.getAttributes().put(ATTR_LISTENER, listener);
+            // 建立识别连接失败时由路由换服务商重试，限流许可在识别结束或连接关闭时归还
+            SpeechToTextStream stream = speechRouter.stream(SpeechCapability.SPEECH_TO_TEXT_STREAM, service, true,
+                    (speechService, permit) -> {
+                        listener.permit = permit;
+                        return speechMetrics.countAudio(speechService.getType(), speechService.speechToTextStream(listener));
+                    });
+            // 实时识别的服务商都要求 16k 16bit 单声道，客户端音频先转换格式再裁剪静音
+            SpeechToTextStream trimmed = voiceActivityDetector.wrap(stream, AudioSpec.PCM_16K);
+            session.getAttributes().put(ATTR_STREAM, audioNormalizer.convert(trimmed, source, AudioSpec.PCM_16K));
+        } catch (Exception e) {
+            log.error("speech to text stream start error, session={}", session.getId(), e);
+            send(safeSession, new RecognitionMessage("error", e.getMessage(), elapsed(startTime)));
+            session.close(CloseStatus.SERVER_ERROR);
+        }
+    }
+
+    @Override
+    protected void handleBinaryMessage(WebSocketSession session, BinaryMessage message) {
+        SpeechToTextStream stream = (SpeechToTextStream) session.getAttributes().get(ATTR_STREAM);
+        if (null != stream) {
+            ByteBuffer payload = message.getPayload();
+            if (payload.hasArray()) {
+                // 按偏移和长度直接使用帧的底层数组，不再复制
+                stream.write(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+            } else {
+                byte[] audioData = new byte[payload.remaining()];
+                payload.get(audioData);
+                stream.write(audioData);
+            }
+        }
+    }
+
+    @Override
+    protected void handleTextMessage(WebSocketSession session, TextMessage message) {
+        SpeechToTextStream stream = (SpeechToTextStream) session.getAttributes().get(ATTR_STREAM);
+        if (null != stream && END.equals(message.getPayload().trim())) {
+            stream.close();
+        }
+    }
+
+    @Override
+    public void afterConnectionClosed(WebSocketSession session, CloseStatus status) {
+        SpeechToTextStream stream = (SpeechToTextStream) session.getAttributes().remove(ATTR_STREAM);
+        if (null != stream) {
+            stream.cancel();
+        }
+        StreamListener listener = (StreamListener) session.getAttributes().remove(ATTR_LISTENER);
+        if (null != listener) {
+            listener.release(!CloseStatus.SERVER_ERROR.equalsCode(status));
+        }
+    }
+
+    private static void send(WebSocketSession session, RecognitionMessage message) {
+        if (!session.isOpen()) {
+            return;
+        }
+        try {
+            session.sendMessage(new TextMessage(JSONUtil.toJsonStr(message)));
+        } catch (IOException e) {
+            log.error("speech to text stream send error, session={}", session.getId(), e);
+        }
+    }
+
+    private static int intParam(MultiValueMap<String, String> params, String name, int defaultValue) {
+        String value = params.getFirst(name);
+        return null == value ? defaultValue : Integer.parseInt(value);
+    }
+
+    private static long elapsed(long startTime) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+    }
+
+    /**
+     * 把识别结果转发给客户端，并记录首个识别结果的耗时
+     */
+    private static class StreamListener implements SpeechToTextListener {
+        private final WebSocketSession session;
+        private final long startTime;
+        private volatile long firstResultTime = -1;
+        // 路由的限流许可，识别结束、出错或连接关闭时归还
+        private volatile SpeechLimiter.Permit permit;
+
+        StreamListener(WebSocketSession session, long startTime) {
+            this.session = session;
+            this.startTime = startTime;
+        }
+
+        @Override
+        public void onPartial(String text) {
+            push("partial", text);
+        }
+
+        @Override
+        public void onFinal(String text) {
+            push("final", text);
+        }
+
+        @Override
+        public void onError(String message) {
+            release(false);
+            send(session, new RecognitionMessage("error", message, elapsed(startTime)));
+            closeSession(CloseStatus.SERVER_ERROR);
+        }
+
+        @Override
+        public void onComplete() {
+            long total = elapsed(startTime);
+            log.info("speech to text stream complete, session={}, firstResult={}ms, total={}ms",
+                    session.getId(), firstResultTime, total);
+            release(true);
+            send(session, new RecognitionMessage("complete", null, total));
+            closeSession(CloseStatus.NORMAL);
+        }
+
+        private void push(String type, String text) {
+            long elapsed = elapsed(startTime);
+            if (firstResultTime < 0) {
+                firstResultTime = elapsed;
+            }
+            send(session, new RecognitionMessage(type, text, elapsed));
+        }
+
+        private void release(boolean success) {
+            SpeechLimiter.Permit current = permit;
+            if (null != current) {
+                current.release(success, null);
+            }
+        }
+
+        private void closeSession(CloseStatus status) {
+            try {
+                session.close(status);
+            } catch (IOException e) {
+                log.error("speech to text stream close error, session={}", session.getId(), e);
+            }
+        }
+    }
+}
@@ -1,9 +1,11 @@
 package com.jonas.speech.controller;
 
+import cn.hutool.core.util.NumberUtil;
 import com.jonas.speech.service.SseService;
 import lombok.RequiredArgsConstructor;
 import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
@@ -24,16 +26,16 @@ public class SseController {
     /**
      * 创建SSE长连接
      * 返回SseEmitter，会在服务端和客户端创建长连接
+     * 浏览器断线重连时自动带上 Last-Event-ID，从该事件之后继续推送
      *
-     * @param clientId 客户端ID
+     * @param clientId    客户端ID
+     * @param lastEventId 客户端收到的最后一个事件ID
      * @return SseEmitter
      */
     @GetMapping(path = "/subscribe", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
-    public SseEmitter subscribe(Long clientId) {
-        SseEmitter emitter = new SseEmitter(Long.MAX_VALUE);
-        // Add the emitter to a list of subscribers or handle it in another way
-        sseService.addEmitter(clientId, emitter);
-        return emitter;
+    public SseEmitter subscribe(Long clientId,
+                                @RequestHeader(value = "Last-Event-ID", required = false) String lastEventId) {
+        return sseService.subscribe(clientId, NumberUtil.isLong(lastEventId) ? Long.valueOf(lastEventId) : null);
     }
 
     /**
@@ -0,0 +1,76 @@
+package com.jonas.speech.controller;
+
+import cn.hutool.core.util.NumberUtil;
+import cn.hutool.core.util.StrUtil;
+import com.jonas.speech.service.AudioStreamService;
+import com.jonas.speech.service.SpeechBusinessService;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.ConcurrentWebSocketSessionDecorator;
+import org.springframework.web.socket.handler.TextWebSocketHandler;
+import org.springframework.web.util.UriComponentsBuilder;
+
+/**
+ * 流式语音合成
+ * 连接地址携带 clientId，服务端以二进制帧下发原始音频，以文本帧下发 start、end、error 控制消息。
+ * 客户端可以直接发送文本帧触发合成，也可以继续调用 /speech/textToSpeechStream 接口
+ *
+ * @author shenjy
+ * @time 2024/6/27 15:02
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class TextToSpeechStreamHandler extends TextWebSocketHandler {
+
+    private static final String ATTR_CLIENT_ID = "clientId";
+    private static final String ATTR_SESSION = "safeSession";
+    private static final String ATTR_SERVICE = "service";
+
+    private final AudioStreamService audioStreamService;
+    private final SpeechBusinessService speechBusinessService;
+
+    @Override
+    public void afterConnectionEstablished(WebSocketSession session) throws Exception {
+        MultiValueMap<String, String> params = null == session.getUri() ? new LinkedMultiValueMap<>()
+                : UriComponentsBuilder.fromUri(session.getUri()).build().getQueryParams();
+        String clientId = params.getFirst("clientId");
+        if (!NumberUtil.isLong(clientId)) {
+            session.close(CloseStatus.BAD_DATA.withReason("clientId 不能为空"));
+            return;
+        }
+        // 音频来自服务商的回调线程，发送需要串行化；客户端消费过慢超出缓冲上限时断开连接
+        WebSocketSession safeSession = new ConcurrentWebSocketSessionDecorator(session, 10000, 1024 * 1024);
+        session.getAttributes().put(ATTR_CLIENT_ID, Long.valueOf(clientId));
+        session.getAttributes().put(ATTR_SESSION, safeSession);
+        // 可选的 service 参数，指定整个会话使用的服务商
+        if (StrUtil.isNotBlank(params.getFirst("service"))) {
+            session.getAttributes().put(ATTR_SERVICE, params.getFirst("service"));
+        }
+        audioStreamService.register(Long.valueOf(clientId), safeSession);
+    }
+
+    @Override
+    protected void handleTextMessage(WebSocketSession session, TextMessage message) {
+        Long clientId = (Long) session.getAttributes().get(ATTR_CLIENT_ID);
+        String text = message.getPayload();
+        if (null != clientId && StrUtil.isNotBlank(text)) {
+            speechBusinessService.textToSpeechStream(text, clientId, (String) session.getAttributes().get(ATTR_SERVICE));
+        }
+    }
+
+    @Override
+    public void afterConnectionClosed(WebSocketSession session, CloseStatus status) {
+        Long clientId = (Long) session.getAttributes().get(ATTR_CLIENT_ID);
+        WebSocketSession safeSession = (WebSocketSession) session.getAttributes().get(ATTR_SESSION);
+        if (null != clientId && null != safeSession) {
+            audioStreamService.unregister(clientId, safeSession);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package com.jonas.speech.service;
+
+import cn.hutool.json.JSONUtil;
+import com.jonas.speech.common.SpeechCapability;
+import com.jonas.speech.service.limit.SpeechLimiter;
+import com.jonas.speech.service.metrics.SpeechMetrics;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 流式语音合成的音频下发
+ * 客户端建立了WebSocket连接时以二进制帧发送原始音频，并用文本帧发送 start、end、error 控制消息；
+ * 否则回退到SSE，以Base64文本发送。
+ * 通过 begin 登记的合成会记录首包耗时、总耗时和下发的音频字节数，合成结束时归还登记的限流许可
+ *
+ * @author shenjy
+ * @time 2024/6/27 14:30
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class AudioStreamService {
+
+    private static final TextMessage START = new TextMessage("{\"type\":\"start\"}");
+    private static final TextMessage END = new TextMessage("{\"type\":\"end\"}");
+
+    private final SseService sseService;
+    private final SpeechMetrics speechMetrics;
+
+    private final Map<Long, WebSocketSession> sessionMap = new ConcurrentHashMap<>();
+    private final Map<Long, StreamTiming> timingMap = new ConcurrentHashMap<>();
+
+    /**
+     * 注册WebSocket连接，session需要支持多线程发送
+     */
+    public void register(Long clientId, WebSocketSession session) {
+        sessionMap.put(clientId, session);
+    }
+
+    public void unregister(Long clientId, WebSocketSession session) {
+        sessionMap.remove(clientId, session);
+    }
+
+    /**
+     * 登记一次流式合成，用于统计耗时，同一客户端的上一次合成如果还没结束则不再统计
+     *
+     * @param clientId  客户端ID
+     * @param provider  服务商
+     * @param startTime 发起合成的时间，毫秒
+     */
+    public void begin(Long clientId, String provider, long startTime) {
+        begin(clientId, provider, startTime, null);
+    }
+
+    /**
+     * 登记一次流式合成，合成结束、出错或取消时归还限流许可
+     * 同一客户端的上一次合成如果还没结束，归还它的许可，不再统计
+     *
+     * @param clientId  客户端ID
+     * @param provider  服务商
+     * @param startTime 发起合成的时间，毫秒
+     * @param permit    路由的限流许可，可为空
+     */
+    public void begin(Long clientId, String provider, long startTime, SpeechLimiter.Permit permit) {
+        StreamTiming previous = timingMap.put(clientId, new StreamTiming(provider, startTime, permit));
+        if (null != previous && null != previous.permit) {
+            previous.permit.release(false, null);
+        }
+    }
+
+    /**
+     * 合成没能发起，取消登记
+     */
+    public void abort(Long clientId) {
+        finish(clientId, SpeechMetrics.ERROR);
+    }
+
+    /**
+     * 开始下发音频
+     */
+    public void start(Long clientId) {
+        WebSocketSession session = sessionMap.get(clientId);
+        if (null != session) {
+            send(clientId, session, START);
+        }
+    }
+
+    /**
+     * 下发一段音频
+     *
+     * @param clientId 客户端ID
+     * @param audio    音频二进制数据
+     * @return 音频转发到其他节点失败时以错误结束本次合成并返回false，调用方应停止合成
+     */
+    public boolean audio(Long clientId, byte[] audio) {
+        StreamTiming timing = timingMap.get(clientId);
+        if (null != timing) {
+            if (!timing.firstAudio) {
+                timing.firstAudio = true;
+                speechMetrics.streamFirstAudio(timing.provider, System.currentTimeMillis() - timing.startTime);
+            }
+            speechMetrics.audioBytes(timing.provider, SpeechCapability.TEXT_TO_SPEECH_STREAM, SpeechMetrics.OUT,
+                    audio.length);
+        }
+        WebSocketSession session = sessionMap.get(clientId);
+        if (null != session) {
+            send(clientId, session, new BinaryMessage(audio));
+        } else if (!sseService.pushAudio(clientId, audio)) {
+            error(clientId, "音频转发失败");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 音频下发结束
+     */
+    public void end(Long clientId) {
+        finish(clientId, SpeechMetrics.SUCCESS);
+        WebSocketSession session = sessionMap.get(clientId);
+        if (null != session) {
+            send(clientId, session, END);
+        }
+    }
+
+    /**
+     * 合成出错
+     */
+    public void error(Long clientId, String message) {
+        finish(clientId, SpeechMetrics.ERROR);
+        WebSocketSession session = sessionMap.get(clientId);
+        if (null != session) {
+            send(clientId, session, new TextMessage("{\"type\":\"error\",\"message\":"
+                    + JSONUtil.quote(message) + "}"));
+        }
+    }
+
+    private void finish(Long clientId, String outcome) {
+        StreamTiming timing = timingMap.remove(clientId);
+        if (null != timing) {
+            if (null != timing.permit) {
+                timing.permit.release(SpeechMetrics.SUCCESS.equals(outcome), null);
+            }
+            speechMetrics.streamDuration(timing.provider, System.currentTimeMillis() - timing.startTime, outcome);
+        }
+    }
+
+    private void send(Long clientId, WebSocketSession session, WebSocketMessage<?> message) {
+        if (!session.isOpen()) {
+            unregister(clientId, session);
+            return;
+        }
+        try {
+            session.sendMessage(message);
+        } catch (Exception e) {
+            log.error("audio stream send error, clientId={}", clientId, e);
+        }
+    }
+
+    private static class StreamTiming {
+        private final String provider;
+        private final long startTime;
+        private final SpeechLimiter.Permit permit;
+        // 同一客户端的音频由服务商回调线程依次下发
+        private volatile boolean firstAudio;
+
+        StreamTiming(String provider, long startTime, SpeechLimiter.Permit permit) {
+            this.provider = provider;
+            this.startTime = startTime;
+            this.permit = permit;
+        }
+    }
+}
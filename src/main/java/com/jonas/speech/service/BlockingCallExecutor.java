@@ -0,0 +1,76 @@
+package com.jonas.speech.service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * 阻塞调用执行器
+ * 百度、腾讯SDK在同步块内执行网络请求，虚拟线程在 synchronized 中阻塞会钉住载体线程。
+ * 在虚拟线程（请求线程开启虚拟线程，或异步识别）上调用时，这类调用转交给有界的平台线程池执行，
+ * 虚拟线程只是挂起等待结果；平台线程上直接执行
+ *
+ * @author shenjy
+ * @time 2024/7/2 10:30
+ */
+@Slf4j
+@Component
+public class BlockingCallExecutor {
+
+    // 平台线程数，即同时进行的SDK调用上限，默认与 Tomcat 工作线程数相同，不低于切换虚拟线程之前的吞吐上限
+    @Value("${speech.blocking.threads:${server.tomcat.threads.max:200}}")
+    private int threads;
+
+    private ExecutorService executor;
+
+    @PostConstruct
+    public void init() {
+        // 线程按需创建，未使用虚拟线程时不会占用资源
+        executor = Executors.newFixedThreadPool(threads,
+                Thread.ofPlatform().name("blocking-call-", 0).daemon(true).factory());
+    }
+
+    @PreDestroy
+    public void destroy() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * 执行可能钉住虚拟线程的阻塞调用，异常原样抛出
+     */
+    @SuppressWarnings("unchecked")
+    public <T, E extends Exception> T call(BlockingCall<T, E> call) throws E {
+        if (!Thread.currentThread().isVirtual()) {
+            return call.call();
+        }
+        Future<T> future = executor.submit(call::call);
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            if (cause instanceof Error error) {
+                throw error;
+            }
+            throw (E) cause;
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    @FunctionalInterface
+    public interface BlockingCall<T, E extends Exception> {
+        T call() throws E;
+    }
+}
@@ -1,5 +1,21 @@
 package com.jonas.speech.service;
 
+import cn.hutool.core.util.StrUtil;
+import com.jonas.speech.common.SpeechCapability;
+import com.jonas.speech.common.Transcript;
+import com.jonas.speech.service.audio.AudioNormalizer;
+import com.jonas.speech.service.audio.AudioPayload;
+import com.jonas.speech.service.audio.VoiceActivityDetector;
+import com.jonas.speech.service.cache.CachedAudio;
+import com.jonas.speech.service.cache.TtsCacheService;
+import com.jonas.speech.service.metrics.SpeechMetrics;
+import com.jonas.speech.service.route.SpeechRouter;
+import com.jonas.speech.service.stt.LongAudioService;
+import com.jonas.speech.service.timing.RequestTiming;
+import com.jonas.speech.service.timing.RequestTimingService;
+import com.jonas.speech.service.timing.TimingPhase;
+import com.jonas.speech.service.tts.SegmentedTtsService;
+import com.jonas.speech.service.upload.AudioUpload;
 import com.vdurmont.emoji.EmojiParser;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
@@ -7,6 +23,14 @@ import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
 
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
 /**
  * 语音业务服务类
  *
@@ -18,39 +42,261 @@ import org.springframework.stereotype.Service;
 @RequiredArgsConstructor
 public class SpeechBusinessService {
 
-    private final SpeechServiceFactory speechServiceFactory;
+    private final SpeechRouter speechRouter;
+    private final TtsCacheService ttsCacheService;
+    private final SegmentedTtsService segmentedTtsService;
+    private final AudioNormalizer audioNormalizer;
+    private final VoiceActivityDetector voiceActivityDetector;
+    private final LongAudioService longAudioService;
+    private final AudioStreamService audioStreamService;
+    private final SpeechMetrics speechMetrics;
+    private final RequestTimingService requestTimingService;
+    // 长音频的切分识别是阻塞的，异步识别时放在虚拟线程中进行
+    private final ExecutorService longExecutor =
+            Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("speech-long-async-", 0).factory());
 
     /**
      * 识别语音，转成文本
      * 同步方法
      *
+     * 开启对冲时，主服务商响应过慢会把同一段音频再发给另一个服务商，取先返回的结果。
+     * WAV音频先按所选服务商要求的采样率、位深和声道数转换，再裁掉首尾的静音；超过长音频阈值时切分后并行识别。
+     * 同步识别和合成都会记录各阶段耗时，接口层通过 RequestTimingService 取出
+     *
      * @param audioData 音频二进制数据
+     * @param service   指定的服务商，为空时由路由选择
+     * @return 文本
+     */
+    public String speechToText(byte[] audioData, String service) {
+        return speechToText(ByteBuffer.wrap(audioData), service, null);
+    }
+
+    /**
+     * 识别上传的语音，转成文本
+     * 音频在池化缓冲区或映射文件中，格式符合要求时直接从中写给服务商，不复制成整块数组
+     *
+     * @param upload  上传的音频，由调用方关闭
+     * @param service 指定的服务商，为空时由路由选择
+     * @return 文本
+     */
+    public String speechToText(AudioUpload upload, String service) {
+        return speechToText(upload.audio(), service, upload);
+    }
+
+    /**
+     * 异步识别上传的语音
+     * 通过服务商的异步请求识别，等待结果时不占用线程，失败时按路由重试其他服务商；取消返回的 future 或让它超时会取消在途请求。
+     * 长音频仍然切分后识别，在虚拟线程中进行
+     *
+     * @param upload  上传的音频，由调用方关闭；在途的识别请求各自持有引用，读取结束后才归还缓冲区
+     * @param service 指定的服务商，为空时由路由选择
      * @return 文本
      */
-    public String speechToText(byte[] audioData) {
-        SpeechService speechService = speechServiceFactory.getService();
-        return speechService.speechToText(audioData);
+    public CompletableFuture<String> speechToTextAsync(AudioUpload upload, String service) {
+        ByteBuffer audio = upload.audio();
+        if (longAudioService.isLong(audio)) {
+            // 取消返回的 future 不会停止切分识别，由任务本身持有引用直到不再读取
+            upload.retain();
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    return completeText(speechToTextLong(audio, service));
+                } finally {
+                    upload.release();
+                }
+            }, longExecutor);
+        }
+        CompletableFuture<String> source = speechRouter.executeAsync(SpeechCapability.SPEECH_TO_TEXT, service,
+                speechService -> attempt(upload, () -> speechService.speechToTextAsync(prepare(audio, speechService, upload))),
+                StrUtil::isNotBlank);
+        CompletableFuture<String> text = source.thenApply(StrUtil::nullToEmpty);
+        // 返回的 future 被取消或超时（orTimeout）时取消路由中的调用，进而取消在途的服务商请求
+        text.whenComplete((value, e) -> {
+            if (null != e) {
+                source.cancel(true);
+            }
+        });
+        return text;
+    }
+
+    private String speechToText(ByteBuffer audio, String service, AudioUpload upload) {
+        RequestTiming timing = requestTimingService.begin("speechToText");
+        try {
+            if (longAudioService.isLong(audio)) {
+                return completeText(speechToTextLong(audio, service));
+            }
+            return recognize(audio, service, upload);
+        } finally {
+            requestTimingService.end(timing);
+        }
+    }
+
+    /**
+     * 只返回文本的接口无法标出失败的片段，有片段失败时整体失败，避免调用方拿到不完整的文本
+     */
+    private static String completeText(Transcript transcript) {
+        if (!transcript.isComplete()) {
+            String failed = transcript.getSegments().stream()
+                    .filter(segment -> null != segment.getError())
+                    .map(segment -> segment.getStartMs() + "-" + segment.getEndMs() + "ms")
+                    .collect(Collectors.joining(","));
+            throw new RuntimeException("长音频部分片段识别失败：" + failed);
+        }
+        return transcript.getText();
+    }
+
+    /**
+     * 识别长音频，在停顿处切分后并行识别，返回各片段的时间和文本
+     *
+     * @param audioData WAV音频二进制数据
+     * @param service   指定的服务商，为空时每个片段单独由路由选择
+     * @return 识别结果，部分片段失败时 complete 为 false
+     */
+    public Transcript speechToTextLong(byte[] audioData, String service) {
+        return speechToTextLong(ByteBuffer.wrap(audioData), service);
+    }
+
+    /**
+     * 识别上传的长音频
+     *
+     * @param upload  上传的WAV音频，由调用方关闭
+     * @param service 指定的服务商，为空时每个片段单独由路由选择
+     * @return 识别结果，部分片段失败时 complete 为 false
+     */
+    public Transcript speechToTextLong(AudioUpload upload, String service) {
+        return speechToTextLong(upload.audio(), service);
+    }
+
+    private Transcript speechToTextLong(ByteBuffer audio, String service) {
+        // 片段在其他线程识别，只记录总耗时
+        RequestTiming timing = requestTimingService.begin("speechToTextLong");
+        try {
+            return longAudioService.recognize(audio, chunk -> recognize(ByteBuffer.wrap(chunk), service, null));
+        } finally {
+            requestTimingService.end(timing);
+        }
+    }
+
+    /**
+     * 不对冲时在当前线程同步调用服务商；对冲时各服务商的请求并发读取同一个缓冲区，只使用绝对位置读取
+     *
+     * @param upload 缓冲区所属的上传，不是上传的音频时为空
+     */
+    private String recognize(ByteBuffer audioData, String service, AudioUpload upload) {
+        if (!speechRouter.hedging(service)) {
+            return speechRouter.execute(SpeechCapability.SPEECH_TO_TEXT, service,
+                    speechService -> speechService.speechToText(prepare(audioData, speechService, upload)));
+        }
+        return speechRouter.hedge(SpeechCapability.SPEECH_TO_TEXT, service,
+                speechService -> attempt(upload, () -> speechService.speechToTextAsync(prepare(audioData, speechService, upload))),
+                StrUtil::isNotBlank);
+    }
+
+    /**
+     * 识别请求在结束前持有上传的引用，对冲中落败或超时的请求仍在读取时，缓冲区不会归还给其他请求
+     *
+     * @param upload 上传的音频，为空时直接调用
+     */
+    private static <T> CompletableFuture<T> attempt(AudioUpload upload, Supplier<CompletableFuture<T>> call) {
+        if (null == upload) {
+            return call.get();
+        }
+        if (!upload.retain()) {
+            return CompletableFuture.failedFuture(new RuntimeException("上传的音频已释放"));
+        }
+        CompletableFuture<T> future;
+        try {
+            future = call.get();
+        } catch (RuntimeException e) {
+            upload.release();
+            throw e;
+        }
+        future.whenComplete((result, e) -> upload.release());
+        return future;
+    }
+
+    /**
+     * 按服务商要求转换格式并裁掉首尾静音
+     */
+    private AudioPayload prepare(ByteBuffer audioData, SpeechService speechService, AudioUpload upload) {
+        RequestTiming timing = RequestTiming.current();
+        long start = null == timing ? 0 : timing.start(TimingPhase.PREPARE);
+        AudioPayload audio = voiceActivityDetector.trim(audioNormalizer.normalize(audioData, speechService)).readFrom(upload);
+        if (null != timing) {
+            timing.stop(TimingPhase.PREPARE, start);
+        }
+        speechMetrics.audioBytes(speechService.getType(), SpeechCapability.SPEECH_TO_TEXT, SpeechMetrics.IN,
+                audio.length());
+        return audio;
     }
 
     /**
      * 识别文本，转成语音
      *
-     * @param text 文本
+     * @param text    文本
+     * @param service 指定的服务商，为空时由路由选择
      * @return 音频二进制数据
      */
-    public String textToSpeech(String text) {
-        SpeechService speechService = speechServiceFactory.getService();
-        return speechService.textToSpeech(text);
+    public String textToSpeech(String text, String service) {
+        RequestTiming timing = requestTimingService.begin("textToSpeech");
+        try {
+            // 缓存命中时不经过路由，不计入服务商的调用耗时和健康统计
+            CachedAudio cached = ttsCacheService.lookup(
+                    speechRouter.services(SpeechCapability.TEXT_TO_SPEECH, service), text);
+            if (null != cached) {
+                return cached.audio();
+            }
+            return speechRouter.execute(SpeechCapability.TEXT_TO_SPEECH, service,
+                    speechService -> {
+                        String audio = speechService.textToSpeech(text);
+                        if (StrUtil.isNotEmpty(audio)) {
+                            speechMetrics.audioBytes(speechService.getType(), SpeechCapability.TEXT_TO_SPEECH,
+                                    SpeechMetrics.OUT, decodedLength(audio));
+                            ttsCacheService.put(speechService, text, audio);
+                        }
+                        return audio;
+                    });
+        } finally {
+            requestTimingService.end(timing);
+        }
     }
 
     /**
      * 识别文本，转成语音
      * 流式接口
      *
-     * @param text 文本
+     * 长文本按句切分后并行合成、按顺序下发；只有一句且服务商支持流式合成时直接走流式接口
+     *
+     * @param text    文本
+     * @param service 指定的服务商，为空时由路由选择
+     */
+    public void textToSpeechStream(String text, Long clientId, String service) {
+        String cleanText = EmojiParser.removeAllEmojis(text);
+        List<String> segments = segmentedTtsService.segment(cleanText);
+        if (segments.isEmpty()) {
+            return;
+        }
+        if (segmentedTtsService.accept(segments, service)) {
+            segmentedTtsService.synthesize(segments, clientId, service);
+            return;
+        }
+        // 许可随合成登记，音频下发结束或出错时归还
+        speechRouter.stream(SpeechCapability.TEXT_TO_SPEECH_STREAM, service, false, (speechService, permit) -> {
+            audioStreamService.begin(clientId, speechService.getType(), System.currentTimeMillis(), permit);
+            try {
+                speechService.textToSpeechStream(cleanText, clientId);
+            } catch (RuntimeException e) {
+                audioStreamService.abort(clientId);
+                throw e;
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Base64音频解码后的字节数，不实际解码
      */
-    public void textToSpeechStream(String text, Long clientId) {
-        SpeechService speechService = speechServiceFactory.getService();
-        speechService.textToSpeechStream(EmojiParser.removeAllEmojis(text), clientId);
+    private static long decodedLength(String base64) {
+        int padding = base64.endsWith("==") ? 2 : base64.endsWith("=") ? 1 : 0;
+        return base64.length() / 4L * 3 - padding;
     }
 }
@@ -1,15 +1,28 @@
 package com.jonas.speech.service;
 
+import com.jonas.speech.common.SpeechCapability;
+import com.jonas.speech.service.audio.AudioPayload;
+import com.jonas.speech.service.audio.AudioSpec;
+import com.jonas.speech.service.audio.PcmConverter;
 import jakarta.servlet.AsyncContext;
 import jakarta.servlet.AsyncEvent;
 import jakarta.servlet.AsyncListener;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 import org.springframework.stereotype.Service;
 
 import java.io.IOException;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * 语音接口
@@ -20,6 +33,13 @@ import java.io.IOException;
 @Slf4j
 public abstract class SpeechService {
 
+    private static final ExecutorService ASYNC_EXECUTOR =
+            Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("speech-async-", 0).factory());
+
+    // 回调方式识别的超时时间，毫秒，0表示不限制
+    @Value("${speech.stt.asyncTimeout:60000}")
+    private long asyncTimeout;
+
     /**
      * 识别语音，转成文本
      * 同步方法
@@ -29,13 +49,82 @@ public abstract class SpeechService {
      */
     public abstract String speechToText(byte[] audioData);
 
+    /**
+     * 识别语音，转成文本
+     * 异步方法，在 speechToTextAsync 完成时回调，不占用等待线程；超过 speech.stt.asyncTimeout 时回调 onTimeout
+     * 并取消底层请求
+     *
+     * @param audioData 音频二进制数据
+     */
+    public void speechToText(byte[] audioData, SpeechToTextCallback callback) {
+        CompletableFuture<String> future;
+        try {
+            future = speechToTextAsync(audioData);
+        } catch (RuntimeException e) {
+            future = CompletableFuture.failedFuture(e);
+        }
+        if (asyncTimeout > 0) {
+            future.orTimeout(asyncTimeout, TimeUnit.MILLISECONDS);
+        }
+        future.whenComplete((text, e) -> {
+            if (null == e) {
+                callback.onComplete(null == text ? "" : text);
+                return;
+            }
+            Throwable cause = e instanceof CompletionException && null != e.getCause() ? e.getCause() : e;
+            if (cause instanceof TimeoutException) {
+                callback.onTimeout();
+            } else {
+                log.error("{} speech to text error", getType(), cause);
+                callback.onError(String.valueOf(cause.getMessage()));
+            }
+        });
+    }
+
+    /**
+     * 识别语音，转成文本
+     * 同步方法，默认转成整块数组后调用数组版本；能直接读取缓冲区或流式编码的服务覆盖该方法
+     *
+     * @param audio 音频
+     * @return 文本
+     */
+    public String speechToText(AudioPayload audio) {
+        return speechToText(audio.toByteArray());
+    }
+
     /**
      * 识别语音，转成文本
      * 异步方法
      *
      * @param audioData 音频二进制数据
+     * @return 文本
      */
-    public abstract void speechToText(byte[] audioData, SpeechToTextCallback callback);
+    public CompletableFuture<String> speechToTextAsync(byte[] audioData) {
+        return speechToTextAsync(AudioPayload.of(audioData));
+    }
+
+    /**
+     * 识别语音，转成文本
+     * 异步方法，默认在虚拟线程上执行同步识别；各服务商都覆盖了该方法，使用异步HTTP或WebSocket，
+     * 请求在途时不占用线程，取消返回的 future 或让它超时都会取消底层请求
+     *
+     * @param audio 音频
+     * @return 文本
+     */
+    public CompletableFuture<String> speechToTextAsync(AudioPayload audio) {
+        return CompletableFuture.supplyAsync(() -> speechToText(audio), ASYNC_EXECUTOR);
+    }
+
+    /**
+     * 识别语音，转成文本
+     * 实时流式接口，边上传音频边返回识别结果
+     *
+     * @param listener 识别结果监听
+     * @return 音频输入
+     */
+    public SpeechToTextStream speechToTextStream(SpeechToTextListener listener) {
+        throw new RuntimeException("暂不支持该操作");
+    }
 
     /**
      * 识别文本，转成语音
@@ -53,6 +142,53 @@ public abstract class SpeechService {
      */
     public abstract void textToSpeechStream(String text, Long clientId);
 
+    /**
+     * 服务类型，取值见 SpeechType
+     */
+    public abstract String getType();
+
+    /**
+     * 支持的操作，路由时只会选择支持对应操作的服务
+     */
+    public Set<SpeechCapability> getCapabilities() {
+        return EnumSet.of(SpeechCapability.SPEECH_TO_TEXT, SpeechCapability.TEXT_TO_SPEECH);
+    }
+
+    /**
+     * 语音合成使用的发音人
+     */
+    public String getVoice() {
+        return "";
+    }
+
+    /**
+     * 语音合成输出的音频格式
+     */
+    public String getAudioFormat() {
+        return "";
+    }
+
+    /**
+     * 把非流式合成的结果转换为流式合成下发的格式
+     * 分句合成逐段转换后下发，整条流的格式不随文本长度变化，流中间也不会出现WAV头。
+     * 默认下发 16k 16bit 单声道裸PCM，输出WAV的服务商都适用
+     *
+     * @param audio 非流式合成的音频
+     * @return 流式合成格式的音频
+     */
+    public byte[] toStreamAudio(byte[] audio) {
+        return PcmConverter.toRaw(audio, AudioSpec.PCM_16K);
+    }
+
+    /**
+     * 语音识别要求的输入格式，上传的WAV会在识别前转换为该格式
+     *
+     * @param source 上传音频的格式
+     */
+    public AudioSpec audioInputSpec(AudioSpec source) {
+        return AudioSpec.PCM_16K;
+    }
+
     public void writeResponse(HttpServletResponse response, Object data) {
         try {
 //            response.setCharacterEncoding("UTF-8");
@@ -4,6 +4,7 @@ import jakarta.annotation.Resource;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import java.util.Collections;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -35,4 +36,11 @@ public class SpeechServiceFactory {
         }
         return map.get(service);
     }
+
+    /**
+     * 所有已注册的服务，key为服务类型
+     */
+    public Map<String, SpeechService> getServices() {
+        return Collections.unmodifiableMap(map);
+    }
 }
@@ -2,6 +2,7 @@ package com.jonas.speech.service;
 
 /**
  * SpeechToTextCallback
+ * 每次识别只回调其中一个方法一次；只实现 onComplete 时，出错和超时按空文本结束
  *
  * @author shenjy
  * @time 2024/4/23 17:36
@@ -9,4 +10,20 @@ package com.jonas.speech.service;
 public interface SpeechToTextCallback {
 
     void onComplete(String text);
+
+    /**
+     * 识别失败
+     *
+     * @param message 错误信息
+     */
+    default void onError(String message) {
+        onComplete("");
+    }
+
+    /**
+     * 超过 speech.stt.asyncTimeout 仍未返回，底层请求已取消
+     */
+    default void onTimeout() {
+        onError("识别超时");
+    }
 }
@@ -0,0 +1,36 @@
+package com.jonas.speech.service;
+
+/**
+ * 实时语音识别结果监听
+ *
+ * @author shenjy
+ * @time 2024/6/18 10:12
+ */
+public interface SpeechToTextListener {
+
+    /**
+     * 中间识别结果，后续可能被修正
+     *
+     * @param text 当前句子的识别文本
+     */
+    void onPartial(String text);
+
+    /**
+     * 一句话的最终识别结果
+     *
+     * @param text 识别文本
+     */
+    void onFinal(String text);
+
+    /**
+     * 识别出错，之后不会再有回调
+     *
+     * @param message 错误信息
+     */
+    void onError(String message);
+
+    /**
+     * 识别结束
+     */
+    void onComplete();
+}
@@ -0,0 +1,43 @@
+package com.jonas.speech.service;
+
+import java.util.Arrays;
+
+/**
+ * 实时语音识别的音频输入
+ * 音频格式为 16k 采样率、16bit、单声道 PCM
+ *
+ * @author shenjy
+ * @time 2024/6/18 10:15
+ */
+public interface SpeechToTextStream {
+
+    /**
+     * 写入一帧音频
+     *
+     * @param audioData 音频二进制数据
+     */
+    void write(byte[] audioData);
+
+    /**
+     * 写入数组中的一段音频，调用返回后不再引用该数组，调用方可以复用
+     * 默认复制出这一段再调用 write(byte[])
+     *
+     * @param audioData 音频二进制数据
+     * @param offset    起始位置
+     * @param length    长度
+     */
+    default void write(byte[] audioData, int offset, int length) {
+        write(offset == 0 && length == audioData.length ? audioData
+                : Arrays.copyOfRange(audioData, offset, offset + length));
+    }
+
+    /**
+     * 音频结束，等待最终识别结果
+     */
+    void close();
+
+    /**
+     * 取消识别并释放资源，不再回调
+     */
+    void cancel();
+}
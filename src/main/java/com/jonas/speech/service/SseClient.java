@@ -0,0 +1,484 @@
+package com.jonas.speech.service;
+
+import cn.hutool.core.codec.Base64;
+import com.jonas.speech.common.SseClientStats;
+import com.jonas.speech.common.SseOverflowPolicy;
+import com.jonas.speech.service.metrics.SpeechMetrics;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * SSE客户端
+ * 生产者只把消息放入有界队列，由写线程串行发送，慢客户端不会阻塞服务商的回调线程。
+ * 发送的消息带递增的事件ID，最近发送的消息保留在有界的重放缓冲区中；连接断开后客户端状态保留一段时间，
+ * 期间的消息继续排队，客户端带 Last-Event-ID 重连时先重发该ID之后的消息，再发送排队的消息。
+ * 队列按条数和字节数双重限制，重放缓冲区同样按条数和字节数限制。
+ * 队列满时只丢弃文本消息；音频不丢弃中间的片段，等待超时后整个音频流以错误结束；
+ * 其他节点转来的消息不等待，放不下时立即按上述方式处理
+ *
+ * @author shenjy
+ * @time 2024/6/24 10:20
+ */
+@Slf4j
+class SseClient {
+
+    private static final String AUDIO_OVERFLOW = "{\"type\":\"error\",\"message\":\"音频发送队列已满，音频流已结束\"}";
+
+    private final long clientId;
+    private final Executor executor;
+    private final int capacity;
+    private final SseOverflowPolicy policy;
+    private final long offerTimeout;
+    private final int coalesceMaxBytes;
+    private final long maxQueueBytes;
+    private final int replayEvents;
+    private final long replayBytes;
+    private final SpeechMetrics speechMetrics;
+
+    private final ArrayDeque<Event> queue;
+    // 已发送的消息，按事件ID递增
+    private final ArrayDeque<Event> replay = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private SseEmitter emitter;
+    private boolean draining;
+    private long queueBytes;
+    private long replayBufferBytes;
+    private long lastEventId;
+    private volatile boolean closed;
+    // 音频队列溢出后音频流已结束，之后的音频直接丢弃
+    private boolean audioFailed;
+    // 最近一次推送消息的时间，心跳不计入
+    private volatile long lastActivity = System.currentTimeMillis();
+    // 最近一次写出的时间，包括心跳
+    private volatile long lastWrite = System.currentTimeMillis();
+    // 连接断开的时间，已连接时为0
+    private volatile long detachedAt;
+
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder replayed = new LongAdder();
+    private final LongAdder writeNanos = new LongAdder();
+    private final AtomicLong maxWriteNanos = new AtomicLong();
+
+    SseClient(long clientId, SseEmitter emitter, Executor executor, int capacity, SseOverflowPolicy policy,
+              long offerTimeout, int coalesceMaxBytes, long maxQueueBytes, int replayEvents, long replayBytes,
+              SpeechMetrics speechMetrics) {
+        this.clientId = clientId;
+        this.emitter = emitter;
+        this.executor = executor;
+        this.capacity = capacity;
+        this.policy = policy;
+        this.offerTimeout = offerTimeout;
+        this.coalesceMaxBytes = coalesceMaxBytes;
+        this.maxQueueBytes = maxQueueBytes;
+        this.replayEvents = replayEvents;
+        this.replayBytes = replayBytes;
+        this.speechMetrics = speechMetrics;
+        this.queue = new ArrayDeque<>(capacity);
+    }
+
+    long getClientId() {
+        return clientId;
+    }
+
+    SseEmitter getEmitter() {
+        lock.lock();
+        try {
+            return emitter;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    long lastActivity() {
+        return lastActivity;
+    }
+
+    long lastWrite() {
+        return lastWrite;
+    }
+
+    long detachedAt() {
+        return detachedAt;
+    }
+
+    /**
+     * 客户端重新连接，换上新的连接
+     *
+     * @param emitter     新连接
+     * @param lastEventId 客户端收到的最后一个事件ID，为空时不重发
+     * @return 被替换的旧连接，已断开时为空
+     */
+    SseEmitter attach(SseEmitter emitter, Long lastEventId) {
+        lock.lock();
+        try {
+            SseEmitter old = this.emitter;
+            this.emitter = emitter;
+            detachedAt = 0;
+            if (null != lastEventId) {
+                // 倒序插到队首，保持原来的顺序，重放的消息沿用原来的事件ID
+                int count = 0;
+                Iterator<Event> iterator = replay.descendingIterator();
+                while (iterator.hasNext()) {
+                    Event event = iterator.next();
+                    if (event.id <= lastEventId) {
+                        break;
+                    }
+                    queue.addFirst(event);
+                    queueBytes += event.size();
+                    count++;
+                }
+                if (count > 0) {
+                    replayed.add(count);
+                    speechMetrics.sseReplayed(count);
+                    log.info("sse replay, clientId={}, lastEventId={}, events={}", clientId, lastEventId, count);
+                }
+            }
+            scheduleDrain();
+            return old;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 连接已断开，之后的消息继续排队等待重连
+     *
+     * @return 断开的是否为当前连接
+     */
+    boolean detach(SseEmitter emitter) {
+        lock.lock();
+        try {
+            if (this.emitter != emitter) {
+                return false;
+            }
+            this.emitter = null;
+            detachedAt = System.currentTimeMillis();
+            notFull.signalAll();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 已序列化好的消息
+     */
+    void offerData(String data) {
+        offerData(data, true);
+    }
+
+    /**
+     * 已序列化好的消息
+     *
+     * @param wait 队列满时是否按策略等待写线程腾出空间，转发线程上调用时不等待
+     */
+    void offerData(String data, boolean wait) {
+        lastActivity = System.currentTimeMillis();
+        offer(new Event(Event.DATA, null, data, 0), wait);
+    }
+
+    /**
+     * 音频数据，发送时进行Base64编码
+     */
+    void offerAudio(byte[] audio) {
+        offerAudio(audio, true);
+    }
+
+    /**
+     * 音频数据，发送时进行Base64编码
+     *
+     * @param wait 队列满时是否等待写线程腾出空间，不等待时放不下就结束音频流
+     */
+    void offerAudio(byte[] audio, boolean wait) {
+        lastActivity = System.currentTimeMillis();
+        offer(new Event(Event.AUDIO, audio, null, 0), wait);
+    }
+
+    /**
+     * 队列中的消息发送完之后结束连接
+     */
+    void offerComplete() {
+        offer(new Event(Event.COMPLETE, null, null, 0), false);
+    }
+
+    /**
+     * 心跳，只在已连接且队列为空时发送，用于发现已断开的连接
+     */
+    void offerHeartbeat() {
+        lock.lock();
+        try {
+            if (!closed && null != emitter && queue.isEmpty() && !draining) {
+                queue.addLast(new Event(Event.HEARTBEAT, null, null, 0));
+                scheduleDrain();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            queue.clear();
+            replay.clear();
+            queueBytes = 0;
+            replayBufferBytes = 0;
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    SseClientStats stats() {
+        long count = sent.sum();
+        int depth;
+        long bytes;
+        long buffered;
+        boolean connected;
+        lock.lock();
+        try {
+            depth = queue.size();
+            bytes = queueBytes;
+            buffered = replayBufferBytes;
+            connected = null != emitter;
+        } finally {
+            lock.unlock();
+        }
+        return new SseClientStats(clientId, connected, depth, bytes, buffered, count, dropped.sum(), coalesced.sum(),
+                replayed.sum(), count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(writeNanos.sum() / count),
+                TimeUnit.NANOSECONDS.toMicros(maxWriteNanos.get()));
+    }
+
+    private void offer(Event event, boolean wait) {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            if (full(event) && !makeRoom(event, wait)) {
+                return;
+            }
+            queue.addLast(event);
+            queueBytes += event.size();
+            scheduleDrain();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean full(Event event) {
+        return queue.size() >= capacity || queueBytes + event.size() > maxQueueBytes;
+    }
+
+    /**
+     * 队列已满时按策略腾出空间
+     *
+     * @return 当前消息是否还需要入队
+     */
+    private boolean makeRoom(Event event, boolean wait) {
+        // 结束标记必须入队，允许超出上限
+        if (event.kind == Event.COMPLETE) {
+            return true;
+        }
+        if (event.kind == Event.AUDIO) {
+            return makeRoomForAudio(event, wait);
+        }
+        if (policy == SseOverflowPolicy.BLOCK ? awaitRoom(event, wait) : evictFor(event)) {
+            return true;
+        }
+        drop();
+        return false;
+    }
+
+    /**
+     * 音频是连续的字节流，丢掉其中一段客户端就无法正确播放，所以音频从不被挤掉：
+     * 先尝试合并到队尾的音频，再等待写线程腾出空间，仍然放不下时结束整个音频流并通知客户端
+     */
+    private boolean makeRoomForAudio(Event event, boolean wait) {
+        if (audioFailed) {
+            drop();
+            return false;
+        }
+        if (policy == SseOverflowPolicy.COALESCE && coalesce(event)) {
+            return false;
+        }
+        if (awaitRoom(event, wait)) {
+            return true;
+        }
+        audioFailed = true;
+        drop();
+        log.warn("sse audio queue overflow, stream failed, clientId={}, depth={}, bytes={}",
+                clientId, queue.size(), queueBytes);
+        Event error = new Event(Event.DATA, null, AUDIO_OVERFLOW, 0);
+        queue.addLast(error);
+        queueBytes += error.size();
+        queue.addLast(new Event(Event.COMPLETE, null, null, 0));
+        scheduleDrain();
+        return false;
+    }
+
+    /**
+     * 把音频拼接到队尾还没有发送的音频后面，不丢失数据
+     */
+    private boolean coalesce(Event event) {
+        Event last = queue.peekLast();
+        if (null == last || last.kind != Event.AUDIO || last.id != 0
+                || last.audio.length + event.audio.length > coalesceMaxBytes
+                || queueBytes + event.size() > maxQueueBytes) {
+            return false;
+        }
+        byte[] merged = new byte[last.audio.length + event.audio.length];
+        System.arraycopy(last.audio, 0, merged, 0, last.audio.length);
+        System.arraycopy(event.audio, 0, merged, last.audio.length, event.audio.length);
+        queue.pollLast();
+        queue.addLast(new Event(Event.AUDIO, merged, null, 0));
+        queueBytes += event.size();
+        coalesced.increment();
+        return true;
+    }
+
+    /**
+     * 持锁等待写线程腾出空间，连接断开时没有写线程在消费，不等待
+     */
+    private boolean awaitRoom(Event event, boolean wait) {
+        long nanos = !wait || null == emitter ? 0 : TimeUnit.MILLISECONDS.toNanos(offerTimeout);
+        try {
+            while (full(event) && !closed && null != emitter && nanos > 0) {
+                nanos = notFull.awaitNanos(nanos);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return !full(event) && !closed;
+    }
+
+    /**
+     * 从最旧的开始丢弃文本消息直到放得下当前消息，队列中的音频和结束标记不丢弃
+     */
+    private boolean evictFor(Event event) {
+        Iterator<Event> iterator = queue.iterator();
+        while (full(event) && iterator.hasNext()) {
+            Event queued = iterator.next();
+            if (queued.kind == Event.DATA) {
+                iterator.remove();
+                queueBytes -= queued.size();
+                drop();
+            }
+        }
+        return !full(event);
+    }
+
+    /**
+     * 持锁调用，已连接且有消息时启动写线程
+     */
+    private void scheduleDrain() {
+        if (!draining && null != emitter && !queue.isEmpty()) {
+            draining = true;
+            executor.execute(this::drain);
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            Event event;
+            SseEmitter current;
+            lock.lock();
+            try {
+                current = emitter;
+                event = null == current || closed ? null : queue.pollFirst();
+                if (null == event) {
+                    draining = false;
+                    return;
+                }
+                queueBytes -= event.size();
+                if (event.id == 0 && (event.kind == Event.DATA || event.kind == Event.AUDIO)) {
+                    event = new Event(event.kind, event.audio, event.data, ++lastEventId);
+                    remember(event);
+                }
+                notFull.signal();
+            } finally {
+                lock.unlock();
+            }
+            write(current, event);
+        }
+    }
+
+    /**
+     * 持锁调用，发送前先放入重放缓冲区，发送失败的消息在重连后也能重发
+     */
+    private void remember(Event event) {
+        replay.addLast(event);
+        replayBufferBytes += event.size();
+        while (replay.size() > replayEvents || (replayBufferBytes > replayBytes && replay.size() > 1)) {
+            replayBufferBytes -= replay.pollFirst().size();
+        }
+    }
+
+    private void write(SseEmitter current, Event event) {
+        if (event.kind == Event.COMPLETE) {
+            close();
+            current.complete();
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            if (event.kind == Event.HEARTBEAT) {
+                current.send(SseEmitter.event().comment("ping"));
+            } else {
+                current.send(SseEmitter.event().id(Long.toString(event.id))
+                        .data(event.kind == Event.AUDIO ? Base64.encode(event.audio) : event.data));
+                sent.increment();
+            }
+        } catch (Exception e) {
+            log.warn("sse send error, clientId={}, error={}", clientId, e.getMessage());
+            speechMetrics.sseSendFailure();
+            // 等待客户端重连，超过保留时间后由 SseService 清理
+            detach(current);
+            return;
+        }
+        long now = System.nanoTime();
+        lastWrite = System.currentTimeMillis();
+        if (event.kind != Event.HEARTBEAT) {
+            long nanos = now - start;
+            writeNanos.add(nanos);
+            maxWriteNanos.accumulateAndGet(nanos, Math::max);
+            speechMetrics.ssePush(nanos);
+        }
+    }
+
+    private void drop() {
+        dropped.increment();
+        speechMetrics.sseDropped();
+    }
+
+    private record Event(int kind, byte[] audio, String data, long id) {
+        static final int DATA = 0;
+        static final int AUDIO = 1;
+        static final int COMPLETE = 2;
+        static final int HEARTBEAT = 3;
+
+        /**
+         * 计入内存上限的字节数，文本按字符数估算
+         */
+        long size() {
+            return null != audio ? audio.length : null != data ? data.length() : 0;
+        }
+    }
+}
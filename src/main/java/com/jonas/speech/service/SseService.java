@@ -1,70 +1,329 @@
 package com.jonas.speech.service;
 
+import cn.hutool.core.thread.NamedThreadFactory;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.jonas.speech.common.SseClientStats;
 import com.jonas.speech.common.SseContent;
+import com.jonas.speech.common.SseOverflowPolicy;
+import com.jonas.speech.service.cluster.SseRelay;
+import com.jonas.speech.service.metrics.SpeechMetrics;
+import com.jonas.speech.util.ConcurrentLongMap;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
-import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.sql.Timestamp;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * SseService
+ * 每个客户端拥有一个有界发送队列，由写线程异步发送。
+ * 本节点上没有该客户端的连接时，消息经 SseRelay 转给连接所在的节点，其他节点转来的消息同样进入发送队列。
+ * 空闲的连接定期发送心跳以发现已断开的连接；连接断开后客户端保留一段时间，带 Last-Event-ID 重连时从断点继续。
+ * 客户端以 long 为键保存，不装箱
  *
  * @author shenjy
  * @time 2023/11/14 16:52
  */
 @Slf4j
 @Service
+@RequiredArgsConstructor
 public class SseService {
 
-    private final Map<Long, SseEmitter> emitterMap = new ConcurrentHashMap<>();
+    private final SpeechMetrics speechMetrics;
+    private final SseRelay sseRelay;
+    private final ObjectMapper objectMapper;
 
-    public void addEmitter(Long clientId, SseEmitter emitter) {
-        emitterMap.put(clientId, emitter);
+    // 每个客户端的队列容量
+    @Value("${speech.sse.queueCapacity:256}")
+    private int queueCapacity;
+    // 每个客户端队列中待发送的最大字节数
+    @Value("${speech.sse.maxQueueBytes:4194304}")
+    private long maxQueueBytes;
+    // 队列满时的处理策略
+    @Value("${speech.sse.overflowPolicy:COALESCE}")
+    private SseOverflowPolicy overflowPolicy;
+    // BLOCK策略下文本消息、以及所有策略下音频的最长等待时间，毫秒
+    @Value("${speech.sse.offerTimeout:1000}")
+    private long offerTimeout;
+    // COALESCE策略下合并后单条音频的最大字节数
+    @Value("${speech.sse.coalesceMaxBytes:65536}")
+    private int coalesceMaxBytes;
+    // 写线程数，0表示使用虚拟线程
+    @Value("${speech.sse.writerThreads:0}")
+    private int writerThreads;
+    // 客户端数上限，包括断开后等待重连的客户端
+    @Value("${speech.sse.maxClients:10000}")
+    private int maxClients;
+    // 单个连接的最长时间，到期后客户端带 Last-Event-ID 自动重连，毫秒
+    @Value("${speech.sse.emitterTimeout:1800000}")
+    private long emitterTimeout;
+    // 连接空闲超过该时间发送心跳，毫秒
+    @Value("${speech.sse.heartbeatInterval:15000}")
+    private long heartbeatInterval;
+    // 超过该时间没有推送消息的客户端被关闭，毫秒
+    @Value("${speech.sse.idleTimeout:600000}")
+    private long idleTimeout;
+    // 每个客户端重放缓冲区保留的消息数和字节数
+    @Value("${speech.sse.replayEvents:256}")
+    private int replayEvents;
+    @Value("${speech.sse.replayBytes:1048576}")
+    private long replayBytes;
+    // 连接断开后等待重连的时间，超过后清理，毫秒
+    @Value("${speech.sse.replayRetention:30000}")
+    private long replayRetention;
+
+    private final ConcurrentLongMap<SseClient> clientMap = new ConcurrentLongMap<>();
+
+    private ExecutorService writerExecutor;
+    private ScheduledExecutorService scheduler;
+
+    @PostConstruct
+    public void init() {
+        writerExecutor = writerThreads > 0
+                ? Executors.newFixedThreadPool(writerThreads, Thread.ofPlatform().name("sse-writer-", 0).daemon(true).factory())
+                : Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("sse-writer-", 0).factory());
+        scheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("sse-heartbeat-", true));
+        long interval = Math.max(1000, heartbeatInterval / 2);
+        scheduler.scheduleWithFixedDelay(this::maintain, interval, interval, TimeUnit.MILLISECONDS);
+        speechMetrics.gauge("speech.sse.emitters", "SSE连接数", clientMap, ConcurrentLongMap::size);
+        sseRelay.start(new SseRelay.FrameHandler() {
+            @Override
+            public boolean deliver(long clientId, SseRelay.Kind kind, byte[] payload) {
+                return offer(clientMap.get(clientId), kind, payload);
+            }
+
+            @Override
+            public void moved(long clientId) {
+                SseClient client = clientMap.remove(clientId);
+                if (null != client) {
+                    log.info("emitter moved to another node, clientId={}", clientId);
+                    SseEmitter emitter = client.getEmitter();
+                    client.close();
+                    if (null != emitter) {
+                        emitter.complete();
+                    }
+                }
+            }
+        });
+    }
+
+    @PreDestroy
+    public void destroy() {
+        scheduler.shutdownNow();
+        writerExecutor.shutdownNow();
+    }
+
+    /**
+     * 建立连接
+     * 客户端断开后在 replayRetention 内重连时沿用原来的发送队列，带 Last-Event-ID 时先重发该ID之后的消息
+     *
+     * @param clientId    客户端ID
+     * @param lastEventId 客户端收到的最后一个事件ID，首次连接为空
+     * @return 新连接
+     */
+    public SseEmitter subscribe(long clientId, Long lastEventId) {
+        SseEmitter emitter = new SseEmitter(emitterTimeout);
+        SseClient client = clientMap.get(clientId);
+        if (null != client && !client.isClosed()) {
+            watch(clientId, client, emitter);
+            SseEmitter old = client.attach(emitter, lastEventId);
+            if (null != old) {
+                old.complete();
+            }
+            sseRelay.register(clientId);
+            return emitter;
+        }
+        // 并发时可能略微超过上限
+        if (clientMap.size() >= maxClients) {
+            speechMetrics.sseEvicted("rejected");
+            throw new RuntimeException("SSE连接数已达上限");
+        }
+        client = new SseClient(clientId, emitter, writerExecutor, queueCapacity, overflowPolicy, offerTimeout,
+                coalesceMaxBytes, maxQueueBytes, replayEvents, replayBytes, speechMetrics);
+        watch(clientId, client, emitter);
+        SseClient old = clientMap.put(clientId, client);
+        if (null != old) {
+            SseEmitter oldEmitter = old.getEmitter();
+            old.close();
+            if (null != oldEmitter) {
+                oldEmitter.complete();
+            }
+        }
+        sseRelay.register(clientId);
+        return emitter;
+    }
+
+    /**
+     * 推送文本消息，消息在入队时就用 ObjectMapper 序列化好，格式为 {"message":..., "timestamp":...}
+     *
+     * @return 本节点和其他节点上都没有该客户端的连接，或转发失败时返回false
+     */
+    public boolean push(long clientId, String content) {
+        return pushObj(clientId, new SseContent(content, new Timestamp(System.currentTimeMillis())));
+    }
+
+    /**
+     * 推送对象，使用与 Spring MVC 相同的 ObjectMapper 序列化，字符串原样发送
+     *
+     * @return 本节点和其他节点上都没有该客户端的连接，或转发失败时返回false
+     */
+    public boolean pushObj(long clientId, Object content) {
+        String data;
+        try {
+            data = content instanceof String str ? str : objectMapper.writeValueAsString(content);
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException("SSE消息序列化失败", e);
+        }
+        return send(clientId, SseRelay.Kind.DATA, data);
+    }
+
+    /**
+     * 推送音频，发送时进行Base64编码，队列积压时相邻的音频可以合并发送
+     *
+     * @param clientId 客户端ID
+     * @param audio    音频二进制数据
+     * @return 需要转发但转发失败时返回false，音频流已不完整，调用方应结束本次合成
+     */
+    public boolean pushAudio(long clientId, byte[] audio) {
+        SseClient client = clientMap.get(clientId);
+        if (null != client) {
+            client.offerAudio(audio);
+            return true;
+        }
+        return forward(clientId, SseRelay.Kind.AUDIO, audio);
+    }
+
+    /**
+     * 队列中的消息发送完之后关闭连接
+     *
+     * @return 需要转发但转发失败时返回false
+     */
+    public boolean over(long clientId) {
+        SseClient client = clientMap.get(clientId);
+        if (null != client) {
+            client.offerComplete();
+            return true;
+        }
+        return forward(clientId, SseRelay.Kind.COMPLETE, new byte[0]);
+    }
+
+    /**
+     * 各客户端的发送队列统计
+     */
+    public List<SseClientStats> stats() {
+        List<SseClientStats> list = new ArrayList<>();
+        clientMap.values().forEach(client -> list.add(client.stats()));
+        return list;
+    }
+
+    private boolean send(long clientId, SseRelay.Kind kind, String data) {
+        SseClient client = clientMap.get(clientId);
+        if (null != client) {
+            client.offerData(data);
+            return true;
+        }
+        return forward(clientId, kind, data.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * 本节点上没有该客户端的连接，转给连接所在的节点
+     */
+    private boolean forward(long clientId, SseRelay.Kind kind, byte[] payload) {
+        if (sseRelay.forward(clientId, kind, payload)) {
+            return true;
+        }
+        log.warn("sse relay failed, clientId={}, kind={}", clientId, kind);
+        return false;
+    }
+
+    /**
+     * 其他节点转来的消息，在转发连接的读线程上调用，队列满时不等待，
+     * 放不下的音频以错误结束该客户端的音频流，不影响同一连接上的其他客户端
+     *
+     * @return 本节点上是否有该客户端的连接
+     */
+    private static boolean offer(SseClient client, SseRelay.Kind kind, byte[] payload) {
+        if (null == client) {
+            return false;
+        }
+        switch (kind) {
+            case DATA -> client.offerData(new String(payload, StandardCharsets.UTF_8), false);
+            case AUDIO -> client.offerAudio(payload, false);
+            case COMPLETE -> client.offerComplete();
+        }
+        return true;
+    }
+
+    private void watch(long clientId, SseClient client, SseEmitter emitter) {
         emitter.onCompletion(() -> {
-            emitterMap.remove(clientId);
+            disconnected(clientId, client, emitter);
             log.info("emitter completion, clientId=" + clientId);
         });
         emitter.onTimeout(() -> {
-            emitterMap.remove(clientId);
-            log.error("emitter timeout, clientId=" + clientId);
+            disconnected(clientId, client, emitter);
+            log.info("emitter timeout, clientId=" + clientId);
         });
         emitter.onError(e -> {
-            emitterMap.remove(clientId);
-            log.error("emitter error, clientId=" + clientId, e);
+            disconnected(clientId, client, emitter);
+            log.warn("emitter error, clientId={}, error={}", clientId, e.getMessage());
         });
     }
 
-    public void push(Long clientId, String content) {
-        SseEmitter sseEmitter = emitterMap.get(clientId);
-        if (null != sseEmitter) {
-            try {
-                sseEmitter.send(new SseContent(content, new Timestamp(System.currentTimeMillis())));
-            } catch (IOException e) {
-                log.error("send error", e);
-            }
+    /**
+     * 连接结束，已发送结束标记的客户端直接移除，否则保留等待重连
+     */
+    private void disconnected(long clientId, SseClient client, SseEmitter emitter) {
+        client.detach(emitter);
+        if (client.isClosed()) {
+            remove(clientId, client);
         }
     }
 
-    public void pushObj(Long clientId, Object content) {
-        SseEmitter sseEmitter = emitterMap.get(clientId);
-        if (null != sseEmitter) {
+    /**
+     * 定期发送心跳并清理客户端：断开后超过保留时间未重连的、长时间没有推送消息的
+     */
+    private void maintain() {
+        long now = System.currentTimeMillis();
+        for (SseClient client : clientMap.values()) {
+            long clientId = client.getClientId();
             try {
-                sseEmitter.send(content);
-            } catch (IOException e) {
-                log.error("send error", e);
+                if (client.isClosed()) {
+                    remove(clientId, client);
+                } else if (client.detachedAt() > 0) {
+                    if (now - client.detachedAt() > replayRetention) {
+                        log.info("sse client expired, clientId={}", clientId);
+                        speechMetrics.sseEvicted("expired");
+                        remove(clientId, client);
+                    }
+                } else if (now - client.lastActivity() > idleTimeout) {
+                    log.info("sse client idle, clientId={}", clientId);
+                    speechMetrics.sseEvicted("idle");
+                    client.offerComplete();
+                } else if (now - client.lastWrite() >= heartbeatInterval) {
+                    client.offerHeartbeat();
+                }
+            } catch (RuntimeException e) {
+                log.error("sse maintain error, clientId={}", clientId, e);
             }
         }
     }
 
-    public void over(Long clientId) {
-        SseEmitter sseEmitter = emitterMap.get(clientId);
-        if (null != sseEmitter) {
-            sseEmitter.complete();
-            emitterMap.remove(clientId);
+    private void remove(long clientId, SseClient client) {
+        client.close();
+        if (clientMap.remove(clientId, client)) {
+            sseRelay.unregister(clientId);
         }
     }
 }
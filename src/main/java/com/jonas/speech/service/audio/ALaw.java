@@ -0,0 +1,44 @@
+package com.jonas.speech.service.audio;
+
+/**
+ * G.711 A-law 编码，16位PCM压缩为8位
+ *
+ * @author shenjy
+ * @time 2024/7/24 10:40
+ */
+public final class ALaw {
+
+    private ALaw() {
+    }
+
+    /**
+     * 编码16位小端单声道PCM
+     *
+     * @param pcm 16位小端PCM
+     * @return A-law数据，每个采样一个字节
+     */
+    public static byte[] encode(byte[] pcm) {
+        byte[] output = new byte[pcm.length / 2];
+        for (int i = 0; i < output.length; i++) {
+            output[i] = encode((short) ((pcm[2 * i] & 0xFF) | (pcm[2 * i + 1] << 8)));
+        }
+        return output;
+    }
+
+    /**
+     * 编码一个采样
+     */
+    public static byte encode(short sample) {
+        int sign = sample >= 0 ? 0x80 : 0;
+        // A-law只用高13位，负数取反码，避免 -32768 溢出
+        int magnitude = (sample >= 0 ? sample : ~sample) >> 3;
+        int encoded;
+        if (magnitude < 32) {
+            encoded = magnitude >> 1;
+        } else {
+            int exponent = 31 - Integer.numberOfLeadingZeros(magnitude) - 4;
+            encoded = (exponent << 4) | ((magnitude >> exponent) & 0x0F);
+        }
+        return (byte) ((sign | encoded) ^ 0x55);
+    }
+}
@@ -0,0 +1,15 @@
+package com.jonas.speech.service.audio;
+
+/**
+ * 长音频切分出的片段，位置相对WAV的data块
+ *
+ * @param offset  片段在音频数组中的起始位置
+ * @param length  片段字节数
+ * @param startMs 开始时间，毫秒
+ * @param endMs   结束时间，毫秒
+ * @param pauseMs 切分处的停顿时长，最后一个片段为0，毫秒
+ * @author shenjy
+ * @time 2024/7/29 10:50
+ */
+public record AudioChunk(int offset, int length, long startMs, long endMs, long pauseMs) {
+}
@@ -0,0 +1,167 @@
+package com.jonas.speech.service.audio;
+
+import com.jonas.speech.service.SpeechService;
+import com.jonas.speech.service.SpeechToTextStream;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 识别前的音频规整
+ * 解析上传的WAV头，按服务商要求的采样率、位深和声道数转换。格式已经符合要求或无法识别的音频原样返回，不复制。
+ * 输入可以是映射的临时文件，此时分块读到堆上转换，转换结果在堆上
+ *
+ * @author shenjy
+ * @time 2024/7/24 11:05
+ */
+@Slf4j
+@Component
+public class AudioNormalizer {
+
+    // 没有底层数组的输入按该大小分块转换
+    private static final int CHUNK_BYTES = 64 * 1024;
+
+    @Value("${speech.audio.normalize:true}")
+    private boolean enabled;
+
+    /**
+     * 把WAV音频转换为服务商要求的格式
+     *
+     * @param audio         音频数据
+     * @param speechService 识别服务
+     * @return 转换后的WAV音频
+     */
+    public byte[] normalize(byte[] audio, SpeechService speechService) {
+        // 未转换时返回的就是原数组，转换结果是完整数组
+        return normalize(ByteBuffer.wrap(audio), speechService).array();
+    }
+
+    /**
+     * 把WAV音频转换为服务商要求的格式
+     *
+     * @param audio         音频数据，从下标0开始
+     * @param speechService 识别服务
+     * @return 转换后的WAV音频，不需要转换时返回原缓冲区
+     */
+    public ByteBuffer normalize(ByteBuffer audio, SpeechService speechService) {
+        if (!enabled) {
+            return audio;
+        }
+        WavHeader header = WavHeader.parse(audio);
+        if (null == header) {
+            return audio;
+        }
+        AudioSpec target = speechService.audioInputSpec(header.spec());
+        if (header.spec().equals(target)) {
+            return audio;
+        }
+        ByteBuffer output = convert(audio, header, target);
+        log.info("audio normalized, provider={}, {} -> {}, bytes {} -> {}",
+                speechService.getType(), header.spec(), target, audio.limit(), output.limit());
+        return output;
+    }
+
+    /**
+     * 把WAV音频转换为指定格式，不受 speech.audio.normalize 开关影响，用于切分等需要固定格式的处理
+     *
+     * @param audio  音频数据
+     * @param target 目标格式
+     * @return 转换后的WAV音频，格式已经一致时返回原数组
+     */
+    public byte[] convert(byte[] audio, AudioSpec target) {
+        return convert(ByteBuffer.wrap(audio), target).array();
+    }
+
+    /**
+     * 把WAV音频转换为指定格式
+     *
+     * @param audio  音频数据，从下标0开始
+     * @param target 目标格式
+     * @return 转换后的WAV音频，格式已经一致时返回原缓冲区
+     */
+    public ByteBuffer convert(ByteBuffer audio, AudioSpec target) {
+        WavHeader header = WavHeader.parse(audio);
+        if (null == header) {
+            throw new RuntimeException("无法识别的WAV音频");
+        }
+        return header.spec().equals(target) ? audio : convert(audio, header, target);
+    }
+
+    private static ByteBuffer convert(ByteBuffer audio, WavHeader header, AudioSpec target) {
+        // 输出长度可以预先算出，直接转换到结果数组
+        int length = PcmConverter.outputBytes(header.spec(), target, header.dataLength());
+        byte[] output = new byte[WavHeader.SIZE + length];
+        PcmConverter converter = new PcmConverter(header.spec(), target);
+        int written = 0;
+        if (audio.hasArray()) {
+            written = converter.convert(audio.array(), audio.arrayOffset() + header.dataOffset(), header.dataLength(),
+                    output, WavHeader.SIZE);
+        } else {
+            byte[] chunk = new byte[CHUNK_BYTES];
+            for (int offset = 0; offset < header.dataLength(); offset += chunk.length) {
+                int count = Math.min(chunk.length, header.dataLength() - offset);
+                audio.get(header.dataOffset() + offset, chunk, 0, count);
+                written += converter.convert(chunk, 0, count, output, WavHeader.SIZE + written);
+            }
+        }
+        WavHeader.write(target, written, output, 0);
+        return ByteBuffer.wrap(output);
+    }
+
+    /**
+     * 实时识别的音频输入按客户端声明的格式转换，格式一致时直接返回原输入
+     *
+     * @param stream 服务商的音频输入
+     * @param source 客户端上传的格式
+     * @param target 服务商要求的格式
+     */
+    public SpeechToTextStream convert(SpeechToTextStream stream, AudioSpec source, AudioSpec target) {
+        if (!enabled || source.equals(target)) {
+            return stream;
+        }
+        return new ConvertingStream(stream, new PcmConverter(source, target));
+    }
+
+    /**
+     * 转换中的音频输入，输出缓冲区在同一路音频内复用，按偏移和长度直接交给下游，不再逐帧复制
+     */
+    private static class ConvertingStream implements SpeechToTextStream {
+        private final SpeechToTextStream stream;
+        private final PcmConverter converter;
+        private byte[] buffer = new byte[0];
+
+        ConvertingStream(SpeechToTextStream stream, PcmConverter converter) {
+            this.stream = stream;
+            this.converter = converter;
+        }
+
+        @Override
+        public void write(byte[] audioData) {
+            write(audioData, 0, audioData.length);
+        }
+
+        @Override
+        public void write(byte[] audioData, int offset, int length) {
+            int capacity = converter.maxOutputBytes(length);
+            if (buffer.length < capacity) {
+                buffer = new byte[capacity];
+            }
+            int written = converter.convert(audioData, offset, length, buffer, 0);
+            if (written > 0) {
+                stream.write(buffer, 0, written);
+            }
+        }
+
+        @Override
+        public void close() {
+            stream.close();
+        }
+
+        @Override
+        public void cancel() {
+            stream.cancel();
+        }
+    }
+}
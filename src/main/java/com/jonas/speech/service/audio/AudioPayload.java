@@ -0,0 +1,217 @@
+package com.jonas.speech.service.audio;
+
+import com.jonas.speech.service.upload.AudioUpload;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * 发给服务商的识别音频
+ * 由一段或多段只读缓冲区组成，比如裁剪后新生成的WAV头加上原音频中保留的区间；
+ * 上传时逐段写出，Base64 也是边读边编码，不拼接成整块数组。缓冲区可以是池化数组，也可以是映射的临时文件，
+ * 此时每次读取都持有上传的引用，上传已归还后读取会失败，不会读到被其他请求复用的内容
+ *
+ * @author shenjy
+ * @time 2024/8/14 10:20
+ */
+public final class AudioPayload {
+
+    // 映射文件没有底层数组，按该大小分块复制
+    private static final int CHUNK_BYTES = 8192;
+
+    private final ByteBuffer[] parts;
+    private final int length;
+    // 缓冲区所属的上传，不是上传的音频时为空
+    private final AudioUpload upload;
+
+    private AudioPayload(ByteBuffer[] parts) {
+        this(parts, null);
+    }
+
+    private AudioPayload(ByteBuffer[] parts, AudioUpload upload) {
+        this.parts = parts;
+        this.upload = upload;
+        int total = 0;
+        for (ByteBuffer part : parts) {
+            total = Math.addExact(total, part.remaining());
+        }
+        this.length = total;
+    }
+
+    public static AudioPayload of(byte[] audio) {
+        return new AudioPayload(new ByteBuffer[]{ByteBuffer.wrap(audio)});
+    }
+
+    /**
+     * @param parts 按顺序拼接的各段音频，取各自 position 到 limit 的内容
+     */
+    public static AudioPayload of(ByteBuffer... parts) {
+        ByteBuffer[] slices = new ByteBuffer[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            slices[i] = parts[i].slice();
+        }
+        return new AudioPayload(slices);
+    }
+
+    /**
+     * 标记缓冲区来自上传的音频，之后每次读取都持有上传的引用
+     *
+     * @param upload 上传的音频，为空时返回自身
+     */
+    public AudioPayload readFrom(AudioUpload upload) {
+        return null == upload ? this : new AudioPayload(parts, upload);
+    }
+
+    public int length() {
+        return length;
+    }
+
+    /**
+     * 读取WAV的采样率，WAV头总在第一段
+     *
+     * @param defaultRate 不是WAV时的默认值
+     */
+    public int sampleRate(int defaultRate) {
+        return parts.length == 0 ? defaultRate : WavHeader.sampleRate(parts[0], defaultRate);
+    }
+
+    /**
+     * WAV音频数据的起始位置，WAV头总在第一段
+     *
+     * @return 不是WAV时返回0
+     */
+    public int dataOffset() {
+        WavHeader header = parts.length == 0 ? null : WavHeader.parse(parts[0]);
+        return null == header ? 0 : header.dataOffset();
+    }
+
+    /**
+     * 从指定位置复制音频，用于按帧发送
+     *
+     * @param offset 在整个音频中的起始位置
+     * @param target 目标数组，最多复制其长度的字节
+     * @return 复制的字节数，已到末尾时返回0
+     */
+    public int read(int offset, byte[] target) {
+        retain();
+        try {
+            return copy(offset, target);
+        } finally {
+            release();
+        }
+    }
+
+    private int copy(int offset, byte[] target) {
+        int count = 0;
+        int start = 0;
+        for (ByteBuffer part : parts) {
+            int end = start + part.remaining();
+            if (offset + count < end && count < target.length) {
+                int from = offset + count - start;
+                int length = Math.min(target.length - count, part.remaining() - from);
+                part.get(part.position() + from, target, count, length);
+                count += length;
+            }
+            start = end;
+        }
+        return count;
+    }
+
+    /**
+     * 依次写出各段音频，有底层数组的直接写出，映射文件分块复制
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        // HTTP请求体写出时只能抛出 IOException，否则异步请求不会回调失败
+        if (null != upload && !upload.retain()) {
+            throw new IOException("上传的音频已释放");
+        }
+        try {
+            write(out);
+        } finally {
+            release();
+        }
+    }
+
+    private void write(OutputStream out) throws IOException {
+        byte[] chunk = null;
+        for (ByteBuffer part : parts) {
+            if (part.hasArray()) {
+                out.write(part.array(), part.arrayOffset() + part.position(), part.remaining());
+                continue;
+            }
+            if (null == chunk) {
+                chunk = new byte[CHUNK_BYTES];
+            }
+            for (int offset = 0; offset < part.remaining(); offset += chunk.length) {
+                int count = Math.min(chunk.length, part.remaining() - offset);
+                part.get(part.position() + offset, chunk, 0, count);
+                out.write(chunk, 0, count);
+            }
+        }
+    }
+
+    /**
+     * 流式Base64编码，只分配编码结果
+     */
+    public String base64() {
+        byte[] encoded = new byte[4 * ((length + 2) / 3)];
+        OutputStream target = new OutputStream() {
+            private int position;
+
+            @Override
+            public void write(int b) {
+                encoded[position++] = (byte) b;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                System.arraycopy(b, off, encoded, position, len);
+                position += len;
+            }
+        };
+        try (OutputStream out = Base64.getEncoder().wrap(target)) {
+            writeTo(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return new String(encoded, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * 转成整块数组，用于只接受数组的SDK；只有一段且正好是整个数组时直接返回该数组
+     */
+    public byte[] toByteArray() {
+        if (parts.length == 1 && parts[0].hasArray() && parts[0].arrayOffset() == 0 && parts[0].position() == 0
+                && parts[0].remaining() == parts[0].array().length) {
+            return parts[0].array();
+        }
+        byte[] audio = new byte[length];
+        retain();
+        try {
+            int position = 0;
+            for (ByteBuffer part : parts) {
+                part.get(part.position(), audio, position, part.remaining());
+                position += part.remaining();
+            }
+        } finally {
+            release();
+        }
+        return audio;
+    }
+
+    private void retain() {
+        if (null != upload && !upload.retain()) {
+            throw new IllegalStateException("上传的音频已释放");
+        }
+    }
+
+    private void release() {
+        if (null != upload) {
+            upload.release();
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.jonas.speech.service.audio;
+
+/**
+ * PCM音频格式
+ *
+ * @param sampleRate    采样率
+ * @param channels      声道数
+ * @param bitsPerSample 采样位深，支持8、16、24、32位整数
+ * @author shenjy
+ * @time 2024/7/24 9:30
+ */
+public record AudioSpec(int sampleRate, int channels, int bitsPerSample) {
+
+    public static final AudioSpec PCM_8K = new AudioSpec(8000, 1, 16);
+    public static final AudioSpec PCM_16K = new AudioSpec(16000, 1, 16);
+
+    /**
+     * 每帧字节数，一帧包含所有声道的一个采样
+     */
+    public int frameBytes() {
+        return channels * bitsPerSample / 8;
+    }
+
+    /**
+     * 是否为可以转换的整数PCM格式
+     */
+    public boolean isSupported() {
+        return sampleRate > 0 && channels > 0 && bitsPerSample > 0 && bitsPerSample <= 32 && bitsPerSample % 8 == 0;
+    }
+
+    /**
+     * 服务商识别接口通常支持8k和16k两种采样率，8k及以下的输入选8k，其余选16k，避免无意义的升采样
+     */
+    public static AudioSpec nearest(AudioSpec source) {
+        return null != source && source.sampleRate() <= 8000 ? PCM_8K : PCM_16K;
+    }
+}
@@ -0,0 +1,100 @@
+package com.jonas.speech.service.audio;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 按帧判断是否有人声，16位单声道PCM
+ * 帧能量高于底噪一定幅度，或能量略低但过零率高（清辅音）时判为人声。
+ * 整段音频可以先统计底噪再逐帧判断；实时音频的底噪从假定的安静水平开始，遇到更安静的帧立即下调，
+ * 静音帧缓慢上调，人声帧以更慢的速度上调，避免持续噪声被一直当成人声
+ *
+ * @author shenjy
+ * @time 2024/7/26 14:10
+ */
+class FrameClassifier {
+
+    // 静音帧和人声帧上调底噪的步长，dB
+    private static final double SILENCE_RISE = 0.5;
+    private static final double SPEECH_RISE = 0.02;
+
+    private final double minEnergyDb;
+    private final double marginDb;
+    private final double zcrThreshold;
+    private final double maxNoiseDb;
+    private double noiseDb;
+
+    /**
+     * @param minEnergyDb  人声的最低能量，dBFS
+     * @param marginDb     人声高出底噪的幅度，dB
+     * @param zcrThreshold 清辅音的过零率下限，每个采样的过零次数
+     * @param maxNoiseDb   底噪的上限，dBFS，估计值超过上限时按上限计算
+     */
+    FrameClassifier(double minEnergyDb, double marginDb, double zcrThreshold, double maxNoiseDb) {
+        this.minEnergyDb = minEnergyDb;
+        this.marginDb = marginDb;
+        this.zcrThreshold = zcrThreshold;
+        this.maxNoiseDb = maxNoiseDb;
+        this.noiseDb = Math.min(maxNoiseDb, minEnergyDb - marginDb);
+    }
+
+    /**
+     * 使用已知的底噪，超过上限时按上限计算
+     */
+    void setNoise(double noiseDb) {
+        this.noiseDb = Math.min(maxNoiseDb, noiseDb);
+    }
+
+    /**
+     * 判断并更新底噪
+     */
+    boolean isSpeech(byte[] pcm, int offset, int length) {
+        ByteBuffer buffer = ByteBuffer.wrap(pcm);
+        double energyDb = energyDb(buffer, offset, length);
+        boolean speech = isSpeech(energyDb, zcr(buffer, offset, length));
+        if (energyDb < noiseDb) {
+            noiseDb = energyDb;
+        } else {
+            noiseDb = Math.min(maxNoiseDb, Math.min(energyDb, noiseDb + (speech ? SPEECH_RISE : SILENCE_RISE)));
+        }
+        return speech;
+    }
+
+    /**
+     * 按当前底噪判断，不更新底噪
+     */
+    boolean isSpeech(double energyDb, double zcr) {
+        double threshold = Math.max(minEnergyDb, noiseDb + marginDb);
+        return energyDb >= threshold || (energyDb >= threshold - marginDb / 2 && zcr >= zcrThreshold);
+    }
+
+    /**
+     * 帧能量，dBFS
+     */
+    static double energyDb(ByteBuffer pcm, int offset, int length) {
+        int samples = length / 2;
+        double sum = 0;
+        for (int i = 0; i < samples; i++) {
+            int sample = sample(pcm, offset + i * 2);
+            sum += (double) sample * sample;
+        }
+        return 20 * Math.log10(Math.max(1, Math.sqrt(sum / Math.max(1, samples))) / 32768);
+    }
+
+    /**
+     * 过零率，每个采样的过零次数
+     */
+    static double zcr(ByteBuffer pcm, int offset, int length) {
+        int samples = length / 2;
+        int crossings = 0;
+        for (int i = 1; i < samples; i++) {
+            if ((sample(pcm, offset + (i - 1) * 2) < 0) != (sample(pcm, offset + i * 2) < 0)) {
+                crossings++;
+            }
+        }
+        return samples == 0 ? 0 : (double) crossings / samples;
+    }
+
+    private static int sample(ByteBuffer pcm, int position) {
+        return (short) ((pcm.get(position) & 0xFF) | (pcm.get(position + 1) << 8));
+    }
+}
@@ -0,0 +1,218 @@
+package com.jonas.speech.service.audio;
+
+import java.util.Arrays;
+
+/**
+ * PCM格式转换，多声道取平均混为单声道，采样位深转为16位，再线性插值重采样到目标采样率。
+ * 降采样前经过两级巴特沃斯低通滤波，截止频率为目标采样率的0.45倍，避免混叠。
+ * 转换逐帧进行，不缓存整段音频：不完整的帧留到下一次调用，滤波器和插值状态跨调用保留，
+ * 分多次输入与一次性输入的结果一致。非线程安全，每路音频使用一个实例
+ *
+ * @author shenjy
+ * @time 2024/7/24 10:20
+ */
+public class PcmConverter {
+
+    private static final double CUTOFF = 0.45;
+
+    private final AudioSpec source;
+    private final int frameBytes;
+    private final int sampleBytes;
+    private final long sourceRate;
+    private final long targetRate;
+
+    // 不完整的帧
+    private final byte[] carry;
+    private int carryLength;
+
+    // 下一个输出采样相对上一个输入采样的位置，单位为 1/targetRate 个输入采样
+    private long next;
+    private float previous;
+    private boolean started;
+
+    // 低通滤波，两级二阶节
+    private final boolean filter;
+    private double b0;
+    private double b1;
+    private double b2;
+    private double a1;
+    private double a2;
+    private final double[] z1 = new double[2];
+    private final double[] z2 = new double[2];
+
+    public PcmConverter(AudioSpec source, AudioSpec target) {
+        if (target.channels() != 1 || target.bitsPerSample() != 16) {
+            throw new RuntimeException("只支持转换为16位单声道：" + target);
+        }
+        if (!source.isSupported()) {
+            throw new RuntimeException("不支持的音频格式：" + source);
+        }
+        this.source = source;
+        this.frameBytes = source.frameBytes();
+        this.sampleBytes = source.bitsPerSample() / 8;
+        this.sourceRate = source.sampleRate();
+        this.targetRate = target.sampleRate();
+        this.carry = new byte[frameBytes];
+        this.filter = targetRate < sourceRate;
+        if (filter) {
+            // RBJ低通，Q取1/√2
+            double w0 = 2 * Math.PI * CUTOFF * targetRate / sourceRate;
+            double alpha = Math.sin(w0) / Math.sqrt(2);
+            double cos = Math.cos(w0);
+            double a0 = 1 + alpha;
+            b0 = (1 - cos) / 2 / a0;
+            b1 = (1 - cos) / a0;
+            b2 = b0;
+            a1 = -2 * cos / a0;
+            a2 = (1 - alpha) / a0;
+        }
+    }
+
+    /**
+     * 转换后的最大字节数，用于准备输出缓冲区
+     *
+     * @param length 输入字节数
+     */
+    public int maxOutputBytes(int length) {
+        long frames = (carryLength + (long) length) / frameBytes;
+        return (int) ((frames * targetRate / sourceRate + 2) * 2);
+    }
+
+    /**
+     * 一次性转换整段音频时输出的字节数
+     *
+     * @param length 输入字节数
+     */
+    public static int outputBytes(AudioSpec source, AudioSpec target, int length) {
+        long frames = length / source.frameBytes();
+        return frames == 0 ? 0 : (int) (((frames - 1) * target.sampleRate() / source.sampleRate() + 1) * 2);
+    }
+
+    /**
+     * 把WAV音频转换为指定格式的裸PCM，去掉WAV头
+     *
+     * @param wav    WAV音频
+     * @param target 目标格式
+     * @return 不含WAV头的PCM数据
+     */
+    public static byte[] toRaw(byte[] wav, AudioSpec target) {
+        WavHeader header = WavHeader.parse(wav);
+        if (null == header) {
+            throw new RuntimeException("无法识别的WAV音频");
+        }
+        int offset = header.dataOffset();
+        if (header.spec().equals(target)) {
+            return Arrays.copyOfRange(wav, offset, offset + header.dataLength());
+        }
+        byte[] output = new byte[outputBytes(header.spec(), target, header.dataLength())];
+        int written = new PcmConverter(header.spec(), target).convert(wav, offset, header.dataLength(), output, 0);
+        return written == output.length ? output : Arrays.copyOf(output, written);
+    }
+
+    /**
+     * 转换一段音频
+     *
+     * @param input        输入
+     * @param offset       输入起始位置
+     * @param length       输入长度
+     * @param output       输出，剩余空间不少于 maxOutputBytes(length)
+     * @param outputOffset 输出起始位置
+     * @return 输出的字节数
+     */
+    public int convert(byte[] input, int offset, int length, byte[] output, int outputOffset) {
+        int position = offset;
+        int end = offset + length;
+        int written = outputOffset;
+        if (carryLength > 0) {
+            int count = Math.min(frameBytes - carryLength, length);
+            System.arraycopy(input, position, carry, carryLength, count);
+            carryLength += count;
+            position += count;
+            if (carryLength < frameBytes) {
+                return 0;
+            }
+            written = push(frame(carry, 0), output, written);
+            carryLength = 0;
+        }
+        while (position + frameBytes <= end) {
+            written = push(frame(input, position), output, written);
+            position += frameBytes;
+        }
+        carryLength = end - position;
+        System.arraycopy(input, position, carry, 0, carryLength);
+        return written - outputOffset;
+    }
+
+    /**
+     * 读取一帧并混为单声道，范围与16位采样相同
+     */
+    private float frame(byte[] input, int offset) {
+        int channels = source.channels();
+        if (channels == 1) {
+            return sample(input, offset);
+        }
+        float sum = 0;
+        for (int i = 0; i < channels; i++) {
+            sum += sample(input, offset + i * sampleBytes);
+        }
+        return sum / channels;
+    }
+
+    private float sample(byte[] input, int offset) {
+        switch (sampleBytes) {
+            case 1:
+                // 8位为无符号
+                return ((input[offset] & 0xFF) - 128) << 8;
+            case 2:
+                return (short) ((input[offset] & 0xFF) | (input[offset + 1] << 8));
+            case 3:
+                return ((input[offset] & 0xFF) | ((input[offset + 1] & 0xFF) << 8) | (input[offset + 2] << 16)) / 256f;
+            default:
+                return ((input[offset] & 0xFF) | ((input[offset + 1] & 0xFF) << 8) | ((input[offset + 2] & 0xFF) << 16)
+                        | (input[offset + 3] << 24)) / 65536f;
+        }
+    }
+
+    /**
+     * 输入一个采样，输出落在上一个采样和当前采样之间的所有插值点
+     */
+    private int push(float value, byte[] output, int written) {
+        if (filter) {
+            value = (float) lowPass(lowPass(value, 0), 1);
+        }
+        if (!started) {
+            started = true;
+            previous = value;
+            written = write(value, output, written);
+            next = sourceRate;
+            return written;
+        }
+        while (next <= targetRate) {
+            float interpolated = previous + (value - previous) * next / targetRate;
+            written = write(interpolated, output, written);
+            next += sourceRate;
+        }
+        next -= targetRate;
+        previous = value;
+        return written;
+    }
+
+    private double lowPass(double x, int stage) {
+        double y = b0 * x + z1[stage];
+        z1[stage] = b1 * x - a1 * y + z2[stage];
+        z2[stage] = b2 * x - a2 * y;
+        return y;
+    }
+
+    private static int write(float value, byte[] output, int written) {
+        int sample = Math.round(value);
+        if (sample > Short.MAX_VALUE) {
+            sample = Short.MAX_VALUE;
+        } else if (sample < Short.MIN_VALUE) {
+            sample = Short.MIN_VALUE;
+        }
+        output[written] = (byte) sample;
+        output[written + 1] = (byte) (sample >> 8);
+        return written + 2;
+    }
+}
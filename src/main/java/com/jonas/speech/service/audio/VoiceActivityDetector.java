@@ -0,0 +1,485 @@
+package com.jonas.speech.service.audio;
+
+import com.jonas.speech.common.VadStats;
+import com.jonas.speech.service.SpeechToTextStream;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 静音检测与裁剪
+ * 在识别前去掉开头和结尾的静音，可选把过长的停顿压缩到 maxPause，减少上传和服务商的处理时长。
+ * 只处理16位单声道PCM，即经过 AudioNormalizer 转换后的音频，其他格式原样返回。
+ * 人声前后各保留 padding 时长，避免切掉弱起的音节和尾音；整段音频都没有检测到人声时原样返回，由服务商判断。
+ * 底噪估计不超过 maxNoiseDb，短句或安静的录音中分位帧本身可能就是人声，按上限计算避免把轻声当成底噪裁掉
+ *
+ * @author shenjy
+ * @time 2024/7/26 14:40
+ */
+@Slf4j
+@Component
+public class VoiceActivityDetector {
+
+    @Value("${speech.vad.enabled:true}")
+    private boolean enabled;
+    // 实时识别是否裁剪
+    @Value("${speech.vad.stream:true}")
+    private boolean streamEnabled;
+    // 帧长，毫秒
+    @Value("${speech.vad.frameMs:20}")
+    private int frameMs;
+    // 人声的最低能量，dBFS
+    @Value("${speech.vad.minEnergyDb:-50}")
+    private double minEnergyDb;
+    // 人声高出底噪的幅度，dB
+    @Value("${speech.vad.marginDb:10}")
+    private double marginDb;
+    // 清辅音的过零率下限
+    @Value("${speech.vad.zcrThreshold:0.25}")
+    private double zcrThreshold;
+    // 整段音频取能量最低的该比例的帧估计底噪
+    @Value("${speech.vad.noisePercentile:0.1}")
+    private double noisePercentile;
+    // 底噪估计的上限，dBFS
+    @Value("${speech.vad.maxNoiseDb:-55}")
+    private double maxNoiseDb;
+    // 人声前后保留的时长，毫秒
+    @Value("${speech.vad.padding:200}")
+    private int padding;
+    // 停顿超过该时长时压缩到该时长，0表示不压缩，毫秒
+    @Value("${speech.vad.maxPause:0}")
+    private int maxPause;
+
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder trimmedCalls = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder savedMs = new LongAdder();
+    private final LongAdder costNanos = new LongAdder();
+
+    /**
+     * 裁剪WAV音频中的静音
+     *
+     * @param audio 16位单声道WAV
+     * @return 裁剪后的WAV，没有可裁剪的静音时返回原数组
+     */
+    public byte[] trim(byte[] audio) {
+        return trim(ByteBuffer.wrap(audio)).toByteArray();
+    }
+
+    /**
+     * 裁剪WAV音频中的静音，结果引用原缓冲区中保留的区间，只新建WAV头
+     *
+     * @param audio 16位单声道WAV，从下标0开始
+     * @return 裁剪后的WAV，没有可裁剪的静音时只包含原缓冲区
+     */
+    public AudioPayload trim(ByteBuffer audio) {
+        if (!enabled) {
+            return AudioPayload.of(audio);
+        }
+        WavHeader header = WavHeader.parse(audio);
+        if (null == header || header.spec().channels() != 1 || header.spec().bitsPerSample() != 16) {
+            return AudioPayload.of(audio);
+        }
+        long start = System.nanoTime();
+        int frameBytes = frameBytes(header.spec());
+        int frames = (header.dataLength() + frameBytes - 1) / frameBytes;
+        if (frames == 0) {
+            return AudioPayload.of(audio);
+        }
+
+        boolean[] speech = classify(audio, header, frameBytes, frames);
+        int first = -1;
+        int last = -1;
+        for (int i = 0; i < frames; i++) {
+            if (speech[i]) {
+                first = first < 0 ? i : first;
+                last = i;
+            }
+        }
+        if (first < 0) {
+            record(header.dataLength(), header.dataLength(), header.spec(), start);
+            return AudioPayload.of(audio);
+        }
+
+        // 保留的帧区间，压缩停顿时只保留停顿的首尾各一半
+        int paddingFrames = padding / frameMs;
+        int pauseFrames = maxPause / frameMs;
+        List<int[]> ranges = new ArrayList<>();
+        int from = Math.max(0, first - paddingFrames);
+        int to = Math.min(frames - 1, last + paddingFrames);
+        int rangeStart = from;
+        for (int i = from; i <= to; ) {
+            if (speech[i] || pauseFrames <= 0) {
+                i++;
+                continue;
+            }
+            int silenceEnd = i;
+            while (silenceEnd <= to && !speech[silenceEnd]) {
+                silenceEnd++;
+            }
+            if (silenceEnd - i > pauseFrames && silenceEnd <= to) {
+                ranges.add(new int[]{rangeStart, i + pauseFrames / 2});
+                rangeStart = silenceEnd - (pauseFrames - pauseFrames / 2);
+            }
+            i = silenceEnd;
+        }
+        ranges.add(new int[]{rangeStart, to + 1});
+
+        int dataEnd = header.dataOffset() + header.dataLength();
+        int length = 0;
+        for (int[] range : ranges) {
+            length += Math.min(dataEnd, header.dataOffset() + range[1] * frameBytes)
+                    - (header.dataOffset() + range[0] * frameBytes);
+        }
+        if (length == header.dataLength()) {
+            record(header.dataLength(), length, header.spec(), start);
+            return AudioPayload.of(audio);
+        }
+        byte[] wavHeader = new byte[WavHeader.SIZE];
+        WavHeader.write(header.spec(), length, wavHeader, 0);
+        ByteBuffer[] parts = new ByteBuffer[ranges.size() + 1];
+        parts[0] = ByteBuffer.wrap(wavHeader);
+        for (int i = 0; i < ranges.size(); i++) {
+            int offset = header.dataOffset() + ranges.get(i)[0] * frameBytes;
+            int count = Math.min(dataEnd, header.dataOffset() + ranges.get(i)[1] * frameBytes) - offset;
+            parts[i + 1] = audio.slice(offset, count);
+        }
+        long saved = record(header.dataLength(), length, header.spec(), start);
+        log.info("vad trimmed {}ms, bytes {} -> {}, cost {}us", saved, header.dataLength(), length,
+                (System.nanoTime() - start) / 1000);
+        return AudioPayload.of(parts);
+    }
+
+    /**
+     * 在停顿处把长音频切成不超过 maxMs 的片段
+     * 在每段允许的切分范围内选最长的静音，从静音中间切开；范围内没有静音时选能量最低的帧
+     *
+     * @param audio 16位单声道WAV
+     * @param minMs 片段的最短时长，毫秒
+     * @param maxMs 片段的最长时长，毫秒
+     * @return 按时间顺序的片段
+     */
+    public List<AudioChunk> split(byte[] audio, int minMs, int maxMs) {
+        return split(ByteBuffer.wrap(audio), minMs, maxMs);
+    }
+
+    /**
+     * 在停顿处把长音频切成不超过 maxMs 的片段
+     *
+     * @param audio 16位单声道WAV，从下标0开始
+     * @param minMs 片段的最短时长，毫秒
+     * @param maxMs 片段的最长时长，毫秒
+     * @return 按时间顺序的片段
+     */
+    public List<AudioChunk> split(ByteBuffer audio, int minMs, int maxMs) {
+        WavHeader header = WavHeader.parse(audio);
+        if (null == header || header.spec().channels() != 1 || header.spec().bitsPerSample() != 16) {
+            throw new RuntimeException("只支持切分16位单声道WAV");
+        }
+        int frameBytes = frameBytes(header.spec());
+        int frames = (header.dataLength() + frameBytes - 1) / frameBytes;
+        boolean[] speech = classify(audio, header, frameBytes, frames);
+        int minFrames = Math.max(1, minMs / frameMs);
+        int maxFrames = Math.max(minFrames, maxMs / frameMs);
+
+        List<AudioChunk> chunks = new ArrayList<>();
+        int start = 0;
+        while (frames - start > maxFrames) {
+            int from = start + minFrames;
+            int to = start + maxFrames;
+            int cut = -1;
+            int pause = 0;
+            for (int i = from; i < to; ) {
+                if (speech[i]) {
+                    i++;
+                    continue;
+                }
+                int end = i;
+                while (end < to && !speech[end]) {
+                    end++;
+                }
+                if (end - i > pause) {
+                    pause = end - i;
+                    cut = i + pause / 2;
+                }
+                i = end;
+            }
+            if (cut < 0) {
+                cut = quietest(audio, header, frameBytes, from, to);
+            }
+            chunks.add(chunk(header, frameBytes, start, cut, (long) pause * frameMs));
+            start = cut;
+        }
+        chunks.add(chunk(header, frameBytes, start, frames, 0));
+        return chunks;
+    }
+
+    /**
+     * 实时识别的音频输入去掉开头的静音，开启停顿压缩时同时压缩停顿和结尾的静音
+     * 不压缩停顿时人声开始后的音频原样转发，不引入延迟
+     *
+     * @param stream 服务商的音频输入，格式为16位单声道PCM
+     * @param spec   音频格式
+     */
+    public SpeechToTextStream wrap(SpeechToTextStream stream, AudioSpec spec) {
+        if (!enabled || !streamEnabled || spec.channels() != 1 || spec.bitsPerSample() != 16) {
+            return stream;
+        }
+        return new VadStream(stream, spec);
+    }
+
+    /**
+     * 逐帧判断是否有人声，底噪取能量最低的 noisePercentile 比例的帧
+     */
+    private boolean[] classify(ByteBuffer audio, WavHeader header, int frameBytes, int frames) {
+        double[] energies = new double[frames];
+        double[] zcrs = new double[frames];
+        for (int i = 0; i < frames; i++) {
+            int offset = header.dataOffset() + i * frameBytes;
+            int length = Math.min(frameBytes, header.dataOffset() + header.dataLength() - offset);
+            energies[i] = FrameClassifier.energyDb(audio, offset, length);
+            zcrs[i] = FrameClassifier.zcr(audio, offset, length);
+        }
+        boolean[] speech = new boolean[frames];
+        if (frames == 0) {
+            return speech;
+        }
+        double[] sorted = energies.clone();
+        Arrays.sort(sorted);
+        FrameClassifier classifier = new FrameClassifier(minEnergyDb, marginDb, zcrThreshold, maxNoiseDb);
+        classifier.setNoise(sorted[Math.min(frames - 1, (int) (frames * noisePercentile))]);
+        for (int i = 0; i < frames; i++) {
+            speech[i] = classifier.isSpeech(energies[i], zcrs[i]);
+        }
+        return speech;
+    }
+
+    private static int quietest(ByteBuffer audio, WavHeader header, int frameBytes, int from, int to) {
+        int quietest = from;
+        double min = Double.MAX_VALUE;
+        for (int i = from; i < to; i++) {
+            double energy = FrameClassifier.energyDb(audio, header.dataOffset() + i * frameBytes, frameBytes);
+            if (energy < min) {
+                min = energy;
+                quietest = i;
+            }
+        }
+        return quietest;
+    }
+
+    private AudioChunk chunk(WavHeader header, int frameBytes, int from, int to, long pauseMs) {
+        int offset = header.dataOffset() + from * frameBytes;
+        int length = Math.min(header.dataOffset() + header.dataLength(), header.dataOffset() + to * frameBytes) - offset;
+        long bytesPerMs = header.spec().sampleRate() * 2L;
+        long startMs = (long) from * frameBytes * 1000 / bytesPerMs;
+        return new AudioChunk(offset, length, startMs, startMs + length * 1000L / bytesPerMs, pauseMs);
+    }
+
+    public VadStats stats() {
+        long count = calls.sum();
+        return new VadStats(count, trimmedCalls.sum(), bytesIn.sum(), bytesOut.sum(), savedMs.sum(),
+                count == 0 ? 0 : costNanos.sum() / count / 1000);
+    }
+
+    private int frameBytes(AudioSpec spec) {
+        return Math.max(1, spec.sampleRate() * frameMs / 1000) * 2;
+    }
+
+    /**
+     * @return 裁掉的时长，毫秒
+     */
+    private long record(long in, long out, AudioSpec spec, long start) {
+        long saved = (in - out) * 1000 / ((long) spec.sampleRate() * 2);
+        calls.increment();
+        if (out < in) {
+            trimmedCalls.increment();
+        }
+        bytesIn.add(in);
+        bytesOut.add(out);
+        savedMs.add(saved);
+        costNanos.add(System.nanoTime() - start);
+        return saved;
+    }
+
+    /**
+     * 逐帧裁剪的音频输入
+     */
+    private class VadStream implements SpeechToTextStream {
+        private final SpeechToTextStream stream;
+        private final AudioSpec spec;
+        private final int frameBytes;
+        private final int paddingFrames;
+        private final int pauseFrames;
+        private final FrameClassifier classifier = new FrameClassifier(minEnergyDb, marginDb, zcrThreshold, maxNoiseDb);
+
+        private final byte[] carry;
+        private int carryLength;
+        private boolean started;
+        // 人声开始前最近的若干帧
+        private final Deque<byte[]> preRoll = new ArrayDeque<>();
+        // 人声开始后尚未发送的静音帧，只在压缩停顿时使用：保留开头一半和最近一半
+        private final List<byte[]> pauseHead = new ArrayList<>();
+        private final Deque<byte[]> pauseTail = new ArrayDeque<>();
+        private byte[] buffer = new byte[0];
+        private long in;
+        private long out;
+        private long cost;
+
+        VadStream(SpeechToTextStream stream, AudioSpec spec) {
+            this.stream = stream;
+            this.spec = spec;
+            this.frameBytes = frameBytes(spec);
+            this.paddingFrames = padding / frameMs;
+            this.pauseFrames = maxPause / frameMs;
+            this.carry = new byte[frameBytes];
+        }
+
+        @Override
+        public void write(byte[] audioData) {
+            write(audioData, 0, audioData.length);
+        }
+
+        @Override
+        public void write(byte[] audioData, int offset, int count) {
+            long start = System.nanoTime();
+            in += count;
+            int end = offset + count;
+            int length = 0;
+            int position = offset;
+            if (carryLength > 0) {
+                int copied = Math.min(frameBytes - carryLength, count);
+                System.arraycopy(audioData, offset, carry, carryLength, copied);
+                carryLength += copied;
+                position += copied;
+                if (carryLength == frameBytes) {
+                    length = frame(carry, 0, length);
+                    carryLength = 0;
+                }
+            }
+            while (position + frameBytes <= end) {
+                length = frame(audioData, position, length);
+                position += frameBytes;
+            }
+            if (position < end) {
+                carryLength = end - position;
+                System.arraycopy(audioData, position, carry, 0, carryLength);
+            }
+            cost += System.nanoTime() - start;
+            send(length);
+        }
+
+        @Override
+        public void close() {
+            // 始终没有检测到人声时发送缓存的 padding，与整段裁剪一样交给服务商判断，不丢掉轻声的短句
+            if (!started) {
+                int length = 0;
+                for (byte[] previous : preRoll) {
+                    length = append(previous, length);
+                }
+                preRoll.clear();
+                send(append(carry, 0, carryLength, length));
+            }
+            // 结尾的静音只保留 padding
+            if (started && pauseFrames > 0) {
+                int length = 0;
+                for (int i = 0; i < Math.min(paddingFrames, pauseHead.size()); i++) {
+                    length = append(pauseHead.get(i), length);
+                }
+                send(length);
+            }
+            if (started && carryLength > 0 && pauseFrames <= 0) {
+                send(append(carry, 0, carryLength, 0));
+            }
+            calls.increment();
+            if (out < in) {
+                trimmedCalls.increment();
+            }
+            bytesIn.add(in);
+            bytesOut.add(out);
+            savedMs.add((in - out) * 1000 / ((long) spec.sampleRate() * 2));
+            costNanos.add(cost);
+            stream.close();
+        }
+
+        @Override
+        public void cancel() {
+            stream.cancel();
+        }
+
+        /**
+         * 处理一帧，需要发送的音频追加到缓冲区，只有暂不发送的帧才复制
+         *
+         * @return 缓冲区中待发送的字节数
+         */
+        private int frame(byte[] audioData, int offset, int length) {
+            boolean speech = classifier.isSpeech(audioData, offset, frameBytes);
+            if (!started) {
+                if (!speech) {
+                    preRoll.addLast(Arrays.copyOfRange(audioData, offset, offset + frameBytes));
+                    if (preRoll.size() > paddingFrames) {
+                        preRoll.removeFirst();
+                    }
+                    return length;
+                }
+                started = true;
+                for (byte[] previous : preRoll) {
+                    length = append(previous, length);
+                }
+                preRoll.clear();
+                return append(audioData, offset, frameBytes, length);
+            }
+            if (pauseFrames <= 0) {
+                return append(audioData, offset, frameBytes, length);
+            }
+            if (!speech) {
+                byte[] frame = Arrays.copyOfRange(audioData, offset, offset + frameBytes);
+                if (pauseHead.size() < pauseFrames / 2) {
+                    pauseHead.add(frame);
+                } else {
+                    pauseTail.addLast(frame);
+                    if (pauseTail.size() > pauseFrames - pauseFrames / 2) {
+                        pauseTail.removeFirst();
+                    }
+                }
+                return length;
+            }
+            for (byte[] silence : pauseHead) {
+                length = append(silence, length);
+            }
+            for (byte[] silence : pauseTail) {
+                length = append(silence, length);
+            }
+            pauseHead.clear();
+            pauseTail.clear();
+            return append(audioData, offset, frameBytes, length);
+        }
+
+        private int append(byte[] frame, int length) {
+            return append(frame, 0, frame.length, length);
+        }
+
+        private int append(byte[] audioData, int offset, int count, int length) {
+            if (buffer.length < length + count) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + count));
+            }
+            System.arraycopy(audioData, offset, buffer, length, count);
+            return length + count;
+        }
+
+        private void send(int length) {
+            if (length > 0) {
+                out += length;
+                stream.write(buffer, 0, length);
+            }
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.jonas.speech.service.audio;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * RIFF/WAV头解析与生成
+ * 只解析头部，音频数据通过偏移量在原数组或缓冲区上读取，不复制
+ *
+ * @param spec       音频格式
+ * @param dataOffset data块在数组或缓冲区中的起始位置
+ * @param dataLength data块长度，已按数组实际长度截断
+ * @author shenjy
+ * @time 2024/7/24 9:45
+ */
+public record WavHeader(AudioSpec spec, int dataOffset, int dataLength) {
+
+    public static final int SIZE = 44;
+
+    private static final int FORMAT_PCM = 1;
+    private static final int FORMAT_EXTENSIBLE = 0xFFFE;
+
+    /**
+     * 解析WAV头
+     *
+     * @param audio 音频数据
+     * @return 不是PCM编码的WAV时返回空
+     */
+    public static WavHeader parse(byte[] audio) {
+        return null == audio ? null : parse(ByteBuffer.wrap(audio));
+    }
+
+    /**
+     * 解析WAV头，按下标0到 limit 读取，不改变缓冲区的位置
+     *
+     * @param audio 音频数据，可以是映射的文件
+     * @return 不是PCM编码的WAV时返回空
+     */
+    public static WavHeader parse(ByteBuffer audio) {
+        int limit = audio.limit();
+        if (limit < 12 || !tag(audio, 0, "RIFF") || !tag(audio, 8, "WAVE")) {
+            return null;
+        }
+        ByteBuffer buffer = audio.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        AudioSpec spec = null;
+        int position = 12;
+        while (position + 8 <= limit) {
+            int size = buffer.getInt(position + 4);
+            int body = position + 8;
+            if (tag(audio, position, "fmt ") && size >= 16 && body + 16 <= limit) {
+                int format = buffer.getShort(body) & 0xFFFF;
+                if (format == FORMAT_EXTENSIBLE && size >= 40 && body + 26 <= limit) {
+                    // 扩展格式的子格式GUID前两个字节是实际编码
+                    format = buffer.getShort(body + 24) & 0xFFFF;
+                }
+                int channels = buffer.getShort(body + 2) & 0xFFFF;
+                int sampleRate = buffer.getInt(body + 4);
+                int bits = buffer.getShort(body + 14) & 0xFFFF;
+                spec = new AudioSpec(sampleRate, channels, bits);
+                if (format != FORMAT_PCM || !spec.isSupported()) {
+                    return null;
+                }
+            } else if (tag(audio, position, "data")) {
+                if (null == spec) {
+                    return null;
+                }
+                // 流式写出的WAV长度字段可能为0或-1，以实际长度为准
+                int length = size <= 0 || size > limit - body ? limit - body : size;
+                return new WavHeader(spec, body, length - length % spec.frameBytes());
+            }
+            if (size < 0) {
+                return null;
+            }
+            // 块长度为奇数时有一个填充字节，按long计算，避免长度字段过大时溢出
+            long next = (long) body + size + (size & 1);
+            if (next > limit) {
+                return null;
+            }
+            position = (int) next;
+        }
+        return null;
+    }
+
+    /**
+     * 读取WAV的采样率
+     *
+     * @param audio       音频数据
+     * @param defaultRate 不是WAV时的默认值
+     */
+    public static int sampleRate(byte[] audio, int defaultRate) {
+        return null == audio ? defaultRate : sampleRate(ByteBuffer.wrap(audio), defaultRate);
+    }
+
+    /**
+     * 读取WAV的采样率
+     *
+     * @param audio       音频数据
+     * @param defaultRate 不是WAV时的默认值
+     */
+    public static int sampleRate(ByteBuffer audio, int defaultRate) {
+        WavHeader header = parse(audio);
+        return null == header ? defaultRate : header.spec().sampleRate();
+    }
+
+    /**
+     * 写入标准的44字节PCM WAV头
+     *
+     * @param spec       音频格式
+     * @param dataLength 音频数据长度
+     * @param target     目标数组
+     * @param offset     写入位置
+     */
+    public static void write(AudioSpec spec, int dataLength, byte[] target, int offset) {
+        ByteBuffer buffer = ByteBuffer.wrap(target, offset, SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put("RIFF".getBytes(StandardCharsets.US_ASCII))
+                .putInt(36 + dataLength)
+                .put("WAVE".getBytes(StandardCharsets.US_ASCII))
+                .put("fmt ".getBytes(StandardCharsets.US_ASCII))
+                .putInt(16)
+                .putShort((short) FORMAT_PCM)
+                .putShort((short) spec.channels())
+                .putInt(spec.sampleRate())
+                .putInt(spec.sampleRate() * spec.frameBytes())
+                .putShort((short) spec.frameBytes())
+                .putShort((short) spec.bitsPerSample())
+                .put("data".getBytes(StandardCharsets.US_ASCII))
+                .putInt(dataLength);
+    }
+
+    private static boolean tag(ByteBuffer audio, int offset, String tag) {
+        for (int i = 0; i < 4; i++) {
+            if (audio.get(offset + i) != tag.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,12 @@
+package com.jonas.speech.service.cache;
+
+/**
+ * 语音合成缓存的命中结果
+ *
+ * @param provider 命中的服务商
+ * @param audio    Base64编码的音频
+ * @author shenjy
+ * @time 2024/8/26 10:30
+ */
+public record CachedAudio(String provider, String audio) {
+}
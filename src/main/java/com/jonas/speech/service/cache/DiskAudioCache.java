@@ -0,0 +1,284 @@
+package com.jonas.speech.service.cache;
+
+import com.jonas.speech.common.CacheStats;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+/**
+ * 磁盘音频缓存
+ * 数据以追加方式写入固定大小的内存映射段文件，重启后扫描段文件重建索引。
+ * 命中时直接返回映射区域的只读视图，不会把音频复制到堆内。
+ * 超出字节预算时整段淘汰最旧的段文件。
+ * 已有段文件只会扩展不会截断，调小 segmentBytes 后旧段按原大小继续使用，新段使用新的大小。
+ * 写入会创建和删除文件，使用显式锁而不是 synchronized，虚拟线程等待时不会钉住载体线程。
+ * <p>
+ * 记录格式：magic(4) | flag(1) | keyLen(2) key | providerLen(2) provider | voiceLen(2) voice | dataLen(4) data
+ *
+ * @author shenjy
+ * @time 2024/6/12 16:10
+ */
+@Slf4j
+class DiskAudioCache {
+
+    private static final int MAGIC = 0x54545331;
+    private static final byte FLAG_DATA = 1;
+    private static final byte FLAG_TOMBSTONE = 0;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".dat";
+
+    private final Path dir;
+    private final long maxBytes;
+    private final int segmentBytes;
+
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    private final Map<String, Location> index = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    DiskAudioCache(Path dir, long maxBytes, int segmentBytes) throws IOException {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        this.segmentBytes = segmentBytes;
+        Files.createDirectories(dir);
+        load();
+    }
+
+    /**
+     * 读取缓存，返回映射区域的只读视图
+     */
+    ByteBuffer get(String key) {
+        Location location = index.get(key);
+        if (null == location) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        ByteBuffer buffer = location.segment.buffer.duplicate();
+        buffer.limit(location.offset + location.length).position(location.offset);
+        return buffer.slice().asReadOnlyBuffer();
+    }
+
+    void put(String key, String provider, String voice, byte[] data) throws IOException {
+        lock.lock();
+        try {
+            doPut(key, provider, voice, data);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void doPut(String key, String provider, String voice, byte[] data) throws IOException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] providerBytes = provider.getBytes(StandardCharsets.UTF_8);
+        byte[] voiceBytes = voice.getBytes(StandardCharsets.UTF_8);
+        int headerSize = 4 + 1 + 2 + keyBytes.length + 2 + providerBytes.length + 2 + voiceBytes.length + 4;
+        if (headerSize + data.length > segmentBytes) {
+            return;
+        }
+        Segment segment = writableSegment(headerSize + data.length);
+        ByteBuffer buffer = segment.buffer.duplicate();
+        buffer.position(segment.writePos);
+        buffer.putInt(MAGIC).put(FLAG_DATA);
+        putBytes(buffer, keyBytes);
+        putBytes(buffer, providerBytes);
+        putBytes(buffer, voiceBytes);
+        buffer.putInt(data.length);
+        int offset = buffer.position();
+        buffer.put(data);
+        segment.writePos = buffer.position();
+        index.put(key, new Location(segment, offset, data.length, provider, voice));
+    }
+
+    /**
+     * 按服务商和发音人失效，参数为空表示不限制，失效记录会持久化
+     *
+     * @return 失效的条目数
+     */
+    int invalidate(String provider, String voice) throws IOException {
+        lock.lock();
+        try {
+            return doInvalidate(provider, voice);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int doInvalidate(String provider, String voice) throws IOException {
+        List<String> keys = index.entrySet().stream()
+                .filter(entry -> entry.getValue().matches(provider, voice))
+                .map(Map.Entry::getKey)
+                .toList();
+        for (String key : keys) {
+            byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            Segment segment = writableSegment(4 + 1 + 2 + keyBytes.length);
+            ByteBuffer buffer = segment.buffer.duplicate();
+            buffer.position(segment.writePos);
+            buffer.putInt(MAGIC).put(FLAG_TOMBSTONE);
+            putBytes(buffer, keyBytes);
+            segment.writePos = buffer.position();
+            index.remove(key);
+        }
+        return keys.size();
+    }
+
+    CacheStats stats() {
+        lock.lock();
+        try {
+            long usedBytes = segments.stream().mapToLong(segment -> segment.writePos).sum();
+            return new CacheStats("disk", index.size(), usedBytes, maxBytes, hits.sum(), misses.sum(), evictions.sum());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void close() {
+        lock.lock();
+        try {
+            for (Segment segment : segments) {
+                segment.buffer.force();
+            }
+            segments.clear();
+            index.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void load() throws IOException {
+        List<Path> files;
+        try (Stream<Path> stream = Files.list(dir)) {
+            files = stream.filter(path -> path.getFileName().toString().startsWith(SEGMENT_PREFIX))
+                    .sorted((a, b) -> Long.compare(segmentId(a), segmentId(b)))
+                    .toList();
+        }
+        for (Path file : files) {
+            if (Files.size(file) > Integer.MAX_VALUE) {
+                log.warn("tts disk cache segment too large, deleted, file={}", file);
+                Files.delete(file);
+                continue;
+            }
+            Segment segment = new Segment(segmentId(file), file, segmentBytes);
+            scan(segment);
+            segments.addLast(segment);
+        }
+        log.info("tts disk cache loaded, dir={}, segments={}, entries={}", dir, segments.size(), index.size());
+    }
+
+    private void scan(Segment segment) {
+        ByteBuffer buffer = segment.buffer.duplicate();
+        int pos = 0;
+        try {
+            while (buffer.remaining() >= 5 && buffer.getInt(buffer.position()) == MAGIC) {
+                buffer.position(buffer.position() + 4);
+                byte flag = buffer.get();
+                String key = getString(buffer);
+                if (flag == FLAG_TOMBSTONE) {
+                    index.remove(key);
+                } else {
+                    String provider = getString(buffer);
+                    String voice = getString(buffer);
+                    int length = buffer.getInt();
+                    buffer.position(buffer.position() + length);
+                    index.put(key, new Location(segment, buffer.position() - length, length, provider, voice));
+                }
+                pos = buffer.position();
+            }
+        } catch (RuntimeException e) {
+            // 写入中断导致的残缺记录，从最后一条完整记录之后继续写入
+            log.warn("tts disk cache segment truncated, file={}, pos={}", segment.file, pos);
+        }
+        segment.writePos = pos;
+    }
+
+    private Segment writableSegment(int size) throws IOException {
+        Segment current = segments.peekLast();
+        if (null != current && current.writePos + size <= current.capacity) {
+            return current;
+        }
+        long id = null == current ? 0 : current.id + 1;
+        Segment segment = new Segment(id, dir.resolve(SEGMENT_PREFIX + id + SEGMENT_SUFFIX), segmentBytes);
+        segments.addLast(segment);
+        while (segments.size() > 1 && segments.stream().mapToLong(item -> item.capacity).sum() > maxBytes) {
+            evict(segments.pollFirst());
+        }
+        return segment;
+    }
+
+    private void evict(Segment segment) throws IOException {
+        index.values().removeIf(location -> {
+            if (location.segment == segment) {
+                evictions.increment();
+                return true;
+            }
+            return false;
+        });
+        // 映射区域在文件删除后依然有效，正在读取的视图不受影响，由GC回收
+        Files.deleteIfExists(segment.file);
+    }
+
+    private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+        buffer.putShort((short) bytes.length).put(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static long segmentId(Path file) {
+        String name = file.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private static class Segment {
+        private final long id;
+        private final Path file;
+        private final MappedByteBuffer buffer;
+        private final int capacity;
+        private volatile int writePos;
+
+        /**
+         * @param size 段大小，已有文件更大时按文件大小映射，不截断已写入的数据
+         */
+        Segment(long id, Path file, int size) throws IOException {
+            this.id = id;
+            this.file = file;
+            try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+                if (raf.length() < size) {
+                    raf.setLength(size);
+                }
+                this.capacity = (int) raf.length();
+                this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            }
+        }
+    }
+
+    private record Location(Segment segment, int offset, int length, String provider, String voice) {
+
+        boolean matches(String provider, String voice) {
+            return (null == provider || provider.equals(this.provider))
+                    && (null == voice || voice.equals(this.voice));
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.jonas.speech.service.cache;
+
+import com.jonas.speech.common.CacheStats;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 堆内音频缓存，按字节数限制大小的LRU
+ *
+ * @author shenjy
+ * @time 2024/6/12 15:52
+ */
+class HeapAudioCache {
+
+    private final long maxBytes;
+    private long usedBytes;
+
+    private final LinkedHashMap<String, Entry> map = new LinkedHashMap<>(256, 0.75f, true);
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    HeapAudioCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    synchronized String get(String key) {
+        Entry entry = map.get(key);
+        if (null == entry) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry.audio;
+    }
+
+    synchronized void put(String key, String provider, String voice, String audio) {
+        long size = sizeOf(key, audio);
+        if (size > maxBytes) {
+            return;
+        }
+        Entry old = map.put(key, new Entry(provider, voice, audio));
+        if (null != old) {
+            usedBytes -= sizeOf(key, old.audio);
+        }
+        usedBytes += size;
+
+        Iterator<Map.Entry<String, Entry>> iterator = map.entrySet().iterator();
+        while (usedBytes > maxBytes && iterator.hasNext()) {
+            Map.Entry<String, Entry> eldest = iterator.next();
+            usedBytes -= sizeOf(eldest.getKey(), eldest.getValue().audio);
+            iterator.remove();
+            evictions.increment();
+        }
+    }
+
+    /**
+     * 按服务商和发音人失效，参数为空表示不限制
+     *
+     * @return 失效的条目数
+     */
+    synchronized int invalidate(String provider, String voice) {
+        int count = 0;
+        Iterator<Map.Entry<String, Entry>> iterator = map.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Entry> item = iterator.next();
+            if (item.getValue().matches(provider, voice)) {
+                usedBytes -= sizeOf(item.getKey(), item.getValue().audio);
+                iterator.remove();
+                count++;
+            }
+        }
+        return count;
+    }
+
+    synchronized CacheStats stats() {
+        return new CacheStats("heap", map.size(), usedBytes, maxBytes, hits.sum(), misses.sum(), evictions.sum());
+    }
+
+    // Base64字符串只包含Latin1字符，每个字符占用1个字节
+    private static long sizeOf(String key, String audio) {
+        return key.length() + audio.length();
+    }
+
+    private record Entry(String provider, String voice, String audio) {
+
+        boolean matches(String provider, String voice) {
+            return (null == provider || provider.equals(this.provider))
+                    && (null == voice || voice.equals(this.voice));
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package com.jonas.speech.service.cache;
+
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.crypto.digest.DigestUtil;
+import com.jonas.speech.common.CacheStats;
+import com.jonas.speech.service.SpeechService;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * 语音合成缓存
+ * 以 (服务商, 发音人, 音频格式, 规范化文本) 的哈希为键，先查堆内LRU，再查磁盘映射文件。
+ * 调用方在进入路由之前查缓存，只有真正发给服务商的请求才计入路由的耗时和健康统计
+ *
+ * @author shenjy
+ * @time 2024/6/12 16:45
+ */
+@Slf4j
+@Service
+public class TtsCacheService {
+
+    @Value("${speech.ttsCache.enabled:true}")
+    private boolean enabled;
+    @Value("${speech.ttsCache.heapBytes:67108864}")
+    private long heapBytes;
+    @Value("${speech.ttsCache.diskBytes:1073741824}")
+    private long diskBytes;
+    @Value("${speech.ttsCache.segmentBytes:67108864}")
+    private int segmentBytes;
+    @Value("${speech.ttsCache.dir:${java.io.tmpdir}/jackal-speech/tts-cache}")
+    private String dir;
+
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    private HeapAudioCache heapCache;
+    private DiskAudioCache diskCache;
+
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            return;
+        }
+        heapCache = new HeapAudioCache(heapBytes);
+        if (diskBytes > 0) {
+            try {
+                diskCache = new DiskAudioCache(Paths.get(dir), diskBytes, segmentBytes);
+            } catch (Exception e) {
+                log.error("tts disk cache init error, dir={}", dir, e);
+            }
+        }
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (null != diskCache) {
+            diskCache.close();
+        }
+    }
+
+    /**
+     * 读取缓存，在选择服务商之前调用，命中时不经过路由，不计入服务商的调用统计
+     *
+     * @param speechService 语音服务
+     * @param text          文本
+     * @return Base64编码的音频，未命中时返回空
+     */
+    public String lookup(SpeechService speechService, String text) {
+        if (!enabled) {
+            return null;
+        }
+        String provider = speechService.getType();
+        String voice = speechService.getVoice();
+        String key = cacheKey(provider, voice, speechService.getAudioFormat(), text);
+
+        String audio = heapCache.get(key);
+        if (null != audio) {
+            return audio;
+        }
+        if (null != diskCache) {
+            ByteBuffer buffer = diskCache.get(key);
+            if (null != buffer) {
+                // 接口返回String，只在这里从映射区域解码一次
+                audio = StandardCharsets.ISO_8859_1.decode(buffer).toString();
+                heapCache.put(key, provider, voice, audio);
+                return audio;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 在多个服务商的缓存中查找，返回第一个命中的服务商和音频
+     *
+     * @param speechServices 可选的语音服务，按顺序查找
+     * @param text           文本
+     * @return 命中结果，都未命中时返回空
+     */
+    public CachedAudio lookup(List<SpeechService> speechServices, String text) {
+        for (SpeechService speechService : speechServices) {
+            String audio = lookup(speechService, text);
+            if (null != audio) {
+                return new CachedAudio(speechService.getType(), audio);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 服务商合成成功后写入缓存
+     *
+     * @param speechService 语音服务
+     * @param text          文本
+     * @param audio         Base64编码的音频
+     */
+    public void put(SpeechService speechService, String text, String audio) {
+        if (!enabled || StrUtil.isBlank(audio)) {
+            return;
+        }
+        String provider = speechService.getType();
+        String voice = speechService.getVoice();
+        String key = cacheKey(provider, voice, speechService.getAudioFormat(), text);
+        heapCache.put(key, provider, voice, audio);
+        if (null != diskCache) {
+            try {
+                diskCache.put(key, provider, voice, audio.getBytes(StandardCharsets.ISO_8859_1));
+            } catch (Exception e) {
+                log.error("tts disk cache write error, key={}", key, e);
+            }
+        }
+    }
+
+    /**
+     * 按服务商和发音人失效缓存，参数为空表示不限制
+     *
+     * @return 失效的条目数
+     */
+    public int invalidate(String provider, String voice) {
+        if (!enabled) {
+            return 0;
+        }
+        int count = heapCache.invalidate(provider, voice);
+        if (null != diskCache) {
+            try {
+                count += diskCache.invalidate(provider, voice);
+            } catch (Exception e) {
+                log.error("tts disk cache invalidate error, provider={}, voice={}", provider, voice, e);
+            }
+        }
+        log.info("tts cache invalidated, provider={}, voice={}, count={}", provider, voice, count);
+        return count;
+    }
+
+    public List<CacheStats> stats() {
+        List<CacheStats> list = new ArrayList<>();
+        if (null != heapCache) {
+            list.add(heapCache.stats());
+        }
+        if (null != diskCache) {
+            list.add(diskCache.stats());
+        }
+        return list;
+    }
+
+    static String cacheKey(String provider, String voice, String format, String text) {
+        String normalized = WHITESPACE.matcher(StrUtil.trim(text)).replaceAll(" ");
+        return DigestUtil.sha256Hex(provider + '\u0000' + voice + '\u0000' + format + '\u0000' + normalized);
+    }
+}
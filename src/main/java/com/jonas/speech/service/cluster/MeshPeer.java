@@ -0,0 +1,159 @@
+package com.jonas.speech.service.cluster;
+
+import com.jonas.speech.common.ClusterPeerStats;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * 到另一个节点的发送连接
+ * 每个节点只通过自己发起的连接向对方发送，对方发来的消息走对方发起的连接。
+ * 消息先放入有界队列，由该连接的写线程依次写出，对方处理慢时队列满，入队最多等待调用方给出的时间，放不下时返回失败；
+ * 空闲时发送心跳，连接断开后按间隔重连，每次连上先发送本节点ID和本节点上的全部客户端。
+ * 断开时队列中的客户端通告由重连后的问候消息代替，转发的消息保留到重连后发出
+ *
+ * @author shenjy
+ * @time 2024/8/21 10:40
+ */
+@Slf4j
+final class MeshPeer {
+
+    private final String address;
+    private final String host;
+    private final int port;
+    private final LinkedBlockingQueue<byte[]> queue;
+    private final Supplier<List<byte[]>> greeting;
+    private final long heartbeatInterval;
+    private final long reconnectInterval;
+
+    private volatile boolean running = true;
+    private volatile boolean connected;
+    private volatile Socket socket;
+
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder connects = new LongAdder();
+
+    /**
+     * @param address  对方节点地址，host:port
+     * @param greeting 每次连上后先发送的消息
+     */
+    MeshPeer(String address, int capacity, Supplier<List<byte[]>> greeting, long heartbeatInterval,
+             long reconnectInterval) {
+        this.address = address;
+        int index = address.lastIndexOf(':');
+        this.host = address.substring(0, index);
+        this.port = Integer.parseInt(address.substring(index + 1));
+        this.queue = new LinkedBlockingQueue<>(capacity);
+        this.greeting = greeting;
+        this.heartbeatInterval = heartbeatInterval;
+        this.reconnectInterval = reconnectInterval;
+    }
+
+    String address() {
+        return address;
+    }
+
+    boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * 放入发送队列，队列满时最多等待 timeout，未连接时不等待
+     *
+     * @param timeout 等待队列空间的最长时间，毫秒，0表示不等待
+     * @return 未连接或等待超时后队列仍满时返回false
+     */
+    boolean offer(byte[] message, long timeout) {
+        try {
+            if (connected && queue.offer(message, timeout, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        dropped.increment();
+        return false;
+    }
+
+    /**
+     * 在当前线程上循环连接和发送，直到 close
+     */
+    void run() {
+        while (running) {
+            try (Socket current = new Socket()) {
+                current.connect(new InetSocketAddress(host, port), (int) heartbeatInterval);
+                current.setTcpNoDelay(true);
+                socket = current;
+                OutputStream output = new BufferedOutputStream(current.getOutputStream(), 65536);
+                // 先标记已连接再取本节点的客户端，之后注册的客户端会排在问候消息之后发出
+                connected = true;
+                connects.increment();
+                log.info("cluster peer connected, address={}", address);
+                for (byte[] message : greeting.get()) {
+                    output.write(message);
+                }
+                output.flush();
+                while (running) {
+                    byte[] message = queue.poll(heartbeatInterval, TimeUnit.MILLISECONDS);
+                    if (null == message) {
+                        output.write(MeshProtocol.PING);
+                    } else {
+                        output.write(message);
+                        sent.increment();
+                    }
+                    if (queue.isEmpty()) {
+                        output.flush();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (IOException e) {
+                if (connected) {
+                    log.warn("cluster peer disconnected, address={}, error={}", address, e.getMessage());
+                } else {
+                    log.debug("cluster peer connect failed, address={}, error={}", address, e.getMessage());
+                }
+            } finally {
+                connected = false;
+                socket = null;
+                // 客户端通告由重连后的问候消息重新同步，已接受的转发消息不丢弃，重连后继续发送
+                int before = queue.size();
+                queue.removeIf(message -> message[0] != MeshProtocol.TYPE_FRAME);
+                dropped.add(before - queue.size());
+            }
+            try {
+                Thread.sleep(reconnectInterval);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    void close() {
+        running = false;
+        Socket current = socket;
+        if (null != current) {
+            try {
+                current.close();
+            } catch (IOException e) {
+                log.debug("cluster peer close error, address={}", address, e);
+            }
+        }
+    }
+
+    ClusterPeerStats stats() {
+        return new ClusterPeerStats(address, connected, queue.size(), sent.sum(), dropped.sum(), connects.sum());
+    }
+}
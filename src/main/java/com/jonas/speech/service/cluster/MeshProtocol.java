@@ -0,0 +1,75 @@
+package com.jonas.speech.service.cluster;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+
+/**
+ * 节点间消息格式
+ * 每条消息以一个字节的类型开头：
+ * PING 无内容；HELLO 后跟节点ID、进程实例ID、发起方连接的目标地址三个字符串，8字节时间戳和32字节签名；
+ * OWN、DISOWN 后跟8字节客户端ID；FRAME 后跟8字节客户端ID、1字节消息类型、4字节长度和内容。
+ * 字符串为2字节长度加UTF-8编码，整数均为大端。签名是以共享密钥对 HELLO 各字段计算的 HmacSHA256
+ *
+ * @author shenjy
+ * @time 2024/8/21 10:30
+ */
+final class MeshProtocol {
+
+    static final byte TYPE_PING = 0;
+    static final byte TYPE_HELLO = 1;
+    static final byte TYPE_OWN = 2;
+    static final byte TYPE_DISOWN = 3;
+    static final byte TYPE_FRAME = 4;
+
+    static final byte[] PING = {TYPE_PING};
+    // HELLO 签名的字节数
+    static final int MAC_BYTES = 32;
+
+    private MeshProtocol() {
+    }
+
+    /**
+     * @param nodeId     本节点ID
+     * @param instanceId 本进程的实例ID，用于识别连到了自己
+     * @param target     发起方连接的目标地址
+     * @param secret     节点间共享密钥
+     */
+    static byte[] hello(String nodeId, String instanceId, String target, String secret) {
+        byte[] id = nodeId.getBytes(StandardCharsets.UTF_8);
+        byte[] instance = instanceId.getBytes(StandardCharsets.UTF_8);
+        byte[] address = target.getBytes(StandardCharsets.UTF_8);
+        long timestamp = System.currentTimeMillis();
+        return ByteBuffer.allocate(7 + id.length + instance.length + address.length + 8 + MAC_BYTES).put(TYPE_HELLO)
+                .putShort((short) id.length).put(id)
+                .putShort((short) instance.length).put(instance)
+                .putShort((short) address.length).put(address)
+                .putLong(timestamp).put(sign(secret, nodeId, instanceId, target, timestamp)).array();
+    }
+
+    static byte[] sign(String secret, String nodeId, String instanceId, String target, long timestamp) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+            return mac.doFinal((nodeId + "\n" + instanceId + "\n" + target + "\n" + timestamp)
+                    .getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static byte[] own(long clientId) {
+        return ByteBuffer.allocate(9).put(TYPE_OWN).putLong(clientId).array();
+    }
+
+    static byte[] disown(long clientId) {
+        return ByteBuffer.allocate(9).put(TYPE_DISOWN).putLong(clientId).array();
+    }
+
+    static byte[] frame(long clientId, SseRelay.Kind kind, byte[] payload) {
+        return ByteBuffer.allocate(14 + payload.length).put(TYPE_FRAME).putLong(clientId)
+                .put((byte) kind.ordinal()).putInt(payload.length).put(payload).array();
+    }
+}
@@ -0,0 +1,71 @@
+package com.jonas.speech.service.cluster;
+
+/**
+ * SSE跨节点转发
+ * 记录每个客户端的SSE连接在哪个节点上，推送时本节点没有该客户端的连接就把消息转给连接所在的节点。
+ * 客户端在一个节点建立连接后调用 register，连接断开后调用 unregister；
+ * 其他节点转来的消息交给 start 时传入的处理器，由它写给本节点的连接
+ *
+ * @author shenjy
+ * @time 2024/8/21 10:10
+ */
+public interface SseRelay {
+
+    /**
+     * 开始接收其他节点转来的消息，只调用一次
+     *
+     * @param handler 本节点的消息处理器
+     */
+    void start(FrameHandler handler);
+
+    /**
+     * 客户端的连接建立在本节点上
+     */
+    void register(long clientId);
+
+    /**
+     * 客户端在本节点上的连接已断开
+     */
+    void unregister(long clientId);
+
+    /**
+     * 把消息转给客户端连接所在的节点，不等待对方写出
+     * 转发队列满时文本消息直接放弃，音频和结束标记等待一段时间
+     *
+     * @param clientId 客户端ID
+     * @param kind     消息类型
+     * @param payload  消息内容，文本为UTF-8编码，音频为原始字节
+     * @return 是否已交给其他节点；不知道客户端在哪个节点、与该节点断开或转发队列已满时返回false
+     */
+    boolean forward(long clientId, Kind kind, byte[] payload);
+
+    /**
+     * 转发的消息类型，与本节点的发送队列一致
+     */
+    enum Kind {
+        // 已序列化好的文本消息
+        DATA,
+        // 音频，写出时进行Base64编码
+        AUDIO,
+        // 发送完之前的消息后结束连接
+        COMPLETE
+    }
+
+    /**
+     * 本节点的消息处理器
+     */
+    interface FrameHandler {
+
+        /**
+         * 写给本节点上的客户端连接，在节点连接的读线程上调用，不能阻塞等待客户端的发送队列
+         *
+         * @return 本节点上是否有该客户端的连接
+         */
+        boolean deliver(long clientId, Kind kind, byte[] payload);
+
+        /**
+         * 客户端已在其他节点重新建立连接，本节点上的连接已失效
+         */
+        void moved(long clientId);
+    }
+}
@@ -0,0 +1,360 @@
+package com.jonas.speech.service.cluster;
+
+import cn.hutool.core.util.IdUtil;
+import cn.hutool.core.util.StrUtil;
+import com.jonas.speech.common.ClusterPeerStats;
+import com.jonas.speech.common.ClusterStats;
+import com.jonas.speech.service.metrics.SpeechMetrics;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 基于TCP的节点互连转发，不依赖外部消息中间件
+ * 每个节点监听 speech.cluster.port，并主动连接 peers 中的其他节点，节点两两之间各有一条发送连接。
+ * 客户端在本节点建立或断开连接时通知所有节点，每个节点据此记录其他节点上的客户端；
+ * 某个节点的连接断开后，它上面的客户端记录随之失效，重连时对方会重新发送全部客户端。
+ * 同一客户端在多个节点上注册时以最后注册的为准，之前的节点关闭本地连接。
+ * 转来的消息只写给本节点上的连接，不再继续转发，交给处理器时不等待，慢客户端不阻塞同一连接上的其他客户端。
+ * 未开启时所有方法都不做任何事。
+ * 节点间以共享密钥签名 HELLO，签名不对的连接直接断开；HELLO 带有进程实例ID，peers 中以别的写法指向本节点的地址
+ * 连上的是自己，此时不再连接该地址
+ *
+ * @author shenjy
+ * @time 2024/8/21 11:00
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class TcpMeshSseRelay implements SseRelay {
+
+    @Value("${speech.cluster.enabled:false}")
+    private boolean enabled;
+    // 节点间通信的监听端口
+    @Value("${speech.cluster.port:19000}")
+    private int port;
+    // 监听地址，为空时监听所有网卡
+    @Value("${speech.cluster.bind:}")
+    private String bind;
+    // 节点间共享密钥，开启时必须配置
+    @Value("${speech.cluster.secret:}")
+    private String secret;
+    // 本节点地址，host:port，需要与其他节点 peers 中的写法一致，为空时使用本机地址
+    @Value("${speech.cluster.advertise:}")
+    private String advertise;
+    // 全部节点地址，逗号分隔，可以包含本节点
+    @Value("${speech.cluster.peers:}")
+    private String peers;
+    // 到每个节点的发送队列容量
+    @Value("${speech.cluster.queueCapacity:4096}")
+    private int queueCapacity;
+    // 空闲时的心跳间隔，超过3倍间隔没有收到消息视为连接已断开，毫秒
+    @Value("${speech.cluster.heartbeatInterval:5000}")
+    private long heartbeatInterval;
+    // 重连间隔，毫秒
+    @Value("${speech.cluster.reconnectInterval:1000}")
+    private long reconnectInterval;
+    // 音频和结束标记等待发送队列空间的最长时间，毫秒，文本消息不等待
+    @Value("${speech.cluster.offerTimeout:1000}")
+    private long offerTimeout;
+    // 单条消息的最大字节数，超过时断开连接
+    @Value("${speech.cluster.maxFrameBytes:4194304}")
+    private int maxFrameBytes;
+
+    // HELLO 时间戳与本机时间的最大偏差，毫秒
+    private static final long MAX_CLOCK_SKEW = TimeUnit.MINUTES.toMillis(5);
+
+    private final SpeechMetrics speechMetrics;
+
+    private String nodeId;
+    // 本进程的实例ID，每次启动随机生成
+    private final String instanceId = IdUtil.simpleUUID();
+    private volatile FrameHandler handler;
+    private volatile boolean running;
+    private ServerSocket serverSocket;
+    // 每个连接一个虚拟线程，读写都是阻塞IO
+    private final ExecutorService executor =
+            Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("sse-cluster-", 0).factory());
+
+    // 到其他节点的发送连接，按节点地址
+    private final Map<String, MeshPeer> peerMap = new ConcurrentHashMap<>();
+    // 其他节点发起的接收连接
+    private final Set<Inbound> inbounds = ConcurrentHashMap.newKeySet();
+    private final Set<Long> localClients = ConcurrentHashMap.newKeySet();
+    // 其他节点上的客户端，值为通告该客户端的接收连接，连接断开时只清除它通告的记录
+    private final Map<Long, Inbound> ownerMap = new ConcurrentHashMap<>();
+
+    private final LongAdder forwarded = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder undeliverable = new LongAdder();
+
+    @Override
+    public void start(FrameHandler handler) {
+        this.handler = handler;
+        if (!enabled) {
+            return;
+        }
+        if (StrUtil.isBlank(secret)) {
+            throw new RuntimeException("开启集群时必须配置节点间共享密钥 speech.cluster.secret");
+        }
+        nodeId = StrUtil.isNotBlank(advertise) ? advertise : localAddress() + ":" + port;
+        try {
+            serverSocket = new ServerSocket();
+            serverSocket.setReuseAddress(true);
+            serverSocket.bind(StrUtil.isBlank(bind) ? new InetSocketAddress(port) : new InetSocketAddress(bind, port));
+        } catch (IOException e) {
+            throw new RuntimeException("集群端口监听失败：" + port, e);
+        }
+        running = true;
+        executor.execute(this::accept);
+        for (String address : StrUtil.split(peers, ',', true, true)) {
+            if (address.equals(nodeId) || peerMap.containsKey(address)) {
+                continue;
+            }
+            MeshPeer peer = new MeshPeer(address, queueCapacity, () -> greeting(address), heartbeatInterval,
+                    reconnectInterval);
+            peerMap.put(address, peer);
+            executor.execute(peer::run);
+        }
+        speechMetrics.gauge("speech.cluster.remote.clients", "其他节点上的客户端数", ownerMap, Map::size);
+        speechMetrics.functionCounter("speech.cluster.frames", "跨节点转发的消息数", forwarded, LongAdder::sum,
+                "direction", SpeechMetrics.OUT);
+        speechMetrics.functionCounter("speech.cluster.frames", "跨节点转发的消息数", received, LongAdder::sum,
+                "direction", SpeechMetrics.IN);
+        log.info("sse cluster started, nodeId={}, peers={}", nodeId, peerMap.keySet());
+    }
+
+    @PreDestroy
+    public void destroy() {
+        running = false;
+        if (null != serverSocket) {
+            try {
+                serverSocket.close();
+            } catch (IOException e) {
+                log.debug("cluster server close error", e);
+            }
+        }
+        peerMap.values().forEach(MeshPeer::close);
+        inbounds.forEach(Inbound::close);
+        executor.shutdownNow();
+    }
+
+    @Override
+    public void register(long clientId) {
+        if (!running) {
+            return;
+        }
+        ownerMap.remove(clientId);
+        if (localClients.add(clientId)) {
+            broadcast(MeshProtocol.own(clientId));
+        }
+    }
+
+    @Override
+    public void unregister(long clientId) {
+        if (running && localClients.remove(clientId)) {
+            broadcast(MeshProtocol.disown(clientId));
+        }
+    }
+
+    @Override
+    public boolean forward(long clientId, Kind kind, byte[] payload) {
+        if (!running) {
+            return false;
+        }
+        Inbound owner = ownerMap.get(clientId);
+        MeshPeer peer = null == owner ? null : peerMap.get(owner.nodeId);
+        // 音频和结束标记丢失后客户端无法察觉，队列满时等待写线程腾出空间
+        long timeout = kind == Kind.DATA ? 0 : offerTimeout;
+        if (null == peer || !peer.offer(MeshProtocol.frame(clientId, kind, payload), timeout)) {
+            return false;
+        }
+        forwarded.increment();
+        return true;
+    }
+
+    public ClusterStats stats() {
+        List<ClusterPeerStats> list = new ArrayList<>();
+        peerMap.values().forEach(peer -> list.add(peer.stats()));
+        return new ClusterStats(nodeId, localClients.size(), ownerMap.size(), forwarded.sum(), received.sum(),
+                undeliverable.sum(), list);
+    }
+
+    /**
+     * 连上其他节点后先发送的消息
+     *
+     * @param target 连接的节点地址
+     */
+    private List<byte[]> greeting(String target) {
+        List<byte[]> messages = new ArrayList<>(localClients.size() + 1);
+        messages.add(MeshProtocol.hello(nodeId, instanceId, target, secret));
+        localClients.forEach(clientId -> messages.add(MeshProtocol.own(clientId)));
+        return messages;
+    }
+
+    private void broadcast(byte[] message) {
+        peerMap.values().forEach(peer -> peer.offer(message, 0));
+    }
+
+    private void accept() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout((int) heartbeatInterval * 3);
+                Inbound inbound = new Inbound(socket);
+                inbounds.add(inbound);
+                executor.execute(inbound::run);
+            } catch (IOException e) {
+                if (running) {
+                    log.error("cluster accept error", e);
+                }
+            }
+        }
+    }
+
+    private static String localAddress() {
+        try {
+            return InetAddress.getLocalHost().getHostAddress();
+        } catch (UnknownHostException e) {
+            return "127.0.0.1";
+        }
+    }
+
+    /**
+     * 其他节点发起的连接，第一条消息是对方的节点ID，签名校验通过后才处理后续消息
+     */
+    private final class Inbound {
+        private final Socket socket;
+        private String nodeId;
+
+        private Inbound(Socket socket) {
+            this.socket = socket;
+        }
+
+        private void run() {
+            try (DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 65536))) {
+                if (!hello(input)) {
+                    return;
+                }
+                log.info("cluster node joined, nodeId={}, remote={}", nodeId, socket.getRemoteSocketAddress());
+                while (running) {
+                    read(input);
+                }
+            } catch (EOFException e) {
+                log.info("cluster node left, nodeId={}", nodeId);
+            } catch (IOException e) {
+                if (running) {
+                    log.warn("cluster node disconnected, nodeId={}, error={}", nodeId, e.getMessage());
+                }
+            } finally {
+                close();
+                inbounds.remove(this);
+                ownerMap.values().removeIf(owner -> owner == this);
+            }
+        }
+
+        /**
+         * 读取并校验 HELLO
+         *
+         * @return 连到了自己时返回false
+         */
+        private boolean hello(DataInputStream input) throws IOException {
+            if (input.readByte() != MeshProtocol.TYPE_HELLO) {
+                throw new IOException("第一条消息不是节点ID");
+            }
+            String id = readString(input);
+            String instance = readString(input);
+            String target = readString(input);
+            long timestamp = input.readLong();
+            byte[] mac = new byte[MeshProtocol.MAC_BYTES];
+            input.readFully(mac);
+            if (!MessageDigest.isEqual(mac, MeshProtocol.sign(secret, id, instance, target, timestamp))) {
+                throw new IOException("节点签名错误, remote=" + socket.getRemoteSocketAddress());
+            }
+            if (Math.abs(System.currentTimeMillis() - timestamp) > MAX_CLOCK_SKEW) {
+                throw new IOException("节点时间偏差过大, remote=" + socket.getRemoteSocketAddress());
+            }
+            if (instanceId.equals(instance)) {
+                // peers 中的该地址指向本节点，不再连接
+                MeshPeer self = peerMap.remove(target);
+                if (null != self) {
+                    self.close();
+                }
+                log.warn("cluster peer is this node, address={}", target);
+                return false;
+            }
+            nodeId = id;
+            return true;
+        }
+
+        private String readString(DataInputStream input) throws IOException {
+            byte[] value = new byte[input.readUnsignedShort()];
+            input.readFully(value);
+            return new String(value, StandardCharsets.UTF_8);
+        }
+
+        private void read(DataInputStream input) throws IOException {
+            byte type = input.readByte();
+            switch (type) {
+                case MeshProtocol.TYPE_PING -> {
+                }
+                case MeshProtocol.TYPE_OWN -> {
+                    long clientId = input.readLong();
+                    ownerMap.put(clientId, this);
+                    // 客户端换了节点，本节点上的旧连接不会再收到消息
+                    if (localClients.remove(clientId)) {
+                        handler.moved(clientId);
+                    }
+                }
+                case MeshProtocol.TYPE_DISOWN -> ownerMap.remove(input.readLong(), this);
+                case MeshProtocol.TYPE_FRAME -> {
+                    long clientId = input.readLong();
+                    int kind = input.readUnsignedByte();
+                    int length = input.readInt();
+                    if (kind >= Kind.values().length || length < 0 || length > maxFrameBytes) {
+                        throw new IOException("消息格式错误, kind=" + kind + ", length=" + length);
+                    }
+                    byte[] payload = new byte[length];
+                    input.readFully(payload);
+                    received.increment();
+                    if (!handler.deliver(clientId, Kind.values()[kind], payload)) {
+                        undeliverable.increment();
+                    }
+                }
+                default -> throw new IOException("未知的消息类型：" + type);
+            }
+        }
+
+        private void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                log.debug("cluster inbound close error", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package com.jonas.speech.service.credential;
+
+/**
+ * 缓存的凭证，可以是访问令牌，也可以是已签名的URL
+ *
+ * @param value    凭证内容
+ * @param expireAt 过期时间戳，毫秒
+ * @author shenjy
+ * @time 2024/6/5 14:20
+ */
+public record CachedCredential(String value, long expireAt) {
+
+    public boolean isExpired() {
+        return System.currentTimeMillis() >= expireAt;
+    }
+
+    /**
+     * 是否需要提前刷新
+     *
+     * @param refreshAhead 提前刷新时间，毫秒
+     */
+    public boolean needRefresh(long refreshAhead) {
+        return System.currentTimeMillis() >= expireAt - refreshAhead;
+    }
+}
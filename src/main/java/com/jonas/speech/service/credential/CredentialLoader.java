@@ -0,0 +1,18 @@
+package com.jonas.speech.service.credential;
+
+/**
+ * 凭证加载器，由各服务商实现具体的获取令牌或签名逻辑
+ *
+ * @author shenjy
+ * @time 2024/6/5 14:22
+ */
+@FunctionalInterface
+public interface CredentialLoader {
+
+    /**
+     * 加载凭证，失败时抛出异常
+     *
+     * @return 凭证
+     */
+    CachedCredential load() throws Exception;
+}
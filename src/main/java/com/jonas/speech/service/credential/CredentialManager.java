@@ -0,0 +1,148 @@
+package com.jonas.speech.service.credential;
+
+import cn.hutool.core.thread.NamedThreadFactory;
+import com.jonas.speech.service.timing.RequestTiming;
+import com.jonas.speech.service.timing.TimingPhase;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * 凭证管理
+ * 按服务商缓存访问令牌和签名URL，并在过期前后台刷新，请求链路上只读取缓存。
+ * 同一凭证的并发刷新只会发起一次，其余调用方共享同一个结果。
+ *
+ * @author shenjy
+ * @time 2024/6/5 14:30
+ */
+@Slf4j
+@Component
+public class CredentialManager {
+
+    // 后台检查间隔
+    @Value("${speech.credential.checkInterval:10000}")
+    private long checkInterval;
+    // 缓存不可用时，调用方等待刷新的最长时间
+    @Value("${speech.credential.waitTimeout:3000}")
+    private long waitTimeout;
+
+    private final Map<String, Entry> entryMap = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<CachedCredential>> inFlightMap = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService executor;
+
+    @PostConstruct
+    public void init() {
+        executor = Executors.newScheduledThreadPool(2, new NamedThreadFactory("credential-refresh-", true));
+        executor.scheduleWithFixedDelay(this::refreshAll, checkInterval, checkInterval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * 注册凭证，注册后立即在后台预取
+     *
+     * @param key          凭证标识
+     * @param refreshAhead 过期前多久开始刷新，毫秒
+     * @param loader       凭证加载器
+     */
+    public void register(String key, long refreshAhead, CredentialLoader loader) {
+        entryMap.put(key, new Entry(refreshAhead, loader));
+        refresh(key);
+    }
+
+    /**
+     * 获取凭证
+     * 缓存有效时直接返回；缓存缺失或已过期时等待刷新结果，失败返回null
+     *
+     * @param key 凭证标识
+     * @return 凭证内容
+     */
+    public String get(String key) {
+        Entry entry = entryMap.get(key);
+        if (null == entry) {
+            throw new RuntimeException("找不到对应的凭证：" + key);
+        }
+        CachedCredential credential = entry.credential;
+        if (null != credential && !credential.isExpired()) {
+            return credential.value();
+        }
+        // 只有需要等待刷新时才记录令牌耗时
+        RequestTiming timing = RequestTiming.current();
+        long start = null == timing ? 0 : timing.start(TimingPhase.TOKEN);
+        try {
+            return refresh(key).get(waitTimeout, TimeUnit.MILLISECONDS).value();
+        } catch (Exception e) {
+            log.error("credential refresh error, key={}", key, e);
+            return null;
+        } finally {
+            if (null != timing) {
+                timing.stop(TimingPhase.TOKEN, start);
+            }
+        }
+    }
+
+    /**
+     * 作废缓存的凭证，例如服务端返回鉴权失败时
+     *
+     * @param key 凭证标识
+     */
+    public void invalidate(String key) {
+        Entry entry = entryMap.get(key);
+        if (null != entry) {
+            entry.credential = null;
+            refresh(key);
+        }
+    }
+
+    private CompletableFuture<CachedCredential> refresh(String key) {
+        CompletableFuture<CachedCredential> future = new CompletableFuture<>();
+        CompletableFuture<CachedCredential> inFlight = inFlightMap.putIfAbsent(key, future);
+        if (null != inFlight) {
+            return inFlight;
+        }
+        executor.execute(() -> {
+            Entry entry = entryMap.get(key);
+            try {
+                CachedCredential credential = entry.loader.load();
+                entry.credential = credential;
+                inFlightMap.remove(key, future);
+                future.complete(credential);
+                log.info("credential refreshed, key={}, expireAt={}", key, credential.expireAt());
+            } catch (Throwable e) {
+                inFlightMap.remove(key, future);
+                future.completeExceptionally(e);
+                log.error("credential load error, key={}", key, e);
+            }
+        });
+        return future;
+    }
+
+    private void refreshAll() {
+        entryMap.forEach((key, entry) -> {
+            CachedCredential credential = entry.credential;
+            if (null == credential || credential.needRefresh(entry.refreshAhead)) {
+                refresh(key);
+            }
+        });
+    }
+
+    private static class Entry {
+        private final long refreshAhead;
+        private final CredentialLoader loader;
+        private volatile CachedCredential credential;
+
+        Entry(long refreshAhead, CredentialLoader loader) {
+            this.refreshAhead = refreshAhead;
+            this.loader = loader;
+        }
+    }
+}
@@ -0,0 +1,278 @@
+package com.jonas.speech.service.http;
+
+import com.jonas.speech.common.PoolStats;
+import com.jonas.speech.service.metrics.SpeechMetrics;
+import com.jonas.speech.service.timing.RequestTiming;
+import com.jonas.speech.service.timing.TimingPhase;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import okhttp3.*;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * HTTP客户端管理
+ * 所有服务商共享一个调度线程池，每个服务商拥有独立的连接池，支持 HTTP/2 与长连接复用。
+ * 请求 tag 为 RequestTiming 时记录连接、上传、服务商处理、首字节和读取响应的耗时
+ *
+ * @author shenjy
+ * @time 2024/6/3 10:25
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class HttpClientManager {
+
+    private final Environment environment;
+    private final SpeechMetrics speechMetrics;
+
+    @Value("${speech.http.connectTimeout:10000}")
+    private long connectTimeout;
+    @Value("${speech.http.readTimeout:60000}")
+    private long readTimeout;
+    @Value("${speech.http.writeTimeout:60000}")
+    private long writeTimeout;
+    @Value("${speech.http.maxIdleConnections:16}")
+    private int maxIdleConnections;
+    @Value("${speech.http.keepAliveDuration:300000}")
+    private long keepAliveDuration;
+    @Value("${speech.http.maxRequests:256}")
+    private int maxRequests;
+    @Value("${speech.http.maxRequestsPerHost:64}")
+    private int maxRequestsPerHost;
+    // 开启虚拟线程时，异步请求的回调也运行在虚拟线程上
+    @Value("${spring.threads.virtual.enabled:false}")
+    private boolean virtualThreads;
+
+    private OkHttpClient baseClient;
+
+    private final Map<String, ProviderClient> clientMap = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        Dispatcher dispatcher = virtualThreads
+                ? new Dispatcher(Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("okhttp-", 0).factory()))
+                : new Dispatcher();
+        dispatcher.setMaxRequests(maxRequests);
+        dispatcher.setMaxRequestsPerHost(maxRequestsPerHost);
+
+        baseClient = new OkHttpClient.Builder()
+                .dispatcher(dispatcher)
+                .protocols(List.of(Protocol.HTTP_2, Protocol.HTTP_1_1))
+                .connectTimeout(connectTimeout, TimeUnit.MILLISECONDS)
+                .readTimeout(readTimeout, TimeUnit.MILLISECONDS)
+                .writeTimeout(writeTimeout, TimeUnit.MILLISECONDS)
+                .retryOnConnectionFailure(true)
+                .build();
+
+        speechMetrics.gauge("speech.http.dispatcher.calls", "HTTP调度器中的请求数", dispatcher,
+                Dispatcher::runningCallsCount, "state", "running");
+        speechMetrics.gauge("speech.http.dispatcher.calls", "HTTP调度器中的请求数", dispatcher,
+                Dispatcher::queuedCallsCount, "state", "queued");
+    }
+
+    /**
+     * 获取服务商对应的HTTP客户端
+     * 超时时间可以通过 speech.http.{provider}.readTimeout 等配置单独覆盖
+     *
+     * @param provider 服务商
+     * @return HTTP客户端
+     */
+    public OkHttpClient getClient(String provider) {
+        return clientMap.computeIfAbsent(provider, this::createClient).client;
+    }
+
+    /**
+     * 连接池统计信息
+     *
+     * @return 各服务商连接池统计
+     */
+    public List<PoolStats> stats() {
+        List<PoolStats> list = new ArrayList<>();
+        clientMap.forEach((provider, providerClient) -> list.add(providerClient.stats(provider)));
+        return list;
+    }
+
+    @PreDestroy
+    public void destroy() {
+        clientMap.values().forEach(providerClient -> providerClient.pool.evictAll());
+        baseClient.dispatcher().executorService().shutdown();
+    }
+
+    private ProviderClient createClient(String provider) {
+        String prefix = "speech.http." + provider + ".";
+        ConnectionPool pool = new ConnectionPool(
+                environment.getProperty(prefix + "maxIdleConnections", Integer.class, maxIdleConnections),
+                environment.getProperty(prefix + "keepAliveDuration", Long.class, keepAliveDuration),
+                TimeUnit.MILLISECONDS);
+        PoolEventListener listener = new PoolEventListener(provider, speechMetrics);
+        OkHttpClient client = baseClient.newBuilder()
+                .connectionPool(pool)
+                .eventListenerFactory(listener)
+                .connectTimeout(environment.getProperty(prefix + "connectTimeout", Long.class, connectTimeout), TimeUnit.MILLISECONDS)
+                .readTimeout(environment.getProperty(prefix + "readTimeout", Long.class, readTimeout), TimeUnit.MILLISECONDS)
+                .writeTimeout(environment.getProperty(prefix + "writeTimeout", Long.class, writeTimeout), TimeUnit.MILLISECONDS)
+                .build();
+        log.info("create http client, provider={}", provider);
+
+        speechMetrics.gauge("speech.http.pool.connections", "HTTP连接池连接数", pool,
+                p -> p.connectionCount() - p.idleConnectionCount(), "provider", provider, "state", "active");
+        speechMetrics.gauge("speech.http.pool.connections", "HTTP连接池连接数", pool,
+                ConnectionPool::idleConnectionCount, "provider", provider, "state", "idle");
+        speechMetrics.functionCounter("speech.http.pool.connects", "新建的HTTP连接数", listener.connected,
+                LongAdder::sum, "provider", provider);
+        speechMetrics.functionCounter("speech.http.pool.acquires", "获取HTTP连接的次数", listener.acquired,
+                LongAdder::sum, "provider", provider);
+        return new ProviderClient(client, pool, listener);
+    }
+
+    private record ProviderClient(OkHttpClient client, ConnectionPool pool, PoolEventListener listener) {
+
+        PoolStats stats(String provider) {
+            int total = pool.connectionCount();
+            int idle = pool.idleConnectionCount();
+            long connected = listener.connected.sum();
+            long acquired = listener.acquired.sum();
+            double reuseRatio = acquired == 0 ? 0 : Math.max(0, acquired - connected) / (double) acquired;
+            return new PoolStats(provider, total, idle, total - idle, connected, acquired, reuseRatio);
+        }
+    }
+
+    /**
+     * 统计新建连接与获取连接的次数，用于计算连接复用率；同时记录服务商返回的错误状态码、网络异常和请求阶段耗时
+     * 每个请求创建一个监听器，阶段开始时间记在监听器上，同一请求的对冲请求并发时各自计时
+     */
+    private static class PoolEventListener implements EventListener.Factory {
+        private final String provider;
+        private final SpeechMetrics speechMetrics;
+        private final LongAdder connected = new LongAdder();
+        private final LongAdder acquired = new LongAdder();
+
+        PoolEventListener(String provider, SpeechMetrics speechMetrics) {
+            this.provider = provider;
+            this.speechMetrics = speechMetrics;
+        }
+
+        @Override
+        public EventListener create(Call call) {
+            return new CallEventListener();
+        }
+
+        private class CallEventListener extends EventListener {
+            // 本次请求进行中阶段的开始时间，纳秒
+            private final long[] starts = new long[TimingPhase.values().length];
+
+            @Override
+            public void dnsStart(Call call, String domainName) {
+                start(call, TimingPhase.CONNECT);
+            }
+
+            @Override
+            public void dnsEnd(Call call, String domainName, List<InetAddress> inetAddressList) {
+                stop(call, TimingPhase.CONNECT);
+            }
+
+            @Override
+            public void connectStart(Call call, InetSocketAddress inetSocketAddress, Proxy proxy) {
+                start(call, TimingPhase.CONNECT);
+            }
+
+            @Override
+            public void connectEnd(Call call, InetSocketAddress inetSocketAddress, Proxy proxy, Protocol protocol) {
+                connected.increment();
+                stop(call, TimingPhase.CONNECT);
+            }
+
+            @Override
+            public void connectFailed(Call call, InetSocketAddress inetSocketAddress, Proxy proxy, Protocol protocol,
+                                      IOException ioe) {
+                stop(call, TimingPhase.CONNECT);
+            }
+
+            @Override
+            public void requestHeadersStart(Call call) {
+                start(call, TimingPhase.UPLOAD);
+            }
+
+            @Override
+            public void requestHeadersEnd(Call call, Request request) {
+                if (null == request.body()) {
+                    uploaded(call);
+                }
+            }
+
+            @Override
+            public void requestBodyEnd(Call call, long byteCount) {
+                uploaded(call);
+            }
+
+            @Override
+            public void connectionAcquired(Call call, Connection connection) {
+                acquired.increment();
+            }
+
+            @Override
+            public void responseHeadersEnd(Call call, Response response) {
+                stop(call, TimingPhase.VENDOR);
+                if (call.request().tag() instanceof RequestTiming timing) {
+                    timing.mark(TimingPhase.TTFB);
+                }
+                if (response.code() >= 400) {
+                    speechMetrics.upstreamError(provider, String.valueOf(response.code()));
+                }
+            }
+
+            @Override
+            public void responseBodyStart(Call call) {
+                start(call, TimingPhase.DECODE);
+            }
+
+            @Override
+            public void callEnd(Call call) {
+                stop(call, TimingPhase.DECODE);
+            }
+
+            @Override
+            public void callFailed(Call call, IOException ioe) {
+                stop(call, TimingPhase.DECODE);
+                // 被对冲取消的请求不算服务商错误
+                if (!call.isCanceled()) {
+                    speechMetrics.upstreamError(provider, "io");
+                }
+            }
+
+            private void uploaded(Call call) {
+                stop(call, TimingPhase.UPLOAD);
+                start(call, TimingPhase.VENDOR);
+            }
+
+            private void start(Call call, TimingPhase phase) {
+                if (call.request().tag() instanceof RequestTiming timing) {
+                    starts[phase.ordinal()] = timing.start(phase);
+                }
+            }
+
+            private void stop(Call call, TimingPhase phase) {
+                if (call.request().tag() instanceof RequestTiming timing) {
+                    timing.stop(phase, starts[phase.ordinal()]);
+                    starts[phase.ordinal()] = 0;
+                }
+            }
+        }
+    }
+}
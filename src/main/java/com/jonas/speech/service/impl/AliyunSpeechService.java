@@ -1,16 +1,49 @@
 package com.jonas.speech.service.impl;
 
+import cn.hutool.core.util.IdUtil;
+import cn.hutool.core.util.StrUtil;
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONObject;
 import com.alibaba.fastjson.JSONPath;
+import com.jonas.speech.common.SpeechCapability;
 import com.jonas.speech.common.SpeechType;
+import com.jonas.speech.common.ThrottledException;
 import com.jonas.speech.service.SpeechService;
-import com.jonas.speech.service.SpeechToTextCallback;
+import com.jonas.speech.service.SpeechToTextListener;
+import com.jonas.speech.service.SpeechToTextStream;
+import com.jonas.speech.service.audio.AudioPayload;
+import com.jonas.speech.service.audio.AudioSpec;
+import com.jonas.speech.service.credential.CachedCredential;
+import com.jonas.speech.service.credential.CredentialManager;
+import com.jonas.speech.service.http.HttpClientManager;
+import com.jonas.speech.service.metrics.SpeechMetrics;
+import com.jonas.speech.util.HmacSigner;
 import com.jonas.speech.util.HttpUtil;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.framing.CloseFrame;
+import org.java_websocket.handshake.ServerHandshake;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * <a href="http://api.fanyi.baidu.com/product/113">百度翻译</a>
@@ -19,6 +52,7 @@ import java.util.Map;
  * @time 2023/8/30 9:53
  */
 @Slf4j
+@RequiredArgsConstructor
 @Service(SpeechType.ALIYUN)
 public class AliyunSpeechService extends SpeechService {
 
@@ -30,10 +64,59 @@ public class AliyunSpeechService extends SpeechService {
     private String accessKeySecret;
     @Value("${speech.aliyun.url}")
     private String url;
+    @Value("${speech.aliyun.wsUrl}")
+    private String wsUrl;
+    @Value("${speech.aliyun.tokenUrl}")
+    private String tokenUrl;
+    @Value("${speech.aliyun.regionId}")
+    private String regionId;
 
+    private final HttpClientManager httpClientManager;
+    private final CredentialManager credentialManager;
+    private final SpeechMetrics speechMetrics;
+
+    private HmacSigner hmacSigner;
+
+    private static final DateTimeFormatter TIMESTAMP_FORMATTER =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss'Z'").withZone(ZoneOffset.UTC);
+    // 成功的状态码
+    private static final String SUCCESS_STATUS = "20000000";
+    // 请求数超限的状态码 TOO_MANY_REQUESTS
+    private static final String THROTTLE_STATUS = "40000005";
+
+    @PostConstruct
+    public void init() {
+        hmacSigner = new HmacSigner("HmacSHA1", accessKeySecret + "&");
+        // 令牌有效期较长，提前10分钟后台刷新
+        credentialManager.register(SpeechType.ALIYUN, TimeUnit.MINUTES.toMillis(10), this::createToken);
+    }
 
     @Override
     public String speechToText(byte[] audioData) {
+        Map<String, String> headers = speechToTextHeaders();
+        if (null == headers) {
+            return "";
+        }
+
+        /*
+         * 发送HTTPS POST请求，返回服务端的响应。
+         */
+        String response = HttpUtil.sendPostData(httpClientManager.getClient(SpeechType.ALIYUN),
+                speechToTextUrl(AudioPayload.of(audioData)), headers, audioData);
+        return parseSpeechToText(response);
+    }
+
+    @Override
+    public CompletableFuture<String> speechToTextAsync(AudioPayload audio) {
+        Map<String, String> headers = speechToTextHeaders();
+        if (null == headers) {
+            return CompletableFuture.completedFuture("");
+        }
+        return HttpUtil.sendPostDataAsync(httpClientManager.getClient(SpeechType.ALIYUN), speechToTextUrl(audio), headers,
+                audio, this::parseSpeechToText);
+    }
+
+    private String speechToTextUrl(AudioPayload audio) {
         /*
          * 设置HTTPS RESTful POST请求：
          * 1.使用HTTPS协议。
@@ -45,39 +128,258 @@ public class AliyunSpeechService extends SpeechService {
         String request = url;
         request = request + "?appkey=" + appKey;
         request = request + "&format=" + "wav";
-        request = request + "&sample_rate=" + 16000;
+        request = request + "&sample_rate=" + audio.sampleRate(16000);
         request = request + "&enable_punctuation_prediction=" + true;
         request = request + "&enable_inverse_text_normalization=" + true;
         request = request + "&enable_voice_detection=" + true;
         log.info("Request: {}", request);
+        return request;
+    }
 
+    private Map<String, String> speechToTextHeaders() {
         /*
          * 设置HTTPS头部字段：
          * 1.鉴权参数。
          * 2.Content-Type：application/octet-stream。
          */
         Map<String, String> headers = new HashMap<>();
-        headers.put("X-NLS-Token", "35a8a6b6da6e4e0cbc3044bffdab3a57");
+        String token = credentialManager.get(SpeechType.ALIYUN);
+        if (StrUtil.isBlank(token)) {
+            log.error("token 为空");
+            return null;
+        }
+        headers.put("X-NLS-Token", token);
         headers.put("Content-Type", "application/octet-stream");
+        return headers;
+    }
 
-        /*
-         * 发送HTTPS POST请求，返回服务端的响应。
-         */
-        String response = HttpUtil.sendPostData(request, headers, audioData);
+    private String parseSpeechToText(String response) {
         if (response != null) {
             log.info("Response: {}", response);
+            String status = String.valueOf(JSONPath.read(response, "status"));
+            if (!SUCCESS_STATUS.equals(status)) {
+                speechMetrics.upstreamError(SpeechType.ALIYUN, status);
+            }
+            if (THROTTLE_STATUS.equals(status)) {
+                throw new ThrottledException("阿里云接口限流：" + response);
+            }
             return JSONPath.read(response, "result").toString();
         }
         return "";
     }
 
+    /**
+     * 获取访问令牌
+     * <a href="https://help.aliyun.com/zh/isi/getting-started/use-http-or-https-to-obtain-an-access-token">获取Token</a>
+     */
+    private CachedCredential createToken() {
+        Map<String, String> params = new TreeMap<>();
+        params.put("AccessKeyId", accessKeyId);
+        params.put("Action", "CreateToken");
+        params.put("Format", "JSON");
+        params.put("RegionId", regionId);
+        params.put("SignatureMethod", "HMAC-SHA1");
+        params.put("SignatureNonce", IdUtil.simpleUUID());
+        params.put("SignatureVersion", "1.0");
+        params.put("Timestamp", TIMESTAMP_FORMATTER.format(ZonedDateTime.now(ZoneOffset.UTC)));
+        params.put("Version", "2019-02-28");
+
+        StringBuilder query = new StringBuilder();
+        params.forEach((key, value) -> {
+            if (!query.isEmpty()) {
+                query.append('&');
+            }
+            query.append(percentEncode(key)).append('=').append(percentEncode(value));
+        });
+        String stringToSign = "GET&" + percentEncode("/") + "&" + percentEncode(query.toString());
+        String signature = hmacSigner.signBase64(stringToSign);
+
+        String response = HttpUtil.sendGet(httpClientManager.getClient(SpeechType.ALIYUN),
+                tokenUrl + "?Signature=" + percentEncode(signature) + "&" + query, null);
+        Object token = response == null ? null : JSONPath.read(response, "Token.Id");
+        Object expireTime = response == null ? null : JSONPath.read(response, "Token.ExpireTime");
+        if (token == null || expireTime == null) {
+            throw new RuntimeException("aliyun create token error: " + response);
+        }
+        return new CachedCredential(token.toString(), TimeUnit.SECONDS.toMillis(Long.parseLong(expireTime.toString())));
+    }
+
+    private static String percentEncode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8)
+                .replace("+", "%20")
+                .replace("*", "%2A")
+                .replace("%7E", "~");
+    }
+
+    /**
+     * 实时语音识别
+     * <a href="https://help.aliyun.com/zh/isi/developer-reference/websocket">实时语音识别WebSocket协议</a>
+     */
     @Override
-    public void speechToText(byte[] audioData, SpeechToTextCallback callback) {
-        throw new RuntimeException("暂不支持该操作");
+    public SpeechToTextStream speechToTextStream(SpeechToTextListener listener) {
+        String token = credentialManager.get(SpeechType.ALIYUN);
+        if (StrUtil.isBlank(token)) {
+            throw new RuntimeException("aliyun token 为空");
+        }
+        String taskId = IdUtil.simpleUUID();
+        CompletableFuture<Void> started = new CompletableFuture<>();
+        AtomicBoolean finished = new AtomicBoolean(false);
+        URI uri;
+        try {
+            uri = new URI(wsUrl + "?token=" + token);
+        } catch (URISyntaxException e) {
+            throw new RuntimeException(e);
+        }
+        WebSocketClient webSocketClient = new WebSocketClient(uri) {
+            @Override
+            public void onOpen(ServerHandshake serverHandshake) {
+                send(transcriptionCommand(taskId, "StartTranscription"));
+            }
+
+            @Override
+            public void onMessage(String text) {
+                JSONObject message = JSON.parseObject(text);
+                JSONObject header = message.getJSONObject("header");
+                JSONObject payload = message.getJSONObject("payload");
+                switch (header.getString("name")) {
+                    case "TranscriptionStarted" -> started.complete(null);
+                    case "TranscriptionResultChanged" -> {
+                        if (!finished.get()) {
+                            listener.onPartial(payload.getString("result"));
+                        }
+                    }
+                    case "SentenceEnd" -> {
+                        if (!finished.get()) {
+                            listener.onFinal(payload.getString("result"));
+                        }
+                    }
+                    case "TranscriptionCompleted" -> {
+                        if (finished.compareAndSet(false, true)) {
+                            listener.onComplete();
+                        }
+                        close();
+                    }
+                    case "TaskFailed" -> {
+                        log.error("aliyun transcription failed: {}", text);
+                        speechMetrics.upstreamError(SpeechType.ALIYUN, header.getString("status"));
+                        started.completeExceptionally(new RuntimeException(header.getString("status_text")));
+                        if (finished.compareAndSet(false, true)) {
+                            listener.onError(header.getString("status") + ": " + header.getString("status_text"));
+                        }
+                        close();
+                    }
+                    default -> log.debug("aliyun transcription message: {}", text);
+                }
+            }
+
+            @Override
+            public void onClose(int code, String reason, boolean remote) {
+                started.completeExceptionally(new RuntimeException("连接已关闭：" + reason));
+                if (!finished.compareAndSet(false, true)) {
+                    return;
+                }
+                // 没有收到 TranscriptionCompleted，只有正常关闭才视为识别结束
+                if (code == CloseFrame.NORMAL) {
+                    listener.onComplete();
+                } else {
+                    log.error("aliyun transcription closed abnormally, code={}, reason={}", code, reason);
+                    listener.onError("连接异常关闭：" + code + " " + reason);
+                }
+            }
+
+            @Override
+            public void onError(Exception e) {
+                log.error("aliyun transcription error", e);
+                started.completeExceptionally(e);
+                if (finished.compareAndSet(false, true)) {
+                    listener.onError(e.getMessage());
+                }
+            }
+        };
+        try {
+            if (!webSocketClient.connectBlocking()) {
+                throw new RuntimeException("阿里云实时语音识别连接失败");
+            }
+            // 收到 TranscriptionStarted 之后才能发送音频
+            started.get(5, TimeUnit.SECONDS);
+
+            return new SpeechToTextStream() {
+                @Override
+                public void write(byte[] audioData) {
+                    webSocketClient.send(audioData);
+                }
+
+                @Override
+                public void write(byte[] audioData, int offset, int length) {
+                    // 发送时就复制到了WebSocket帧里，不会引用调用方的数组
+                    webSocketClient.send(ByteBuffer.wrap(audioData, offset, length));
+                }
+
+                @Override
+                public void close() {
+                    webSocketClient.send(transcriptionCommand(taskId, "StopTranscription"));
+                }
+
+                @Override
+                public void cancel() {
+                    finished.set(true);
+                    webSocketClient.close();
+                }
+            };
+        } catch (InterruptedException e) {
+            webSocketClient.close();
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (Exception e) {
+            webSocketClient.close();
+            throw new RuntimeException("阿里云实时语音识别启动失败", e);
+        }
+    }
+
+    private String transcriptionCommand(String taskId, String name) {
+        JSONObject header = new JSONObject();
+        header.put("message_id", IdUtil.simpleUUID());
+        header.put("task_id", taskId);
+        header.put("namespace", "SpeechTranscriber");
+        header.put("name", name);
+        header.put("appkey", appKey);
+
+        JSONObject command = new JSONObject();
+        command.put("header", header);
+        if ("StartTranscription".equals(name)) {
+            JSONObject payload = new JSONObject();
+            payload.put("format", "pcm");
+            payload.put("sample_rate", 16000);
+            payload.put("enable_intermediate_result", true);
+            payload.put("enable_punctuation_prediction", true);
+            payload.put("enable_inverse_text_normalization", true);
+            command.put("payload", payload);
+        }
+        return command.toJSONString();
     }
 
     @Override
     public String textToSpeech(String text) {
         throw new RuntimeException("暂不支持该操作");
     }
+
+    @Override
+    public void textToSpeechStream(String text, Long clientId) {
+        throw new RuntimeException("暂不支持该操作");
+    }
+
+    @Override
+    public String getType() {
+        return SpeechType.ALIYUN;
+    }
+
+    @Override
+    public Set<SpeechCapability> getCapabilities() {
+        return EnumSet.of(SpeechCapability.SPEECH_TO_TEXT, SpeechCapability.SPEECH_TO_TEXT_STREAM);
+    }
+
+    @Override
+    public AudioSpec audioInputSpec(AudioSpec source) {
+        return AudioSpec.nearest(source);
+    }
 }
@@ -1,22 +1,39 @@
 package com.jonas.speech.service.impl;
 
 import cn.hutool.core.codec.Base64;
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.core.util.URLUtil;
 import cn.hutool.json.JSONUtil;
 import com.baidu.aip.speech.AipSpeech;
 import com.baidu.aip.speech.TtsResponse;
 import com.jonas.speech.common.SpeechType;
+import com.jonas.speech.common.ThrottledException;
+import com.jonas.speech.service.BlockingCallExecutor;
 import com.jonas.speech.service.SpeechService;
-import com.jonas.speech.service.SpeechToTextCallback;
+import com.jonas.speech.service.audio.AudioPayload;
+import com.jonas.speech.service.audio.AudioSpec;
+import com.jonas.speech.service.audio.WavHeader;
+import com.jonas.speech.service.credential.CachedCredential;
+import com.jonas.speech.service.credential.CredentialManager;
+import com.jonas.speech.service.http.HttpClientManager;
+import com.jonas.speech.service.metrics.SpeechMetrics;
+import com.jonas.speech.util.HttpUtil;
 import jakarta.annotation.PostConstruct;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
+import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * <a href="http://api.fanyi.baidu.com/product/113">百度翻译</a>
@@ -25,6 +42,7 @@ import java.util.HashMap;
  * @time 2023/8/30 9:53
  */
 @Slf4j
+@RequiredArgsConstructor
 @Service(SpeechType.BAIDU)
 public class BaiduSpeechService extends SpeechService {
 
@@ -34,6 +52,24 @@ public class BaiduSpeechService extends SpeechService {
     private String apiKey;
     @Value("${speech.baidu.secretKey}")
     private String secretKey;
+    // SDK的接口地址不可配置，为false时同步识别与合成也直接调用REST接口，压测时据此指向本地替身服务
+    @Value("${speech.baidu.useSdk:true}")
+    private boolean useSdk;
+    // 异步识别直接调用REST接口，不经过SDK；压测时指向本地替身服务
+    @Value("${speech.baidu.asrUrl:https://vop.baidu.com/server_api}")
+    private String asrUrl;
+    @Value("${speech.baidu.ttsUrl:https://tsn.baidu.com/text2audio}")
+    private String ttsUrl;
+    @Value("${speech.baidu.tokenUrl:https://aip.baidubce.com/oauth/2.0/token}")
+    private String tokenUrl;
+
+    // 限流错误码：4、17、18 为请求数与QPS超限，3304、3305 为语音识别QPS与日请求量超限
+    private static final Set<Integer> THROTTLE_CODES = Set.of(4, 17, 18, 3304, 3305);
+
+    private final BlockingCallExecutor blockingCallExecutor;
+    private final SpeechMetrics speechMetrics;
+    private final HttpClientManager httpClientManager;
+    private final CredentialManager credentialManager;
 
     private AipSpeech aipSpeech;
 
@@ -42,34 +78,160 @@ public class BaiduSpeechService extends SpeechService {
         aipSpeech = new AipSpeech(appId, apiKey, secretKey);
         aipSpeech.setConnectionTimeoutInMillis(2000);
         aipSpeech.setSocketTimeoutInMillis(30000);
+        // 令牌有效期30天，提前1天后台刷新
+        credentialManager.register(SpeechType.BAIDU, TimeUnit.DAYS.toMillis(1), this::createToken);
     }
 
     @Override
     public String speechToText(byte[] audioData) {
-        JSONObject res = aipSpeech.asr(audioData, "wav", 16000, null);
+        if (!useSdk) {
+            String body = HttpUtil.sendPostData(httpClientManager.getClient(SpeechType.BAIDU), asrRequestUrl(),
+                    asrHeaders(WavHeader.sampleRate(audioData, 16000)), audioData);
+            return parseSpeechToText(StrUtil.isBlank(body) ? null : new JSONObject(body));
+        }
+        JSONObject res = blockingCallExecutor.call(() -> aipSpeech.asr(audioData, "wav", WavHeader.sampleRate(audioData, 16000), null));
+        return parseSpeechToText(res);
+    }
+
+    /**
+     * 异步识别，以原始音频方式调用短语音识别REST接口，请求在途时不占用线程
+     * <a href="https://ai.baidu.com/ai-doc/SPEECH/Jlbxdezuf">短语音识别标准版</a>
+     */
+    @Override
+    public CompletableFuture<String> speechToTextAsync(AudioPayload audio) {
+        String url = asrRequestUrl();
+        if (null == url) {
+            return CompletableFuture.completedFuture("");
+        }
+        return HttpUtil.sendPostDataAsync(httpClientManager.getClient(SpeechType.BAIDU), url,
+                asrHeaders(audio.sampleRate(16000)), audio,
+                body -> parseSpeechToText(StrUtil.isBlank(body) ? null : new JSONObject(body)));
+    }
+
+    /**
+     * 短语音识别REST接口的请求地址，令牌为空时返回null
+     */
+    private String asrRequestUrl() {
+        String token = credentialManager.get(SpeechType.BAIDU);
+        if (StrUtil.isBlank(token)) {
+            log.error("token 为空");
+            return null;
+        }
+        // 1537 为普通话识别模型
+        return asrUrl + "?dev_pid=1537&cuid=" + appId + "&token=" + token;
+    }
+
+    private static Map<String, String> asrHeaders(int sampleRate) {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Content-Type", "audio/wav;rate=" + sampleRate);
+        return headers;
+    }
+
+    private String parseSpeechToText(JSONObject res) {
         log.info("baidu speech recognize, res: {}", res);
-        JSONArray texts = res.getJSONArray("result");
+        if (null == res) {
+            return "";
+        }
+        checkThrottled(res);
+        JSONArray texts = res.optJSONArray("result");
         if (texts != null && texts.length() > 0) {
             return texts.getString(0);
         }
         return "";
     }
 
-    @Override
-    public void speechToText(byte[] audioData, SpeechToTextCallback callback) {
-        throw new RuntimeException("暂不支持该操作");
+    /**
+     * 获取REST接口的访问令牌
+     * <a href="https://ai.baidu.com/ai-doc/REFERENCE/Ck3dwjhhu">鉴权认证机制</a>
+     */
+    private CachedCredential createToken() {
+        String response = HttpUtil.sendPost(httpClientManager.getClient(SpeechType.BAIDU),
+                tokenUrl + "?grant_type=client_credentials&client_id=" + apiKey + "&client_secret=" + secretKey, null);
+        JSONObject res = StrUtil.isBlank(response) ? null : new JSONObject(response);
+        if (null == res || !res.has("access_token")) {
+            throw new RuntimeException("baidu create token error: " + response);
+        }
+        return new CachedCredential(res.getString("access_token"),
+                System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(res.optLong("expires_in", 2592000)));
     }
 
     @Override
     public String textToSpeech(String text) {
+        if (!useSdk) {
+            return textToSpeechRest(text);
+        }
         HashMap<String, Object> options = new HashMap<>();
         options.put("aue", 6);
-        TtsResponse response = aipSpeech.synthesis(text, "zh", 1, options);
+        TtsResponse response = blockingCallExecutor.call(() -> aipSpeech.synthesis(text, "zh", 1, options));
         log.info("baidu speech synthesis, res: {}", JSONUtil.toJsonStr(response));
+        checkThrottled(response.getResult());
         return Base64.encode(response.getData());
     }
 
+    /**
+     * 调用语音合成REST接口，参数与SDK调用相同
+     * <a href="https://ai.baidu.com/ai-doc/SPEECH/mlbxh7xie">短文本在线合成</a>
+     */
+    private String textToSpeechRest(String text) {
+        String token = credentialManager.get(SpeechType.BAIDU);
+        if (StrUtil.isBlank(token)) {
+            log.error("token 为空");
+            return "";
+        }
+        // 文本需要两次URL编码
+        String form = "tex=" + URLUtil.encodeAll(URLUtil.encodeAll(text)) + "&tok=" + token + "&cuid=" + appId
+                + "&ctp=1&lan=zh&per=1&aue=6";
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Content-Type", "application/x-www-form-urlencoded");
+        byte[] data = HttpUtil.sendPostDataForBytes(httpClientManager.getClient(SpeechType.BAIDU), ttsUrl, headers,
+                form.getBytes(StandardCharsets.UTF_8));
+        if (null == data) {
+            return "";
+        }
+        // 合成失败时返回JSON格式的错误信息，成功时返回音频
+        if (data.length > 0 && data[0] == '{') {
+            JSONObject res = new JSONObject(new String(data, StandardCharsets.UTF_8));
+            log.info("baidu speech synthesis, res: {}", res);
+            checkThrottled(res);
+            return "";
+        }
+        return Base64.encode(data);
+    }
+
     @Override
     public void textToSpeechStream(String text, Long clientId) {
     }
+
+    /**
+     * 记录百度返回的错误码，限流错误码抛出限流异常
+     */
+    private void checkThrottled(JSONObject res) {
+        if (null == res || res.optInt("err_no") == 0) {
+            return;
+        }
+        speechMetrics.upstreamError(SpeechType.BAIDU, String.valueOf(res.optInt("err_no")));
+        if (THROTTLE_CODES.contains(res.optInt("err_no"))) {
+            throw new ThrottledException("百度接口限流：" + res.optString("err_msg"));
+        }
+    }
+
+    @Override
+    public String getType() {
+        return SpeechType.BAIDU;
+    }
+
+    @Override
+    public String getVoice() {
+        return "1";
+    }
+
+    @Override
+    public String getAudioFormat() {
+        return "wav";
+    }
+
+    @Override
+    public AudioSpec audioInputSpec(AudioSpec source) {
+        return AudioSpec.nearest(source);
+    }
 }
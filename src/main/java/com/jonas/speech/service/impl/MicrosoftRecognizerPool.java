@@ -0,0 +1,380 @@
+package com.jonas.speech.service.impl;
+
+import cn.hutool.core.thread.NamedThreadFactory;
+import com.jonas.speech.common.RecognizerPoolStats;
+import com.jonas.speech.common.SpeechType;
+import com.jonas.speech.service.metrics.SpeechMetrics;
+import com.microsoft.cognitiveservices.speech.SpeechConfig;
+import com.microsoft.cognitiveservices.speech.SpeechRecognizer;
+import com.microsoft.cognitiveservices.speech.audio.AudioConfig;
+import com.microsoft.cognitiveservices.speech.audio.AudioInputStream;
+import com.microsoft.cognitiveservices.speech.audio.AudioStreamFormat;
+import com.microsoft.cognitiveservices.speech.audio.PushAudioInputStream;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 微软SDK识别器池
+ * 识别器创建时就绑定了音频输入，不能在会话之间复用，池里复用的是语音配置，并限制同时存在的识别器数量。
+ * 每个识别会话租用一个识别器，识别文本累积在租约上；会话在结束、取消、出错或超过最长租用时间时关闭租约，
+ * 识别器、音频配置和音频输入流在单独的线程中依次关闭，不能在识别器自己的回调线程里关闭。
+ * 第一次租用时才创建语音配置，未使用SDK识别的部署不会加载本地库
+ *
+ * @author shenjy
+ * @time 2024/8/16 15:40
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class MicrosoftRecognizerPool {
+
+    @Value("${speech.microsoft.key}")
+    private String speechKey;
+    @Value("${speech.microsoft.region}")
+    private String speechRegion;
+    // 同时存在的识别器数上限
+    @Value("${speech.microsoft.recognizer.maxRecognizers:16}")
+    private int maxRecognizers;
+    // 获取识别器的最长等待时间，毫秒
+    @Value("${speech.microsoft.recognizer.acquireTimeout:3000}")
+    private long acquireTimeout;
+    // 单个识别会话的最长租用时间，超过后强制关闭，毫秒
+    @Value("${speech.microsoft.recognizer.maxLease:300000}")
+    private long maxLease;
+    // 停止识别的最长等待时间，毫秒
+    @Value("${speech.microsoft.recognizer.stopTimeout:5000}")
+    private long stopTimeout;
+
+    private final SpeechMetrics speechMetrics;
+
+    private volatile SpeechConfig speechConfig;
+    private Semaphore permits;
+    private ScheduledExecutorService scheduler;
+    // 关闭识别器会等待停止识别，使用平台线程，数量不超过识别器上限
+    private ExecutorService closer;
+
+    private final Set<Lease> leases = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger nativeHandles = new AtomicInteger();
+    private final LongAdder leased = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder leaseTotal = new LongAdder();
+    private final LongAccumulator leaseMax = new LongAccumulator(Long::max, 0);
+
+    @PostConstruct
+    public void init() {
+        permits = new Semaphore(maxRecognizers, true);
+        scheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("ms-recognizer-timeout-", true));
+        closer = Executors.newCachedThreadPool(new NamedThreadFactory("ms-recognizer-close-", true));
+        speechMetrics.gauge("speech.recognizer.native.handles", "未释放的SDK本地句柄数", nativeHandles,
+                AtomicInteger::get, "provider", SpeechType.MICROSOFT);
+        speechMetrics.gauge("speech.recognizer.active", "使用中的SDK识别器数", leases,
+                Set::size, "provider", SpeechType.MICROSOFT);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        scheduler.shutdownNow();
+        for (Lease lease : leases) {
+            lease.release(SpeechMetrics.CANCELLED);
+        }
+        closer.shutdown();
+        try {
+            closer.awaitTermination(stopTimeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (null != speechConfig) {
+            speechConfig.close();
+            nativeHandles.decrementAndGet();
+        }
+    }
+
+    /**
+     * 租用一个识别器，音频通过租约写入，识别结束后必须调用 release
+     *
+     * @param format 音频格式，为空时由SDK按WAV头识别
+     * @return 租约
+     */
+    Lease acquire(AudioStreamFormat format) throws InterruptedException {
+        if (!permits.tryAcquire(acquireTimeout, TimeUnit.MILLISECONDS)) {
+            throw new RuntimeException("微软识别器数量已满");
+        }
+        Session session;
+        try {
+            session = open(format);
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+        Lease lease = new Lease(session);
+        leases.add(lease);
+        leased.increment();
+        lease.timeout = scheduler.schedule(() -> timeout(lease), maxLease, TimeUnit.MILLISECONDS);
+        return lease;
+    }
+
+    /**
+     * 创建一个识别会话的SDK对象，创建失败时关闭已创建的对象
+     */
+    Session open(AudioStreamFormat format) {
+        PushAudioInputStream input = null;
+        AudioConfig audioConfig = null;
+        try {
+            input = null == format ? AudioInputStream.createPushStream() : AudioInputStream.createPushStream(format);
+            nativeHandles.incrementAndGet();
+            audioConfig = AudioConfig.fromStreamInput(input);
+            nativeHandles.incrementAndGet();
+            SpeechRecognizer recognizer = new SpeechRecognizer(speechConfig(), audioConfig);
+            nativeHandles.incrementAndGet();
+            return new SdkSession(recognizer, audioConfig, input);
+        } catch (RuntimeException e) {
+            if (null != audioConfig) {
+                audioConfig.close();
+                nativeHandles.decrementAndGet();
+            }
+            if (null != input) {
+                input.close();
+                nativeHandles.decrementAndGet();
+            }
+            throw e;
+        }
+    }
+
+    public RecognizerPoolStats stats() {
+        long count = leased.sum() - leases.size();
+        return new RecognizerPoolStats(SpeechType.MICROSOFT, leases.size(), maxRecognizers, permits.getQueueLength(),
+                nativeHandles.get(), leased.sum(), timeouts.sum(), count <= 0 ? 0 : leaseTotal.sum() / count,
+                leaseMax.get());
+    }
+
+    private SpeechConfig speechConfig() {
+        if (null == speechConfig) {
+            synchronized (this) {
+                if (null == speechConfig) {
+                    SpeechConfig config = SpeechConfig.fromSubscription(speechKey, speechRegion);
+                    config.setSpeechRecognitionLanguage("zh-CN");
+                    nativeHandles.incrementAndGet();
+                    speechConfig = config;
+                }
+            }
+        }
+        return speechConfig;
+    }
+
+    private void timeout(Lease lease) {
+        if (lease.released.get()) {
+            return;
+        }
+        timeouts.increment();
+        log.warn("microsoft recognizer lease timeout, leased {}ms", System.currentTimeMillis() - lease.startTime);
+        Runnable handler = lease.onTimeout;
+        if (null != handler) {
+            try {
+                handler.run();
+            } catch (RuntimeException e) {
+                log.error("microsoft recognizer timeout handler error", e);
+            }
+        }
+        lease.release(SpeechMetrics.TIMEOUT);
+    }
+
+    /**
+     * 一个识别会话的SDK对象：识别器、音频配置和音频输入流
+     */
+    interface Session {
+        SpeechRecognizer recognizer();
+
+        void write(byte[] audioData);
+
+        /**
+         * 关闭音频输入流，告诉SDK音频已结束
+         */
+        void closeInput();
+
+        /**
+         * 停止识别，最多等待 timeout 毫秒
+         */
+        void stop(long timeout) throws Exception;
+
+        /**
+         * 关闭识别器和音频配置
+         */
+        void close();
+    }
+
+    private class SdkSession implements Session {
+        private final SpeechRecognizer recognizer;
+        private final AudioConfig audioConfig;
+        private final PushAudioInputStream input;
+
+        private SdkSession(SpeechRecognizer recognizer, AudioConfig audioConfig, PushAudioInputStream input) {
+            this.recognizer = recognizer;
+            this.audioConfig = audioConfig;
+            this.input = input;
+        }
+
+        @Override
+        public SpeechRecognizer recognizer() {
+            return recognizer;
+        }
+
+        @Override
+        public void write(byte[] audioData) {
+            input.write(audioData);
+        }
+
+        @Override
+        public void closeInput() {
+            input.close();
+            nativeHandles.decrementAndGet();
+        }
+
+        @Override
+        public void stop(long timeout) throws Exception {
+            recognizer.stopContinuousRecognitionAsync().get(timeout, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void close() {
+            recognizer.close();
+            nativeHandles.decrementAndGet();
+            audioConfig.close();
+            nativeHandles.decrementAndGet();
+        }
+    }
+
+    /**
+     * 识别器租约
+     * 一个识别会话的识别器、音频输入和累积的识别文本，所有结束路径都调用 release，只有第一次生效。
+     * 写入音频和关闭音频输入在同一把锁下进行，关闭后不会再有写入落到已释放的输入流上
+     */
+    final class Lease {
+        private final Session session;
+        private final long startTime = System.currentTimeMillis();
+        private final StringBuilder text = new StringBuilder();
+        private final Object inputLock = new Object();
+        private final AtomicBoolean released = new AtomicBoolean();
+        // 由 inputLock 保护
+        private boolean inputClosed;
+        private volatile ScheduledFuture<?> timeout;
+        private volatile Runnable onTimeout;
+
+        private Lease(Session session) {
+            this.session = session;
+        }
+
+        SpeechRecognizer recognizer() {
+            return session.recognizer();
+        }
+
+        /**
+         * 超过最长租用时间时调用，之后租约被关闭
+         */
+        void onTimeout(Runnable onTimeout) {
+            this.onTimeout = onTimeout;
+        }
+
+        /**
+         * 写入音频，音频输入已关闭时忽略
+         */
+        void write(byte[] audioData) {
+            synchronized (inputLock) {
+                if (!inputClosed) {
+                    session.write(audioData);
+                }
+            }
+        }
+
+        /**
+         * 告诉SDK音频已结束
+         */
+        void endOfStream() {
+            synchronized (inputLock) {
+                if (!inputClosed) {
+                    inputClosed = true;
+                    session.closeInput();
+                }
+            }
+        }
+
+        /**
+         * 累积一句识别结果
+         */
+        void append(String sentence) {
+            synchronized (text) {
+                text.append(sentence);
+            }
+        }
+
+        String text() {
+            synchronized (text) {
+                return text.toString();
+            }
+        }
+
+        boolean isReleased() {
+            return released.get();
+        }
+
+        /**
+         * 结束租约，停止识别并关闭SDK对象，可以在识别器的回调线程中调用
+         *
+         * @param outcome 结束原因，记入租用时长指标
+         * @return 本次调用是否真正结束了租约
+         */
+        boolean release(String outcome) {
+            if (!released.compareAndSet(false, true)) {
+                return false;
+            }
+            ScheduledFuture<?> future = timeout;
+            if (null != future) {
+                future.cancel(false);
+            }
+            try {
+                closer.execute(this::close);
+            } catch (RuntimeException e) {
+                // 停机后直接在当前线程关闭
+                close();
+            }
+            long millis = System.currentTimeMillis() - startTime;
+            leaseTotal.add(millis);
+            leaseMax.accumulate(millis);
+            speechMetrics.recognizerLease(SpeechType.MICROSOFT, millis, outcome);
+            return true;
+        }
+
+        private void close() {
+            try {
+                session.stop(stopTimeout);
+            } catch (Exception e) {
+                log.warn("microsoft stop recognition error: {}", e.getMessage());
+            }
+            try {
+                endOfStream();
+                session.close();
+            } catch (RuntimeException e) {
+                log.error("microsoft recognizer close error", e);
+            } finally {
+                leases.remove(this);
+                permits.release();
+            }
+        }
+    }
+}
@@ -2,18 +2,27 @@ package com.jonas.speech.service.impl;
 
 import cn.hutool.core.codec.Base64;
 import cn.hutool.core.util.StrUtil;
-import cn.hutool.http.HttpRequest;
-import cn.hutool.http.HttpResponse;
 import cn.hutool.json.JSONObject;
 import cn.hutool.json.JSONUtil;
+import com.jonas.speech.common.SpeechCapability;
 import com.jonas.speech.common.SpeechType;
 import com.jonas.speech.service.SpeechService;
 import com.jonas.speech.service.SpeechToTextCallback;
-import com.jonas.speech.service.SseService;
+import com.jonas.speech.service.SpeechToTextListener;
+import com.jonas.speech.service.SpeechToTextStream;
+import com.jonas.speech.service.AudioStreamService;
+import com.jonas.speech.service.audio.ALaw;
+import com.jonas.speech.service.audio.AudioPayload;
+import com.jonas.speech.service.audio.AudioSpec;
+import com.jonas.speech.service.audio.PcmConverter;
+import com.jonas.speech.service.credential.CachedCredential;
+import com.jonas.speech.service.credential.CredentialManager;
+import com.jonas.speech.service.http.HttpClientManager;
+import com.jonas.speech.service.metrics.SpeechMetrics;
+import com.jonas.speech.util.HttpUtil;
 import com.microsoft.cognitiveservices.speech.*;
 import com.microsoft.cognitiveservices.speech.audio.AudioConfig;
-import com.microsoft.cognitiveservices.speech.audio.AudioInputStream;
-import com.microsoft.cognitiveservices.speech.audio.PushAudioInputStream;
+import com.microsoft.cognitiveservices.speech.audio.AudioStreamFormat;
 import com.vdurmont.emoji.EmojiParser;
 import jakarta.annotation.PostConstruct;
 import lombok.RequiredArgsConstructor;
@@ -27,8 +36,14 @@ import org.springframework.stereotype.Service;
 
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
 
 /**
  * 微软语言服务
@@ -42,12 +57,23 @@ import java.util.concurrent.ConcurrentHashMap;
 @Service(SpeechType.MICROSOFT)
 public class MicrosoftSpeechService extends SpeechService {
 
-    private final SseService sseService;
+    private final AudioStreamService audioStreamService;
+    private final HttpClientManager httpClientManager;
+    private final CredentialManager credentialManager;
+    private final SpeechMetrics speechMetrics;
+    private final MicrosoftRecognizerPool recognizerPool;
 
     @Value("${speech.microsoft.key}")
     private String speechKey;
     @Value("${speech.microsoft.region}")
     private String speechRegion;
+    // 接口地址模板，{} 替换为区域，压测时可以指向本地替身服务
+    @Value("${speech.microsoft.tokenUrl:https://{}.api.cognitive.microsoft.com/sts/v1.0/issueToken}")
+    private String issueTokenUrlTemplate;
+    @Value("${speech.microsoft.ttsUrl:https://{}.tts.speech.microsoft.com/cognitiveservices/v1}")
+    private String textToSpeechUrlTemplate;
+    @Value("${speech.microsoft.sttUrl:https://{}.stt.speech.microsoft.com/speech/recognition/conversation/cognitiveservices/v1?language=zh-CN}")
+    private String speechToTextTemplate;
 
     // 获取访问令牌接口
     private String issueTokenUrl;
@@ -56,108 +82,226 @@ public class MicrosoftSpeechService extends SpeechService {
     // 语音转文字接口
     private String speechToTextUrl;
 
-    private final Map<String, String> recognizeMap = new ConcurrentHashMap<>();
+    // 获取访问令牌使用更短的超时时间
+    private OkHttpClient tokenClient;
+
+    // 语音合成发音人
+    private static final String VOICE_NAME = "zh-CN-XiaoyouNeural";
+    // 语音合成请求体，https://learn.microsoft.com/zh-cn/azure/ai-services/speech-service/language-support?tabs=tts
+    public static final String SSML_TEMPLATE = "<speak version=\"1.0\" xmlns=\"http://www.w3.org/2001/10/synthesis\" xmlns:mstts=\"https://www.w3.org/2001/mstts\" xml:lang=\"zh-CN\"><voice name=\"" + VOICE_NAME + "\" effect=\"eq_car\">{}</voice></speak>";
 
     @PostConstruct
     public void init() {
-        String issueTokenUrlTemplate = "https://{}.api.cognitive.microsoft.com/sts/v1.0/issueToken";
         issueTokenUrl = StrUtil.format(issueTokenUrlTemplate, speechRegion);
-
-        String textToSpeechUrlTemplate = "https://{}.tts.speech.microsoft.com/cognitiveservices/v1";
         textToSpeechUrl = StrUtil.format(textToSpeechUrlTemplate, speechRegion);
-
-        String speechToTextTemplate = "https://{}.stt.speech.microsoft.com/speech/recognition/conversation/cognitiveservices/v1?language=zh-CN";
         speechToTextUrl = StrUtil.format(speechToTextTemplate, speechRegion);
+
+        tokenClient = httpClientManager.getClient(SpeechType.MICROSOFT).newBuilder()
+                .readTimeout(2000, TimeUnit.MILLISECONDS)
+                .build();
+
+        // 令牌有效期10分钟，按9分钟缓存，提前1分钟后台刷新
+        credentialManager.register(SpeechType.MICROSOFT, TimeUnit.MINUTES.toMillis(1), () -> {
+            String token = this.issueToken();
+            if (StrUtil.isBlank(token)) {
+                throw new RuntimeException("microsoft token 为空");
+            }
+            return new CachedCredential(token, System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(9));
+        });
     }
 
     @Override
     public String speechToText(byte[] audioData) {
+        Map<String, String> headers = speechToTextHeaders();
+        if (null == headers) {
+            return "";
+        }
+        String body = HttpUtil.sendPostData(httpClientManager.getClient(SpeechType.MICROSOFT), speechToTextUrl, headers, audioData);
+        return parseSpeechToText(body);
+    }
+
+    @Override
+    public CompletableFuture<String> speechToTextAsync(AudioPayload audio) {
+        Map<String, String> headers = speechToTextHeaders();
+        if (null == headers) {
+            return CompletableFuture.completedFuture("");
+        }
+        return HttpUtil.sendPostDataAsync(httpClientManager.getClient(SpeechType.MICROSOFT), speechToTextUrl, headers,
+                audio, this::parseSpeechToText);
+    }
+
+    private Map<String, String> speechToTextHeaders() {
         // 获取访问令牌
-        String token = this.issueToken();
+        String token = credentialManager.get(SpeechType.MICROSOFT);
         if (StrUtil.isBlank(token)) {
             log.error("token 为空");
-            return "";
+            return null;
         }
 
-        HttpRequest request = HttpRequest.post(speechToTextUrl)
-                .header("Ocp-Apim-Subscription-Key", speechKey)
-                .header("Content-type", "audio/wav; codecs=audio/pcm; samplerate=16000")
-                .header("Accept", "application/json")
-                .body(audioData)
-                .timeout(50000);
-        try (HttpResponse response = request.execute()) {
-            String body = response.body();
-            log.info("microsoft speech to text response: {}", body);
-            JSONObject jsonObject = JSONUtil.parseObj(body);
-            return jsonObject.getStr("DisplayText");
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Ocp-Apim-Subscription-Key", speechKey);
+        headers.put("Content-Type", "audio/wav; codecs=audio/pcm; samplerate=16000");
+        headers.put("Accept", "application/json");
+        return headers;
+    }
+
+    private String parseSpeechToText(String body) {
+        log.info("microsoft speech to text response: {}", body);
+        if (StrUtil.isBlank(body)) {
+            return "";
         }
+        JSONObject jsonObject = JSONUtil.parseObj(body);
+        return jsonObject.getStr("DisplayText");
     }
 
+    /**
+     * 使用SDK识别，结果由识别器事件回调，超时由识别器池的最长租用时间控制
+     */
     @Override
     public void speechToText(byte[] audioData, SpeechToTextCallback callback) {
+        MicrosoftRecognizerPool.Lease lease;
+        try {
+            lease = recognizerPool.acquire(null);
+        } catch (Exception e) {
+            log.error("microsoft recognize speech error", e);
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            callback.onError(String.valueOf(e.getMessage()));
+            return;
+        }
+        // 识别结束、出错、会话停止或超时时关闭租约，回调只调用一次
+        AtomicBoolean completed = new AtomicBoolean(false);
+        BiConsumer<String, String> finish = (outcome, error) -> {
+            if (completed.compareAndSet(false, true)) {
+                lease.release(outcome);
+                switch (outcome) {
+                    case SpeechMetrics.SUCCESS -> callback.onComplete(lease.text());
+                    case SpeechMetrics.TIMEOUT -> callback.onTimeout();
+                    default -> callback.onError(error);
+                }
+            }
+        };
+        lease.onTimeout(() -> finish.accept(SpeechMetrics.TIMEOUT, null));
+        SpeechRecognizer speechRecognizer = lease.recognizer();
 
-        try (SpeechConfig speechConfig = SpeechConfig.fromSubscription(speechKey, speechRegion)) {
-            speechConfig.setSpeechRecognitionLanguage("zh-CN");
-            // 转成 AudioInputStream
-            PushAudioInputStream audioInputStream = AudioInputStream.createPushStream();
-            audioInputStream.write(audioData);
-            try (AudioConfig audioConfig = AudioConfig.fromStreamInput(audioInputStream)) {
-                // 告诉Azure数据流已结束
-                audioInputStream.close();
-
-                SpeechRecognizer speechRecognizer = new SpeechRecognizer(speechConfig, audioConfig);
-                {
-                    // Subscribes to events.
-                    speechRecognizer.recognizing.addEventListener((s, e) -> {
-                        log.info("RECOGNIZING: Session={}, Text={}", e.getSessionId(), e.getResult().getText());
-                    });
-
-                    speechRecognizer.recognized.addEventListener((s, e) -> {
-                        if (e.getResult().getReason() == ResultReason.RecognizedSpeech) {
-                            log.info("RECOGNIZED: Session={}, Text={}", e.getSessionId(), e.getResult().getText());
-                            String recognizedText = recognizeMap.getOrDefault(e.getSessionId(), "");
-                            recognizeMap.put(e.getSessionId(), recognizedText + e.getResult().getText());
-                        } else if (e.getResult().getReason() == ResultReason.NoMatch) {
-                            log.info("NOMATCH: Session={}, Speech could not be recognized.", e.getSessionId());
-                        }
-                    });
+        speechRecognizer.recognizing.addEventListener((s, e) -> {
+            log.info("RECOGNIZING: Session={}, Text={}", e.getSessionId(), e.getResult().getText());
+        });
 
-                    speechRecognizer.canceled.addEventListener((s, e) -> {
-                        log.info("CANCELED: Session={}, Reason={}", e.getSessionId(), e.getReason());
+        speechRecognizer.recognized.addEventListener((s, e) -> {
+            if (e.getResult().getReason() == ResultReason.RecognizedSpeech) {
+                log.info("RECOGNIZED: Session={}, Text={}", e.getSessionId(), e.getResult().getText());
+                lease.append(e.getResult().getText());
+            } else if (e.getResult().getReason() == ResultReason.NoMatch) {
+                log.info("NOMATCH: Session={}, Speech could not be recognized.", e.getSessionId());
+            }
+        });
 
-                        if (e.getReason() == CancellationReason.Error) {
-                            log.error("CANCELED: Session={}, ErrorCode={}", e.getSessionId(), e.getErrorCode());
-                            log.error("CANCELED: Session={}, ErrorDetails={}", e.getSessionId(), e.getErrorDetails());
-                        }
+        speechRecognizer.canceled.addEventListener((s, e) -> {
+            log.info("CANCELED: Session={}, Reason={}", e.getSessionId(), e.getReason());
 
-                        if (e.getReason() == CancellationReason.EndOfStream) {
-                            // Stops recognition.
-                            speechRecognizer.stopContinuousRecognitionAsync();
-                            callback.onComplete(recognizeMap.remove(e.getSessionId()));
-                        }
-                    });
+            if (e.getReason() == CancellationReason.Error) {
+                log.error("CANCELED: Session={}, ErrorCode={}", e.getSessionId(), e.getErrorCode());
+                speechMetrics.upstreamError(SpeechType.MICROSOFT, e.getErrorCode().name());
+                log.error("CANCELED: Session={}, ErrorDetails={}", e.getSessionId(), e.getErrorDetails());
+                finish.accept(SpeechMetrics.ERROR, e.getErrorCode() + ": " + e.getErrorDetails());
+            } else {
+                finish.accept(SpeechMetrics.SUCCESS, null);
+            }
+        });
 
-                    speechRecognizer.sessionStarted.addEventListener((s, e) -> {
-                        log.info("Session {} started event.", e.getSessionId());
-                    });
+        speechRecognizer.sessionStarted.addEventListener((s, e) -> {
+            log.info("Session {} started event.", e.getSessionId());
+        });
 
-                    speechRecognizer.sessionStopped.addEventListener((s, e) -> {
-                        log.info("Session {} stopped event.", e.getSessionId());
-                    });
+        speechRecognizer.sessionStopped.addEventListener((s, e) -> {
+            log.info("Session {} stopped event.", e.getSessionId());
+            finish.accept(SpeechMetrics.SUCCESS, null);
+        });
 
-                    // Starts continuous recognition. Uses StopContinuousRecognitionAsync() to stop recognition.
-                    speechRecognizer.startContinuousRecognitionAsync().get();
-                }
-            }
+        try {
+            lease.write(audioData);
+            // 告诉Azure数据流已结束
+            lease.endOfStream();
+            // Starts continuous recognition. Uses StopContinuousRecognitionAsync() to stop recognition.
+            speechRecognizer.startContinuousRecognitionAsync().get();
         } catch (Exception e) {
             log.error("microsoft recognize speech error", e);
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            finish.accept(SpeechMetrics.ERROR, String.valueOf(e.getMessage()));
+        }
+    }
+
+    @Override
+    public SpeechToTextStream speechToTextStream(SpeechToTextListener listener) {
+        MicrosoftRecognizerPool.Lease lease;
+        try {
+            lease = recognizerPool.acquire(AudioStreamFormat.getWaveFormatPCM(16000, (short) 16, (short) 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("获取微软识别器被中断");
         }
+        SpeechRecognizer speechRecognizer = lease.recognizer();
+
+        lease.onTimeout(() -> {
+            if (lease.release(SpeechMetrics.TIMEOUT)) {
+                listener.onError("识别超过最长时间");
+            }
+        });
+        speechRecognizer.recognizing.addEventListener((s, e) -> {
+            if (!lease.isReleased()) {
+                listener.onPartial(e.getResult().getText());
+            }
+        });
+        speechRecognizer.recognized.addEventListener((s, e) -> {
+            if (!lease.isReleased() && e.getResult().getReason() == ResultReason.RecognizedSpeech) {
+                listener.onFinal(e.getResult().getText());
+            }
+        });
+        speechRecognizer.canceled.addEventListener((s, e) -> {
+            log.info("CANCELED: Session={}, Reason={}", e.getSessionId(), e.getReason());
+            if (e.getReason() == CancellationReason.Error) {
+                if (lease.release(SpeechMetrics.ERROR)) {
+                    speechMetrics.upstreamError(SpeechType.MICROSOFT, e.getErrorCode().name());
+                    listener.onError(e.getErrorCode() + ": " + e.getErrorDetails());
+                }
+            } else if (lease.release(SpeechMetrics.SUCCESS)) {
+                listener.onComplete();
+            }
+        });
+        speechRecognizer.sessionStopped.addEventListener((s, e) -> {
+            if (lease.release(SpeechMetrics.SUCCESS)) {
+                listener.onComplete();
+            }
+        });
+        speechRecognizer.startContinuousRecognitionAsync();
+
+        return new SpeechToTextStream() {
+            @Override
+            public void write(byte[] audioData) {
+                lease.write(audioData);
+            }
+
+            @Override
+            public void close() {
+                // 告诉Azure数据流已结束
+                lease.endOfStream();
+            }
+
+            @Override
+            public void cancel() {
+                lease.release(SpeechMetrics.CANCELLED);
+            }
+        };
     }
 
     @Override
     public String textToSpeech(String text) {
         // 获取访问令牌
-        String token = this.issueToken();
+        String token = credentialManager.get(SpeechType.MICROSOFT);
         if (StrUtil.isBlank(token)) {
             log.error("token 为空");
             return "";
@@ -171,20 +315,16 @@ public class MicrosoftSpeechService extends SpeechService {
      * 文本转语音
      */
     private String textToSpeechWithHttp(String text, String token) {
-        // https://learn.microsoft.com/zh-cn/azure/ai-services/speech-service/language-support?tabs=tts
-        String requestBodyTemplate = "<speak version=\"1.0\" xmlns=\"http://www.w3.org/2001/10/synthesis\" xmlns:mstts=\"https://www.w3.org/2001/mstts\" xml:lang=\"zh-CN\"><voice name=\"zh-CN-XiaoyouNeural\" effect=\"eq_car\">{}</voice></speak>";
-        String requestBody = StrUtil.format(requestBodyTemplate, text);
-
-        HttpRequest request = HttpRequest.post(textToSpeechUrl)
-                .header("Authorization", "Bearer " + token)
-                .header("Content-Type", "application/ssml+xml")
-                .header("X-Microsoft-OutputFormat", "riff-8khz-16bit-mono-pcm")
-                .header("User-Agent", "OpenFactor")
-                .body(requestBody)
-                .timeout(50000);
-        try (HttpResponse response = request.execute()) {
-            return Base64.encode(response.bodyBytes());
-        }
+        String requestBody = StrUtil.format(SSML_TEMPLATE, text);
+
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Authorization", "Bearer " + token);
+        headers.put("Content-Type", "application/ssml+xml");
+        headers.put("X-Microsoft-OutputFormat", "riff-8khz-16bit-mono-pcm");
+        headers.put("User-Agent", "OpenFactor");
+        byte[] audio = HttpUtil.sendPostDataForBytes(httpClientManager.getClient(SpeechType.MICROSOFT),
+                textToSpeechUrl, headers, requestBody.getBytes(StandardCharsets.UTF_8));
+        return audio == null ? "" : Base64.encode(audio);
     }
 
     /**
@@ -235,34 +375,31 @@ public class MicrosoftSpeechService extends SpeechService {
 
     /**
      * 获取访问令牌，有效期10分钟
+     * 只由 CredentialManager 在后台调用，请求链路使用缓存的令牌
      *
      * @return 访问令牌
      */
     private String issueToken() {
-        HttpRequest request = HttpRequest.post(issueTokenUrl)
-                .header("Ocp-Apim-Subscription-Key", speechKey)
-                .timeout(2000);
-        try (HttpResponse response = request.execute()) {
-            return response.body();
-        }
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Ocp-Apim-Subscription-Key", speechKey);
+        return HttpUtil.sendPost(tokenClient, issueTokenUrl, headers);
     }
 
     @Override
     public void textToSpeechStream(String text, Long clientId) {
         // 获取访问令牌
-        String token = this.issueToken();
+        String token = credentialManager.get(SpeechType.MICROSOFT);
         if (StrUtil.isBlank(token)) {
             log.error("token 为空");
+            audioStreamService.error(clientId, "token 为空");
             return;
         }
 
-        // https://learn.microsoft.com/zh-cn/azure/ai-services/speech-service/language-support?tabs=tts
-        String requestBodyTemplate = "<speak version=\"1.0\" xmlns=\"http://www.w3.org/2001/10/synthesis\" xmlns:mstts=\"https://www.w3.org/2001/mstts\" xml:lang=\"zh-CN\"><voice name=\"zh-CN-XiaoyouNeural\" effect=\"eq_car\">{}</voice></speak>";
-        String requestBody = StrUtil.format(requestBodyTemplate, text);
+        String requestBody = StrUtil.format(SSML_TEMPLATE, text);
 
         log.info("microsoft token {}", token);
 
-        OkHttpClient client = new OkHttpClient();
+        OkHttpClient client = httpClientManager.getClient(SpeechType.MICROSOFT);
         Request req = new Request.Builder()
                 .url(textToSpeechUrl)
                 .post(RequestBody.create(requestBody.getBytes(StandardCharsets.UTF_8)))
@@ -279,30 +416,62 @@ public class MicrosoftSpeechService extends SpeechService {
             @Override
             public void onFailure(@NotNull Call call, @NotNull IOException e) {
                 log.error("microsoft on failure", e);
+                audioStreamService.error(clientId, e.getMessage());
             }
 
             @Override
             public void onResponse(@NotNull Call call, @NotNull Response response) throws IOException {
                 log.info("microsoft on response, {}", response);
-                if (response.isSuccessful()) {
+                try (response) {
+                    if (!response.isSuccessful()) {
+                        log.error("microsoft error: code={}, message={}", response.code(), response.message());
+                        audioStreamService.error(clientId, "microsoft error: " + response.code());
+                        return;
+                    }
                     ResponseBody responseBody = response.body();
                     if (null != responseBody) {
+                        audioStreamService.start(clientId);
                         BufferedSource source = responseBody.source();
-                        // 请求整个响应体
-                        source.request(Long.MAX_VALUE);
-                        while (!source.exhausted()) {
-                            Buffer buffer = new Buffer();
-                            source.read(buffer, 1024);
-                            byte[] data = buffer.readByteArray();
-                            String encodedData = Base64.encode(data);
-                            log.info("microsoft data {}", encodedData);
-                            sseService.pushObj(clientId, encodedData);
+                        // 到达多少就转发多少，音频直接从okio缓冲区读出，不经过字符串
+                        Buffer buffer = new Buffer();
+                        while (source.read(buffer, 8192) != -1) {
+                            if (!audioStreamService.audio(clientId, buffer.readByteArray())) {
+                                return;
+                            }
                         }
+                        audioStreamService.end(clientId);
                     }
-                } else {
-                    log.error("microsoft error: code={}, message={}", response.code(), response.message());
                 }
             }
         });
     }
+
+    @Override
+    public String getType() {
+        return SpeechType.MICROSOFT;
+    }
+
+    @Override
+    public Set<SpeechCapability> getCapabilities() {
+        return EnumSet.of(SpeechCapability.SPEECH_TO_TEXT, SpeechCapability.SPEECH_TO_TEXT_STREAM,
+                SpeechCapability.TEXT_TO_SPEECH, SpeechCapability.TEXT_TO_SPEECH_STREAM);
+    }
+
+    @Override
+    public String getVoice() {
+        return VOICE_NAME;
+    }
+
+    @Override
+    public String getAudioFormat() {
+        return "riff-8khz-16bit-mono-pcm";
+    }
+
+    /**
+     * 与 textToSpeechStream 的 raw-8khz-8bit-mono-alaw 一致
+     */
+    @Override
+    public byte[] toStreamAudio(byte[] audio) {
+        return ALaw.encode(PcmConverter.toRaw(audio, AudioSpec.PCM_8K));
+    }
 }
@@ -1,10 +1,21 @@
 package com.jonas.speech.service.impl;
 
+import cn.hutool.core.util.HexUtil;
 import cn.hutool.core.util.IdUtil;
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.crypto.SecureUtil;
+import cn.hutool.crypto.digest.DigestUtil;
+import cn.hutool.json.JSONObject;
 import cn.hutool.json.JSONUtil;
 import com.jonas.speech.common.SpeechType;
+import com.jonas.speech.common.ThrottledException;
+import com.jonas.speech.service.BlockingCallExecutor;
 import com.jonas.speech.service.SpeechService;
-import com.jonas.speech.service.SpeechToTextCallback;
+import com.jonas.speech.service.audio.AudioPayload;
+import com.jonas.speech.service.audio.AudioSpec;
+import com.jonas.speech.service.http.HttpClientManager;
+import com.jonas.speech.service.metrics.SpeechMetrics;
+import com.jonas.speech.util.HttpUtil;
 import com.tencentcloudapi.asr.v20190614.AsrClient;
 import com.tencentcloudapi.asr.v20190614.models.SentenceRecognitionRequest;
 import com.tencentcloudapi.asr.v20190614.models.SentenceRecognitionResponse;
@@ -16,11 +27,19 @@ import com.tencentcloudapi.tts.v20190823.models.TextToVoiceResponse;
 import jakarta.annotation.PostConstruct;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
+import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import okhttp3.HttpUrl;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
-import java.util.Base64;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * <a href="https://cloud.tencent.com/document/api/551/15619">腾讯翻译</a>
@@ -29,6 +48,7 @@ import java.util.Base64;
  * @time 2023/8/30 19:56
  */
 @Slf4j
+@RequiredArgsConstructor
 //@Service(SpeechType.TENCENT)
 public class TencentSpeechService extends SpeechService {
 
@@ -36,6 +56,18 @@ public class TencentSpeechService extends SpeechService {
     private String keyId;
     @Value("${speech.tencent.keySecret}")
     private String keySecret;
+    // 一句话识别接口，异步识别直接调用，不经过SDK
+    @Value("${speech.tencent.asrUrl:https://asr.tencentcloudapi.com}")
+    private String asrUrl;
+
+    private final BlockingCallExecutor blockingCallExecutor;
+    private final SpeechMetrics speechMetrics;
+    private final HttpClientManager httpClientManager;
+
+    private static final String ASR_SERVICE = "asr";
+    private static final String ASR_VERSION = "2019-06-14";
+    private static final String JSON_CONTENT_TYPE = "application/json; charset=utf-8";
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd").withZone(ZoneOffset.UTC);
 
     // 语音转文本客户端
     private AsrClient asrClient;
@@ -53,24 +85,95 @@ public class TencentSpeechService extends SpeechService {
 
     @Override
     public String speechToText(byte[] audioData) {
+        return speechToText(AudioPayload.of(audioData));
+    }
+
+    @Override
+    public String speechToText(AudioPayload audio) {
         try {
             SentenceRecognitionRequest request = new SentenceRecognitionRequest();
-            request.setEngSerViceType("8k_zh");
+            request.setEngSerViceType(engineType(audio));
             request.setVoiceFormat("wav");
             request.setSourceType(1L);
-            request.setData(Base64.getEncoder().encodeToString(audioData));
-            SentenceRecognitionResponse response = asrClient.SentenceRecognition(request);
+            // 接口只接受Base64字符串，边读边编码，不先拼成整块数组
+            request.setData(audio.base64());
+            SentenceRecognitionResponse response = blockingCallExecutor.call(() -> asrClient.SentenceRecognition(request));
             log.info("tencent speech to text response:{}", JSONUtil.toJsonStr(response));
             return response.getResult();
         } catch (TencentCloudSDKException e) {
             log.error("tencent speech to text error", e);
+            checkThrottled(e);
         }
         return "";
     }
 
+    /**
+     * 异步识别，直接调用一句话识别接口，请求在途时不占用线程
+     * <a href="https://cloud.tencent.com/document/api/1093/35646">一句话识别</a>
+     */
     @Override
-    public void speechToText(byte[] audioData, SpeechToTextCallback callback) {
-        throw new RuntimeException("暂不支持该操作");
+    public CompletableFuture<String> speechToTextAsync(AudioPayload audio) {
+        JSONObject request = new JSONObject();
+        request.set("EngSerViceType", engineType(audio));
+        request.set("SourceType", 1);
+        request.set("VoiceFormat", "wav");
+        request.set("Data", audio.base64());
+        request.set("DataLen", audio.length());
+        String payload = request.toString();
+        return HttpUtil.sendPostDataAsync(httpClientManager.getClient(SpeechType.TENCENT), asrUrl,
+                signedHeaders("SentenceRecognition", payload), payload.getBytes(StandardCharsets.UTF_8),
+                this::parseSpeechToText);
+    }
+
+    /**
+     * 按音频采样率选择引擎，无法识别格式时沿用8k引擎
+     */
+    private static String engineType(AudioPayload audio) {
+        return audio.sampleRate(8000) <= 8000 ? "8k_zh" : "16k_zh";
+    }
+
+    private String parseSpeechToText(String body) {
+        log.info("tencent speech to text response:{}", body);
+        if (StrUtil.isBlank(body)) {
+            return "";
+        }
+        JSONObject response = JSONUtil.parseObj(body).getJSONObject("Response");
+        if (null == response) {
+            return "";
+        }
+        JSONObject error = response.getJSONObject("Error");
+        if (null != error) {
+            checkThrottled(error.getStr("Code"), error.getStr("Message"));
+            return "";
+        }
+        return response.getStr("Result");
+    }
+
+    /**
+     * TC3-HMAC-SHA256 签名的请求头，只签 content-type 和 host
+     * <a href="https://cloud.tencent.com/document/api/1093/35641">签名方法 v3</a>
+     */
+    private Map<String, String> signedHeaders(String action, String payload) {
+        long timestamp = System.currentTimeMillis() / 1000;
+        String date = DATE_FORMATTER.format(Instant.ofEpochSecond(timestamp));
+        String host = HttpUrl.parse(asrUrl).host();
+        String canonicalRequest = "POST\n/\n\ncontent-type:" + JSON_CONTENT_TYPE + "\nhost:" + host + "\n\ncontent-type;host\n"
+                + DigestUtil.sha256Hex(payload);
+        String scope = date + "/" + ASR_SERVICE + "/tc3_request";
+        String stringToSign = "TC3-HMAC-SHA256\n" + timestamp + "\n" + scope + "\n" + DigestUtil.sha256Hex(canonicalRequest);
+        byte[] secretDate = SecureUtil.hmacSha256(("TC3" + keySecret).getBytes(StandardCharsets.UTF_8)).digest(date);
+        byte[] secretService = SecureUtil.hmacSha256(secretDate).digest(ASR_SERVICE);
+        byte[] secretSigning = SecureUtil.hmacSha256(secretService).digest("tc3_request");
+        String signature = HexUtil.encodeHexStr(SecureUtil.hmacSha256(secretSigning).digest(stringToSign));
+
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Authorization", "TC3-HMAC-SHA256 Credential=" + keyId + "/" + scope
+                + ", SignedHeaders=content-type;host, Signature=" + signature);
+        headers.put("Content-Type", JSON_CONTENT_TYPE);
+        headers.put("X-TC-Action", action);
+        headers.put("X-TC-Version", ASR_VERSION);
+        headers.put("X-TC-Timestamp", String.valueOf(timestamp));
+        return headers;
     }
 
     @Override
@@ -80,11 +183,12 @@ public class TencentSpeechService extends SpeechService {
             req.setText(text);
             req.setSessionId("tts-" + IdUtil.simpleUUID());
             // 返回的resp是一个TextToVoiceResponse的实例，与请求对象对应
-            TextToVoiceResponse resp = ttsClient.TextToVoice(req);
+            TextToVoiceResponse resp = blockingCallExecutor.call(() -> ttsClient.TextToVoice(req));
             log.info("tencent text to speech response: {}", JSONUtil.toJsonStr(resp));
             return resp.getAudio();
         } catch (TencentCloudSDKException e) {
             log.error("tencent text to speech error", e);
+            checkThrottled(e);
         }
         return "";
     }
@@ -93,4 +197,33 @@ public class TencentSpeechService extends SpeechService {
     public void textToSpeechStream(String text, Long clientId) {
 
     }
+
+    /**
+     * 记录腾讯云返回的错误码，RequestLimitExceeded 系列错误码抛出限流异常
+     */
+    private void checkThrottled(TencentCloudSDKException e) {
+        checkThrottled(e.getErrorCode(), e.getMessage());
+    }
+
+    private void checkThrottled(String code, String message) {
+        speechMetrics.upstreamError(SpeechType.TENCENT, code);
+        if (null != code && code.startsWith("RequestLimitExceeded")) {
+            throw new ThrottledException("腾讯云接口限流：" + message);
+        }
+    }
+
+    @Override
+    public String getType() {
+        return SpeechType.TENCENT;
+    }
+
+    @Override
+    public String getAudioFormat() {
+        return "wav";
+    }
+
+    @Override
+    public AudioSpec audioInputSpec(AudioSpec source) {
+        return AudioSpec.nearest(source);
+    }
 }
@@ -0,0 +1,148 @@
+package com.jonas.speech.service.impl;
+
+import com.jonas.speech.common.SpeechType;
+import com.jonas.speech.service.audio.AudioPayload;
+import com.jonas.speech.service.metrics.SpeechMetrics;
+import lombok.extern.slf4j.Slf4j;
+
+import java.net.http.WebSocket;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * 讯飞语音听写的一次识别
+ * 使用JDK的WebSocket客户端，收发都是异步回调，识别在途时不占用线程。
+ * 连接建立后按帧依次发送整段音频，上一帧发出后才发送下一帧；收到最后一个结果时以拼接的文本结束，
+ * 结果 future 被取消或超时时中断连接
+ *
+ * @author shenjy
+ * @time 2024/8/19 10:40
+ */
+@Slf4j
+final class XunFeiIatSession implements WebSocket.Listener {
+
+    // 每帧音频字节数，16k 16bit 单声道为200毫秒
+    private static final int FRAME_BYTES = 6400;
+
+    private final AudioPayload audio;
+    private final FrameEncoder encoder;
+    private final SpeechMetrics speechMetrics;
+    private final CompletableFuture<String> result = new CompletableFuture<>();
+    // 开启动态修正后，服务端会用后续结果替换之前的句子，按sn保存
+    private final Map<Integer, String> sentences = new TreeMap<>();
+    // 一条消息可能分多次回调
+    private final StringBuilder message = new StringBuilder();
+    private final byte[] frame = new byte[FRAME_BYTES];
+    private volatile WebSocket webSocket;
+
+    XunFeiIatSession(AudioPayload audio, FrameEncoder encoder, SpeechMetrics speechMetrics) {
+        this.audio = audio;
+        this.encoder = encoder;
+        this.speechMetrics = speechMetrics;
+        result.whenComplete((text, e) -> {
+            WebSocket current = webSocket;
+            if (null != e && null != current) {
+                current.abort();
+            }
+        });
+    }
+
+    CompletableFuture<String> result() {
+        return result;
+    }
+
+    /**
+     * 连接失败或发送失败
+     */
+    void fail(Throwable e) {
+        result.completeExceptionally(e);
+    }
+
+    @Override
+    public void onOpen(WebSocket webSocket) {
+        this.webSocket = webSocket;
+        if (result.isDone()) {
+            webSocket.abort();
+            return;
+        }
+        webSocket.request(1);
+        // WAV头不是音频数据，不发送
+        send(webSocket, audio.dataOffset(), true);
+    }
+
+    @Override
+    public CompletionStage<?> onText(WebSocket webSocket, CharSequence data, boolean last) {
+        message.append(data);
+        if (last) {
+            String text = message.toString();
+            message.setLength(0);
+            onMessage(webSocket, text);
+        }
+        webSocket.request(1);
+        return null;
+    }
+
+    @Override
+    public CompletionStage<?> onClose(WebSocket webSocket, int statusCode, String reason) {
+        if (!result.isDone()) {
+            log.warn("讯飞语音听写连接提前关闭, code={}, reason={}", statusCode, reason);
+            result.complete(String.join("", sentences.values()));
+        }
+        return null;
+    }
+
+    @Override
+    public void onError(WebSocket webSocket, Throwable error) {
+        log.error("讯飞语音听写异常", error);
+        fail(error);
+    }
+
+    private void onMessage(WebSocket webSocket, String text) {
+        XunFeiSpeechService.IatResponse response = XunFeiSpeechService.gson.fromJson(text, XunFeiSpeechService.IatResponse.class);
+        if (response.code != 0) {
+            log.error("讯飞语音听写错误, code={}, message={}, sid={}", response.code, response.message, response.sid);
+            speechMetrics.upstreamError(SpeechType.XUNFEI, String.valueOf(response.code));
+            fail(new RuntimeException("讯飞语音听写错误：" + response.code + " " + response.message));
+            return;
+        }
+        if (response.data == null || response.data.result == null) {
+            return;
+        }
+        XunFeiSpeechService.merge(sentences, response.data.result);
+        if (response.data.status == 2) {
+            result.complete(String.join("", sentences.values()));
+            webSocket.sendClose(WebSocket.NORMAL_CLOSURE, "");
+        }
+    }
+
+    /**
+     * 发送从 offset 开始的一帧，发送完成后在回调中发送下一帧，音频发完后发送结束帧
+     */
+    private void send(WebSocket webSocket, int offset, boolean first) {
+        if (result.isDone()) {
+            return;
+        }
+        int count = audio.read(offset, frame);
+        String data = count == 0
+                ? encoder.encode(first, 2, new byte[0])
+                : encoder.encode(first, 1, count == frame.length ? frame : Arrays.copyOf(frame, count));
+        webSocket.sendText(data, true).whenComplete((ws, e) -> {
+            if (null != e) {
+                fail(e);
+            } else if (count > 0) {
+                send(webSocket, offset + count, false);
+            }
+        });
+    }
+
+    /**
+     * 音频帧编码，见 XunFeiSpeechService.iatFrame
+     */
+    @FunctionalInterface
+    interface FrameEncoder {
+        String encode(boolean first, int status, byte[] audioData);
+    }
+}
@@ -1,15 +1,24 @@
 package com.jonas.speech.service.impl;
 
 import cn.hutool.core.codec.Base64;
+import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSONUtil;
 import cn.xfyun.api.TtsClient;
 import cn.xfyun.model.response.TtsResponse;
 import cn.xfyun.service.tts.AbstractTtsWebSocketListener;
 import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.jonas.speech.common.SpeechCapability;
 import com.jonas.speech.common.SpeechType;
 import com.jonas.speech.service.SpeechService;
-import com.jonas.speech.service.SpeechToTextCallback;
-import com.jonas.speech.service.SseService;
+import com.jonas.speech.service.SpeechToTextListener;
+import com.jonas.speech.service.SpeechToTextStream;
+import com.jonas.speech.service.AudioStreamService;
+import com.jonas.speech.service.audio.AudioPayload;
+import com.jonas.speech.service.credential.CachedCredential;
+import com.jonas.speech.service.credential.CredentialManager;
+import com.jonas.speech.service.metrics.SpeechMetrics;
+import com.jonas.speech.util.HmacSigner;
 import jakarta.annotation.PostConstruct;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
@@ -17,20 +26,32 @@ import okhttp3.HttpUrl;
 import okhttp3.Response;
 import okhttp3.WebSocket;
 import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.framing.CloseFrame;
 import org.java_websocket.handshake.ServerHandshake;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
-import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
 import java.net.URI;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.net.http.HttpClient;
 import java.nio.charset.StandardCharsets;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.time.Duration;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.EnumSet;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Objects;
-import java.util.TimeZone;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * 讯飞语音服务
@@ -53,13 +74,35 @@ public class XunFeiSpeechService extends SpeechService {
     @Value("${speech.xunfei.vcn}")
     private String vcn;
 
-    private final SseService sseService;
+    private final AudioStreamService audioStreamService;
+    private final CredentialManager credentialManager;
+    private final XunFeiTtsSessionPool ttsSessionPool;
+    private final SpeechMetrics speechMetrics;
 
     private TtsClient ttsClient;
-    private String wsUrl;
+    private HmacSigner hmacSigner;
 
     public static final Gson gson = new Gson();
 
+    // 流式合成接口地址
+    @Value("${speech.xunfei.ttsUrl:https://tts-api.xfyun.cn/v2/tts}")
+    private String ttsUrl;
+    // 实时语音听写接口地址
+    @Value("${speech.xunfei.iatUrl:https://iat-api.xfyun.cn/v2/iat}")
+    private String iatUrl;
+    private static final String IAT_CREDENTIAL = SpeechType.XUNFEI + ".iat";
+    // 一次语音听写的最长时间，毫秒
+    @Value("${speech.xunfei.iatTimeout:60000}")
+    private long iatTimeout;
+    @Value("${speech.http.connectTimeout:10000}")
+    private long connectTimeout;
+    // 语音听写使用JDK的WebSocket客户端，所有连接共用选择器线程
+    private HttpClient iatClient;
+    // 签名中的date与服务端时间偏差不能超过300秒
+    private static final long SIGN_TTL = TimeUnit.MINUTES.toMillis(4);
+    private static final DateTimeFormatter DATE_FORMATTER =
+            DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
     @PostConstruct
     public void init() {
         // 设置合成参数,这里的appid,apiKey,apiSecret是在开放平台控制台获得
@@ -69,9 +112,21 @@ public class XunFeiSpeechService extends SpeechService {
                     .vcn(vcn)  // 发音人
                     .build();
 
-            wsUrl = getAuthUrl("https://tts-api.xfyun.cn/v2/tts", apiKey, apiSecret)
-                    .replace("https://", "wss://");
-            log.info("ws url: {}", wsUrl);
+            hmacSigner = new HmacSigner("HmacSHA256", apiSecret);
+            // 签名URL定期重新生成，避免date过期
+            credentialManager.register(SpeechType.XUNFEI, TimeUnit.MINUTES.toMillis(1), () -> {
+                String wsUrl = webSocketUrl(getAuthUrl(ttsUrl, apiKey, hmacSigner));
+                return new CachedCredential(wsUrl, System.currentTimeMillis() + SIGN_TTL);
+            });
+            // 预热连接每次建立时取最新的签名地址
+            ttsSessionPool.start(() -> credentialManager.get(SpeechType.XUNFEI));
+            credentialManager.register(IAT_CREDENTIAL, TimeUnit.MINUTES.toMillis(1), () -> {
+                String wsUrl = webSocketUrl(getAuthUrl(iatUrl, apiKey, hmacSigner));
+                return new CachedCredential(wsUrl, System.currentTimeMillis() + SIGN_TTL);
+            });
+            iatClient = HttpClient.newBuilder()
+                    .connectTimeout(Duration.ofMillis(connectTimeout))
+                    .build();
         } catch (Exception e) {
             log.error("讯飞语音客户端初始化错误", e);
             throw new RuntimeException(e);
@@ -80,69 +135,284 @@ public class XunFeiSpeechService extends SpeechService {
 
     @Override
     public String speechToText(byte[] audioData) {
-        return null;
-    }
-
-    @Override
-    public void speechToText(byte[] audioData, SpeechToTextCallback callback) {
-
+        try {
+            return speechToTextAsync(AudioPayload.of(audioData)).join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException runtimeException
+                    ? runtimeException : new RuntimeException(e.getCause());
+        }
     }
 
+    /**
+     * 语音听写，整段音频按帧发送，收到最后一个结果时返回
+     * <a href="https://www.xfyun.cn/doc/asr/voicedictation/API.html">语音听写</a>
+     */
     @Override
-    public String textToSpeech(String text) {
-        return null;
+    public CompletableFuture<String> speechToTextAsync(AudioPayload audio) {
+        String url = credentialManager.get(IAT_CREDENTIAL);
+        if (StrUtil.isBlank(url)) {
+            return CompletableFuture.failedFuture(new RuntimeException("讯飞语音听写签名地址为空"));
+        }
+        XunFeiIatSession session = new XunFeiIatSession(audio, this::iatFrame, speechMetrics);
+        iatClient.newWebSocketBuilder()
+                .connectTimeout(Duration.ofMillis(connectTimeout))
+                .buildAsync(URI.create(url), session)
+                .whenComplete((webSocket, e) -> {
+                    if (null != e) {
+                        session.fail(e);
+                    }
+                });
+        return session.result().orTimeout(iatTimeout, TimeUnit.MILLISECONDS);
     }
 
     @Override
-    public void textToSpeechStream(String text, Long clientId) {
+    public SpeechToTextStream speechToTextStream(SpeechToTextListener listener) {
         try {
-            URI uri = new URI(wsUrl);
-            WebSocketClient webSocketClient = new WebSocketClient(uri) {
+            // 开启动态修正后，服务端会用后续结果替换之前的句子，按sn保存
+            Map<Integer, String> sentences = new TreeMap<>();
+            AtomicBoolean finished = new AtomicBoolean(false);
+            WebSocketClient webSocketClient = new WebSocketClient(new URI(credentialManager.get(IAT_CREDENTIAL))) {
                 @Override
                 public void onOpen(ServerHandshake serverHandshake) {
-                    log.info("ws建立连接成功...");
+                    log.info("讯飞实时语音识别连接成功...");
                 }
 
                 @Override
                 public void onMessage(String text) {
-                    log.info(text);
-                    JsonParse myJsonParse = gson.fromJson(text, JsonParse.class);
-                    if (myJsonParse.code != 0) {
-                        System.out.println("发生错误，错误码为：" + myJsonParse.code);
-                        System.out.println("本次请求的sid为：" + myJsonParse.sid);
-                    }
-                    if (myJsonParse.data != null) {
-                        try {
-                            sseService.pushObj(clientId, myJsonParse.data.audio);
-                        } catch (Exception e) {
-                            log.error("decode error", e);
+                    IatResponse response = gson.fromJson(text, IatResponse.class);
+                    if (response.code != 0) {
+                        log.error("讯飞实时语音识别错误, code={}, message={}, sid={}", response.code, response.message, response.sid);
+                        speechMetrics.upstreamError(SpeechType.XUNFEI, String.valueOf(response.code));
+                        if (finished.compareAndSet(false, true)) {
+                            listener.onError(response.code + ": " + response.message);
                         }
-                        if (myJsonParse.data.status == 2) {
-                            log.info("本次请求的sid==>" + myJsonParse.sid);
+                        close();
+                        return;
+                    }
+                    if (response.data == null || response.data.result == null || finished.get()) {
+                        return;
+                    }
+                    merge(sentences, response.data.result);
+                    String recognizedText = String.join("", sentences.values());
+                    if (response.data.status == 2) {
+                        if (finished.compareAndSet(false, true)) {
+                            listener.onFinal(recognizedText);
+                            listener.onComplete();
                         }
+                        close();
+                    } else {
+                        listener.onPartial(recognizedText);
                     }
                 }
 
                 @Override
-                public void onClose(int i, String s, boolean b) {
-                    log.info("ws链接已关闭，本次请求完成...");
+                public void onClose(int code, String reason, boolean remote) {
+                    if (!finished.compareAndSet(false, true)) {
+                        return;
+                    }
+                    // 没有收到最后一帧结果，只有正常关闭才视为识别结束
+                    if (code == CloseFrame.NORMAL) {
+                        listener.onComplete();
+                    } else {
+                        log.error("讯飞实时语音识别连接异常关闭, code={}, reason={}", code, reason);
+                        listener.onError("连接异常关闭：" + code + " " + reason);
+                    }
                 }
 
                 @Override
                 public void onError(Exception e) {
-                    log.error("发生错误 " + e.getMessage());
+                    log.error("讯飞实时语音识别异常", e);
+                    if (finished.compareAndSet(false, true)) {
+                        listener.onError(e.getMessage());
+                    }
                 }
             };
-            // 建立连接
-            webSocketClient.connect();
-            while (!webSocketClient.getReadyState().equals(org.java_websocket.WebSocket.READYSTATE.OPEN)) {
-                //System.out.println("正在连接...");
-                Thread.sleep(100);
+            if (!webSocketClient.connectBlocking()) {
+                throw new RuntimeException("讯飞实时语音识别连接失败");
             }
-            this.sendWsRequest(text, webSocketClient);
+
+            return new SpeechToTextStream() {
+                // 使用显式锁，避免虚拟线程在 synchronized 中发送时钉住载体线程
+                private final ReentrantLock lock = new ReentrantLock();
+                private boolean first = true;
+
+                @Override
+                public void write(byte[] audioData) {
+                    send(1, audioData);
+                }
+
+                @Override
+                public void close() {
+                    send(2, new byte[0]);
+                }
+
+                private void send(int status, byte[] audioData) {
+                    lock.lock();
+                    try {
+                        webSocketClient.send(iatFrame(first, status, audioData));
+                        first = false;
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+
+                @Override
+                public void cancel() {
+                    finished.set(true);
+                    webSocketClient.close();
+                }
+            };
+        } catch (URISyntaxException e) {
+            throw new RuntimeException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * 合并一次听写结果，动态修正的结果替换 rg 范围内之前的句子
+     */
+    static void merge(Map<Integer, String> sentences, IatResult result) {
+        if ("rpl".equals(result.pgs) && result.rg != null && result.rg.length == 2) {
+            for (int i = result.rg[0]; i <= result.rg[1]; i++) {
+                sentences.remove(i);
+            }
+        }
+        sentences.put(result.sn, result.text());
+    }
+
+    /**
+     * 实时语音听写的音频帧，第一帧需要携带公共参数和业务参数
+     *
+     * @param first     是否第一帧
+     * @param status    帧状态，0第一帧，1中间帧，2最后一帧
+     * @param audioData 音频二进制数据
+     * @return 请求json串
+     */
+    private String iatFrame(boolean first, int status, byte[] audioData) {
+        JsonObject frame = new JsonObject();
+        if (first) {
+            JsonObject common = new JsonObject();
+            common.addProperty("app_id", appId);
+            frame.add("common", common);
+
+            JsonObject business = new JsonObject();
+            business.addProperty("language", "zh_cn");
+            business.addProperty("domain", "iat");
+            business.addProperty("accent", "mandarin");
+            business.addProperty("dwa", "wpgs");
+            frame.add("business", business);
+        }
+        JsonObject data = new JsonObject();
+        data.addProperty("status", first && status == 1 ? 0 : status);
+        data.addProperty("format", "audio/L16;rate=16000");
+        data.addProperty("encoding", "raw");
+        data.addProperty("audio", java.util.Base64.getEncoder().encodeToString(audioData));
+        frame.add("data", data);
+        return frame.toString();
+    }
+
+    @Override
+    public String textToSpeech(String text) {
+        return null;
+    }
+
+    @Override
+    public void textToSpeechStream(String text, Long clientId) {
+        long startTime = System.currentTimeMillis();
+        XunFeiTtsSessionPool.TtsSession session;
+        try {
+            session = ttsSessionPool.acquire(new XunFeiTtsSessionPool.TtsHandler() {
+                // 连接只属于本次请求，仍按sid核对，丢弃不属于本次合成的消息
+                private String sid;
+                private boolean first = true;
+
+                @Override
+                public void onMessage(XunFeiTtsSessionPool.TtsSession session, String message) {
+                    JsonParse response = gson.fromJson(message, JsonParse.class);
+                    if (null == sid) {
+                        sid = response.sid;
+                    } else if (null != response.sid && !sid.equals(response.sid)) {
+                        log.warn("讯飞语音合成sid不匹配, clientId={}, 期望{}, 实际{}", clientId, sid, response.sid);
+                        return;
+                    }
+                    if (response.code != 0) {
+                        log.error("讯飞语音合成错误, code={}, message={}, sid={}", response.code, response.message, response.sid);
+                        speechMetrics.upstreamError(SpeechType.XUNFEI, String.valueOf(response.code));
+                        audioStreamService.error(clientId, "xunfei error: " + response.code);
+                        session.finish();
+                        return;
+                    }
+                    if (null == response.data) {
+                        return;
+                    }
+                    if (null != response.data.audio) {
+                        if (first) {
+                            first = false;
+                            long firstAudio = System.currentTimeMillis() - startTime;
+                            ttsSessionPool.recordFirstAudio(firstAudio);
+                            log.info("讯飞语音合成首包耗时{}ms, clientId={}, sid={}, warm={}", firstAudio, clientId, sid, session.isWarm());
+                        }
+                        if (!audioStreamService.audio(clientId, Base64.decode(response.data.audio))) {
+                            session.finish();
+                            return;
+                        }
+                    }
+                    if (response.data.status == 2) {
+                        log.info("讯飞语音合成完成, clientId={}, sid={}", clientId, sid);
+                        audioStreamService.end(clientId);
+                        session.finish();
+                    }
+                }
+
+                @Override
+                public void onClosed(String reason) {
+                    log.error("讯飞语音合成连接意外关闭, clientId={}, sid={}, reason={}", clientId, sid, reason);
+                    audioStreamService.error(clientId, "讯飞语音合成连接已关闭");
+                }
+            });
         } catch (Exception e) {
-            System.out.println(e.getMessage());
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            log.error("讯飞语音合成连接失败, clientId={}", clientId, e);
+            audioStreamService.error(clientId, "讯飞语音合成连接失败");
+            // 交给路由记为失败
+            throw e instanceof RuntimeException runtimeException ? runtimeException
+                    : new RuntimeException("讯飞语音合成连接失败", e);
         }
+        audioStreamService.start(clientId);
+        session.send(ttsRequest(text));
+    }
+
+    /**
+     * 语音合成请求，文本一次性发送
+     *
+     * @param text 待合成文本
+     * @return 请求json串
+     */
+    private String ttsRequest(String text) {
+        JsonObject request = new JsonObject();
+        JsonObject common = new JsonObject();
+        common.addProperty("app_id", appId);
+        request.add("common", common);
+
+        JsonObject business = new JsonObject();
+        business.addProperty("aue", "lame");
+        business.addProperty("sfl", 1);
+        business.addProperty("tte", "UTF8");
+        business.addProperty("ent", "intp65");
+        business.addProperty("vcn", vcn);
+        business.addProperty("pitch", 50);
+        business.addProperty("speed", 50);
+        request.add("business", business);
+
+        JsonObject data = new JsonObject();
+        data.addProperty("status", 2);
+        data.addProperty("text", java.util.Base64.getEncoder().encodeToString(text.getBytes(StandardCharsets.UTF_8)));
+        request.add("data", data);
+        return request.toString();
     }
 
     public void textToSpeechStreamWithSdk(String text, Long clientId) {
@@ -174,28 +444,21 @@ public class XunFeiSpeechService extends SpeechService {
     }
 
     // 鉴权方法
-    public String getAuthUrl(String hostUrl, String apiKey, String apiSecret) throws Exception {
+    public static String getAuthUrl(String hostUrl, String apiKey, HmacSigner hmacSigner) throws Exception {
         URL url = new URL(hostUrl);
         // 时间
-        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss z", Locale.US);
-        format.setTimeZone(TimeZone.getTimeZone("GMT"));
-        String date = format.format(new Date());
+        String date = DATE_FORMATTER.format(ZonedDateTime.now(ZoneOffset.UTC));
         // 拼接
         String preStr = "host: " + url.getHost() + "\n" +
                 "date: " + date + "\n" +
                 "GET " + url.getPath() + " HTTP/1.1";
         //System.out.println(preStr);
-        // SHA256加密
-        Mac mac = Mac.getInstance("hmacsha256");
-        SecretKeySpec spec = new SecretKeySpec(apiSecret.getBytes(StandardCharsets.UTF_8), "hmacsha256");
-        mac.init(spec);
-        byte[] hexDigits = mac.doFinal(preStr.getBytes(StandardCharsets.UTF_8));
-        // Base64加密
-        String sha = java.util.Base64.getEncoder().encodeToString(hexDigits);
+        // SHA256加密，并进行Base64编码
+        String sha = hmacSigner.signBase64(preStr);
         // 拼接
         String authorization = String.format("api_key=\"%s\", algorithm=\"%s\", headers=\"%s\", signature=\"%s\"", apiKey, "hmac-sha256", "host date request-line", sha);
         // 拼接地址
-        HttpUrl httpUrl = Objects.requireNonNull(HttpUrl.parse("https://" + url.getHost() + url.getPath())).newBuilder().//
+        HttpUrl httpUrl = Objects.requireNonNull(HttpUrl.parse(url.getProtocol() + "://" + url.getAuthority() + url.getPath())).newBuilder().//
                 addQueryParameter("authorization", java.util.Base64.getEncoder().encodeToString(authorization.getBytes(StandardCharsets.UTF_8))).//
                 addQueryParameter("date", date).//
                 addQueryParameter("host", url.getHost()).//
@@ -204,43 +467,84 @@ public class XunFeiSpeechService extends SpeechService {
         return httpUrl.toString();
     }
 
-    // 线程来发送音频与参数
-    private void sendWsRequest(String text, WebSocketClient webSocketClient) {
-        try {
-            //请求参数json串
-            String requestJson = "{\n" +
-                    "  \"common\": {\n" +
-                    "    \"app_id\": \"" + appId + "\"\n" +
-                    "  },\n" +
-                    "  \"business\": {\n" +
-                    "    \"aue\": \"lame\",\n" +
-                    "    \"sfl\": 1,\n" +
-                    "    \"tte\": \"" + "UTF8" + "\",\n" +
-                    "    \"ent\": \"intp65\",\n" +
-                    "    \"vcn\": \"" + vcn + "\",\n" +
-                    "    \"pitch\": 50,\n" +
-                    "    \"speed\": 50\n" +
-                    "  },\n" +
-                    "  \"data\": {\n" +
-                    "    \"status\": 2,\n" +
-                    "    \"text\": \"" + java.util.Base64.getEncoder().encodeToString(text.getBytes(StandardCharsets.UTF_8)) + "\"\n" +
-                    "  }\n" +
-                    "}";
-            webSocketClient.send(requestJson);
-        } catch (Exception e) {
-            log.error("send error", e);
-        }
+    /**
+     * 签名地址转为WebSocket地址，保留协议对应的加密方式，本地替身服务使用 ws://
+     */
+    private static String webSocketUrl(String url) {
+        return url.startsWith("https://") ? "wss://" + url.substring(8) : "ws://" + url.substring(url.indexOf("://") + 3);
     }
 
     //返回的json结果拆解
-    class JsonParse {
+    static class JsonParse {
         int code;
+        String message;
         String sid;
         Data data;
     }
 
-    class Data {
+    static class Data {
         int status;
         String audio;
     }
+
+    // 实时语音听写返回结果
+    static class IatResponse {
+        int code;
+        String message;
+        String sid;
+        IatData data;
+    }
+
+    static class IatData {
+        int status;
+        IatResult result;
+    }
+
+    static class IatResult {
+        int sn;
+        String pgs;
+        int[] rg;
+        List<IatWord> ws;
+
+        String text() {
+            StringBuilder builder = new StringBuilder();
+            if (ws != null) {
+                for (IatWord word : ws) {
+                    if (word.cw != null && !word.cw.isEmpty()) {
+                        builder.append(word.cw.get(0).w);
+                    }
+                }
+            }
+            return builder.toString();
+        }
+    }
+
+    static class IatWord {
+        List<IatCandidate> cw;
+    }
+
+    static class IatCandidate {
+        String w;
+    }
+
+    @Override
+    public String getType() {
+        return SpeechType.XUNFEI;
+    }
+
+    @Override
+    public Set<SpeechCapability> getCapabilities() {
+        return EnumSet.of(SpeechCapability.SPEECH_TO_TEXT, SpeechCapability.SPEECH_TO_TEXT_STREAM,
+                SpeechCapability.TEXT_TO_SPEECH_STREAM);
+    }
+
+    @Override
+    public String getVoice() {
+        return vcn;
+    }
+
+    @Override
+    public String getAudioFormat() {
+        return "lame";
+    }
 }
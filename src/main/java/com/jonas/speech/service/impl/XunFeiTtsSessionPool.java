@@ -0,0 +1,323 @@
+package com.jonas.speech.service.impl;
+
+import cn.hutool.core.thread.NamedThreadFactory;
+import com.jonas.speech.common.SessionPoolStats;
+import com.jonas.speech.common.SpeechType;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.framing.CloseFrame;
+import org.java_websocket.handshake.ServerHandshake;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.net.URI;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * 讯飞语音合成WebSocket会话池
+ * 讯飞每个连接只能完成一次合成，池中提前用最新签名的地址建立好若干连接，请求到来时直接取用，
+ * 省去TLS与WebSocket握手；连接在收到最后一帧后关闭，后台随即补充新的预热连接。
+ * 预热连接超过空闲时长会被关闭重建，避免被服务端断开或签名过期；使用中与预热中的连接总数不超过上限。
+ * 首次合成请求之后才开始预热，未使用讯飞的部署不会建立连接
+ *
+ * @author shenjy
+ * @time 2024/7/18 16:50
+ */
+@Slf4j
+@Component
+public class XunFeiTtsSessionPool {
+
+    // 预热连接数
+    @Value("${speech.xunfei.ttsPool.warmSize:2}")
+    private int warmSize;
+    // 连接总数上限
+    @Value("${speech.xunfei.ttsPool.maxSessions:32}")
+    private int maxSessions;
+    // 预热连接最长空闲时间，毫秒
+    @Value("${speech.xunfei.ttsPool.maxIdle:8000}")
+    private long maxIdle;
+    // 获取连接的最长等待时间，毫秒
+    @Value("${speech.xunfei.ttsPool.acquireTimeout:3000}")
+    private long acquireTimeout;
+
+    private final Deque<TtsSession> warmSessions = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger warming = new AtomicInteger();
+    private final AtomicInteger failures = new AtomicInteger();
+    private volatile long retryAt;
+
+    private Semaphore permits;
+    private ScheduledExecutorService scheduler;
+    private volatile Supplier<String> urlSupplier;
+    private volatile boolean active;
+
+    private final LongAdder created = new LongAdder();
+    private final LongAdder warmHits = new LongAdder();
+    private final LongAdder coldStarts = new LongAdder();
+    private final LongAdder firstAudioCount = new LongAdder();
+    private final LongAdder firstAudioTotal = new LongAdder();
+    private final LongAccumulator firstAudioMax = new LongAccumulator(Long::max, 0);
+
+    @PostConstruct
+    public void init() {
+        permits = new Semaphore(maxSessions);
+        scheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("xunfei-tts-pool-", true));
+        scheduler.scheduleWithFixedDelay(this::maintain, 1000, 1000, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        scheduler.shutdownNow();
+        TtsSession session;
+        while (null != (session = warmSessions.pollFirst())) {
+            session.close();
+        }
+    }
+
+    /**
+     * 设置连接地址，每次建连时重新获取，保证签名有效
+     *
+     * @param urlSupplier 签名后的连接地址
+     */
+    void start(Supplier<String> urlSupplier) {
+        this.urlSupplier = urlSupplier;
+    }
+
+    /**
+     * 获取一个已建立的连接，优先使用预热连接，否则现场建立并等待握手完成
+     *
+     * @param handler 本次合成的消息处理
+     * @return 已绑定处理器的连接
+     */
+    TtsSession acquire(TtsHandler handler) throws InterruptedException {
+        if (!active) {
+            active = true;
+            scheduler.execute(this::maintain);
+        }
+        TtsSession session;
+        while (null != (session = warmSessions.pollFirst())) {
+            if (session.isOpen() && !session.expired()) {
+                warmHits.increment();
+                session.bind(handler, true);
+                scheduler.execute(this::maintain);
+                return session;
+            }
+            session.close();
+        }
+
+        coldStarts.increment();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(acquireTimeout);
+        if (!permits.tryAcquire(acquireTimeout, TimeUnit.MILLISECONDS)) {
+            throw new RuntimeException("讯飞语音合成连接数已满");
+        }
+        session = connect();
+        boolean bound = false;
+        try {
+            session.opened.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            session.bind(handler, false);
+            bound = true;
+            return session;
+        } catch (ExecutionException | TimeoutException e) {
+            throw new RuntimeException("讯飞语音合成连接失败", e);
+        } finally {
+            // 超时、中断或握手失败都关闭连接
+            if (!bound) {
+                session.close();
+            }
+        }
+    }
+
+    /**
+     * 记录首包耗时
+     */
+    void recordFirstAudio(long millis) {
+        firstAudioCount.increment();
+        firstAudioTotal.add(millis);
+        firstAudioMax.accumulate(millis);
+    }
+
+    public SessionPoolStats stats() {
+        int warm = warmSessions.size();
+        long count = firstAudioCount.sum();
+        return new SessionPoolStats(SpeechType.XUNFEI, warm, maxSessions - permits.availablePermits() - warm, maxSessions,
+                created.sum(), warmHits.sum(), coldStarts.sum(), count == 0 ? 0 : firstAudioTotal.sum() / count,
+                firstAudioMax.get());
+    }
+
+    /**
+     * 清理过期的预热连接并补足预热数量，连续建连失败时指数退避
+     */
+    private void maintain() {
+        warmSessions.removeIf(session -> {
+            if (!session.isOpen() || session.expired()) {
+                session.close();
+                return true;
+            }
+            return false;
+        });
+        if (!active || System.currentTimeMillis() < retryAt) {
+            return;
+        }
+        while (warmSessions.size() + warming.get() < warmSize && permits.tryAcquire()) {
+            warming.incrementAndGet();
+            TtsSession session;
+            try {
+                session = connect();
+            } catch (RuntimeException e) {
+                warming.decrementAndGet();
+                onWarmFailure(e);
+                return;
+            }
+            session.opened.whenComplete((ignored, e) -> {
+                warming.decrementAndGet();
+                if (null == e) {
+                    failures.set(0);
+                    warmSessions.addLast(session);
+                } else {
+                    onWarmFailure(e);
+                }
+            });
+        }
+    }
+
+    private void onWarmFailure(Throwable e) {
+        int count = failures.incrementAndGet();
+        long backoff = Math.min(TimeUnit.SECONDS.toMillis(30), 1000L << Math.min(count, 5));
+        retryAt = System.currentTimeMillis() + backoff;
+        log.warn("讯飞语音合成预热连接失败, 第{}次, {}ms后重试: {}", count, backoff, e.getMessage());
+    }
+
+    /**
+     * 建立连接，调用前需要已经获得连接许可
+     */
+    private TtsSession connect() {
+        TtsSession session;
+        try {
+            session = new TtsSession(new URI(urlSupplier.get()));
+        } catch (Exception e) {
+            permits.release();
+            throw new RuntimeException(e);
+        }
+        created.increment();
+        session.connect();
+        return session;
+    }
+
+    /**
+     * 合成消息处理
+     */
+    interface TtsHandler {
+
+        void onMessage(TtsSession session, String message);
+
+        /**
+         * 连接关闭，合成已完成时不会调用
+         */
+        void onClosed(String reason);
+    }
+
+    /**
+     * 单次合成使用的连接，握手完成通过 opened 通知，不需要轮询连接状态
+     */
+    class TtsSession extends WebSocketClient {
+
+        private final long createdAt = System.currentTimeMillis();
+        private final CompletableFuture<Void> opened = new CompletableFuture<>();
+        private final AtomicBoolean released = new AtomicBoolean();
+        private volatile TtsHandler handler;
+        private volatile boolean warm;
+        private volatile boolean finished;
+        // 已要求关闭，还在建立TCP连接时断开不生效，握手完成后再关闭
+        private volatile boolean closing;
+
+        TtsSession(URI uri) {
+            super(uri);
+        }
+
+        boolean isWarm() {
+            return warm;
+        }
+
+        /**
+         * 合成完成，关闭连接
+         */
+        void finish() {
+            finished = true;
+            close();
+        }
+
+        private void bind(TtsHandler handler, boolean warm) {
+            this.handler = handler;
+            this.warm = warm;
+        }
+
+        private boolean expired() {
+            return System.currentTimeMillis() - createdAt > maxIdle;
+        }
+
+        /**
+         * 关闭连接，握手还没完成时 close 不生效，直接断开底层连接
+         */
+        @Override
+        public void close() {
+            closing = true;
+            if (isOpen()) {
+                super.close();
+            } else if (!isClosed()) {
+                closeConnection(CloseFrame.ABNORMAL_CLOSE, "握手未完成");
+            }
+        }
+
+        @Override
+        public void onOpen(ServerHandshake serverHandshake) {
+            if (closing) {
+                super.close();
+                return;
+            }
+            opened.complete(null);
+        }
+
+        @Override
+        public void onMessage(String message) {
+            TtsHandler current = handler;
+            if (null != current) {
+                current.onMessage(this, message);
+            } else {
+                log.warn("讯飞语音合成连接收到未绑定的消息: {}", message);
+            }
+        }
+
+        @Override
+        public void onClose(int code, String reason, boolean remote) {
+            opened.completeExceptionally(new RuntimeException("连接已关闭: " + code + " " + reason));
+            warmSessions.remove(this);
+            if (released.compareAndSet(false, true)) {
+                permits.release();
+            }
+            TtsHandler current = handler;
+            if (null != current && !finished) {
+                current.onClosed(code + " " + reason);
+            }
+        }
+
+        @Override
+        public void onError(Exception e) {
+            log.error("讯飞语音合成连接异常: {}", e.getMessage());
+            opened.completeExceptionally(e);
+        }
+    }
+}
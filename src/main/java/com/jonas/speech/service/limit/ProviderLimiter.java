@@ -0,0 +1,145 @@
+package com.jonas.speech.service.limit;
+
+import com.jonas.speech.common.LimiterStats;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 单个服务商的限流器
+ * 令牌桶限制每秒请求数，AIMD自适应并发上限限制同时进行的请求数：
+ * 成功时上限加法增长（每一轮满并发约加1），服务商返回限流时上限乘法收缩。
+ * 拿不到许可的请求在截止时间内排队等待，超时后拒绝
+ *
+ * @author shenjy
+ * @time 2024/7/15 10:40
+ */
+class ProviderLimiter {
+
+    private final String provider;
+    private final double qps;
+    private final double burst;
+    private final double minLimit;
+    private final double maxLimit;
+    private final double backoffRatio;
+    private final int maxQueue;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+
+    private double limit;
+    private int inFlight;
+    private int queued;
+    private double tokens;
+    private long refillTime = System.nanoTime();
+
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder throttled = new LongAdder();
+
+    ProviderLimiter(String provider, double qps, double burst, double initialLimit, double minLimit, double maxLimit,
+                    double backoffRatio, int maxQueue) {
+        this.provider = provider;
+        this.qps = qps;
+        this.burst = Math.max(1, burst);
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.backoffRatio = backoffRatio;
+        this.maxQueue = maxQueue;
+        this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+        this.tokens = this.burst;
+    }
+
+    /**
+     * 申请许可
+     *
+     * @param timeout 最长排队时间，毫秒
+     * @return 是否获得许可
+     */
+    boolean acquire(long timeout) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        lock.lock();
+        try {
+            if (queued >= maxQueue && !available(System.nanoTime())) {
+                rejected.increment();
+                return false;
+            }
+            queued++;
+            try {
+                while (true) {
+                    long now = System.nanoTime();
+                    if (available(now)) {
+                        if (qps > 0) {
+                            tokens -= 1;
+                        }
+                        inFlight++;
+                        accepted.increment();
+                        return true;
+                    }
+                    long remaining = deadline - now;
+                    if (remaining <= 0) {
+                        rejected.increment();
+                        return false;
+                    }
+                    // 只缺令牌时等到下一个令牌产生，否则等待有请求完成
+                    if (inFlight < (int) limit) {
+                        remaining = Math.min(remaining, (long) ((1 - tokens) / qps * TimeUnit.SECONDS.toNanos(1)) + 1);
+                    }
+                    changed.awaitNanos(remaining);
+                }
+            } finally {
+                queued--;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 归还许可
+     *
+     * @param success         调用是否成功
+     * @param vendorThrottled 服务商是否返回了限流
+     */
+    void release(boolean success, boolean vendorThrottled) {
+        lock.lock();
+        try {
+            inFlight--;
+            if (vendorThrottled) {
+                throttled.increment();
+                limit = Math.max(minLimit, limit * backoffRatio);
+            } else if (success && inFlight + 1 >= limit / 2) {
+                // 并发没有用到一半时不增长，避免低负载下上限无限膨胀
+                limit = Math.min(maxLimit, limit + 1 / limit);
+            }
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    LimiterStats stats() {
+        lock.lock();
+        try {
+            refill(System.nanoTime());
+            return new LimiterStats(provider, qps, qps > 0 ? tokens : 0, limit, inFlight, queued,
+                    accepted.sum(), rejected.sum(), throttled.sum());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean available(long now) {
+        refill(now);
+        return inFlight < (int) limit && (qps <= 0 || tokens >= 1);
+    }
+
+    private void refill(long now) {
+        if (qps > 0) {
+            tokens = Math.min(burst, tokens + (now - refillTime) * qps / TimeUnit.SECONDS.toNanos(1));
+        }
+        refillTime = now;
+    }
+}
@@ -0,0 +1,111 @@
+package com.jonas.speech.service.limit;
+
+import com.jonas.speech.common.LimiterStats;
+import com.jonas.speech.common.ThrottledException;
+import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 服务商限流
+ * 每个服务商一个令牌桶加自适应并发限制，配置可以通过 speech.limit.{provider}.qps 等单独覆盖
+ *
+ * @author shenjy
+ * @time 2024/7/15 11:20
+ */
+@Component
+@RequiredArgsConstructor
+public class SpeechLimiter {
+
+    private final Environment environment;
+
+    @Value("${speech.limit.enabled:true}")
+    private boolean enabled;
+    // 最长排队时间，毫秒
+    @Value("${speech.limit.queueTimeout:500}")
+    private long queueTimeout;
+
+    private final Map<String, ProviderLimiter> limiterMap = new ConcurrentHashMap<>();
+
+    /**
+     * 申请许可，排队超时返回空
+     *
+     * @param provider 服务商
+     * @return 许可，调用结束后必须归还
+     */
+    public Permit acquire(String provider) {
+        if (!enabled) {
+            return new Permit(null);
+        }
+        ProviderLimiter limiter = limiterMap.computeIfAbsent(provider, this::createLimiter);
+        try {
+            return limiter.acquire(queueTimeout) ? new Permit(limiter) : null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * 各服务商限流统计
+     */
+    public List<LimiterStats> stats() {
+        List<LimiterStats> list = new ArrayList<>();
+        limiterMap.values().forEach(limiter -> list.add(limiter.stats()));
+        return list;
+    }
+
+    private ProviderLimiter createLimiter(String provider) {
+        return new ProviderLimiter(provider,
+                property(provider, "qps", 0.0),
+                property(provider, "burst", 10.0),
+                property(provider, "initialLimit", 20.0),
+                property(provider, "minLimit", 1.0),
+                property(provider, "maxLimit", 200.0),
+                property(provider, "backoffRatio", 0.7),
+                property(provider, "maxQueue", 100.0).intValue());
+    }
+
+    private Double property(String provider, String name, Double defaultValue) {
+        Double value = environment.getProperty("speech.limit." + name, Double.class, defaultValue);
+        return environment.getProperty("speech.limit." + provider + "." + name, Double.class, value);
+    }
+
+    /**
+     * 限流许可
+     */
+    public static class Permit {
+
+        private final ProviderLimiter limiter;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Permit(ProviderLimiter limiter) {
+            this.limiter = limiter;
+        }
+
+        /**
+         * 归还许可，重复归还无效果
+         *
+         * @param success 调用是否成功
+         * @param error   调用异常，服务商限流异常会收缩并发上限
+         */
+        public void release(boolean success, Throwable error) {
+            if (null == limiter || !released.compareAndSet(false, true)) {
+                return;
+            }
+            while ((error instanceof CompletionException || error instanceof ExecutionException) && null != error.getCause()) {
+                error = error.getCause();
+            }
+            limiter.release(success, error instanceof ThrottledException);
+        }
+    }
+}
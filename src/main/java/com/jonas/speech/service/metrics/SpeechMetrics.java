@@ -0,0 +1,234 @@
+package com.jonas.speech.service.metrics;
+
+import cn.hutool.core.util.StrUtil;
+import com.jonas.speech.common.SpeechCapability;
+import com.jonas.speech.service.SpeechToTextStream;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.RequiredArgsConstructor;
+import org.springframework.stereotype.Component;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * 语音服务指标，通过 /actuator/prometheus 暴露
+ * 标签只使用服务商、操作、结果等取值有限的维度，不按客户端打标签；
+ * 服务商错误码超过上限后归入 other，避免异常响应撑爆时间序列
+ *
+ * @author shenjy
+ * @time 2024/8/5 10:30
+ */
+@Component
+@RequiredArgsConstructor
+public class SpeechMetrics {
+
+    public static final String SUCCESS = "success";
+    public static final String EMPTY = "empty";
+    public static final String ERROR = "error";
+    public static final String THROTTLED = "throttled";
+    public static final String CANCELLED = "cancelled";
+    public static final String TIMEOUT = "timeout";
+
+    public static final String IN = "in";
+    public static final String OUT = "out";
+
+    // 每个服务商记录的错误码种类上限
+    static final int MAX_ERROR_CODES = 64;
+    static final String OTHER_CODE = "other";
+
+    // 操作标签与接口名保持一致，如 speechToText
+    private static final Map<SpeechCapability, String> OPERATIONS = new EnumMap<>(SpeechCapability.class);
+
+    static {
+        for (SpeechCapability capability : SpeechCapability.values()) {
+            OPERATIONS.put(capability, StrUtil.toCamelCase(capability.name().toLowerCase()));
+        }
+    }
+
+    private final MeterRegistry registry;
+
+    private final Map<String, Timer> timerMap = new ConcurrentHashMap<>();
+    private final Map<String, Counter> counterMap = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> errorCodeMap = new ConcurrentHashMap<>();
+
+    /**
+     * 服务商调用耗时
+     *
+     * @param provider   服务商
+     * @param capability 操作类型
+     * @param millis     耗时，毫秒
+     * @param outcome    调用结果
+     */
+    public void providerCall(String provider, SpeechCapability capability, long millis, String outcome) {
+        timer("speech.provider.latency", "服务商调用耗时",
+                "provider", provider, "operation", operation(capability), "outcome", outcome)
+                .record(millis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 服务商返回的错误码，包括HTTP状态码和各家接口的业务错误码
+     *
+     * @param provider 服务商
+     * @param code     错误码
+     */
+    public void upstreamError(String provider, String code) {
+        Set<String> codes = errorCodeMap.computeIfAbsent(provider, key -> ConcurrentHashMap.newKeySet());
+        String tag = StrUtil.blankToDefault(code, OTHER_CODE);
+        if (!codes.contains(tag)) {
+            // 并发时可能略微超过上限，不影响结果
+            if (codes.size() >= MAX_ERROR_CODES) {
+                tag = OTHER_CODE;
+            } else {
+                codes.add(tag);
+            }
+        }
+        counter("speech.provider.errors", "服务商返回的错误码", null, "provider", provider, "code", tag).increment();
+    }
+
+    /**
+     * 音频字节数，识别为上传给服务商的音频，合成为下发给客户端的音频
+     *
+     * @param provider   服务商
+     * @param capability 操作类型
+     * @param direction  方向，in 或 out
+     * @param bytes      字节数
+     */
+    public void audioBytes(String provider, SpeechCapability capability, String direction, long bytes) {
+        counter("speech.audio.bytes", "音频字节数", "bytes",
+                "provider", provider, "operation", operation(capability), "direction", direction).increment(bytes);
+    }
+
+    /**
+     * 统计实时识别上传的音频字节数
+     *
+     * @param provider 服务商
+     * @param stream   识别流
+     * @return 包装后的识别流
+     */
+    public SpeechToTextStream countAudio(String provider, SpeechToTextStream stream) {
+        Counter counter = counter("speech.audio.bytes", "音频字节数", "bytes", "provider", provider,
+                "operation", operation(SpeechCapability.SPEECH_TO_TEXT_STREAM), "direction", IN);
+        return new SpeechToTextStream() {
+            @Override
+            public void write(byte[] audioData) {
+                counter.increment(audioData.length);
+                stream.write(audioData);
+            }
+
+            @Override
+            public void write(byte[] audioData, int offset, int length) {
+                counter.increment(length);
+                stream.write(audioData, offset, length);
+            }
+
+            @Override
+            public void close() {
+                stream.close();
+            }
+
+            @Override
+            public void cancel() {
+                stream.cancel();
+            }
+        };
+    }
+
+    /**
+     * 流式合成首包耗时，从发起合成到第一段音频下发
+     */
+    public void streamFirstAudio(String provider, long millis) {
+        timer("speech.stream.first.audio", "流式合成首包耗时", "provider", provider)
+                .record(millis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 流式合成总耗时，从发起合成到下发结束或出错
+     */
+    public void streamDuration(String provider, long millis, String outcome) {
+        timer("speech.stream.duration", "流式合成总耗时", "provider", provider, "outcome", outcome)
+                .record(millis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * SDK识别器的租用时长，从创建到关闭
+     */
+    public void recognizerLease(String provider, long millis, String outcome) {
+        timer("speech.recognizer.lease", "SDK识别器租用时长", "provider", provider, "outcome", outcome)
+                .record(millis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * SSE单条消息的发送耗时
+     */
+    public void ssePush(long nanos) {
+        timer("speech.sse.push", "SSE消息发送耗时").record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * SSE发送失败，发送失败后连接会被关闭
+     */
+    public void sseSendFailure() {
+        counter("speech.sse.send.failures", "SSE发送失败次数", null).increment();
+    }
+
+    /**
+     * SSE队列已满时丢弃的消息
+     */
+    public void sseDropped() {
+        counter("speech.sse.dropped", "SSE队列满时丢弃的消息数", null).increment();
+    }
+
+    /**
+     * 客户端带 Last-Event-ID 重连后重发的消息
+     */
+    public void sseReplayed(int count) {
+        counter("speech.sse.replayed", "SSE重连后重发的消息数", null).increment(count);
+    }
+
+    /**
+     * SSE客户端被清理，按原因区分：idle 长时间没有消息，expired 断开后超过保留时间未重连，rejected 连接数已满
+     */
+    public void sseEvicted(String reason) {
+        counter("speech.sse.evicted", "SSE客户端清理次数", null, "reason", reason).increment();
+    }
+
+    /**
+     * 注册瞬时值指标，对象由调用方持有
+     */
+    public <T> void gauge(String name, String description, T obj, ToDoubleFunction<T> value, String... tags) {
+        Gauge.builder(name, obj, value).description(description).tags(tags).register(registry);
+    }
+
+    /**
+     * 注册由调用方累计的计数指标
+     */
+    public <T> void functionCounter(String name, String description, T obj, ToDoubleFunction<T> value, String... tags) {
+        FunctionCounter.builder(name, obj, value).description(description).tags(tags).register(registry);
+    }
+
+    private Timer timer(String name, String description, String... tags) {
+        return timerMap.computeIfAbsent(key(name, tags),
+                key -> Timer.builder(name).description(description).tags(tags).register(registry));
+    }
+
+    private Counter counter(String name, String description, String baseUnit, String... tags) {
+        return counterMap.computeIfAbsent(key(name, tags),
+                key -> Counter.builder(name).description(description).baseUnit(baseUnit).tags(tags).register(registry));
+    }
+
+    private static String key(String name, String... tags) {
+        return tags.length == 0 ? name : name + '|' + String.join("|", tags);
+    }
+
+    private static String operation(SpeechCapability capability) {
+        return OPERATIONS.get(capability);
+    }
+}
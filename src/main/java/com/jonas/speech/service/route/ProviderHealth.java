@@ -0,0 +1,212 @@
+package com.jonas.speech.service.route;
+
+import com.jonas.speech.common.RouteStats;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 服务商健康状态
+ * 以最近N次调用为窗口统计耗时和错误率，并维护熔断状态：
+ * 错误率超过阈值后熔断，熔断时长过后放行一次探测，探测成功恢复，失败继续熔断
+ *
+ * @author shenjy
+ * @time 2024/7/8 14:40
+ */
+class ProviderHealth {
+
+    enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private static final double MIN_HEALTH = 0.05;
+
+    private final String provider;
+    private final int minCalls;
+    private final double failureRate;
+    private final long openDuration;
+
+    private final long[] latencies;
+    private final boolean[] failed;
+    private int count;
+    private int next;
+    private int failedCount;
+
+    private State state = State.CLOSED;
+    private long openedAt;
+    private boolean probing;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    ProviderHealth(String provider, int windowSize, int minCalls, double failureRate, long openDuration) {
+        this.provider = provider;
+        this.minCalls = minCalls;
+        this.failureRate = failureRate;
+        this.openDuration = openDuration;
+        this.latencies = new long[windowSize];
+        this.failed = new boolean[windowSize];
+    }
+
+    /**
+     * 熔断器是否放行，不占用半开状态的探测名额
+     */
+    boolean isAvailable(long now) {
+        lock.lock();
+        try {
+            return switch (state) {
+                case CLOSED -> true;
+                case OPEN -> now - openedAt >= openDuration;
+                case HALF_OPEN -> !probing;
+            };
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 申请一次调用，半开状态下只放行一个探测请求
+     */
+    boolean tryAcquire(long now) {
+        lock.lock();
+        try {
+            if (state == State.OPEN && now - openedAt >= openDuration) {
+                state = State.HALF_OPEN;
+                probing = false;
+            }
+            boolean allowed = switch (state) {
+                case CLOSED -> true;
+                case OPEN -> false;
+                case HALF_OPEN -> !probing;
+            };
+            if (!allowed) {
+                rejected.increment();
+            } else if (state == State.HALF_OPEN) {
+                probing = true;
+            }
+            return allowed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 放弃本次调用，半开状态下归还探测名额
+     */
+    void releaseProbe() {
+        lock.lock();
+        try {
+            if (state == State.HALF_OPEN) {
+                probing = false;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 记录调用结果
+     *
+     * @param latency 耗时，毫秒
+     * @param success 是否成功
+     * @param now     当前时间
+     */
+    void record(long latency, boolean success, long now) {
+        calls.increment();
+        if (!success) {
+            failures.increment();
+        }
+        lock.lock();
+        try {
+            if (count == latencies.length && failed[next]) {
+                failedCount--;
+            }
+            latencies[next] = latency;
+            failed[next] = !success;
+            if (!success) {
+                failedCount++;
+            }
+            next = (next + 1) % latencies.length;
+            count = Math.min(count + 1, latencies.length);
+
+            if (state == State.HALF_OPEN) {
+                probing = false;
+                if (success) {
+                    state = State.CLOSED;
+                    // 恢复后重新统计，避免窗口内的旧错误立即再次触发熔断
+                    count = 0;
+                    next = 0;
+                    failedCount = 0;
+                } else {
+                    open(now);
+                }
+            } else if (state == State.CLOSED && count >= minCalls && errorRate() >= failureRate) {
+                open(now);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 路由得分，权重越高、耗时越短、错误越少得分越高
+     * 耗时取窗口内的90分位，让长尾变慢的服务商尽快分走流量；
+     * 错误率只降低得分不会降到零，是否摘除交给熔断器判断，否则出过错的服务商再也分不到流量
+     *
+     * @param weight         配置的静态权重
+     * @param defaultLatency 没有样本时假定的耗时
+     */
+    double score(double weight, long defaultLatency) {
+        lock.lock();
+        try {
+            long latency = count == 0 ? defaultLatency : percentile(0.9);
+            return weight * Math.max(MIN_HEALTH, 1 - errorRate()) / Math.max(1, latency);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 窗口内耗时的分位数，样本不足时返回默认值
+     */
+    long latencyPercentile(double p, long defaultValue) {
+        lock.lock();
+        try {
+            return count < minCalls ? defaultValue : percentile(p);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    RouteStats stats(double weight) {
+        lock.lock();
+        try {
+            return new RouteStats(provider, state.name(), weight, count, errorRate(), percentile(0.5), percentile(0.99),
+                    calls.sum(), failures.sum(), rejected.sum());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void open(long now) {
+        state = State.OPEN;
+        openedAt = now;
+    }
+
+    private double errorRate() {
+        return count == 0 ? 0 : (double) failedCount / count;
+    }
+
+    private long percentile(double p) {
+        if (count == 0) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(latencies, count);
+        Arrays.sort(sorted);
+        return sorted[Math.min(count - 1, (int) Math.ceil(p * count) - 1)];
+    }
+}
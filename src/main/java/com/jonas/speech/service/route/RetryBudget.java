@@ -0,0 +1,61 @@
+package com.jonas.speech.service.route;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 重试预算
+ * 每个请求存入 ratio 个令牌，每次重试消耗一个令牌，重试量不会超过请求量的 ratio 倍，
+ * 服务商整体故障时不会因为重试把流量放大
+ *
+ * @author shenjy
+ * @time 2024/7/8 15:05
+ */
+class RetryBudget {
+
+    private final double ratio;
+    private final double maxTokens;
+    private double tokens;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * @param ratio     重试与请求的比例上限
+     * @param minTokens 初始令牌数，低流量时也允许少量重试
+     */
+    RetryBudget(double ratio, int minTokens) {
+        this.ratio = ratio;
+        this.maxTokens = Math.max(minTokens, 1);
+        this.tokens = maxTokens;
+    }
+
+    void deposit() {
+        lock.lock();
+        try {
+            tokens = Math.min(maxTokens, tokens + ratio);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean tryWithdraw() {
+        lock.lock();
+        try {
+            if (tokens >= 1) {
+                tokens -= 1;
+                return true;
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    double tokens() {
+        lock.lock();
+        try {
+            return tokens;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
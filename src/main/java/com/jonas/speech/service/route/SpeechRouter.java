@@ -0,0 +1,694 @@
+package com.jonas.speech.service.route;
+
+import cn.hutool.core.util.RandomUtil;
+import cn.hutool.core.util.StrUtil;
+import com.jonas.speech.common.HedgeStats;
+import com.jonas.speech.common.RouteStats;
+import com.jonas.speech.common.SpeechCapability;
+import com.jonas.speech.common.ThrottledException;
+import com.jonas.speech.service.SpeechService;
+import com.jonas.speech.service.SpeechServiceFactory;
+import com.jonas.speech.service.limit.SpeechLimiter;
+import com.jonas.speech.service.metrics.SpeechMetrics;
+import com.jonas.speech.service.timing.RequestTiming;
+import com.jonas.speech.service.timing.TimingPhase;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * 语音服务路由
+ * 在 speech.router.providers 配置的服务商中，按权重、实时耗时和错误率加权随机选择支持该操作的服务商，
+ * 熔断中的服务商不参与选择；失败后在重试预算内带随机退避换一个服务商重试。
+ * 指定服务商的请求只会发往该服务商，重试也只在该服务商上进行。
+ * 开启对冲后，主服务商超过其近期耗时分位仍未返回时，把同一请求再发给另一个服务商，取先返回的有效结果。
+ * 每次调用前先向 SpeechLimiter 申请限流许可，排队超时的服务商本次跳过
+ *
+ * @author shenjy
+ * @time 2024/7/8 15:20
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class SpeechRouter {
+
+    private final SpeechServiceFactory speechServiceFactory;
+    private final SpeechLimiter speechLimiter;
+    private final Environment environment;
+    private final SpeechMetrics speechMetrics;
+
+    @Value("${speech.service}")
+    private String defaultService;
+    // 参与路由的服务商，逗号分隔，为空时只使用默认服务
+    @Value("${speech.router.providers:}")
+    private String providers;
+    // 统计窗口大小，按调用次数
+    @Value("${speech.router.windowSize:100}")
+    private int windowSize;
+    // 窗口内调用次数达到该值后才会计算熔断
+    @Value("${speech.router.minCalls:20}")
+    private int minCalls;
+    // 触发熔断的错误率
+    @Value("${speech.router.failureRate:0.5}")
+    private double failureRate;
+    // 熔断时长，毫秒
+    @Value("${speech.router.openDuration:30000}")
+    private long openDuration;
+    // 没有样本时假定的耗时，毫秒
+    @Value("${speech.router.defaultLatency:500}")
+    private long defaultLatency;
+    // 单个请求最多尝试次数
+    @Value("${speech.router.maxAttempts:2}")
+    private int maxAttempts;
+    // 重试量与请求量的比例上限
+    @Value("${speech.router.retryRatio:0.1}")
+    private double retryRatio;
+    @Value("${speech.router.retryMinTokens:10}")
+    private int retryMinTokens;
+    // 重试退避的基数和上限，毫秒
+    @Value("${speech.router.backoffBase:50}")
+    private long backoffBase;
+    @Value("${speech.router.backoffMax:1000}")
+    private long backoffMax;
+    // 是否开启对冲请求
+    @Value("${speech.router.hedge.enabled:false}")
+    private boolean hedgeEnabled;
+    // 主服务商耗时超过该分位后发出对冲
+    @Value("${speech.router.hedge.percentile:0.95}")
+    private double hedgePercentile;
+    // 对冲请求与请求量的比例上限
+    @Value("${speech.router.hedge.budget:0.05}")
+    private double hedgeBudgetRatio;
+    @Value("${speech.router.hedge.minTokens:5}")
+    private int hedgeMinTokens;
+    // 对冲延迟下限，毫秒
+    @Value("${speech.router.hedge.minDelay:50}")
+    private long hedgeMinDelay;
+    // 等待结果的最长时间，毫秒
+    @Value("${speech.router.hedge.timeout:60000}")
+    private long hedgeTimeout;
+    // 流式调用占用限流许可的最长时间，毫秒，超过后强制归还
+    @Value("${speech.router.streamTimeout:600000}")
+    private long streamTimeout;
+
+    private final List<String> candidates = new ArrayList<>();
+    private final Map<String, ProviderHealth> healthMap = new ConcurrentHashMap<>();
+    private final Map<String, Double> weightMap = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> hedgeRequestMap = new ConcurrentHashMap<>();
+    private final Map<String, HedgePair> hedgePairMap = new ConcurrentHashMap<>();
+    private RetryBudget retryBudget;
+    private RetryBudget hedgeBudget;
+    // 异步调用的重试在虚拟线程上选择服务商，申请限流许可可能需要排队
+    private final ExecutorService retryExecutor =
+            Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("speech-router-retry-", 0).factory());
+
+    @PostConstruct
+    public void init() {
+        List<String> names = StrUtil.isBlank(providers) ? List.of(defaultService) : StrUtil.splitTrim(providers, ',');
+        for (String name : names) {
+            if (null == speechServiceFactory.getServices().get(name)) {
+                log.warn("speech router ignore unknown provider: {}", name);
+                continue;
+            }
+            candidates.add(name);
+        }
+        retryBudget = new RetryBudget(retryRatio, retryMinTokens);
+        hedgeBudget = new RetryBudget(hedgeBudgetRatio, hedgeMinTokens);
+        log.info("speech router providers: {}", candidates);
+    }
+
+    /**
+     * 执行有返回值的调用，异常或返回空都视为失败，会在重试预算内换服务商重试
+     * 所有尝试都返回空时返回空，与直接调用服务商的行为保持一致
+     *
+     * @param capability 操作类型
+     * @param service    指定的服务商，为空时自动选择
+     * @param call       调用
+     * @return 调用结果
+     */
+    public <T> T execute(SpeechCapability capability, String service, Function<SpeechService, T> call) {
+        retryBudget.deposit();
+        Set<String> tried = new HashSet<>();
+        RuntimeException error = null;
+        for (int attempt = 0; attempt < Math.max(1, maxAttempts); attempt++) {
+            if (attempt > 0) {
+                if (!retryBudget.tryWithdraw()) {
+                    log.warn("speech router retry budget exhausted, capability={}", capability);
+                    break;
+                }
+                backoff(attempt);
+            }
+            Route route = route(capability, service, tried);
+            if (null == route) {
+                break;
+            }
+            tried.add(route.provider);
+            long start = System.currentTimeMillis();
+            try {
+                T result = call.apply(speechServiceFactory.getService(route.provider));
+                finish(route, start, null != result, null);
+                if (null != result) {
+                    return result;
+                }
+                error = null;
+                log.warn("speech router empty result, provider={}, capability={}", route.provider, capability);
+            } catch (RuntimeException e) {
+                finish(route, start, false, e);
+                error = e;
+                log.warn("speech router call failed, provider={}, capability={}", route.provider, capability, e);
+            }
+        }
+        if (null != error) {
+            throw error;
+        }
+        if (tried.isEmpty()) {
+            throw new RuntimeException("没有可用的服务：" + capability);
+        }
+        return null;
+    }
+
+    /**
+     * 打开流式调用，限流许可交给调用方，由调用方在流结束或取消时归还，
+     * 这样并发上限限制的是同时进行的流，而不只是打开流的调用。
+     * 打开失败时归还许可，需要重试时在重试预算内换服务商重试。
+     * 调用方没有归还的许可在 speech.router.streamTimeout 后强制归还，避免泄漏
+     *
+     * @param capability 操作类型
+     * @param service    指定的服务商，为空时自动选择
+     * @param retry      打开失败时是否重试，流式合成可能已经推送了部分音频，不应重试
+     * @param call       打开流的调用
+     * @return 调用结果
+     */
+    public <T> T stream(SpeechCapability capability, String service, boolean retry,
+                        BiFunction<SpeechService, SpeechLimiter.Permit, T> call) {
+        if (retry) {
+            retryBudget.deposit();
+        }
+        Set<String> tried = new HashSet<>();
+        RuntimeException error = null;
+        for (int attempt = 0; attempt < (retry ? Math.max(1, maxAttempts) : 1); attempt++) {
+            if (attempt > 0) {
+                if (!retryBudget.tryWithdraw()) {
+                    log.warn("speech router retry budget exhausted, capability={}", capability);
+                    break;
+                }
+                backoff(attempt);
+            }
+            Route route = route(capability, service, tried);
+            if (null == route) {
+                break;
+            }
+            tried.add(route.provider);
+            long start = System.currentTimeMillis();
+            SpeechLimiter.Permit permit = route.permit;
+            CompletableFuture.delayedExecutor(streamTimeout, TimeUnit.MILLISECONDS)
+                    .execute(() -> permit.release(false, null));
+            try {
+                T result = call.apply(speechServiceFactory.getService(route.provider), permit);
+                record(route, start, true, null);
+                return result;
+            } catch (RuntimeException e) {
+                finish(route, start, false, e);
+                error = e;
+                log.warn("speech router open stream failed, provider={}, capability={}", route.provider, capability, e);
+            }
+        }
+        if (null != error) {
+            throw error;
+        }
+        throw new RuntimeException("没有可用的服务：" + capability);
+    }
+
+    /**
+     * 本次请求是否会发出对冲，未开启对冲或指定了服务商时不会
+     * 不对冲的调用方应当直接使用 execute 的同步调用，不必经过异步接口
+     *
+     * @param service 指定的服务商
+     */
+    public boolean hedging(String service) {
+        return hedgeEnabled && StrUtil.isBlank(service);
+    }
+
+    /**
+     * 执行异步调用，开启对冲时主服务商超过近期耗时分位仍未返回，则把同一请求发给另一个服务商，
+     * 先返回有效结果的一方胜出，另一方被取消。对冲数量受对冲预算限制。
+     * 未开启对冲或指定了服务商时，退化为 execute 的同步调用
+     *
+     * @param capability 操作类型
+     * @param service    指定的服务商，为空时自动选择
+     * @param call       异步调用，取消返回的 future 应当取消底层请求
+     * @param accept     结果是否有效
+     * @return 调用结果，所有服务商都返回无效结果时返回空
+     */
+    public <T> T hedge(SpeechCapability capability, String service, Function<SpeechService, CompletableFuture<T>> call,
+                       Predicate<T> accept) {
+        if (!hedging(service)) {
+            return execute(capability, service, speechService -> {
+                T result = join(call.apply(speechService));
+                return accept.test(result) ? result : null;
+            });
+        }
+
+        hedgeBudget.deposit();
+        Route primaryRoute = route(capability, null, Set.of());
+        if (null == primaryRoute) {
+            throw new RuntimeException("没有可用的服务：" + capability);
+        }
+        String primary = primaryRoute.provider;
+        hedgeRequestMap.computeIfAbsent(primary, key -> new LongAdder()).increment();
+        Attempt<T> first = attempt(primaryRoute, call, accept);
+        long delay = Math.max(hedgeMinDelay, health(primary).latencyPercentile(hedgePercentile, defaultLatency));
+
+        Attempt<T> second = null;
+        try {
+            try {
+                return first.result.get(delay, TimeUnit.MILLISECONDS).value;
+            } catch (TimeoutException | ExecutionException e) {
+                // 超过对冲延迟或主服务商已失败，发出对冲
+            }
+            Route secondaryRoute = hedgeBudget.tryWithdraw() ? route(capability, null, Set.of(primary)) : null;
+            if (null == secondaryRoute) {
+                return first.result.get(hedgeTimeout, TimeUnit.MILLISECONDS).value;
+            }
+            String secondary = secondaryRoute.provider;
+            second = attempt(secondaryRoute, call, accept);
+            HedgePair pair = hedgePairMap.computeIfAbsent(primary + "->" + secondary, key -> new HedgePair(primary, secondary));
+            pair.hedged.increment();
+            log.info("speech router hedge, primary={}, secondary={}, delay={}ms", primary, secondary, delay);
+
+            Hit<T> hit = firstHit(first.result, second.result).get(hedgeTimeout, TimeUnit.MILLISECONDS);
+            (primary.equals(hit.provider) ? pair.primaryWins : pair.secondaryWins).increment();
+            return hit.value;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof EmptyResultException) {
+                return null;
+            }
+            throw e.getCause() instanceof RuntimeException runtimeException
+                    ? runtimeException : new RuntimeException(e.getCause());
+        } catch (TimeoutException e) {
+            throw new RuntimeException("识别超时：" + capability);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } finally {
+            // 取消未完成的一方，已完成的取消无效果
+            first.call.cancel(true);
+            if (null != second) {
+                second.call.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * 执行异步调用，不等待结果，调用在途时不占用线程
+     * 失败或结果无效时在重试预算内退避后换服务商重试，重试的选择和排队在虚拟线程上进行。
+     * 取消返回的 future 或让它超时会取消进行中的调用
+     *
+     * @param capability 操作类型
+     * @param service    指定的服务商，为空时自动选择
+     * @param call       异步调用，取消返回的 future 应当取消底层请求
+     * @param accept     结果是否有效
+     * @return 调用结果，所有尝试都返回无效结果时以空完成
+     */
+    public <T> CompletableFuture<T> executeAsync(SpeechCapability capability, String service,
+                                                 Function<SpeechService, CompletableFuture<T>> call, Predicate<T> accept) {
+        retryBudget.deposit();
+        CompletableFuture<T> result = new CompletableFuture<>();
+        executeAsync(capability, service, call, accept, 0, new HashSet<>(), null, result);
+        return result;
+    }
+
+    private <T> void executeAsync(SpeechCapability capability, String service, Function<SpeechService, CompletableFuture<T>> call,
+                                  Predicate<T> accept, int attempt, Set<String> tried, Throwable lastError,
+                                  CompletableFuture<T> result) {
+        if (result.isDone()) {
+            return;
+        }
+        Route route;
+        try {
+            route = route(capability, service, tried);
+        } catch (RuntimeException e) {
+            result.completeExceptionally(e);
+            return;
+        }
+        if (null == route) {
+            if (null != lastError) {
+                result.completeExceptionally(lastError);
+            } else if (tried.isEmpty()) {
+                result.completeExceptionally(new RuntimeException("没有可用的服务：" + capability));
+            } else {
+                result.complete(null);
+            }
+            return;
+        }
+        tried.add(route.provider);
+        Attempt<T> current = attempt(route, call, accept);
+        result.whenComplete((value, e) -> {
+            if (null != e) {
+                current.call.cancel(true);
+            }
+        });
+        current.result.whenComplete((hit, e) -> {
+            if (null == e) {
+                result.complete(hit.value);
+                return;
+            }
+            Throwable error = e instanceof EmptyResultException ? null : unwrap(e);
+            if (null == error) {
+                log.warn("speech router empty result, provider={}, capability={}", route.provider, capability);
+            } else {
+                log.warn("speech router call failed, provider={}, capability={}", route.provider, capability, error);
+            }
+            if (result.isDone()) {
+                return;
+            }
+            if (attempt + 1 >= Math.max(1, maxAttempts) || !retryBudget.tryWithdraw()) {
+                if (null != error) {
+                    result.completeExceptionally(error);
+                } else {
+                    result.complete(null);
+                }
+                return;
+            }
+            CompletableFuture.delayedExecutor(backoffDelay(attempt + 1), TimeUnit.MILLISECONDS, retryExecutor)
+                    .execute(() -> executeAsync(capability, service, call, accept, attempt + 1, tried, error, result));
+        });
+    }
+
+    /**
+     * 对冲统计，按主备服务商组合
+     */
+    public List<HedgeStats> hedgeStats() {
+        List<HedgeStats> list = new ArrayList<>();
+        hedgePairMap.values().forEach(pair -> {
+            long requests = hedgeRequestMap.getOrDefault(pair.primary, new LongAdder()).sum();
+            long hedged = pair.hedged.sum();
+            long secondaryWins = pair.secondaryWins.sum();
+            list.add(new HedgeStats(pair.primary, pair.secondary, requests, hedged, pair.primaryWins.sum(), secondaryWins,
+                    requests == 0 ? 0 : (double) hedged / requests, hedged == 0 ? 0 : (double) secondaryWins / hedged));
+        });
+        return list;
+    }
+
+    /**
+     * 各服务商路由统计
+     */
+    public List<RouteStats> stats() {
+        List<RouteStats> list = new ArrayList<>();
+        healthMap.forEach((provider, health) -> list.add(health.stats(weight(provider))));
+        return list;
+    }
+
+    /**
+     * 是否有服务商支持该操作，指定服务商时只看该服务商，不考虑熔断状态
+     *
+     * @param capability 操作类型
+     * @param service    指定的服务商，为空时检查所有参与路由的服务商
+     */
+    public boolean supports(SpeechCapability capability, String service) {
+        if (StrUtil.isNotBlank(service)) {
+            SpeechService speechService = speechServiceFactory.getService(service);
+            return null != speechService && speechService.getCapabilities().contains(capability);
+        }
+        return candidates.stream()
+                .anyMatch(provider -> speechServiceFactory.getService(provider).getCapabilities().contains(capability));
+    }
+
+    /**
+     * 可能处理该操作的服务，指定服务商时只有该服务商，不考虑熔断状态
+     * 用于在进入路由之前查缓存
+     *
+     * @param capability 操作类型
+     * @param service    指定的服务商，为空时返回所有参与路由且支持该操作的服务商
+     */
+    public List<SpeechService> services(SpeechCapability capability, String service) {
+        if (StrUtil.isNotBlank(service)) {
+            SpeechService speechService = speechServiceFactory.getService(service);
+            return null != speechService && speechService.getCapabilities().contains(capability)
+                    ? List.of(speechService) : List.of();
+        }
+        return candidates.stream()
+                .map(speechServiceFactory::getService)
+                .filter(speechService -> speechService.getCapabilities().contains(capability))
+                .toList();
+    }
+
+    /**
+     * 剩余的重试令牌数
+     */
+    public double retryTokens() {
+        return retryBudget.tokens();
+    }
+
+    private String choose(SpeechCapability capability, String service, Set<String> tried) {
+        long now = System.currentTimeMillis();
+        if (StrUtil.isNotBlank(service)) {
+            // 指定服务商时不受熔断限制，由调用方自行决定
+            SpeechService speechService = speechServiceFactory.getService(service);
+            if (!speechService.getCapabilities().contains(capability)) {
+                throw new RuntimeException("服务不支持该操作：" + service + " " + capability);
+            }
+            return service;
+        }
+
+        Map<String, Double> scores = new LinkedHashMap<>();
+        for (String provider : candidates) {
+            if (tried.contains(provider)
+                    || !speechServiceFactory.getService(provider).getCapabilities().contains(capability)) {
+                continue;
+            }
+            ProviderHealth health = health(provider);
+            if (health.isAvailable(now)) {
+                scores.put(provider, health.score(weight(provider), defaultLatency));
+            }
+        }
+        while (!scores.isEmpty()) {
+            String provider = weightedRandom(scores);
+            if (health(provider).tryAcquire(now)) {
+                return provider;
+            }
+            scores.remove(provider);
+        }
+        return null;
+    }
+
+    private <T> Attempt<T> attempt(Route route, Function<SpeechService, CompletableFuture<T>> call, Predicate<T> accept) {
+        String provider = route.provider;
+        long start = System.currentTimeMillis();
+        CompletableFuture<T> future;
+        try {
+            future = call.apply(speechServiceFactory.getService(provider));
+        } catch (RuntimeException e) {
+            future = CompletableFuture.failedFuture(e);
+        }
+        CompletableFuture<Hit<T>> result = new CompletableFuture<>();
+        future.whenComplete((value, e) -> {
+            if (e instanceof CancellationException) {
+                // 被对冲取消的请求不计入服务商健康统计，也不影响并发上限
+                route.permit.release(false, e);
+                health(provider).releaseProbe();
+                speechMetrics.providerCall(provider, route.capability, System.currentTimeMillis() - start,
+                        SpeechMetrics.CANCELLED);
+                result.completeExceptionally(e);
+                return;
+            }
+            boolean success = null == e && accept.test(value);
+            finish(route, start, success, e);
+            if (success) {
+                result.complete(new Hit<>(provider, value));
+            } else {
+                result.completeExceptionally(null != e ? e : new EmptyResultException(provider));
+            }
+        });
+        return new Attempt<>(future, result);
+    }
+
+    /**
+     * 第一个有效结果，全部失败时以最后一个失败结束
+     */
+    private static <T> CompletableFuture<Hit<T>> firstHit(CompletableFuture<Hit<T>> first, CompletableFuture<Hit<T>> second) {
+        CompletableFuture<Hit<T>> winner = new CompletableFuture<>();
+        AtomicInteger remaining = new AtomicInteger(2);
+        for (CompletableFuture<Hit<T>> future : List.of(first, second)) {
+            future.whenComplete((hit, e) -> {
+                if (null == e) {
+                    winner.complete(hit);
+                } else if (remaining.decrementAndGet() == 0) {
+                    winner.completeExceptionally(e);
+                }
+            });
+        }
+        return winner;
+    }
+
+    private static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException runtimeException
+                    ? runtimeException : new RuntimeException(e.getCause());
+        }
+    }
+
+    private static String weightedRandom(Map<String, Double> scores) {
+        double total = scores.values().stream().mapToDouble(Double::doubleValue).sum();
+        if (total <= 0) {
+            return new ArrayList<>(scores.keySet()).get(RandomUtil.randomInt(scores.size()));
+        }
+        double r = RandomUtil.randomDouble(total);
+        String chosen = null;
+        for (Map.Entry<String, Double> entry : scores.entrySet()) {
+            chosen = entry.getKey();
+            r -= entry.getValue();
+            if (r < 0) {
+                break;
+            }
+        }
+        return chosen;
+    }
+
+    /**
+     * 选择服务商并申请限流许可，排队超时的服务商跳过，换下一个服务商
+     * 首次选择时所有服务商都被限流则抛出限流异常
+     */
+    private Route route(SpeechCapability capability, String service, Set<String> tried) {
+        Set<String> skipped = new HashSet<>(tried);
+        boolean throttled = false;
+        while (true) {
+            String provider = choose(capability, service, skipped);
+            if (null == provider) {
+                if (throttled && tried.isEmpty()) {
+                    throw new ThrottledException("请求过多，请稍后重试：" + capability);
+                }
+                return null;
+            }
+            RequestTiming timing = RequestTiming.current();
+            long waitStart = System.nanoTime();
+            SpeechLimiter.Permit permit = speechLimiter.acquire(provider);
+            if (null != timing) {
+                timing.add(TimingPhase.LIMIT, System.nanoTime() - waitStart);
+            }
+            if (null != permit) {
+                return new Route(provider, capability, permit, timing);
+            }
+            health(provider).releaseProbe();
+            log.warn("speech router provider limited, provider={}, capability={}", provider, capability);
+            if (StrUtil.isNotBlank(service)) {
+                throw new ThrottledException("请求过多，请稍后重试：" + service);
+            }
+            skipped.add(provider);
+            throttled = true;
+        }
+    }
+
+    private void finish(Route route, long start, boolean success, Throwable error) {
+        route.permit.release(success, error);
+        record(route, start, success, error);
+    }
+
+    private void record(Route route, long start, boolean success, Throwable error) {
+        long now = System.currentTimeMillis();
+        health(route.provider).record(now - start, success, now);
+        speechMetrics.providerCall(route.provider, route.capability, now - start, outcome(success, error));
+        if (null != route.timing) {
+            route.timing.add(TimingPhase.PROVIDER, TimeUnit.MILLISECONDS.toNanos(now - start));
+            route.timing.setProvider(route.provider);
+        }
+    }
+
+    private static String outcome(boolean success, Throwable error) {
+        if (success) {
+            return SpeechMetrics.SUCCESS;
+        }
+        if (null == error) {
+            return SpeechMetrics.EMPTY;
+        }
+        return unwrap(error) instanceof ThrottledException ? SpeechMetrics.THROTTLED : SpeechMetrics.ERROR;
+    }
+
+    private ProviderHealth health(String provider) {
+        return healthMap.computeIfAbsent(provider,
+                key -> new ProviderHealth(key, windowSize, minCalls, failureRate, openDuration));
+    }
+
+    private double weight(String provider) {
+        return weightMap.computeIfAbsent(provider,
+                key -> environment.getProperty("speech.router.weight." + key, Double.class, 1.0));
+    }
+
+    private void backoff(int attempt) {
+        try {
+            Thread.sleep(backoffDelay(attempt));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * 指数退避加全随机抖动，避免多个请求同时重试
+     */
+    private long backoffDelay(int attempt) {
+        long cap = Math.min(backoffMax, backoffBase << Math.min(attempt, 16));
+        return RandomUtil.randomLong(cap + 1);
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        while ((error instanceof CompletionException || error instanceof ExecutionException) && null != error.getCause()) {
+            error = error.getCause();
+        }
+        return error;
+    }
+
+    private record Route(String provider, SpeechCapability capability, SpeechLimiter.Permit permit, RequestTiming timing) {
+    }
+
+    private record Attempt<T>(CompletableFuture<T> call, CompletableFuture<Hit<T>> result) {
+    }
+
+    private record Hit<T>(String provider, T value) {
+    }
+
+    private static class HedgePair {
+        private final String primary;
+        private final String secondary;
+        private final LongAdder hedged = new LongAdder();
+        private final LongAdder primaryWins = new LongAdder();
+        private final LongAdder secondaryWins = new LongAdder();
+
+        HedgePair(String primary, String secondary) {
+            this.primary = primary;
+            this.secondary = secondary;
+        }
+    }
+
+    private static class EmptyResultException extends RuntimeException {
+        EmptyResultException(String provider) {
+            super(provider + "返回空结果");
+        }
+    }
+}
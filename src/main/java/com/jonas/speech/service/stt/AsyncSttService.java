@@ -0,0 +1,148 @@
+package com.jonas.speech.service.stt;
+
+import cn.hutool.core.thread.NamedThreadFactory;
+import cn.hutool.core.util.IdUtil;
+import com.jonas.speech.common.AsyncSttResult;
+import com.jonas.speech.common.AsyncSttStatus;
+import com.jonas.speech.service.SpeechBusinessService;
+import com.jonas.speech.service.SseService;
+import com.jonas.speech.service.metrics.SpeechMetrics;
+import com.jonas.speech.service.upload.AudioUpload;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 异步语音识别
+ * 提交后立即返回任务ID，识别通过服务商的异步请求进行，等待结果时不占用请求线程，同一进程可以同时保持大量在途识别。
+ * 结果通过轮询获取，提交时指定了SSE客户端ID的同时推送给该客户端；完成的结果保留 resultTtl 后清除，
+ * 上传的音频在识别结束且服务商请求不再读取时释放
+ *
+ * @author shenjy
+ * @time 2024/8/19 14:30
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class AsyncSttService {
+
+    // 识别超时时间，超时后取消服务商请求，毫秒
+    @Value("${speech.stt.asyncTimeout:60000}")
+    private long timeout;
+    // 完成的结果保留时间，毫秒
+    @Value("${speech.stt.async.resultTtl:600000}")
+    private long resultTtl;
+    // 同时识别中的任务数上限，已完成的结果由 resultTtl 清除，不计入
+    @Value("${speech.stt.async.maxTasks:10000}")
+    private int maxTasks;
+
+    private final SpeechBusinessService speechBusinessService;
+    private final SseService sseService;
+    private final SpeechMetrics speechMetrics;
+
+    private final Map<String, AsyncSttResult> resultMap = new ConcurrentHashMap<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private ScheduledExecutorService cleaner;
+
+    @PostConstruct
+    public void init() {
+        cleaner = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("stt-async-cleaner-", true));
+        long interval = Math.max(1000, resultTtl / 10);
+        cleaner.scheduleWithFixedDelay(this::evict, interval, interval, TimeUnit.MILLISECONDS);
+        speechMetrics.gauge("speech.stt.async.pending", "识别中的异步任务数", pending, AtomicInteger::get);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        cleaner.shutdownNow();
+    }
+
+    /**
+     * 提交识别任务
+     *
+     * @param upload   上传的音频，识别结束后关闭；提交失败时也会关闭
+     * @param service  指定的服务商，为空时由路由选择
+     * @param clientId SSE客户端ID，为空时只能轮询结果
+     * @return 识别中的任务
+     */
+    public AsyncSttResult submit(AudioUpload upload, String service, Long clientId) {
+        if (pending.incrementAndGet() > maxTasks) {
+            pending.decrementAndGet();
+            upload.close();
+            throw new RuntimeException("异步识别任务过多，请稍后重试");
+        }
+        AsyncSttResult task = new AsyncSttResult(IdUtil.simpleUUID(), AsyncSttStatus.PENDING, null, null,
+                System.currentTimeMillis(), 0);
+        resultMap.put(task.getTaskId(), task);
+
+        CompletableFuture<String> future;
+        try {
+            future = speechBusinessService.speechToTextAsync(upload, service);
+        } catch (RuntimeException e) {
+            future = CompletableFuture.failedFuture(e);
+        }
+        // 超时会取消识别的调用链，服务商请求随之取消
+        if (timeout > 0) {
+            future.orTimeout(timeout, TimeUnit.MILLISECONDS);
+        }
+        future.whenComplete((text, e) -> {
+            // 只释放本任务持有的引用，仍在读取音频的服务商请求结束后才归还缓冲区
+            upload.close();
+            pending.decrementAndGet();
+            AsyncSttResult result = finish(task, text, e);
+            resultMap.put(task.getTaskId(), result);
+            if (null != clientId) {
+                sseService.pushObj(clientId, result);
+            }
+        });
+        return task;
+    }
+
+    /**
+     * 查询任务结果
+     *
+     * @return 任务不存在或结果已过期时返回空
+     */
+    public AsyncSttResult get(String taskId) {
+        return resultMap.get(taskId);
+    }
+
+    private static AsyncSttResult finish(AsyncSttResult task, String text, Throwable e) {
+        long elapsedMs = System.currentTimeMillis() - task.getSubmitTime();
+        if (null == e) {
+            return new AsyncSttResult(task.getTaskId(), AsyncSttStatus.SUCCESS, null == text ? "" : text, null,
+                    task.getSubmitTime(), elapsedMs);
+        }
+        Throwable cause = e instanceof CompletionException && null != e.getCause() ? e.getCause() : e;
+        if (cause instanceof TimeoutException) {
+            log.warn("async speech to text timeout, taskId={}", task.getTaskId());
+            return new AsyncSttResult(task.getTaskId(), AsyncSttStatus.TIMEOUT, null, "识别超时",
+                    task.getSubmitTime(), elapsedMs);
+        }
+        log.error("async speech to text error, taskId={}", task.getTaskId(), cause);
+        return new AsyncSttResult(task.getTaskId(), AsyncSttStatus.FAILED, null, String.valueOf(cause.getMessage()),
+                task.getSubmitTime(), elapsedMs);
+    }
+
+    /**
+     * 清除超过保留时间的结果，识别中的任务由超时保证最终完成
+     */
+    private void evict() {
+        long now = System.currentTimeMillis();
+        resultMap.values().removeIf(result -> result.getStatus() != AsyncSttStatus.PENDING
+                && result.getSubmitTime() + result.getElapsedMs() + resultTtl < now);
+    }
+}
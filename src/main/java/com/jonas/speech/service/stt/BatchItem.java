@@ -0,0 +1,13 @@
+package com.jonas.speech.service.stt;
+
+/**
+ * 批量识别中的一条音频
+ *
+ * @param index 在请求中的序号，从0开始
+ * @param name  文件名
+ * @param audio 音频数据
+ * @author shenjy
+ * @time 2024/7/30 14:20
+ */
+public record BatchItem(int index, String name, byte[] audio) {
+}
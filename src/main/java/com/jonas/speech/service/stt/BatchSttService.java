@@ -0,0 +1,298 @@
+package com.jonas.speech.service.stt;
+
+import cn.hutool.core.util.StrUtil;
+import com.jonas.speech.common.BatchResult;
+import com.jonas.speech.common.BatchSummary;
+import com.jonas.speech.service.SpeechBusinessService;
+import com.jonas.speech.service.audio.WavHeader;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * 批量语音识别
+ * 一次请求上传多条音频，zip压缩包会展开为其中的每个文件。每个请求最多同时识别 parallel 条，
+ * 每条识别完成后立即交给调用方，按完成顺序返回；单条失败只记录在该条结果上，不影响其余音频。
+ * 音频边读取边识别，有空闲的识别名额时才读取下一条，内存中最多只有 parallel 条音频；
+ * 压缩包边解压边检查条目数、单个文件和解压后的总字节数，不信任压缩包里声明的大小
+ *
+ * @author shenjy
+ * @time 2024/7/30 14:30
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class BatchSttService {
+
+    // 每个批量请求同时识别的音频数
+    @Value("${speech.batch.parallel:8}")
+    private int parallel;
+    // 每个批量请求的最大音频数，压缩包内的目录也计入
+    @Value("${speech.batch.maxItems:1000}")
+    private int maxItems;
+    // 单个文件的最大字节数
+    @Value("${speech.batch.maxItemBytes:52428800}")
+    private long maxItemBytes;
+    // 每个批量请求解压后的最大总字节数
+    @Value("${speech.batch.maxTotalBytes:524288000}")
+    private long maxTotalBytes;
+    // 整个批量请求的最长识别时间，毫秒
+    @Value("${speech.batch.timeout:600000}")
+    private long timeout;
+
+    private final SpeechBusinessService speechBusinessService;
+
+    private final ExecutorService executor =
+            Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("stt-batch-", 0).factory());
+
+    @PreDestroy
+    public void destroy() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * 批量识别上传的文件，以 .zip 结尾的文件展开为其中的每个文件，按上传顺序编号
+     *
+     * @param files    上传的文件
+     * @param service  指定的服务商，为空时每条音频单独由路由选择
+     * @param consumer 接收单条结果
+     * @return 汇总
+     */
+    public BatchSummary recognize(List<MultipartFile> files, String service, Consumer<BatchResult> consumer) {
+        return recognize(new BatchReader(files.iterator(), null), service, consumer);
+    }
+
+    /**
+     * 批量识别zip压缩包中的每个文件，压缩包从输入流边读边解压，不需要整体读入
+     *
+     * @param zip      zip压缩包
+     * @param service  指定的服务商，为空时每条音频单独由路由选择
+     * @param consumer 接收单条结果
+     * @return 汇总
+     */
+    public BatchSummary recognize(InputStream zip, String service, Consumer<BatchResult> consumer) {
+        return recognize(new BatchReader(Collections.emptyIterator(), new ZipInputStream(zip)), service, consumer);
+    }
+
+    /**
+     * 批量识别，在调用线程上读取音频，并按完成顺序把每条结果交给 consumer
+     * consumer 抛出异常时，比如客户端断开，或者上传的内容超出限制时，取消未完成的识别并抛出异常。
+     * 超时后不再读取剩余的音频，已经完成的结果照常返回，识别中的音频返回超时错误
+     */
+    private BatchSummary recognize(BatchReader reader, String service, Consumer<BatchResult> consumer) {
+        long start = System.currentTimeMillis();
+        long deadline = start + timeout;
+        Semaphore permits = new Semaphore(parallel);
+        BlockingQueue<BatchResult> results = new LinkedBlockingQueue<>();
+        // 识别中的音频，按序号
+        Map<Integer, Pending> pending = new LinkedHashMap<>();
+        int total = 0;
+        int succeeded = 0;
+        long audioMs = 0;
+        boolean exhausted = false;
+        try (reader) {
+            while (!exhausted || !pending.isEmpty()) {
+                long remaining = deadline - System.currentTimeMillis();
+                // 先交出已完成的结果，有空闲名额时再读取下一条，否则等待识别完成；
+                // 超时后只交出已经完成的结果
+                BatchResult result = results.poll();
+                if (null == result && remaining > 0 && !exhausted && permits.tryAcquire()) {
+                    BatchItem item = reader.next();
+                    if (null == item) {
+                        exhausted = true;
+                        permits.release();
+                        continue;
+                    }
+                    total++;
+                    pending.put(item.index(), new Pending(item.name(), executor.submit(() -> {
+                        BatchResult itemResult;
+                        try {
+                            itemResult = recognize(item, service);
+                        } finally {
+                            permits.release();
+                        }
+                        results.add(itemResult);
+                    })));
+                    continue;
+                }
+                if (null == result && remaining > 0) {
+                    result = results.poll(remaining, TimeUnit.MILLISECONDS);
+                }
+                if (null == result) {
+                    break;
+                }
+                pending.remove(result.getIndex());
+                succeeded += null == result.getError() ? 1 : 0;
+                audioMs += result.getAudioMs();
+                consumer.accept(result);
+            }
+            // 超时未完成的音频取消识别，返回超时错误，音频时长未知
+            for (Map.Entry<Integer, Pending> entry : pending.entrySet()) {
+                Pending item = entry.getValue();
+                item.future().cancel(true);
+                consumer.accept(new BatchResult(entry.getKey(), item.name(), null, "识别超时", 0,
+                        System.currentTimeMillis() - start));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            pending.values().forEach(item -> item.future().cancel(true));
+            throw new RuntimeException("批量识别被中断");
+        } catch (IOException e) {
+            pending.values().forEach(item -> item.future().cancel(true));
+            throw new RuntimeException("读取批量识别的音频失败", e);
+        } catch (RuntimeException e) {
+            pending.values().forEach(item -> item.future().cancel(true));
+            throw e;
+        }
+
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+        BatchSummary summary = new BatchSummary(total, succeeded, total - succeeded, audioMs, elapsed,
+                total * 1000.0 / elapsed, audioMs / (double) elapsed);
+        log.info("批量识别完成, total={}, failed={}, elapsed={}ms, clips/s={}, audio s/s={}",
+                summary.getTotal(), summary.getFailed(), elapsed,
+                String.format("%.2f", summary.getClipsPerSecond()), String.format("%.2f", summary.getAudioSecondsPerSecond()));
+        return summary;
+    }
+
+    /**
+     * 识别单条音频，解析和识别出错都只记在这一条上
+     */
+    private BatchResult recognize(BatchItem item, String service) {
+        long start = System.currentTimeMillis();
+        long audioMs = 0;
+        try {
+            audioMs = audioMs(item.audio());
+            String text = speechBusinessService.speechToText(item.audio(), service);
+            return new BatchResult(item.index(), item.name(), text, null, audioMs, System.currentTimeMillis() - start);
+        } catch (RuntimeException e) {
+            log.warn("批量识别单条失败, index={}, name={}", item.index(), item.name(), e);
+            return new BatchResult(item.index(), item.name(), null,
+                    StrUtil.blankToDefault(e.getMessage(), "识别失败"), audioMs, System.currentTimeMillis() - start);
+        }
+    }
+
+    private static long audioMs(byte[] audio) {
+        WavHeader header = WavHeader.parse(audio);
+        if (null == header) {
+            return 0;
+        }
+        return header.dataLength() * 1000L / ((long) header.spec().sampleRate() * header.spec().frameBytes());
+    }
+
+    private record Pending(String name, Future<?> future) {
+    }
+
+    /**
+     * 逐条读取上传的音频，zip压缩包边解压边读取
+     */
+    private class BatchReader implements Closeable {
+        private final Iterator<MultipartFile> files;
+        private final byte[] buffer = new byte[8192];
+        private ZipInputStream zip;
+        private int entries;
+        private int index;
+        private long totalBytes;
+
+        BatchReader(Iterator<MultipartFile> files, ZipInputStream zip) {
+            this.files = files;
+            this.zip = zip;
+        }
+
+        /**
+         * 读取下一条音频
+         *
+         * @return 没有更多音频时返回空
+         */
+        BatchItem next() throws IOException {
+            while (true) {
+                if (null != zip) {
+                    ZipEntry entry = zip.getNextEntry();
+                    if (null != entry) {
+                        count();
+                        if (!entry.isDirectory()) {
+                            return item(entry.getName(), inflate(entry.getName()));
+                        }
+                        continue;
+                    }
+                    zip.close();
+                    zip = null;
+                }
+                if (!files.hasNext()) {
+                    return null;
+                }
+                MultipartFile file = files.next();
+                String name = StrUtil.blankToDefault(file.getOriginalFilename(), file.getName());
+                if (StrUtil.endWithIgnoreCase(name, ".zip")) {
+                    zip = new ZipInputStream(file.getInputStream());
+                    continue;
+                }
+                count();
+                if (file.getSize() > maxItemBytes) {
+                    throw new RuntimeException("文件过大: " + name);
+                }
+                return item(name, file.getBytes());
+            }
+        }
+
+        /**
+         * 按实际解压的字节数限制大小
+         */
+        private byte[] inflate(String name) throws IOException {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            for (int read = zip.read(buffer); read > 0; read = zip.read(buffer)) {
+                if (output.size() + read > maxItemBytes) {
+                    throw new RuntimeException("压缩包内文件过大: " + name);
+                }
+                if (totalBytes + output.size() + read > maxTotalBytes) {
+                    throw new RuntimeException("批量识别的音频总大小超过" + maxTotalBytes + "字节");
+                }
+                output.write(buffer, 0, read);
+            }
+            return output.toByteArray();
+        }
+
+        private void count() {
+            if (++entries > maxItems) {
+                throw new RuntimeException("单次批量识别最多" + maxItems + "条音频");
+            }
+        }
+
+        private BatchItem item(String name, byte[] audio) {
+            totalBytes += audio.length;
+            if (totalBytes > maxTotalBytes) {
+                throw new RuntimeException("批量识别的音频总大小超过" + maxTotalBytes + "字节");
+            }
+            return new BatchItem(index++, name, audio);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (null != zip) {
+                zip.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package com.jonas.speech.service.stt;
+
+import cn.hutool.core.util.StrUtil;
+import com.jonas.speech.common.Transcript;
+import com.jonas.speech.common.TranscriptSegment;
+import com.jonas.speech.service.audio.AudioChunk;
+import com.jonas.speech.service.audio.AudioNormalizer;
+import com.jonas.speech.service.audio.AudioSpec;
+import com.jonas.speech.service.audio.VoiceActivityDetector;
+import com.jonas.speech.service.audio.WavHeader;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+
+/**
+ * 长音频识别
+ * 百度、腾讯、阿里云的一句话识别只接受60秒左右的音频，超过阈值的音频在停顿处切成多段，
+ * 最多同时识别 parallel 段，按时间顺序拼接，并根据切分处的停顿长短修复衔接处的标点
+ *
+ * @author shenjy
+ * @time 2024/7/29 11:20
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class LongAudioService {
+
+    // 句末标点
+    private static final String SENTENCE_ENDS = "。！？!?；;…";
+    // 片段开头需要去掉的标点
+    private static final String LEADING_PUNCTUATION = "，。！？、；：,.!?;:";
+
+    @Value("${speech.longAudio.enabled:true}")
+    private boolean enabled;
+    // 超过该时长的音频按长音频识别，毫秒
+    @Value("${speech.longAudio.threshold:50000}")
+    private long threshold;
+    // 片段的最长时长，毫秒
+    @Value("${speech.longAudio.maxChunk:50000}")
+    private int maxChunk;
+    // 片段的最短时长，毫秒
+    @Value("${speech.longAudio.minChunk:20000}")
+    private int minChunk;
+    // 同时识别的片段数
+    @Value("${speech.longAudio.parallel:4}")
+    private int parallel;
+    // 整段音频识别的最长时间，毫秒
+    @Value("${speech.longAudio.timeout:120000}")
+    private long timeout;
+    // 切分处的停顿达到该时长时视为句子结束，毫秒
+    @Value("${speech.longAudio.sentencePause:400}")
+    private long sentencePause;
+
+    private final AudioNormalizer audioNormalizer;
+    private final VoiceActivityDetector voiceActivityDetector;
+
+    private final ExecutorService executor =
+            Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("stt-chunk-", 0).factory());
+
+    @PreDestroy
+    public void destroy() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * 是否需要按长音频识别，只判断能解析的WAV音频
+     */
+    public boolean isLong(byte[] audio) {
+        return isLong(ByteBuffer.wrap(audio));
+    }
+
+    /**
+     * 是否需要按长音频识别，只判断能解析的WAV音频
+     *
+     * @param audio 音频数据，从下标0开始
+     */
+    public boolean isLong(ByteBuffer audio) {
+        if (!enabled) {
+            return false;
+        }
+        WavHeader header = WavHeader.parse(audio);
+        return null != header && durationMs(header.spec(), header.dataLength()) > threshold;
+    }
+
+    /**
+     * 切分后并行识别
+     * 单个片段失败时记录在该片段上，其余片段照常拼接并标记结果不完整；全部失败时抛出异常
+     *
+     * @param audio      WAV音频
+     * @param recognizer 识别单个片段，入参为WAV音频
+     * @return 识别结果
+     */
+    public Transcript recognize(byte[] audio, Function<byte[], String> recognizer) {
+        return recognize(ByteBuffer.wrap(audio), recognizer);
+    }
+
+    /**
+     * 切分后并行识别，音频可以是映射的临时文件
+     * 格式已经是16位单声道时直接在原缓冲区上切分，只有正在识别的片段复制到堆上
+     *
+     * @param audio      WAV音频，从下标0开始
+     * @param recognizer 识别单个片段，入参为WAV音频
+     * @return 识别结果
+     */
+    public Transcript recognize(ByteBuffer audio, Function<byte[], String> recognizer) {
+        long start = System.currentTimeMillis();
+        WavHeader header = WavHeader.parse(audio);
+        if (null == header) {
+            throw new RuntimeException("长音频识别只支持WAV格式");
+        }
+        // 切分需要16位单声道，采样率按服务商通常支持的8k、16k就近选择
+        AudioSpec spec = AudioSpec.nearest(header.spec());
+        ByteBuffer pcm = audioNormalizer.convert(audio, spec);
+        List<AudioChunk> chunks = voiceActivityDetector.split(pcm, minChunk, maxChunk);
+
+        Semaphore permits = new Semaphore(parallel);
+        List<CompletableFuture<String>> futures = new ArrayList<>(chunks.size());
+        for (AudioChunk chunk : chunks) {
+            futures.add(CompletableFuture.supplyAsync(() -> {
+                permits.acquireUninterruptibly();
+                try {
+                    return recognizer.apply(wav(spec, pcm, chunk));
+                } finally {
+                    permits.release();
+                }
+            }, executor));
+        }
+
+        long deadline = start + timeout;
+        List<String> texts = new ArrayList<>(chunks.size());
+        List<String> errors = new ArrayList<>(chunks.size());
+        for (CompletableFuture<String> future : futures) {
+            String text = "";
+            String error = null;
+            try {
+                text = StrUtil.nullToEmpty(future.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                futures.forEach(f -> f.cancel(true));
+                throw new RuntimeException("长音频识别被中断");
+            } catch (TimeoutException e) {
+                future.cancel(true);
+                error = "识别超时";
+            } catch (ExecutionException e) {
+                error = StrUtil.blankToDefault(e.getCause().getMessage(), "识别失败");
+            }
+            texts.add(text);
+            errors.add(error);
+        }
+        if (errors.stream().allMatch(error -> null != error)) {
+            throw new RuntimeException("长音频识别失败: " + errors.get(0));
+        }
+
+        List<String> repaired = repair(texts, chunks.stream().map(AudioChunk::pauseMs).toList(), sentencePause);
+        List<TranscriptSegment> segments = new ArrayList<>(chunks.size());
+        for (int i = 0; i < chunks.size(); i++) {
+            AudioChunk chunk = chunks.get(i);
+            segments.add(new TranscriptSegment(chunk.startMs(), chunk.endMs(), repaired.get(i), errors.get(i)));
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        long failed = errors.stream().filter(error -> null != error).count();
+        log.info("长音频识别完成, duration={}ms, chunks={}, failed={}, elapsed={}ms",
+                durationMs(header.spec(), header.dataLength()), chunks.size(), failed, elapsed);
+        return new Transcript(join(repaired), failed == 0, durationMs(header.spec(), header.dataLength()), segments,
+                elapsed);
+    }
+
+    /**
+     * 修复片段衔接处的标点
+     * 停顿较短时说明句子被切开，去掉前一段结尾的句号；停顿较长且前一段没有句末标点时补上句号；
+     * 去掉后一段开头的标点
+     *
+     * @param texts  各片段的识别文本
+     * @param pauses 各片段之后的停顿，毫秒
+     */
+    static List<String> repair(List<String> texts, List<Long> pauses, long sentencePause) {
+        List<String> repaired = new ArrayList<>(texts.size());
+        for (int i = 0; i < texts.size(); i++) {
+            String text = texts.get(i).strip();
+            if (i > 0) {
+                int begin = 0;
+                while (begin < text.length() && LEADING_PUNCTUATION.indexOf(text.charAt(begin)) >= 0) {
+                    begin++;
+                }
+                text = text.substring(begin).stripLeading();
+            }
+            if (i < texts.size() - 1 && !text.isEmpty()) {
+                char last = text.charAt(text.length() - 1);
+                if (pauses.get(i) < sentencePause) {
+                    if (last == '。' || last == '.') {
+                        text = text.substring(0, text.length() - 1) + (last == '.' ? ',' : '，');
+                    }
+                } else if (SENTENCE_ENDS.indexOf(last) < 0 && last != '.') {
+                    text = text + (isLatin(last) ? "." : "。");
+                }
+            }
+            repaired.add(text);
+        }
+        return repaired;
+    }
+
+    /**
+     * 按顺序拼接，英文等以空格分词的文本之间补空格
+     */
+    static String join(List<String> texts) {
+        StringBuilder builder = new StringBuilder();
+        for (String text : texts) {
+            if (text.isEmpty()) {
+                continue;
+            }
+            if (builder.length() > 0 && isLatin(builder.charAt(builder.length() - 1)) && isLatin(text.charAt(0))) {
+                builder.append(' ');
+            }
+            builder.append(text);
+        }
+        return builder.toString();
+    }
+
+    private static boolean isLatin(char c) {
+        return c < 0x2E80 && !Character.isWhitespace(c);
+    }
+
+    private static byte[] wav(AudioSpec spec, ByteBuffer pcm, AudioChunk chunk) {
+        byte[] wav = new byte[WavHeader.SIZE + chunk.length()];
+        WavHeader.write(spec, chunk.length(), wav, 0);
+        pcm.get(chunk.offset(), wav, WavHeader.SIZE, chunk.length());
+        return wav;
+    }
+
+    private static long durationMs(AudioSpec spec, long dataLength) {
+        return dataLength * 1000 / ((long) spec.sampleRate() * spec.frameBytes());
+    }
+}
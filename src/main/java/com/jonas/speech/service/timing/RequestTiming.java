@@ -0,0 +1,137 @@
+package com.jonas.speech.service.timing;
+
+import com.jonas.speech.common.RequestTimingStats;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 单个请求的阶段耗时记录
+ * 每个请求只分配这一个对象，记录过程不再分配内存；HTTP阶段由 OkHttp 的回调线程写入，
+ * 请求通过 Request 的 tag 携带该对象。同一阶段多次发生时累加，比如失败重试或对冲请求；
+ * 阶段的开始时间由调用方持有，并发的对冲请求各自计时，互不覆盖
+ *
+ * @author shenjy
+ * @time 2024/8/12 10:10
+ */
+public class RequestTiming {
+
+    private static final TimingPhase[] PHASES = TimingPhase.values();
+    private static final ThreadLocal<RequestTiming> CURRENT = new ThreadLocal<>();
+
+    private final String operation;
+    private final long startTime = System.currentTimeMillis();
+    private final long startNanos = System.nanoTime();
+    // 各阶段累计耗时，纳秒
+    private final AtomicLongArray values = new AtomicLongArray(PHASES.length);
+    private volatile String provider;
+    private volatile long totalNanos;
+
+    RequestTiming(String operation) {
+        this.operation = operation;
+    }
+
+    /**
+     * 当前线程正在记录的请求，没有时返回null
+     */
+    public static RequestTiming current() {
+        return CURRENT.get();
+    }
+
+    static void setCurrent(RequestTiming timing) {
+        if (null == timing) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(timing);
+        }
+    }
+
+    /**
+     * 阶段开始
+     *
+     * @return 开始时间，纳秒，结束时传给 stop
+     */
+    public long start(TimingPhase phase) {
+        return System.nanoTime();
+    }
+
+    /**
+     * 阶段结束，累加从开始到现在的耗时，阶段没有开始时忽略
+     *
+     * @param start start 返回的开始时间，为0表示阶段没有开始
+     */
+    public void stop(TimingPhase phase, long start) {
+        if (start != 0) {
+            values.addAndGet(phase.ordinal(), System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * 累加阶段耗时
+     */
+    public void add(TimingPhase phase, long nanos) {
+        values.addAndGet(phase.ordinal(), nanos);
+    }
+
+    /**
+     * 记录时间点，值为相对请求开始的时间，只记录第一次
+     */
+    public void mark(TimingPhase phase) {
+        values.compareAndSet(phase.ordinal(), 0, System.nanoTime() - startNanos);
+    }
+
+    public void setProvider(String provider) {
+        this.provider = provider;
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+
+    void finish() {
+        totalNanos = System.nanoTime() - startNanos;
+    }
+
+    long getTotalNanos() {
+        return totalNanos;
+    }
+
+    /**
+     * Server-Timing 响应头，只包含发生过的阶段，例如 connect;dur=12.5, vendor;dur=320.1, total;dur=341.0
+     */
+    public String serverTiming() {
+        StringBuilder builder = new StringBuilder();
+        for (TimingPhase phase : PHASES) {
+            long nanos = values.get(phase.ordinal());
+            if (nanos > 0) {
+                appendMetric(builder, phase.getMetricName(), nanos);
+            }
+        }
+        appendMetric(builder, "total", totalNanos);
+        return builder.toString();
+    }
+
+    public RequestTimingStats stats() {
+        Map<String, Double> phases = new LinkedHashMap<>();
+        for (TimingPhase phase : PHASES) {
+            long nanos = values.get(phase.ordinal());
+            if (nanos > 0) {
+                phases.put(phase.getMetricName(), millis(nanos));
+            }
+        }
+        return new RequestTimingStats(operation, provider, startTime, millis(totalNanos), phases);
+    }
+
+    private static void appendMetric(StringBuilder builder, String name, long nanos) {
+        if (!builder.isEmpty()) {
+            builder.append(", ");
+        }
+        builder.append(name).append(";dur=").append(millis(nanos));
+    }
+
+    private static double millis(long nanos) {
+        // 保留一位小数
+        return Math.round(nanos / 100_000.0) / 10.0;
+    }
+}
@@ -0,0 +1,111 @@
+package com.jonas.speech.service.timing;
+
+import com.jonas.speech.common.RequestTimingStats;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 请求阶段耗时
+ * 语音业务方法开始时创建记录并绑定到当前线程，结束时超过阈值的请求放入环形缓冲区，
+ * 同步接口把最近一次结束的记录以 Server-Timing 响应头返回
+ *
+ * @author shenjy
+ * @time 2024/8/12 10:40
+ */
+@Slf4j
+@Service
+public class RequestTimingService {
+
+    @Value("${speech.timing.enabled:true}")
+    private boolean enabled;
+    // 超过该耗时的请求记入慢请求列表，毫秒
+    @Value("${speech.timing.slowThreshold:1000}")
+    private long slowThreshold;
+    // 保留的慢请求条数
+    @Value("${speech.timing.slowCapacity:200}")
+    private int slowCapacity;
+
+    // 当前线程最近一次结束的记录，由接口层取走
+    private static final ThreadLocal<RequestTiming> FINISHED = new ThreadLocal<>();
+
+    private AtomicReferenceArray<RequestTiming> slowRing;
+    private final AtomicLong slowCursor = new AtomicLong();
+    private long slowThresholdNanos;
+
+    @PostConstruct
+    public void init() {
+        slowRing = new AtomicReferenceArray<>(Math.max(1, slowCapacity));
+        slowThresholdNanos = TimeUnit.MILLISECONDS.toNanos(slowThreshold);
+    }
+
+    /**
+     * 开始记录，当前线程已经在记录时返回null，由外层记录
+     *
+     * @param operation 操作
+     * @return 记录，结束时传给 end
+     */
+    public RequestTiming begin(String operation) {
+        if (!enabled || null != RequestTiming.current()) {
+            return null;
+        }
+        FINISHED.remove();
+        RequestTiming timing = new RequestTiming(operation);
+        RequestTiming.setCurrent(timing);
+        return timing;
+    }
+
+    /**
+     * 结束记录
+     *
+     * @param timing begin 返回的记录，为null时忽略
+     */
+    public void end(RequestTiming timing) {
+        if (null == timing) {
+            return;
+        }
+        RequestTiming.setCurrent(null);
+        timing.finish();
+        FINISHED.set(timing);
+        if (timing.getTotalNanos() >= slowThresholdNanos) {
+            slowRing.set((int) (slowCursor.getAndIncrement() % slowRing.length()), timing);
+            log.info("slow request, operation={}, timing={}", timing.getOperation(), timing.serverTiming());
+        }
+    }
+
+    /**
+     * 取走当前线程最近一次结束的记录，生成 Server-Timing 响应头
+     *
+     * @return 响应头的值，没有记录时返回null
+     */
+    public String takeServerTiming() {
+        RequestTiming timing = FINISHED.get();
+        if (null == timing) {
+            return null;
+        }
+        FINISHED.remove();
+        return timing.serverTiming();
+    }
+
+    /**
+     * 最近的慢请求，最新的在前
+     */
+    public List<RequestTimingStats> slowRequests() {
+        List<RequestTimingStats> list = new ArrayList<>();
+        long cursor = slowCursor.get();
+        for (long i = cursor - 1; i >= Math.max(0, cursor - slowRing.length()); i--) {
+            RequestTiming timing = slowRing.get((int) (i % slowRing.length()));
+            if (null != timing) {
+                list.add(timing.stats());
+            }
+        }
+        return list;
+    }
+}
@@ -0,0 +1,38 @@
+package com.jonas.speech.service.timing;
+
+/**
+ * 请求阶段，名称用作 Server-Timing 的指标名
+ *
+ * @author shenjy
+ * @time 2024/8/12 10:05
+ */
+public enum TimingPhase {
+    // 等待服务商访问令牌刷新
+    TOKEN("token"),
+    // 等待限流许可
+    LIMIT("limit"),
+    // 音频格式转换和静音裁剪
+    PREPARE("prepare"),
+    // DNS解析和建立连接，包括TLS握手
+    CONNECT("connect"),
+    // 发送请求头和请求体
+    UPLOAD("upload"),
+    // 请求发送完到收到响应头，即服务商处理耗时
+    VENDOR("vendor"),
+    // 从请求开始到收到首个响应字节
+    TTFB("ttfb"),
+    // 读取和解析响应体
+    DECODE("decode"),
+    // 服务商调用总耗时，包括失败重试
+    PROVIDER("provider");
+
+    private final String metricName;
+
+    TimingPhase(String metricName) {
+        this.metricName = metricName;
+    }
+
+    public String getMetricName() {
+        return metricName;
+    }
+}
@@ -0,0 +1,168 @@
+package com.jonas.speech.service.tts;
+
+import cn.hutool.core.codec.Base64;
+import cn.hutool.core.util.StrUtil;
+import com.jonas.speech.common.SpeechCapability;
+import com.jonas.speech.service.AudioStreamService;
+import com.jonas.speech.service.cache.CachedAudio;
+import com.jonas.speech.service.cache.TtsCacheService;
+import com.jonas.speech.service.route.SpeechRouter;
+import com.jonas.speech.util.TextSegmenter;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 分句并行语音合成
+ * 长文本按句切分后逐段调用非流式合成，最多同时合成 window 段，按原文顺序下发，第一段合成完即可开始播放。
+ * 第一段由路由选择服务商，后续各段固定使用同一服务商，保证整段音频的发音人一致；
+ * 每段单独走语音合成缓存，重复出现的句子不会再次请求服务商。
+ * 各段转换为服务商流式合成的格式后下发，与直接流式合成的输出一致
+ *
+ * @author shenjy
+ * @time 2024/7/22 11:40
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class SegmentedTtsService {
+
+    @Value("${speech.tts.segment.enabled:true}")
+    private boolean enabled;
+    // 短于该长度的句子与后一句合并
+    @Value("${speech.tts.segment.minChars:6}")
+    private int minChars;
+    // 每段的最大长度
+    @Value("${speech.tts.segment.maxChars:150}")
+    private int maxChars;
+    // 同时合成的段数
+    @Value("${speech.tts.segment.window:3}")
+    private int window;
+    // 等待单段合成结果的最长时间，毫秒
+    @Value("${speech.tts.segment.timeout:30000}")
+    private long timeout;
+
+    private final SpeechRouter speechRouter;
+    private final TtsCacheService ttsCacheService;
+    private final AudioStreamService audioStreamService;
+
+    private final ExecutorService executor =
+            Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("tts-segment-", 0).factory());
+
+    @PreDestroy
+    public void destroy() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * 切分文本，未开启时整段作为一段
+     */
+    public List<String> segment(String text) {
+        String normalized = TextSegmenter.normalize(text);
+        if (!enabled) {
+            return normalized.isEmpty() ? List.of() : List.of(normalized);
+        }
+        return TextSegmenter.split(normalized, minChars, maxChars);
+    }
+
+    /**
+     * 是否使用分句合成
+     * 文本切成多段，或服务商不支持流式合成时，只要有服务商支持非流式合成就走分句合成
+     *
+     * @param segments 切分后的文本段
+     * @param service  指定的服务商，为空时由路由选择
+     */
+    public boolean accept(List<String> segments, String service) {
+        if (!speechRouter.supports(SpeechCapability.TEXT_TO_SPEECH, service)) {
+            return false;
+        }
+        return (enabled && segments.size() > 1)
+                || !speechRouter.supports(SpeechCapability.TEXT_TO_SPEECH_STREAM, service);
+    }
+
+    /**
+     * 分段合成并按顺序下发，立即返回
+     *
+     * @param segments 切分后的文本段
+     * @param clientId 客户端ID
+     * @param service  指定的服务商，为空时由路由选择
+     */
+    public void synthesize(List<String> segments, Long clientId, String service) {
+        executor.execute(() -> pipeline(segments, clientId, service));
+    }
+
+    private void pipeline(List<String> segments, Long clientId, String service) {
+        List<CompletableFuture<byte[]>> futures = new ArrayList<>(segments.size());
+        long start = System.currentTimeMillis();
+        try {
+            // 第一段单独合成，确定服务商后其余段并行
+            AtomicReference<String> provider = new AtomicReference<>(service);
+            futures.add(submit(segments.get(0), provider));
+            for (int i = 0; i < segments.size(); i++) {
+                byte[] audio = futures.get(i).get(timeout, TimeUnit.MILLISECONDS);
+                if (i == 0) {
+                    log.info("分句合成首段耗时{}ms, clientId={}, provider={}, segments={}",
+                            System.currentTimeMillis() - start, clientId, provider.get(), segments.size());
+                    audioStreamService.begin(clientId, provider.get(), start);
+                    audioStreamService.start(clientId);
+                }
+                while (futures.size() < segments.size() && futures.size() <= i + window) {
+                    futures.add(submit(segments.get(futures.size()), provider));
+                }
+                if (audio.length > 0 && !audioStreamService.audio(clientId, audio)) {
+                    // 音频下发失败，合成已以错误结束
+                    futures.forEach(future -> future.cancel(true));
+                    return;
+                }
+            }
+            audioStreamService.end(clientId);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            futures.forEach(future -> future.cancel(true));
+        } catch (ExecutionException | TimeoutException | RuntimeException e) {
+            futures.forEach(future -> future.cancel(true));
+            Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+            log.error("分句合成失败, clientId={}", clientId, cause);
+            audioStreamService.error(clientId, StrUtil.blankToDefault(cause.getMessage(), "语音合成失败"));
+        }
+    }
+
+    /**
+     * 合成一段，未确定服务商时记录本次选中的服务商，之后的段都指定该服务商
+     */
+    private CompletableFuture<byte[]> submit(String text, AtomicReference<String> provider) {
+        String service = provider.get();
+        return CompletableFuture.supplyAsync(() -> {
+            // 缓存命中时不经过路由，不计入服务商的调用统计
+            CachedAudio cached = ttsCacheService.lookup(
+                    speechRouter.services(SpeechCapability.TEXT_TO_SPEECH, service), text);
+            if (null != cached) {
+                provider.compareAndSet(null, cached.provider());
+                return speechRouter.services(SpeechCapability.TEXT_TO_SPEECH, cached.provider()).get(0)
+                        .toStreamAudio(Base64.decode(cached.audio()));
+            }
+            byte[] audio = speechRouter.execute(SpeechCapability.TEXT_TO_SPEECH, service, speechService -> {
+                if (null == service) {
+                    // 失败重试时会换服务商，以最后一次调用为准
+                    provider.set(speechService.getType());
+                }
+                String result = speechService.textToSpeech(text);
+                ttsCacheService.put(speechService, text, result);
+                return StrUtil.isEmpty(result) ? null : speechService.toStreamAudio(Base64.decode(result));
+            });
+            return null == audio ? new byte[0] : audio;
+        }, executor);
+    }
+}
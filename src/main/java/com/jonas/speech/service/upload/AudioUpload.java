@@ -0,0 +1,86 @@
+package com.jonas.speech.service.upload;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 一次上传的识别音频
+ * 较小的音频在池化缓冲区中，较大的写入临时文件后映射读取；请求结束时关闭，归还缓冲区并删除临时文件。
+ * 按引用计数归还：上传方持有一个引用，每个在途的识别请求和每次读取各持有一个，
+ * 对冲中落败或超时的请求在读完之前缓冲区不会被其他请求复用
+ *
+ * @author shenjy
+ * @time 2024/8/14 11:00
+ */
+public final class AudioUpload implements Closeable {
+
+    private final ByteBuffer audio;
+    private final byte[] buffer;
+    private final Path file;
+    private final AudioUploadService owner;
+    private final AtomicBoolean closed = new AtomicBoolean();
+    // 引用数，初始为上传方持有的一个
+    private final AtomicInteger refs = new AtomicInteger(1);
+
+    AudioUpload(ByteBuffer audio, byte[] buffer, Path file, AudioUploadService owner) {
+        this.audio = audio;
+        this.buffer = buffer;
+        this.file = file;
+        this.owner = owner;
+    }
+
+    /**
+     * 音频内容，从下标0开始，各个调用方只读取不修改
+     */
+    public ByteBuffer audio() {
+        return audio.duplicate();
+    }
+
+    public int length() {
+        return audio.limit();
+    }
+
+    /**
+     * 是否写入了临时文件
+     */
+    public boolean isSpilled() {
+        return null != file;
+    }
+
+    /**
+     * 增加一个引用，在对应的 release 之前缓冲区和临时文件保持有效
+     *
+     * @return 已经归还时返回false，不能再读取
+     */
+    public boolean retain() {
+        for (int count = refs.get(); count > 0; count = refs.get()) {
+            if (refs.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 释放一个引用，最后一个引用释放时归还缓冲区并删除临时文件
+     */
+    public void release() {
+        if (refs.decrementAndGet() == 0) {
+            owner.release(buffer, file);
+        }
+    }
+
+    /**
+     * 释放上传方持有的引用，重复关闭无效果
+     * 仍在读取的识别请求读完后才归还缓冲区
+     */
+    @Override
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            release();
+        }
+    }
+}
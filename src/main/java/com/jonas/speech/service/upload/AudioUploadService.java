@@ -0,0 +1,213 @@
+package com.jonas.speech.service.upload;
+
+import com.jonas.speech.common.UploadStats;
+import com.jonas.speech.service.metrics.SpeechMetrics;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 识别音频的上传
+ * 请求体以流的方式读入固定大小的池化缓冲区，超过缓冲区大小或缓冲区用完时写入临时文件并映射读取，
+ * 每个请求占用的堆内存不超过一个缓冲区，所有请求合计不超过 bufferSize * poolSize。
+ * 映射的内存不在堆上，文件删除后由GC回收映射
+ *
+ * @author shenjy
+ * @time 2024/8/14 11:10
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class AudioUploadService {
+
+    // 缓冲区用完时写临时文件使用的复制缓冲区
+    private static final int COPY_BYTES = 64 * 1024;
+
+    // 单个缓冲区的大小，字节
+    @Value("${speech.upload.bufferSize:1048576}")
+    private int bufferSize;
+    // 缓冲区个数上限
+    @Value("${speech.upload.poolSize:32}")
+    private int poolSize;
+    // 单个音频的大小上限，字节
+    @Value("${speech.upload.maxSize:104857600}")
+    private long maxSize;
+    @Value("${speech.upload.spillDir:${java.io.tmpdir}/jackal-speech/upload}")
+    private String spillDir;
+
+    private final SpeechMetrics speechMetrics;
+
+    private BlockingQueue<byte[]> pool;
+    private Path spillPath;
+    private final AtomicInteger buffers = new AtomicInteger();
+    private final AtomicInteger buffersInUse = new AtomicInteger();
+    private final AtomicInteger peakBuffersInUse = new AtomicInteger();
+    private final LongAdder uploads = new LongAdder();
+    private final LongAdder spilled = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+
+    @PostConstruct
+    public void init() throws IOException {
+        pool = new ArrayBlockingQueue<>(Math.max(1, poolSize));
+        // 映射的文件不超过2GB
+        maxSize = Math.min(maxSize, Integer.MAX_VALUE);
+        spillPath = Paths.get(spillDir);
+        Files.createDirectories(spillPath);
+
+        speechMetrics.gauge("speech.upload.heap.bytes", "上传音频占用的缓冲区字节数", buffersInUse,
+                inUse -> (double) inUse.get() * bufferSize);
+        speechMetrics.functionCounter("speech.upload.spilled", "上传音频写入临时文件的次数", spilled, LongAdder::sum);
+    }
+
+    /**
+     * 读取表单上传的音频
+     * 超过缓冲区大小时直接转存为临时文件，Tomcat 已写入磁盘的上传文件会被移动而不是复制
+     */
+    public AudioUpload read(MultipartFile file) throws IOException {
+        if (file.getSize() <= bufferSize) {
+            try (InputStream in = file.getInputStream()) {
+                return read(in, file.getSize());
+            }
+        }
+        checkSize(file.getSize());
+        uploads.increment();
+        Path path = Files.createTempFile(spillPath, "speech-upload-", ".wav");
+        try {
+            file.transferTo(path.toFile());
+            return map(path);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(path);
+            throw e;
+        }
+    }
+
+    /**
+     * 读取请求体中的音频
+     *
+     * @param in            输入流，由调用方关闭
+     * @param contentLength 长度，未知时为-1
+     */
+    public AudioUpload read(InputStream in, long contentLength) throws IOException {
+        checkSize(contentLength);
+        uploads.increment();
+        byte[] buffer = contentLength <= bufferSize ? borrow() : null;
+        if (null == buffer) {
+            return spill(in, null, 0);
+        }
+        int length;
+        try {
+            length = in.readNBytes(buffer, 0, buffer.length);
+        } catch (IOException | RuntimeException e) {
+            release(buffer, null);
+            throw e;
+        }
+        if (length == buffer.length) {
+            // 缓冲区已满，剩余的内容可能还有，转存为临时文件
+            return spill(in, buffer, length);
+        }
+        bytes.add(length);
+        return new AudioUpload(ByteBuffer.wrap(buffer, 0, length).slice(), buffer, null, this);
+    }
+
+    public UploadStats stats() {
+        return new UploadStats(uploads.sum(), spilled.sum(), bytes.sum(), bufferSize, buffers.get(),
+                buffersInUse.get(), peakBuffersInUse.get());
+    }
+
+    /**
+     * 写入临时文件，已读入缓冲区的内容先写入，之后用该缓冲区复制剩余内容
+     */
+    private AudioUpload spill(InputStream in, byte[] head, int headLength) throws IOException {
+        Path path = Files.createTempFile(spillPath, "speech-upload-", ".wav");
+        byte[] chunk = null == head ? new byte[COPY_BYTES] : head;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            write(channel, chunk, headLength);
+            long size = headLength;
+            int count;
+            while ((count = in.read(chunk)) >= 0) {
+                size += count;
+                checkSize(size);
+                write(channel, chunk, count);
+            }
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(path);
+            throw e;
+        } finally {
+            if (null != head) {
+                release(head, null);
+            }
+        }
+        return map(path);
+    }
+
+    private AudioUpload map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer audio = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            spilled.increment();
+            bytes.add(audio.limit());
+            return new AudioUpload(audio, null, path, this);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(path);
+            throw e;
+        }
+    }
+
+    private static void write(FileChannel channel, byte[] data, int length) throws IOException {
+        ByteBuffer source = ByteBuffer.wrap(data, 0, length);
+        while (source.hasRemaining()) {
+            channel.write(source);
+        }
+    }
+
+    private void checkSize(long size) {
+        if (size > maxSize) {
+            throw new RuntimeException("音频超过大小限制: " + maxSize + " 字节");
+        }
+    }
+
+    /**
+     * 取一个缓冲区，已达到个数上限且没有空闲时返回null
+     */
+    private byte[] borrow() {
+        byte[] buffer = pool.poll();
+        if (null == buffer) {
+            if (buffers.incrementAndGet() > poolSize) {
+                buffers.decrementAndGet();
+                return null;
+            }
+            buffer = new byte[bufferSize];
+        }
+        peakBuffersInUse.accumulateAndGet(buffersInUse.incrementAndGet(), Math::max);
+        return buffer;
+    }
+
+    void release(byte[] buffer, Path file) {
+        if (null != buffer) {
+            buffersInUse.decrementAndGet();
+            pool.offer(buffer);
+        }
+        if (null != file) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                log.warn("delete upload spill file error, file={}", file, e);
+            }
+        }
+    }
+}
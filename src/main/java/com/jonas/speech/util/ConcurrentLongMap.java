@@ -0,0 +1,225 @@
+package com.jonas.speech.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 以 long 为键的并发哈希表
+ * 键直接存放在 long 数组中，不装箱成 Long，也没有每个条目的节点对象。
+ * 按键的哈希分成多个段，每段一把锁，段内开放寻址、线性探测，删除时把后续条目前移，不留删除标记。
+ * 值不能为空；读写都持有段锁，临界区很短，适合连接注册表这类读多写少、条目数中等的场景
+ *
+ * @author shenjy
+ * @time 2024/8/22 10:20
+ */
+public class ConcurrentLongMap<V> {
+
+    private static final int SEGMENTS = 16;
+    private static final int SEGMENT_SHIFT = Long.SIZE - Integer.numberOfTrailingZeros(SEGMENTS);
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final Segment<V>[] segments;
+
+    @SuppressWarnings("unchecked")
+    public ConcurrentLongMap() {
+        segments = new Segment[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment<>();
+        }
+    }
+
+    public V get(long key) {
+        long hash = hash(key);
+        return segment(hash).get(key, hash);
+    }
+
+    /**
+     * @return 之前的值，没有时返回空
+     */
+    public V put(long key, V value) {
+        if (null == value) {
+            throw new NullPointerException();
+        }
+        long hash = hash(key);
+        return segment(hash).put(key, hash, value);
+    }
+
+    /**
+     * @return 删除的值，没有时返回空
+     */
+    public V remove(long key) {
+        long hash = hash(key);
+        return segment(hash).remove(key, hash, null);
+    }
+
+    /**
+     * 当前值是同一个对象时才删除
+     *
+     * @return 是否删除
+     */
+    public boolean remove(long key, V value) {
+        long hash = hash(key);
+        return null != value && null != segment(hash).remove(key, hash, value);
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment<V> segment : segments) {
+            size += segment.size;
+        }
+        return size;
+    }
+
+    /**
+     * 当前所有值的快照，各段依次加锁复制
+     */
+    public List<V> values() {
+        List<V> list = new ArrayList<>(size());
+        for (Segment<V> segment : segments) {
+            segment.copyTo(list);
+        }
+        return list;
+    }
+
+    private Segment<V> segment(long hash) {
+        return segments[(int) (hash >>> SEGMENT_SHIFT)];
+    }
+
+    /**
+     * 客户端ID常是连续的，乘以黄金比例常数打散，高位选段，低位选槽
+     */
+    private static long hash(long key) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return hash ^ (hash >>> 32);
+    }
+
+    private static final class Segment<V> {
+        private final ReentrantLock lock = new ReentrantLock();
+        private long[] keys = new long[INITIAL_CAPACITY];
+        private Object[] values = new Object[INITIAL_CAPACITY];
+        // 只在持锁时修改，size() 读到的可能是旧值
+        private volatile int size;
+
+        @SuppressWarnings("unchecked")
+        V get(long key, long hash) {
+            lock.lock();
+            try {
+                int index = find(key, hash);
+                return index < 0 ? null : (V) values[index];
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        V put(long key, long hash, V value) {
+            lock.lock();
+            try {
+                int mask = keys.length - 1;
+                int index = (int) hash & mask;
+                while (null != values[index]) {
+                    if (keys[index] == key) {
+                        V old = (V) values[index];
+                        values[index] = value;
+                        return old;
+                    }
+                    index = (index + 1) & mask;
+                }
+                keys[index] = key;
+                values[index] = value;
+                // 负载因子不超过0.5
+                if (++size * 2 > keys.length) {
+                    resize();
+                }
+                return null;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * @param expected 不为空时只在当前值是同一个对象时删除
+         */
+        @SuppressWarnings("unchecked")
+        V remove(long key, long hash, V expected) {
+            lock.lock();
+            try {
+                int index = find(key, hash);
+                if (index < 0 || (null != expected && values[index] != expected)) {
+                    return null;
+                }
+                V old = (V) values[index];
+                shift(index);
+                size--;
+                return old;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        void copyTo(List<V> list) {
+            lock.lock();
+            try {
+                for (Object value : values) {
+                    if (null != value) {
+                        list.add((V) value);
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private int find(long key, long hash) {
+            int mask = keys.length - 1;
+            int index = (int) hash & mask;
+            while (null != values[index]) {
+                if (keys[index] == key) {
+                    return index;
+                }
+                index = (index + 1) & mask;
+            }
+            return -1;
+        }
+
+        /**
+         * 删除 index 处的条目，把探测链上后续可以前移的条目移过来填补空位
+         */
+        private void shift(int index) {
+            int mask = keys.length - 1;
+            int gap = index;
+            int next = (gap + 1) & mask;
+            while (null != values[next]) {
+                int home = (int) hash(keys[next]) & mask;
+                // home 不在 (gap, next] 区间内时，该条目可以前移到 gap
+                if (((next - home) & mask) >= ((next - gap) & mask)) {
+                    keys[gap] = keys[next];
+                    values[gap] = values[next];
+                    gap = next;
+                }
+                next = (next + 1) & mask;
+            }
+            values[gap] = null;
+        }
+
+        private void resize() {
+            long[] oldKeys = keys;
+            Object[] oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new Object[oldValues.length * 2];
+            int mask = keys.length - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (null != oldValues[i]) {
+                    int index = (int) hash(oldKeys[i]) & mask;
+                    while (null != values[index]) {
+                        index = (index + 1) & mask;
+                    }
+                    keys[index] = oldKeys[i];
+                    values[index] = oldValues[i];
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package com.jonas.speech.util;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Base64;
+
+/**
+ * HMAC签名工具
+ * Mac 实例不是线程安全的，每个线程持有一个已初始化的实例，避免每次签名重新创建
+ *
+ * @author shenjy
+ * @time 2024/6/5 14:10
+ */
+public class HmacSigner {
+
+    private final ThreadLocal<Mac> macHolder;
+
+    public HmacSigner(String algorithm, String secret) {
+        SecretKeySpec spec = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), algorithm);
+        macHolder = ThreadLocal.withInitial(() -> {
+            try {
+                Mac mac = Mac.getInstance(algorithm);
+                mac.init(spec);
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new RuntimeException("签名初始化失败：" + algorithm, e);
+            }
+        });
+    }
+
+    /**
+     * 签名，doFinal 之后 Mac 会自动重置，可以直接复用
+     */
+    public byte[] sign(byte[] data) {
+        return macHolder.get().doFinal(data);
+    }
+
+    /**
+     * 签名并进行Base64编码
+     */
+    public String signBase64(String data) {
+        return Base64.getEncoder().encodeToString(sign(data.getBytes(StandardCharsets.UTF_8)));
+    }
+}
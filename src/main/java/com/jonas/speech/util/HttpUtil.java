@@ -1,88 +1,232 @@
 package com.jonas.speech.util;
 
+import com.jonas.speech.common.ThrottledException;
+import com.jonas.speech.service.audio.AudioPayload;
+import com.jonas.speech.service.timing.RequestTiming;
+import lombok.extern.slf4j.Slf4j;
 import okhttp3.*;
+import okio.BufferedSink;
+
 import java.io.File;
 import java.io.IOException;
 import java.net.SocketTimeoutException;
-import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.TimeUnit;
-
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * HTTP工具类
+ * 客户端由 HttpClientManager 统一管理，这里只负责组装请求与读取响应
+ * 请求的 tag 携带当前线程的阶段耗时记录，由连接池的事件监听器写入各阶段耗时
+ *
+ * @author shenjy
+ */
+@Slf4j
 public class HttpUtil {
 
-    private static String getResponseWithTimeout(Request q) {
-        String ret = null;
+    private static final MediaType OCTET_STREAM = MediaType.parse("application/octet-stream");
 
-        OkHttpClient.Builder httpBuilder = new OkHttpClient.Builder();
-        OkHttpClient client = httpBuilder.connectTimeout(10, TimeUnit.SECONDS)
-                .readTimeout(60, TimeUnit.SECONDS)
-                .writeTimeout(60, TimeUnit.SECONDS)
-                .build();
+    private static String getResponseWithTimeout(OkHttpClient client, Request q) {
+        String ret = null;
 
-        try {
-            Response s = client.newCall(q).execute();
-            ret = s.body().string();
-            s.close();
+        try (Response s = client.newCall(q).execute()) {
+            checkThrottled(s);
+            ResponseBody body = s.body();
+            ret = body == null ? null : body.string();
         } catch (SocketTimeoutException e) {
             ret = null;
-            System.err.println("get result timeout");
+            log.error("get result timeout, url={}", q.url(), e);
         } catch (IOException e) {
-            System.err.println("get result error " + e.getMessage());
+            log.error("get result error, url={}", q.url(), e);
         }
 
         return ret;
     }
 
-    public static String sendPostFile(String url, Map<String, String> headers, String fileName) {
+    public static String sendPostFile(OkHttpClient client, String url, Map<String, String> headers, String fileName) {
         RequestBody body;
 
         File file = new File(fileName);
         if (!file.isFile()) {
-            System.err.println("The filePath is not a file: " + fileName);
+            log.error("The filePath is not a file: {}", fileName);
             return null;
         } else {
-            body = RequestBody.create(MediaType.parse("application/octet-stream"), file);
+            body = RequestBody.create(contentType(headers), file);
         }
 
-        Headers.Builder hb = new Headers.Builder();
-        if (headers != null && !headers.isEmpty()) {
-            for (Map.Entry<String, String> entry : headers.entrySet()) {
-                hb.add(entry.getKey(), entry.getValue());
-            }
+        return getResponseWithTimeout(client, buildRequest(url, headers, body));
+    }
+
+    public static String sendPostData(OkHttpClient client, String url, Map<String, String> headers, byte[] data) {
+        RequestBody body;
+
+        if (data.length == 0) {
+            log.error("The send data is empty, url={}", url);
+            return null;
+        } else {
+            body = RequestBody.create(contentType(headers), data);
         }
 
+        return getResponseWithTimeout(client, buildRequest(url, headers, body));
+    }
+
+    /**
+     * 发送GET请求
+     */
+    public static String sendGet(OkHttpClient client, String url, Map<String, String> headers) {
         Request request = new Request.Builder()
                 .url(url)
-                .headers(hb.build())
-                .post(body)
+                .headers(buildHeaders(headers))
+                .tag(RequestTiming.current())
+                .get()
                 .build();
+        return getResponseWithTimeout(client, request);
+    }
 
-        return getResponseWithTimeout(request);
+    /**
+     * 发送空请求体的POST请求
+     */
+    public static String sendPost(OkHttpClient client, String url, Map<String, String> headers) {
+        RequestBody body = RequestBody.create(contentType(headers), new byte[0]);
+        return getResponseWithTimeout(client, buildRequest(url, headers, body));
     }
 
-    public static String sendPostData(String url, Map<String, String> headers, byte[] data) {
-        RequestBody body;
+    /**
+     * 发送POST请求，以二进制形式返回响应体，请求失败返回null
+     */
+    public static byte[] sendPostDataForBytes(OkHttpClient client, String url, Map<String, String> headers, byte[] data) {
+        Request request = buildRequest(url, headers, RequestBody.create(contentType(headers), data));
+        try (Response s = client.newCall(request).execute()) {
+            checkThrottled(s);
+            ResponseBody body = s.body();
+            if (!s.isSuccessful() || body == null) {
+                log.error("get result error, url={}, code={}", url, s.code());
+                return null;
+            }
+            return body.bytes();
+        } catch (IOException e) {
+            log.error("get result error, url={}", url, e);
+        }
+        return null;
+    }
 
-        if (data.length == 0) {
-            System.err.println("The send data is empty.");
-            return null;
-        } else {
-            body = RequestBody.create(MediaType.parse("application/octet-stream"), data);
+    /**
+     * 异步发送POST请求，不占用调用线程
+     * 取消返回的 future 或让它超时会同时取消底层请求
+     */
+    public static CompletableFuture<String> sendPostDataAsync(OkHttpClient client, String url, Map<String, String> headers, byte[] data) {
+        return sendPostDataAsync(client, url, headers, data, Function.identity());
+    }
+
+    /**
+     * 异步发送POST请求，并在回调线程中解析响应体
+     * 解析在返回的 future 内完成，取消它依然会取消底层请求
+     *
+     * @param parser 响应体解析，响应体为空时传入null
+     */
+    public static <T> CompletableFuture<T> sendPostDataAsync(OkHttpClient client, String url, Map<String, String> headers,
+                                                             byte[] data, Function<String, T> parser) {
+        return sendPostDataAsync(client, url, headers, AudioPayload.of(data), parser);
+    }
+
+    /**
+     * 异步发送POST请求，请求体由各段音频缓冲区依次写出，不拼接成整块数组
+     *
+     * @param parser 响应体解析，响应体为空时传入null
+     */
+    public static <T> CompletableFuture<T> sendPostDataAsync(OkHttpClient client, String url, Map<String, String> headers,
+                                                             AudioPayload audio, Function<String, T> parser) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        if (audio.length() == 0) {
+            future.completeExceptionally(new IllegalArgumentException("The send data is empty."));
+            return future;
         }
 
-        Headers.Builder hb = new Headers.Builder();
-        if (headers != null && !headers.isEmpty()) {
-            for (Map.Entry<String, String> entry : headers.entrySet()) {
-                hb.add(entry.getKey(), entry.getValue());
+        Call call = client.newCall(buildRequest(url, headers, audioBody(contentType(headers), audio)));
+        call.enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                future.completeExceptionally(e);
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                try (Response s = response) {
+                    checkThrottled(s);
+                    ResponseBody body = s.body();
+                    future.complete(parser.apply(body == null ? null : body.string()));
+                } catch (IOException | RuntimeException e) {
+                    future.completeExceptionally(e);
+                }
+            }
+        });
+        // 被取消或超时（orTimeout）时取消底层请求，已完成的请求取消无效果
+        future.whenComplete((ret, e) -> {
+            if (null != e) {
+                call.cancel();
             }
+        });
+        return future;
+    }
+
+    /**
+     * 服务商返回 429 时抛出限流异常
+     */
+    private static void checkThrottled(Response response) {
+        if (response.code() == 429) {
+            throw new ThrottledException("too many requests: " + response.request().url().host());
         }
+    }
 
-        Request request = new Request.Builder()
+    /**
+     * 音频请求体，失败重试时可以重复写出
+     */
+    private static RequestBody audioBody(MediaType contentType, AudioPayload audio) {
+        return new RequestBody() {
+            @Override
+            public MediaType contentType() {
+                return contentType;
+            }
+
+            @Override
+            public long contentLength() {
+                return audio.length();
+            }
+
+            @Override
+            public void writeTo(BufferedSink sink) throws IOException {
+                audio.writeTo(sink.outputStream());
+            }
+        };
+    }
+
+    private static Request buildRequest(String url, Map<String, String> headers, RequestBody body) {
+        return new Request.Builder()
                 .url(url)
-                .headers(hb.build())
+                .headers(buildHeaders(headers))
+                .tag(RequestTiming.current())
                 .post(body)
                 .build();
+    }
 
-        return getResponseWithTimeout(request);
+    private static Headers buildHeaders(Map<String, String> headers) {
+        Headers.Builder hb = new Headers.Builder();
+        if (headers != null && !headers.isEmpty()) {
+            for (Map.Entry<String, String> entry : headers.entrySet()) {
+                hb.add(entry.getKey(), entry.getValue());
+            }
+        }
+        return hb.build();
+    }
+
+    private static MediaType contentType(Map<String, String> headers) {
+        if (headers != null) {
+            for (Map.Entry<String, String> entry : headers.entrySet()) {
+                if ("Content-Type".equalsIgnoreCase(entry.getKey())) {
+                    return MediaType.parse(entry.getValue());
+                }
+            }
+        }
+        return OCTET_STREAM;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,172 @@
+package com.jonas.speech.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 语音合成文本切分
+ * 先按句末标点切成句子，过短的句子与后一句合并，过长的句子再按逗号等分句标点切分，仍然过长时按长度硬切。
+ * 英文句点只有位于结尾，或后面跟空白且下一个词不是小写开头时才视为句末，避免切开小数和缩写
+ *
+ * @author shenjy
+ * @time 2024/7/22 10:15
+ */
+public class TextSegmenter {
+
+    // 句末标点
+    private static final String SENTENCE_ENDS = "。！？!?；;…\n";
+    // 分句标点
+    private static final String CLAUSE_ENDS = "，,、：:";
+    // 紧跟在标点后、应当留在前一句的字符
+    private static final String CLOSING = "”’」』）)】\"'";
+
+    private TextSegmenter() {
+    }
+
+    /**
+     * 规整文本，去掉控制字符，连续空白合并为一个空格，保留换行作为句子边界
+     */
+    public static String normalize(String text) {
+        if (null == text) {
+            return "";
+        }
+        StringBuilder builder = new StringBuilder(text.length());
+        boolean space = false;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\n' || c == '\r') {
+                trimEnd(builder);
+                if (builder.length() > 0 && builder.charAt(builder.length() - 1) != '\n') {
+                    builder.append('\n');
+                }
+                space = false;
+            } else if (Character.isWhitespace(c) || Character.isSpaceChar(c)) {
+                space = builder.length() > 0 && builder.charAt(builder.length() - 1) != '\n';
+            } else if (!Character.isISOControl(c)) {
+                if (space) {
+                    builder.append(' ');
+                    space = false;
+                }
+                builder.append(c);
+            }
+        }
+        trimEnd(builder);
+        return builder.toString();
+    }
+
+    /**
+     * 切分文本
+     *
+     * @param text     规整后的文本
+     * @param minChars 短于该长度的句子与后一句合并
+     * @param maxChars 每段的最大长度
+     * @return 按顺序排列的文本段
+     */
+    public static List<String> split(String text, int minChars, int maxChars) {
+        List<String> segments = new ArrayList<>();
+        StringBuilder pending = new StringBuilder();
+        for (String sentence : cut(text, SENTENCE_ENDS, true)) {
+            if (pending.length() > 0 && pending.length() + sentence.length() > maxChars) {
+                flush(pending, segments, maxChars);
+            }
+            pending.append(sentence);
+            if (pending.length() >= minChars) {
+                flush(pending, segments, maxChars);
+            }
+        }
+        if (pending.length() > 0) {
+            // 结尾过短的一句并入前一段
+            int last = segments.size() - 1;
+            if (last >= 0 && segments.get(last).length() + pending.length() <= maxChars) {
+                segments.set(last, (segments.get(last) + pending).replace('\n', ' ').strip());
+            } else {
+                flush(pending, segments, maxChars);
+            }
+        }
+        return segments;
+    }
+
+    private static void flush(StringBuilder pending, List<String> segments, int maxChars) {
+        String sentence = pending.toString().replace('\n', ' ').strip();
+        pending.setLength(0);
+        if (sentence.isEmpty()) {
+            return;
+        }
+        if (sentence.length() <= maxChars) {
+            segments.add(sentence);
+            return;
+        }
+        // 长句按分句标点尽量装满一段
+        StringBuilder builder = new StringBuilder();
+        for (String clause : cut(sentence, CLAUSE_ENDS, false)) {
+            if (builder.length() > 0 && builder.length() + clause.length() > maxChars) {
+                segments.add(builder.toString().strip());
+                builder.setLength(0);
+            }
+            while (clause.length() > maxChars) {
+                segments.add(clause.substring(0, maxChars).strip());
+                clause = clause.substring(maxChars);
+            }
+            builder.append(clause);
+        }
+        if (!builder.toString().isBlank()) {
+            segments.add(builder.toString().strip());
+        }
+    }
+
+    /**
+     * 在标点后切开，标点和紧跟的右引号、右括号留在前一部分，空白留给后一部分，合并时不会丢失单词间的空格
+     */
+    private static List<String> cut(String text, String ends, boolean period) {
+        List<String> parts = new ArrayList<>();
+        int start = 0;
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            boolean end = ends.indexOf(c) >= 0 || (period && c == '.' && periodEnds(text, i));
+            if (!end) {
+                continue;
+            }
+            int stop = i + 1;
+            while (stop < length && (ends.indexOf(text.charAt(stop)) >= 0 || CLOSING.indexOf(text.charAt(stop)) >= 0)) {
+                stop++;
+            }
+            String part = text.substring(start, stop);
+            if (!part.isBlank()) {
+                parts.add(part);
+            }
+            start = stop;
+            i = stop - 1;
+        }
+        if (start < length) {
+            String part = text.substring(start);
+            if (!part.isBlank()) {
+                parts.add(part);
+            }
+        }
+        return parts;
+    }
+
+    /**
+     * 英文句点后是结尾，或空白后跟的不是小写字母时才是句末
+     */
+    private static boolean periodEnds(String text, int index) {
+        int next = index + 1;
+        if (next == text.length()) {
+            return true;
+        }
+        if (!Character.isWhitespace(text.charAt(next))) {
+            return false;
+        }
+        while (next < text.length() && Character.isWhitespace(text.charAt(next))) {
+            next++;
+        }
+        return next == text.length() || !Character.isLowerCase(text.charAt(next));
+    }
+
+    private static void trimEnd(StringBuilder builder) {
+        while (builder.length() > 0 && builder.charAt(builder.length() - 1) == ' ') {
+            builder.setLength(builder.length() - 1);
+        }
+    }
+}
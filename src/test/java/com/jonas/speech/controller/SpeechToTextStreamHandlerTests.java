@@ -0,0 +1,117 @@
+package com.jonas.speech.controller;
+
+import com.jonas.speech.common.SpeechCapability;
+import com.jonas.speech.service.*;
+import com.jonas.speech.service.audio.AudioNormalizer;
+import com.jonas.speech.service.audio.VoiceActivityDetector;
+import com.jonas.speech.service.limit.SpeechLimiter;
+import com.jonas.speech.service.metrics.SpeechMetrics;
+import com.jonas.speech.service.route.SpeechRouter;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.net.URI;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BiFunction;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+class SpeechToTextStreamHandlerTests {
+
+    @Test
+    void partialAndFinalResults() throws Exception {
+        SpeechRouter router = mock(SpeechRouter.class);
+        when(router.stream(eq(SpeechCapability.SPEECH_TO_TEXT_STREAM), eq("local"), eq(true), any()))
+                .thenAnswer(invocation -> invocation.<BiFunction<SpeechService, SpeechLimiter.Permit, Object>>getArgument(3)
+                        .apply(new LocalSpeechService(), null));
+
+        List<String> sent = new CopyOnWriteArrayList<>();
+        Map<String, Object> attributes = new HashMap<>();
+        WebSocketSession session = mock(WebSocketSession.class);
+        when(session.getId()).thenReturn("1");
+        when(session.getUri()).thenReturn(new URI("ws://localhost/speech/stream/speechToText?service=local"));
+        when(session.getAttributes()).thenReturn(attributes);
+        when(session.isOpen()).thenReturn(true);
+        doAnswer(invocation -> {
+            sent.add(((WebSocketMessage<?>) invocation.getArgument(0)).getPayload().toString());
+            return null;
+        }).when(session).sendMessage(any());
+
+        SpeechToTextStreamHandler handler = new SpeechToTextStreamHandler(router, new AudioNormalizer(), new VoiceActivityDetector(),
+                new SpeechMetrics(new SimpleMeterRegistry()));
+        handler.afterConnectionEstablished(session);
+        handler.handleMessage(session, new BinaryMessage(new byte[3200]));
+        handler.handleMessage(session, new BinaryMessage(new byte[3200]));
+        handler.handleMessage(session, new TextMessage("end"));
+
+        assertEquals(4, sent.size());
+        assertTrue(sent.get(0).contains("\"type\":\"partial\"") && sent.get(0).contains("3200"));
+        assertTrue(sent.get(1).contains("\"type\":\"partial\"") && sent.get(1).contains("6400"));
+        assertTrue(sent.get(2).contains("\"type\":\"final\""));
+        assertTrue(sent.get(3).contains("\"type\":\"complete\""));
+        verify(session).close(any());
+    }
+
+    /**
+     * 本地替身服务，每收到一帧音频返回一次已接收字节数
+     */
+    private static class LocalSpeechService extends SpeechService {
+
+        @Override
+        public SpeechToTextStream speechToTextStream(SpeechToTextListener listener) {
+            return new SpeechToTextStream() {
+                private int received;
+
+                @Override
+                public void write(byte[] audioData) {
+                    received += audioData.length;
+                    listener.onPartial(String.valueOf(received));
+                }
+
+                @Override
+                public void close() {
+                    listener.onFinal(String.valueOf(received));
+                    listener.onComplete();
+                }
+
+                @Override
+                public void cancel() {
+                }
+            };
+        }
+
+        @Override
+        public String speechToText(byte[] audioData) {
+            return null;
+        }
+
+        @Override
+        public void speechToText(byte[] audioData, SpeechToTextCallback callback) {
+        }
+
+        @Override
+        public String textToSpeech(String text) {
+            return null;
+        }
+
+        @Override
+        public void textToSpeechStream(String text, Long clientId) {
+        }
+
+        @Override
+        public String getType() {
+            return "local";
+        }
+    }
+}
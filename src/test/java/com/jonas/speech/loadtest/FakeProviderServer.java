@@ -0,0 +1,391 @@
+package com.jonas.speech.loadtest;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.java_websocket.WebSocket;
+import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.server.WebSocketServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 服务商本地替身服务，压测时代替真实服务商，不消耗服务商额度
+ * 按代码实际使用的协议应答：阿里云一句话识别和令牌接口、微软令牌、短音频识别与分块返回的语音合成、
+ * 百度识别与合成REST接口、讯飞WebSocket流式合成与语音听写。延迟、抖动、限流和错误比例都可以配置。
+ * 应用以 --spring.profiles.active=fake 启动即指向本服务，见 application-fake.yml
+ *
+ * 运行：mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.jonas.speech.loadtest.FakeProviderServer
+ * 参数均为系统属性：
+ * fake.port HTTP端口，默认18080，为0时随机选择，见 getPort；fake.wsPort 讯飞WebSocket端口，默认18081，为0时随机选择，见 getWsPort
+ * fake.latency 响应延迟，毫秒，默认100；fake.jitter 延迟在 ±jitter 内均匀抖动，毫秒，默认30
+ * fake.rtf 识别接口按音频时长增加的延迟比例，默认0
+ * fake.qps 超过该QPS的请求按限流应答，0表示不限制；fake.throttleRate 随机限流的比例；fake.errorRate 随机出错的比例
+ * fake.ttsBytes 每次合成的音频字节数，默认32000；fake.chunkBytes 流式合成每块字节数，默认3200；
+ * fake.chunkInterval 流式合成每块的间隔，毫秒，默认20
+ *
+ * @author shenjy
+ * @time 2024/8/1 10:20
+ */
+public class FakeProviderServer {
+
+    private static final String TEXT = "今天天气怎么样，适合出去走走吗";
+
+    private final int port = Integer.getInteger("fake.port", 18080);
+    private final int wsPort = Integer.getInteger("fake.wsPort", 18081);
+    private final long latency = Long.getLong("fake.latency", 100);
+    private final long jitter = Long.getLong("fake.jitter", 30);
+    private final double rtf = Double.parseDouble(System.getProperty("fake.rtf", "0"));
+    private final int qps = Integer.getInteger("fake.qps", 0);
+    private final double throttleRate = Double.parseDouble(System.getProperty("fake.throttleRate", "0"));
+    private final double errorRate = Double.parseDouble(System.getProperty("fake.errorRate", "0"));
+    private final int chunkBytes = Integer.getInteger("fake.chunkBytes", 3200);
+    private final long chunkInterval = Long.getLong("fake.chunkInterval", 20);
+    private final byte[] audio = audio(Integer.getInteger("fake.ttsBytes", 32000));
+
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    // 按秒计数的限流窗口
+    private long windowSecond;
+    private int windowCount;
+
+    private HttpServer httpServer;
+    private XunFeiServer xunFeiServer;
+
+    public static void main(String[] args) throws Exception {
+        FakeProviderServer server = new FakeProviderServer();
+        server.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
+    }
+
+    public void start() throws IOException {
+        httpServer = HttpServer.create(new InetSocketAddress(port), 1024);
+        httpServer.setExecutor(executor);
+        httpServer.createContext("/", exchange -> {
+            try {
+                route(exchange);
+            } catch (Exception e) {
+                count("exception");
+            } finally {
+                exchange.close();
+            }
+        });
+        httpServer.start();
+        xunFeiServer = new XunFeiServer(wsPort);
+        xunFeiServer.start();
+        try {
+            // 等WebSocket端口绑定完成，随机端口此后才能取到
+            xunFeiServer.started.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        System.out.printf("fake provider server started, http=%d, ws=%d, latency=%dms±%dms, qps=%d, throttleRate=%s, errorRate=%s%n",
+                port, wsPort, latency, jitter, qps, throttleRate, errorRate);
+    }
+
+    /**
+     * 实际监听的HTTP端口
+     */
+    public int getPort() {
+        return httpServer.getAddress().getPort();
+    }
+
+    /**
+     * 实际监听的讯飞WebSocket端口
+     */
+    public int getWsPort() {
+        return xunFeiServer.getPort();
+    }
+
+    public void stop() {
+        if (null != httpServer) {
+            httpServer.stop(0);
+        }
+        try {
+            if (null != xunFeiServer) {
+                xunFeiServer.stop(1000);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        executor.shutdownNow();
+        Map<String, Long> counts = new TreeMap<>();
+        counters.forEach((name, counter) -> counts.put(name, counter.sum()));
+        System.out.println("fake provider requests: " + counts);
+    }
+
+    private void route(HttpExchange exchange) throws Exception {
+        String path = exchange.getRequestURI().getPath();
+        String query = exchange.getRequestURI().getRawQuery();
+        byte[] body = exchange.getRequestBody().readAllBytes();
+        count(path);
+        switch (path) {
+            // 阿里云
+            case "/" -> {
+                if (null != query && query.contains("Action=CreateToken")) {
+                    long expire = System.currentTimeMillis() / 1000 + 86400;
+                    json(exchange, 200, "{\"Token\":{\"Id\":\"" + UUID.randomUUID() + "\",\"ExpireTime\":" + expire
+                            + "},\"NlsRequestId\":\"" + UUID.randomUUID() + "\"}");
+                } else {
+                    exchange.sendResponseHeaders(404, -1);
+                }
+            }
+            case "/stream/v1/asr" -> {
+                Fault fault = recognizeDelay(body);
+                switch (fault) {
+                    case THROTTLE -> json(exchange, 200, "{\"status\":40000005,\"message\":\"TOO_MANY_REQUESTS\"}");
+                    case ERROR -> json(exchange, 500, "{\"status\":50000000,\"message\":\"SERVER_ERROR\"}");
+                    default -> json(exchange, 200, "{\"task_id\":\"" + UUID.randomUUID() + "\",\"result\":\"" + TEXT
+                            + "\",\"status\":20000000,\"message\":\"SUCCESS\"}");
+                }
+            }
+            // 微软
+            case "/sts/v1.0/issueToken" -> {
+                byte[] token = UUID.randomUUID().toString().getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(200, token.length);
+                exchange.getResponseBody().write(token);
+            }
+            case "/speech/recognition/conversation/cognitiveservices/v1" -> {
+                Fault fault = recognizeDelay(body);
+                switch (fault) {
+                    case THROTTLE -> exchange.sendResponseHeaders(429, -1);
+                    case ERROR -> exchange.sendResponseHeaders(500, -1);
+                    default -> json(exchange, 200, "{\"RecognitionStatus\":\"Success\",\"Offset\":1800000,\"Duration\":"
+                            + durationMs(body) * 10000 + ",\"DisplayText\":\"" + TEXT + "。\"}");
+                }
+            }
+            case "/cognitiveservices/v1" -> {
+                Fault fault = fault();
+                delay(0);
+                switch (fault) {
+                    case THROTTLE -> exchange.sendResponseHeaders(429, -1);
+                    case ERROR -> exchange.sendResponseHeaders(500, -1);
+                    default -> {
+                        // 长度为0表示分块传输，按块间隔逐块写出
+                        exchange.getResponseHeaders().set("Content-Type", "audio/x-alaw-basic");
+                        exchange.sendResponseHeaders(200, 0);
+                        OutputStream output = exchange.getResponseBody();
+                        for (int offset = 0; offset < audio.length; offset += chunkBytes) {
+                            output.write(audio, offset, Math.min(chunkBytes, audio.length - offset));
+                            output.flush();
+                            Thread.sleep(chunkInterval);
+                        }
+                    }
+                }
+            }
+            // 百度
+            case "/oauth/2.0/token" -> json(exchange, 200, "{\"access_token\":\"" + UUID.randomUUID()
+                    + "\",\"expires_in\":2592000,\"scope\":\"audio_voice_assistant_get audio_tts_post\"}");
+            case "/server_api" -> {
+                Fault fault = recognizeDelay(body);
+                switch (fault) {
+                    case THROTTLE -> json(exchange, 200, "{\"err_no\":3305,\"err_msg\":\"user request limit\",\"sn\":\"1\"}");
+                    case ERROR -> json(exchange, 200, "{\"err_no\":3302,\"err_msg\":\"server error\",\"sn\":\"1\"}");
+                    default -> json(exchange, 200, "{\"err_no\":0,\"err_msg\":\"success.\",\"sn\":\"" + UUID.randomUUID()
+                            + "\",\"result\":[\"" + TEXT + "\"]}");
+                }
+            }
+            case "/text2audio" -> {
+                Fault fault = fault();
+                delay(0);
+                switch (fault) {
+                    case THROTTLE -> json(exchange, 200, "{\"err_no\":18,\"err_msg\":\"Open api qps request limit reached\"}");
+                    case ERROR -> json(exchange, 200, "{\"err_no\":502,\"err_msg\":\"internal error\"}");
+                    default -> {
+                        exchange.getResponseHeaders().set("Content-Type", "audio/wav");
+                        exchange.sendResponseHeaders(200, audio.length);
+                        exchange.getResponseBody().write(audio);
+                    }
+                }
+            }
+            default -> exchange.sendResponseHeaders(404, -1);
+        }
+    }
+
+    /**
+     * 讯飞流式合成和语音听写，按连接路径区分，每个连接只处理一次合成或识别
+     * 合成发完最后一帧后关闭；听写收到结束帧后返回整句结果，由客户端关闭
+     */
+    private class XunFeiServer extends WebSocketServer {
+
+        private final CountDownLatch started = new CountDownLatch(1);
+
+        XunFeiServer(int port) {
+            super(new InetSocketAddress(port));
+            setReuseAddr(true);
+        }
+
+        @Override
+        public void onOpen(WebSocket conn, ClientHandshake handshake) {
+            count("xunfei/open");
+            conn.setAttachment(handshake.getResourceDescriptor());
+        }
+
+        @Override
+        public void onMessage(WebSocket conn, String message) {
+            String path = conn.getAttachment();
+            if (null != path && path.startsWith("/v2/iat")) {
+                // 音频帧不应答，结束帧到达后再返回结果
+                if (message.contains("\"status\":2")) {
+                    count("xunfei/iat");
+                    executor.execute(() -> recognize(conn));
+                }
+                return;
+            }
+            count("xunfei/tts");
+            executor.execute(() -> synthesize(conn));
+        }
+
+        private void synthesize(WebSocket conn) {
+            String sid = "tts" + UUID.randomUUID().toString().replace("-", "").substring(0, 16);
+            Fault fault = fault();
+            try {
+                delay(0);
+                if (fault != Fault.NONE) {
+                    int code = fault == Fault.THROTTLE ? 11202 : 10700;
+                    conn.send("{\"code\":" + code + ",\"message\":\"" + fault + "\",\"sid\":\"" + sid + "\"}");
+                    conn.close(1000);
+                    return;
+                }
+                Base64.Encoder encoder = Base64.getEncoder();
+                for (int offset = 0; offset < audio.length; offset += chunkBytes) {
+                    int length = Math.min(chunkBytes, audio.length - offset);
+                    int status = offset + length >= audio.length ? 2 : 1;
+                    byte[] chunk = new byte[length];
+                    System.arraycopy(audio, offset, chunk, 0, length);
+                    conn.send("{\"code\":0,\"message\":\"success\",\"sid\":\"" + sid + "\",\"data\":{\"audio\":\""
+                            + encoder.encodeToString(chunk) + "\",\"status\":" + status + ",\"ced\":\"" + (offset + length) + "\"}}");
+                    if (status == 1) {
+                        Thread.sleep(chunkInterval);
+                    }
+                }
+                conn.close(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                count("xunfei/exception");
+            }
+        }
+
+        private void recognize(WebSocket conn) {
+            String sid = "iat" + UUID.randomUUID().toString().replace("-", "").substring(0, 16);
+            Fault fault = fault();
+            try {
+                delay(0);
+                if (fault != Fault.NONE) {
+                    int code = fault == Fault.THROTTLE ? 11202 : 10700;
+                    conn.send("{\"code\":" + code + ",\"message\":\"" + fault + "\",\"sid\":\"" + sid + "\"}");
+                    conn.close(1000);
+                    return;
+                }
+                conn.send("{\"code\":0,\"message\":\"success\",\"sid\":\"" + sid + "\",\"data\":{\"status\":2,"
+                        + "\"result\":{\"sn\":1,\"ls\":true,\"ws\":[{\"cw\":[{\"w\":\"" + TEXT + "\"}]}]}}}");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                count("xunfei/exception");
+            }
+        }
+
+        @Override
+        public void onClose(WebSocket conn, int code, String reason, boolean remote) {
+        }
+
+        @Override
+        public void onError(WebSocket conn, Exception ex) {
+            count("xunfei/error");
+        }
+
+        @Override
+        public void onStart() {
+            started.countDown();
+        }
+    }
+
+    private enum Fault {
+        NONE, THROTTLE, ERROR
+    }
+
+    /**
+     * 决定本次请求是否限流或出错，超过配置的QPS一定限流
+     */
+    private Fault fault() {
+        if (qps > 0) {
+            synchronized (this) {
+                long second = System.currentTimeMillis() / 1000;
+                if (second != windowSecond) {
+                    windowSecond = second;
+                    windowCount = 0;
+                }
+                if (++windowCount > qps) {
+                    count("throttled");
+                    return Fault.THROTTLE;
+                }
+            }
+        }
+        double random = ThreadLocalRandom.current().nextDouble();
+        if (random < throttleRate) {
+            count("throttled");
+            return Fault.THROTTLE;
+        }
+        if (random < throttleRate + errorRate) {
+            count("errors");
+            return Fault.ERROR;
+        }
+        return Fault.NONE;
+    }
+
+    private Fault recognizeDelay(byte[] body) throws InterruptedException {
+        Fault fault = fault();
+        // 限流和出错通常立即返回
+        delay(fault == Fault.NONE ? (long) (durationMs(body) * rtf) : 0);
+        return fault;
+    }
+
+    private void delay(long extra) throws InterruptedException {
+        long random = jitter > 0 ? ThreadLocalRandom.current().nextLong(-jitter, jitter + 1) : 0;
+        long millis = Math.max(0, latency + random) + extra;
+        if (millis > 0) {
+            TimeUnit.MILLISECONDS.sleep(millis);
+        }
+    }
+
+    private void count(String name) {
+        counters.computeIfAbsent(name, key -> new LongAdder()).increment();
+    }
+
+    private static void json(HttpExchange exchange, int code, String json) throws IOException {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json;charset=UTF-8");
+        exchange.sendResponseHeaders(code, bytes.length);
+        exchange.getResponseBody().write(bytes);
+    }
+
+    /**
+     * 按16k 16bit 单声道估算上传音频的时长
+     */
+    private static long durationMs(byte[] body) {
+        return Math.max(0, body.length - 44) / 32;
+    }
+
+    private static byte[] audio(int length) {
+        byte[] audio = new byte[length];
+        for (int i = 0; i < length; i++) {
+            audio[i] = (byte) (Math.sin(i * 0.1) * 100);
+        }
+        return audio;
+    }
+}
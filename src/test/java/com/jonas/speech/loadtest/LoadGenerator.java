@@ -0,0 +1,311 @@
+package com.jonas.speech.loadtest;
+
+import com.jonas.speech.service.audio.AudioSpec;
+import com.jonas.speech.service.audio.WavHeader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Stream;
+
+/**
+ * 端到端压测客户端
+ * 固定并发的闭环压测：每个工作线程收到完整响应后立即发起下一个请求，预热阶段的结果不计入统计。
+ * 输出吞吐量和延迟分位数，流式合成额外输出首包音频耗时，配合 FakeProviderServer 可以在本机发现容量回退
+ *
+ * 运行：mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.jonas.speech.loadtest.LoadGenerator -Dload.scenario=stt
+ * 参数均为系统属性：
+ * load.target 服务地址，默认 http://127.0.0.1:8080
+ * load.scenario 场景：stt 识别 /speech/speechToText，tts 合成 /speech/textToSpeech，
+ * stream 订阅 /sse/subscribe 后调用 /speech/textToSpeechStream，统计首包音频耗时；默认 stt
+ * load.concurrency 并发数，默认50；load.duration 压测时长，秒，默认30；load.warmup 预热时长，秒，默认5
+ * load.service 指定服务商；load.audio 识别使用的WAV文件，默认3秒16k正弦波；load.text 合成使用的文本
+ * load.timeout 单个请求超时，毫秒，默认30000；load.idle 流式合成超过该时间没有新音频视为结束，毫秒，默认500
+ *
+ * @author shenjy
+ * @time 2024/8/1 14:30
+ */
+public class LoadGenerator {
+
+    private final String target = System.getProperty("load.target", "http://127.0.0.1:8080");
+    private final String scenario = System.getProperty("load.scenario", "stt");
+    private final int concurrency = Integer.getInteger("load.concurrency", 50);
+    private final long duration = TimeUnit.SECONDS.toNanos(Long.getLong("load.duration", 30));
+    private final long warmup = TimeUnit.SECONDS.toNanos(Long.getLong("load.warmup", 5));
+    private final String service = System.getProperty("load.service", "");
+    private final String text = System.getProperty("load.text", "好的，我来帮你查一下明天的天气。明天北京晴，最高气温26度，最低气温15度，适合出门走走。");
+    private final Duration timeout = Duration.ofMillis(Long.getLong("load.timeout", 30000));
+    private final long idle = Long.getLong("load.idle", 500);
+
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final HttpClient client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(5))
+            .executor(executor)
+            .build();
+
+    private byte[] audio;
+    private long audioMs;
+
+    public static void main(String[] args) throws Exception {
+        new LoadGenerator().run();
+        System.exit(0);
+    }
+
+    private void run() throws Exception {
+        String path = System.getProperty("load.audio");
+        audio = null == path ? tone(3000) : Files.readAllBytes(Path.of(path));
+        audioMs = Math.max(0, audio.length - WavHeader.SIZE) / 32;
+
+        long start = System.nanoTime();
+        long measureFrom = start + warmup;
+        long deadline = measureFrom + duration;
+        List<Future<Recorder>> futures = new ArrayList<>(concurrency);
+        for (int i = 0; i < concurrency; i++) {
+            long clientId = System.currentTimeMillis() * 1000 + i;
+            futures.add(executor.submit(() -> worker(clientId, measureFrom, deadline)));
+        }
+        Recorder total = new Recorder();
+        for (Future<Recorder> future : futures) {
+            total.merge(future.get());
+        }
+        report(total, duration);
+        executor.shutdownNow();
+    }
+
+    private Recorder worker(long clientId, long measureFrom, long deadline) {
+        Recorder recorder = new Recorder();
+        SseListener listener = "stream".equals(scenario) ? new SseListener(clientId) : null;
+        try {
+            while (System.nanoTime() < deadline) {
+                long start = System.nanoTime();
+                long firstAudio = -1;
+                boolean ok;
+                try {
+                    switch (scenario) {
+                        case "stt" -> ok = speechToText();
+                        case "tts" -> ok = textToSpeech();
+                        case "stream" -> {
+                            firstAudio = listener.textToSpeechStream();
+                            ok = firstAudio > 0;
+                        }
+                        default -> throw new IllegalArgumentException("unknown scenario: " + scenario);
+                    }
+                } catch (IOException e) {
+                    ok = false;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                long end = "stream".equals(scenario) && ok ? listener.lastAudio : System.nanoTime();
+                if (start >= measureFrom) {
+                    recorder.record(ok, end - start, firstAudio > 0 ? firstAudio - start : -1);
+                }
+            }
+        } finally {
+            if (null != listener) {
+                listener.close();
+            }
+        }
+        return recorder;
+    }
+
+    private boolean speechToText() throws IOException, InterruptedException {
+        String boundary = UUID.randomUUID().toString();
+        ByteArrayOutputStream body = new ByteArrayOutputStream(audio.length + 256);
+        body.writeBytes(("--" + boundary + "\r\nContent-Disposition: form-data; name=\"audioData\"; filename=\"load.wav\"\r\n"
+                + "Content-Type: audio/wav\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+        body.writeBytes(audio);
+        body.writeBytes(("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.UTF_8));
+        HttpRequest request = HttpRequest.newBuilder(uri("/speech/speechToText", ""))
+                .timeout(timeout)
+                .header("Content-Type", "multipart/form-data; boundary=" + boundary)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(body.toByteArray()))
+                .build();
+        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+        return response.statusCode() == 200 && !response.body().isBlank();
+    }
+
+    private boolean textToSpeech() throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder(uri("/speech/textToSpeech", "text=" + encode(text)))
+                .timeout(timeout)
+                .POST(HttpRequest.BodyPublishers.noBody())
+                .build();
+        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+        return response.statusCode() == 200 && !response.body().isBlank();
+    }
+
+    /**
+     * 每个工作线程持有一条SSE连接，记录每个音频事件的到达时间
+     */
+    private class SseListener {
+        private final long clientId;
+        private final BlockingQueue<Long> arrivals = new LinkedBlockingQueue<>();
+        private final CompletableFuture<HttpResponse<Stream<String>>> subscription;
+        private long lastAudio;
+
+        SseListener(long clientId) {
+            this.clientId = clientId;
+            HttpRequest request = HttpRequest.newBuilder(uri("/sse/subscribe", "clientId=" + clientId)).GET().build();
+            subscription = client.sendAsync(request, HttpResponse.BodyHandlers.ofLines());
+            subscription.thenAccept(response -> executor.execute(() -> response.body()
+                    .filter(line -> line.startsWith("data:"))
+                    .forEach(line -> arrivals.add(System.nanoTime()))));
+        }
+
+        /**
+         * 发起流式合成，等到一段时间没有新音频为止
+         *
+         * @return 首包音频的到达时间，超时返回-1
+         */
+        long textToSpeechStream() throws IOException, InterruptedException {
+            try {
+                // 订阅建立后才能收到推送
+                subscription.get(timeout.toMillis(), TimeUnit.MILLISECONDS);
+            } catch (ExecutionException | TimeoutException e) {
+                return -1;
+            }
+            arrivals.clear();
+            HttpRequest request = HttpRequest.newBuilder(uri("/speech/textToSpeechStream",
+                            "clientId=" + clientId + "&text=" + encode(text)))
+                    .timeout(timeout)
+                    .POST(HttpRequest.BodyPublishers.noBody())
+                    .build();
+            if (client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode() != 200) {
+                return -1;
+            }
+            Long first = arrivals.poll(timeout.toMillis(), TimeUnit.MILLISECONDS);
+            if (null == first) {
+                return -1;
+            }
+            lastAudio = first;
+            for (Long next = arrivals.poll(idle, TimeUnit.MILLISECONDS); null != next;
+                 next = arrivals.poll(idle, TimeUnit.MILLISECONDS)) {
+                lastAudio = next;
+            }
+            return first;
+        }
+
+        void close() {
+            subscription.cancel(true);
+            subscription.thenAccept(response -> response.body().close());
+        }
+    }
+
+    /**
+     * 单个工作线程的结果，结束后合并
+     */
+    private static class Recorder {
+        private long[] latencies = new long[1024];
+        private long[] firstAudio = new long[1024];
+        private int count;
+        private int firstAudioCount;
+        private int errors;
+
+        void record(boolean ok, long latency, long firstAudioLatency) {
+            if (!ok) {
+                errors++;
+                return;
+            }
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = latency;
+            if (firstAudioLatency >= 0) {
+                if (firstAudioCount == firstAudio.length) {
+                    firstAudio = Arrays.copyOf(firstAudio, firstAudioCount * 2);
+                }
+                firstAudio[firstAudioCount++] = firstAudioLatency;
+            }
+        }
+
+        void merge(Recorder other) {
+            latencies = concat(latencies, count, other.latencies, other.count);
+            count += other.count;
+            firstAudio = concat(firstAudio, firstAudioCount, other.firstAudio, other.firstAudioCount);
+            firstAudioCount += other.firstAudioCount;
+            errors += other.errors;
+        }
+
+        private static long[] concat(long[] a, int aCount, long[] b, int bCount) {
+            long[] result = Arrays.copyOf(a, aCount + bCount);
+            System.arraycopy(b, 0, result, aCount, bCount);
+            return result;
+        }
+    }
+
+    private void report(Recorder recorder, long durationNanos) {
+        double seconds = durationNanos / 1e9;
+        System.out.printf("scenario=%s, target=%s, concurrency=%d, duration=%.0fs%n", scenario, target, concurrency, seconds);
+        System.out.printf("requests=%d, errors=%d, throughput=%.1f req/s%n",
+                recorder.count, recorder.errors, recorder.count / seconds);
+        if ("stt".equals(scenario)) {
+            System.out.printf("audio throughput=%.1f audio-s/s%n", recorder.count * audioMs / 1000.0 / seconds);
+        }
+        System.out.println("latency   " + percentiles(recorder.latencies, recorder.count));
+        if (recorder.firstAudioCount > 0) {
+            System.out.println("ttfa      " + percentiles(recorder.firstAudio, recorder.firstAudioCount));
+        }
+    }
+
+    private static String percentiles(long[] values, int count) {
+        if (count == 0) {
+            return "no samples";
+        }
+        long[] sorted = Arrays.copyOf(values, count);
+        Arrays.sort(sorted);
+        return String.format("p50=%.1fms p90=%.1fms p99=%.1fms p99.9=%.1fms max=%.1fms",
+                percentile(sorted, 0.5), percentile(sorted, 0.9), percentile(sorted, 0.99),
+                percentile(sorted, 0.999), sorted[count - 1] / 1e6);
+    }
+
+    private static double percentile(long[] sorted, double percentile) {
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(sorted.length * percentile) - 1)] / 1e6;
+    }
+
+    private URI uri(String path, String query) {
+        String serviceQuery = service.isEmpty() ? "" : "service=" + encode(service);
+        String fullQuery = Stream.of(query, serviceQuery).filter(part -> !part.isEmpty()).reduce((a, b) -> a + "&" + b).orElse("");
+        return URI.create(target + path + (fullQuery.isEmpty() ? "" : "?" + fullQuery));
+    }
+
+    private static String encode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 16k 16bit 单声道的300Hz正弦波WAV
+     */
+    private static byte[] tone(int millis) {
+        int length = millis * 32;
+        byte[] wav = new byte[WavHeader.SIZE + length];
+        WavHeader.write(AudioSpec.PCM_16K, length, wav, 0);
+        for (int i = 0; i < length / 2; i++) {
+            int sample = (int) (Math.sin(2 * Math.PI * 300 * i / 16000.0) * 8000);
+            wav[WavHeader.SIZE + 2 * i] = (byte) sample;
+            wav[WavHeader.SIZE + 2 * i + 1] = (byte) (sample >> 8);
+        }
+        return wav;
+    }
+}
@@ -0,0 +1,183 @@
+package com.jonas.speech.service;
+
+import cn.hutool.core.thread.NamedThreadFactory;
+import com.jonas.speech.common.SseOverflowPolicy;
+import com.jonas.speech.service.metrics.SpeechMetrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.util.Base64;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SseClientTests {
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(new NamedThreadFactory("sse-test-", true));
+    private final SpeechMetrics speechMetrics = new SpeechMetrics(new SimpleMeterRegistry());
+
+    @Test
+    void replayAfterReconnect() throws Exception {
+        RecordingEmitter first = new RecordingEmitter(false);
+        SseClient client = new SseClient(1L, first, executor, 16, SseOverflowPolicy.DROP_OLDEST, 0, 65536,
+                1 << 20, 16, 1 << 20, speechMetrics);
+        client.offerData("a");
+        client.offerData("b");
+        assertEquals("id:1 data:a", first.poll());
+        assertEquals("id:2 data:b", first.poll());
+
+        // 连接断开后的消息继续排队
+        assertTrue(client.detach(first));
+        client.offerData("c");
+        assertNull(first.events.poll(100, TimeUnit.MILLISECONDS));
+
+        // 客户端只收到了1，重连后从2开始重发，再发送排队的消息
+        RecordingEmitter second = new RecordingEmitter(false);
+        assertNull(client.attach(second, 1L));
+        assertEquals("id:2 data:b", second.poll());
+        assertEquals("id:3 data:c", second.poll());
+        assertEquals(1, client.stats().getReplayed());
+    }
+
+    @Test
+    void detachOnSendFailure() throws Exception {
+        RecordingEmitter broken = new RecordingEmitter(true);
+        SseClient client = new SseClient(2L, broken, executor, 16, SseOverflowPolicy.DROP_OLDEST, 0, 65536,
+                1 << 20, 16, 1 << 20, speechMetrics);
+        client.offerData("a");
+        long deadline = System.currentTimeMillis() + 5000;
+        while (client.detachedAt() == 0) {
+            assertTrue(System.currentTimeMillis() < deadline, "等待超时");
+            Thread.sleep(10);
+        }
+        assertFalse(client.isClosed());
+
+        // 发送失败的消息已进入重放缓冲区，重连后补发
+        RecordingEmitter second = new RecordingEmitter(false);
+        client.attach(second, 0L);
+        assertEquals("id:1 data:a", second.poll());
+
+        // 已连接且队列为空时才发送心跳，写线程可能还没有退出，重试几次
+        String heartbeat = null;
+        for (int i = 0; i < 50 && null == heartbeat; i++) {
+            client.offerHeartbeat();
+            heartbeat = second.events.poll(100, TimeUnit.MILLISECONDS);
+        }
+        assertEquals(":ping", heartbeat);
+    }
+
+    @Test
+    void neverDropAudioFromTheMiddle() throws Exception {
+        RecordingEmitter emitter = new RecordingEmitter(false);
+        emitter.gate = new CountDownLatch(1);
+        SseClient client = new SseClient(3L, emitter, executor, 2, SseOverflowPolicy.COALESCE, 50, 4,
+                1 << 20, 16, 1 << 20, speechMetrics);
+        // 写线程卡在第一条音频上
+        client.offerAudio(new byte[]{1});
+        emitter.sending.await(5, TimeUnit.SECONDS);
+        client.offerData("x");
+        client.offerAudio(new byte[]{2, 3});
+        // 队列已满，音频合并到队尾还未发送的音频中
+        client.offerAudio(new byte[]{4, 5});
+        // 挤掉的是文本消息
+        client.offerData("y");
+        // 无法合并也等不到空间，音频流以错误结束，之后的音频全部丢弃
+        client.offerAudio(new byte[]{6});
+        client.offerAudio(new byte[]{7});
+        emitter.gate.countDown();
+
+        assertEquals("id:1 data:" + encode(1), emitter.poll());
+        assertEquals("id:2 data:" + encode(2, 3, 4, 5), emitter.poll());
+        assertEquals("id:3 data:y", emitter.poll());
+        assertTrue(emitter.poll().contains("\"type\":\"error\""));
+        assertEquals("complete", emitter.poll());
+        assertTrue(client.isClosed());
+        assertEquals(1, client.stats().getCoalesced());
+        assertEquals(3, client.stats().getDropped());
+    }
+
+    @Test
+    void relayedFramesNeverWait() throws Exception {
+        RecordingEmitter emitter = new RecordingEmitter(false);
+        emitter.gate = new CountDownLatch(1);
+        SseClient client = new SseClient(4L, emitter, executor, 1, SseOverflowPolicy.BLOCK, 5000, 65536,
+                1 << 20, 16, 1 << 20, speechMetrics);
+        client.offerAudio(new byte[]{1}, false);
+        emitter.sending.await(5, TimeUnit.SECONDS);
+        client.offerAudio(new byte[]{2}, false);
+        // 转发线程上队列满时不等待：文本直接丢弃，音频流立即以错误结束
+        long start = System.currentTimeMillis();
+        client.offerData("x", false);
+        client.offerAudio(new byte[]{3}, false);
+        assertTrue(System.currentTimeMillis() - start < 1000);
+        emitter.gate.countDown();
+
+        assertEquals("id:1 data:" + encode(1), emitter.poll());
+        assertEquals("id:2 data:" + encode(2), emitter.poll());
+        assertTrue(emitter.poll().contains("\"type\":\"error\""));
+        assertEquals("complete", emitter.poll());
+        assertEquals(2, client.stats().getDropped());
+    }
+
+    private static String encode(int... values) {
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) values[i];
+        }
+        return Base64.getEncoder().encodeToString(bytes);
+    }
+
+    /**
+     * 记录发送的事件，每个事件按行拼接
+     */
+    private static class RecordingEmitter extends SseEmitter {
+        private final boolean broken;
+        private final BlockingQueue<String> events = new LinkedBlockingQueue<>();
+        private final CountDownLatch sending = new CountDownLatch(1);
+        // 不为空时第一次发送等待放行
+        private CountDownLatch gate;
+
+        RecordingEmitter(boolean broken) {
+            this.broken = broken;
+        }
+
+        @Override
+        public void send(SseEventBuilder builder) throws IOException {
+            if (broken) {
+                throw new IOException("Broken pipe");
+            }
+            sending.countDown();
+            if (null != gate) {
+                try {
+                    gate.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            String text = builder.build().stream()
+                    .map(part -> part.getData().toString())
+                    .collect(Collectors.joining());
+            events.add(String.join(" ", text.trim().split("\n")));
+        }
+
+        @Override
+        public void complete() {
+            events.add("complete");
+        }
+
+        String poll() throws InterruptedException {
+            return events.poll(5, TimeUnit.SECONDS);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.jonas.speech.service;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 线程模型测试
+ * 虚拟线程上的阻塞SDK调用转交给平台线程池，同时进行的调用数应当正好等于配置的线程数
+ */
+class VirtualThreadLoadTests {
+
+    private static final int THREADS = 200;
+    private static final int REQUESTS = 300;
+
+    @Test
+    void offloadedCallsRunUpToConfiguredThreads() throws Exception {
+        BlockingCallExecutor blockingCallExecutor = new BlockingCallExecutor();
+        ReflectionTestUtils.setField(blockingCallExecutor, "threads", THREADS);
+        blockingCallExecutor.init();
+        AtomicInteger active = new AtomicInteger();
+        AtomicInteger maxActive = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<Future<?>> futures = new ArrayList<>(REQUESTS);
+            for (int i = 0; i < REQUESTS; i++) {
+                futures.add(executor.submit(() -> blockingCallExecutor.call(() -> {
+                    maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+                    try {
+                        return release.await(10, TimeUnit.SECONDS);
+                    } finally {
+                        active.decrementAndGet();
+                    }
+                })));
+            }
+            // 所有平台线程都被占满，多出的请求排队而不是另开线程
+            long deadline = System.currentTimeMillis() + 10000;
+            while (active.get() < THREADS) {
+                assertTrue(System.currentTimeMillis() < deadline, "等待超时");
+                Thread.sleep(10);
+            }
+            Thread.sleep(100);
+            assertEquals(THREADS, active.get());
+            release.countDown();
+            for (Future<?> future : futures) {
+                assertEquals(Boolean.TRUE, future.get());
+            }
+        } finally {
+            blockingCallExecutor.destroy();
+        }
+        assertEquals(THREADS, maxActive.get());
+    }
+
+    @Test
+    void blockingCallRunsInlineOnPlatformThread() throws Exception {
+        BlockingCallExecutor blockingCallExecutor = new BlockingCallExecutor();
+        ReflectionTestUtils.setField(blockingCallExecutor, "threads", 1);
+        blockingCallExecutor.init();
+        try {
+            Thread caller = Thread.currentThread();
+            assertEquals(caller, blockingCallExecutor.call(Thread::currentThread));
+            try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+                Thread worker = executor.submit(() -> blockingCallExecutor.call(Thread::currentThread)).get();
+                assertTrue(!worker.isVirtual() && worker.getName().startsWith("blocking-call-"));
+            }
+        } finally {
+            blockingCallExecutor.destroy();
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package com.jonas.speech.service.audio;
+
+import com.jonas.speech.service.SpeechService;
+import com.jonas.speech.service.SpeechToTextStream;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class PcmConverterTests {
+
+    @Test
+    void resampleAndDownmixPreservesTone() {
+        AudioSpec source = new AudioSpec(44100, 2, 16);
+        byte[] pcm = tone(source, 1000, 1.0);
+        int expected = PcmConverter.outputBytes(source, AudioSpec.PCM_16K, pcm.length);
+        byte[] output = new byte[expected];
+        int written = new PcmConverter(source, AudioSpec.PCM_16K).convert(pcm, 0, pcm.length, output, 0);
+        assertEquals(expected, written);
+        assertEquals(16000 * 2, written, 2);
+        // 1kHz正弦波每秒2000次过零
+        assertEquals(2000, zeroCrossings(output, written), 20);
+    }
+
+    @Test
+    void chunkedConversionMatchesOneShot() {
+        AudioSpec source = new AudioSpec(48000, 2, 24);
+        byte[] pcm = tone(source, 440, 0.5);
+        byte[] oneShot = new byte[PcmConverter.outputBytes(source, AudioSpec.PCM_8K, pcm.length)];
+        new PcmConverter(source, AudioSpec.PCM_8K).convert(pcm, 0, pcm.length, oneShot, 0);
+
+        // 分块长度不按帧对齐
+        PcmConverter converter = new PcmConverter(source, AudioSpec.PCM_8K);
+        ByteArrayOutputStream chunked = new ByteArrayOutputStream();
+        Random random = new Random(7);
+        for (int offset = 0; offset < pcm.length; ) {
+            int length = Math.min(pcm.length - offset, 1 + random.nextInt(999));
+            byte[] buffer = new byte[converter.maxOutputBytes(length)];
+            chunked.write(buffer, 0, converter.convert(pcm, offset, length, buffer, 0));
+            offset += length;
+        }
+        assertArrayEquals(oneShot, chunked.toByteArray());
+    }
+
+    @Test
+    void parseWavWithExtraChunks() {
+        AudioSpec spec = new AudioSpec(22050, 1, 8);
+        byte[] data = {0, (byte) 128, (byte) 255, 64};
+        byte[] list = {'L', 'I', 'S', 'T', 3, 0, 0, 0, 1, 2, 3, 0};
+        byte[] wav = new byte[WavHeader.SIZE + list.length + data.length];
+        WavHeader.write(spec, data.length, wav, 0);
+        // 在fmt块和data块之间插入奇数长度的LIST块
+        System.arraycopy(wav, 36, wav, 36 + list.length, 8);
+        System.arraycopy(list, 0, wav, 36, list.length);
+        System.arraycopy(data, 0, wav, WavHeader.SIZE + list.length, data.length);
+
+        WavHeader header = WavHeader.parse(wav);
+        assertNotNull(header);
+        assertEquals(spec, header.spec());
+        assertEquals(WavHeader.SIZE + list.length, header.dataOffset());
+        assertEquals(data.length, header.dataLength());
+        assertNull(WavHeader.parse(new byte[]{'I', 'D', '3', 4, 0, 0, 0, 0, 0, 0, 0, 0}));
+        assertEquals(16000, WavHeader.sampleRate(new byte[10], 16000));
+    }
+
+    @Test
+    void rejectMalformedChunkSize() {
+        AudioSpec spec = new AudioSpec(16000, 1, 16);
+        byte[] wav = new byte[WavHeader.SIZE + 12 + 320];
+        WavHeader.write(spec, 320, wav, 0);
+        System.arraycopy(wav, 36, wav, 48, 8);
+        byte[] list = {'L', 'I', 'S', 'T', (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x7F};
+        System.arraycopy(list, 0, wav, 36, list.length);
+        // 块长度接近int上限，跳过该块会溢出，解析失败而不是越界
+        assertNull(WavHeader.parse(wav));
+        // 块长度超出实际数据
+        wav[40] = (byte) 0xE8;
+        wav[41] = 0x03;
+        wav[42] = 0;
+        wav[43] = 0;
+        assertNull(WavHeader.parse(wav));
+        // 块长度为负数
+        wav[40] = (byte) 0xFF;
+        wav[43] = (byte) 0xFF;
+        assertNull(WavHeader.parse(wav));
+        assertEquals(16000, WavHeader.sampleRate(wav, 16000));
+    }
+
+    @Test
+    void normalizeOnlyWhenFormatDiffers() {
+        AudioNormalizer normalizer = new AudioNormalizer();
+        ReflectionTestUtils.setField(normalizer, "enabled", true);
+        SpeechService speechService = mock(SpeechService.class);
+        when(speechService.audioInputSpec(any())).thenAnswer(invocation -> AudioSpec.nearest(invocation.getArgument(0)));
+
+        byte[] matching = wav(AudioSpec.PCM_16K, tone(AudioSpec.PCM_16K, 500, 0.1));
+        assertSame(matching, normalizer.normalize(matching, speechService));
+        byte[] raw = new byte[100];
+        assertSame(raw, normalizer.normalize(raw, speechService));
+
+        AudioSpec source = new AudioSpec(8000, 2, 16);
+        byte[] converted = normalizer.normalize(wav(source, tone(source, 500, 0.1)), speechService);
+        WavHeader header = WavHeader.parse(converted);
+        assertEquals(AudioSpec.PCM_8K, header.spec());
+        assertEquals(800 * 2, header.dataLength());
+    }
+
+    @Test
+    void convertingStreamReusesBuffer() {
+        AudioNormalizer normalizer = new AudioNormalizer();
+        ReflectionTestUtils.setField(normalizer, "enabled", true);
+        List<byte[]> arrays = new ArrayList<>();
+        AtomicInteger bytes = new AtomicInteger();
+        SpeechToTextStream converted = normalizer.convert(new SpeechToTextStream() {
+            @Override
+            public void write(byte[] audioData) {
+                fail("转换后的音频应按偏移和长度写入");
+            }
+
+            @Override
+            public void write(byte[] audioData, int offset, int length) {
+                arrays.add(audioData);
+                bytes.addAndGet(length);
+            }
+
+            @Override
+            public void close() {
+            }
+
+            @Override
+            public void cancel() {
+            }
+        }, AudioSpec.PCM_8K, AudioSpec.PCM_16K);
+
+        byte[] pcm = tone(AudioSpec.PCM_8K, 500, 0.1);
+        converted.write(pcm, 0, pcm.length / 2);
+        converted.write(pcm, pcm.length / 2, pcm.length / 2);
+        // 两次写入使用同一个输出缓冲区
+        assertEquals(2, arrays.size());
+        assertSame(arrays.get(0), arrays.get(1));
+        assertEquals(PcmConverter.outputBytes(AudioSpec.PCM_8K, AudioSpec.PCM_16K, pcm.length), bytes.get(), 4);
+    }
+
+    @Test
+    void toRawAndALaw() {
+        byte[] pcm = tone(AudioSpec.PCM_16K, 1000, 0.1);
+        // 格式一致时只去掉WAV头
+        assertArrayEquals(pcm, PcmConverter.toRaw(wav(AudioSpec.PCM_16K, pcm), AudioSpec.PCM_16K));
+        byte[] raw = PcmConverter.toRaw(wav(AudioSpec.PCM_16K, pcm), AudioSpec.PCM_8K);
+        assertEquals(PcmConverter.outputBytes(AudioSpec.PCM_16K, AudioSpec.PCM_8K, pcm.length), raw.length);
+        assertThrows(RuntimeException.class, () -> PcmConverter.toRaw(pcm, AudioSpec.PCM_8K));
+
+        // G.711 参考值
+        assertEquals((byte) 0xD5, ALaw.encode((short) 0));
+        assertEquals((byte) 0x55, ALaw.encode((short) -1));
+        assertEquals((byte) 0xAA, ALaw.encode(Short.MAX_VALUE));
+        assertEquals((byte) 0x2A, ALaw.encode(Short.MIN_VALUE));
+        assertEquals(raw.length / 2, ALaw.encode(raw).length);
+    }
+
+    private static byte[] wav(AudioSpec spec, byte[] pcm) {
+        byte[] wav = new byte[WavHeader.SIZE + pcm.length];
+        WavHeader.write(spec, pcm.length, wav, 0);
+        System.arraycopy(pcm, 0, wav, WavHeader.SIZE, pcm.length);
+        return wav;
+    }
+
+    static byte[] tone(AudioSpec spec, double frequency, double seconds) {
+        int frames = (int) (spec.sampleRate() * seconds);
+        int sampleBytes = spec.bitsPerSample() / 8;
+        byte[] pcm = new byte[frames * spec.frameBytes()];
+        for (int i = 0; i < frames; i++) {
+            int value = (int) (Math.sin(2 * Math.PI * frequency * i / spec.sampleRate()) * 0.5
+                    * ((1L << (spec.bitsPerSample() - 1)) - 1));
+            for (int c = 0; c < spec.channels(); c++) {
+                int offset = i * spec.frameBytes() + c * sampleBytes;
+                for (int b = 0; b < sampleBytes; b++) {
+                    pcm[offset + b] = (byte) (value >> (8 * b));
+                }
+            }
+        }
+        return pcm;
+    }
+
+    private static int zeroCrossings(byte[] pcm, int length) {
+        ByteBuffer buffer = ByteBuffer.wrap(pcm, 0, length).order(ByteOrder.LITTLE_ENDIAN);
+        int crossings = 0;
+        short previous = buffer.getShort();
+        while (buffer.remaining() >= 2) {
+            short sample = buffer.getShort();
+            if ((previous < 0) != (sample < 0)) {
+                crossings++;
+            }
+            previous = sample;
+        }
+        return crossings;
+    }
+}
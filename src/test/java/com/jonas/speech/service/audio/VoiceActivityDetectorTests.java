@@ -0,0 +1,203 @@
+package com.jonas.speech.service.audio;
+
+import com.jonas.speech.service.SpeechToTextStream;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class VoiceActivityDetectorTests {
+
+    // 16k 16bit 单声道每毫秒32字节
+    private static final int BYTES_PER_MS = 32;
+
+    @Test
+    void trimLeadingAndTrailingSilence() {
+        VoiceActivityDetector detector = detector(0);
+        byte[] pcm = concat(noise(1000), tone(1500), noise(2000));
+        byte[] trimmed = detector.trim(wav(pcm));
+
+        // 保留1.5秒人声和前后各200ms
+        WavHeader header = WavHeader.parse(trimmed);
+        assertEquals((1500 + 400) * BYTES_PER_MS, header.dataLength(), 2 * 20 * BYTES_PER_MS);
+        assertEquals(1, detector.stats().getTrimmedCalls());
+        assertEquals(2600, detector.stats().getSavedMs(), 40);
+
+        // 没有静音或没有人声时原样返回
+        byte[] speechOnly = wav(tone(1000));
+        assertSame(speechOnly, detector.trim(speechOnly));
+        byte[] silenceOnly = wav(noise(1000));
+        assertSame(silenceOnly, detector.trim(silenceOnly));
+    }
+
+    @Test
+    void compressLongPauses() {
+        VoiceActivityDetector detector = detector(400);
+        byte[] pcm = concat(tone(500), noise(3000), tone(500), noise(200), tone(500));
+        WavHeader header = WavHeader.parse(detector.trim(wav(pcm)));
+        // 3秒停顿压缩到400ms，200ms停顿保留
+        assertEquals((500 + 400 + 500 + 200 + 500) * BYTES_PER_MS, header.dataLength(), 2 * 20 * BYTES_PER_MS);
+    }
+
+    @Test
+    void streamDropsLeadingSilence() {
+        VoiceActivityDetector detector = detector(400);
+        ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        SpeechToTextStream stream = detector.wrap(new SpeechToTextStream() {
+            @Override
+            public void write(byte[] audioData) {
+                sent.writeBytes(audioData);
+            }
+
+            @Override
+            public void close() {
+            }
+
+            @Override
+            public void cancel() {
+            }
+        }, AudioSpec.PCM_16K);
+
+        byte[] pcm = concat(noise(2000), tone(1000), noise(3000), tone(1000), noise(2000));
+        // 客户端按不对齐帧长的大小发送
+        for (int offset = 0; offset < pcm.length; offset += 3000) {
+            byte[] chunk = new byte[Math.min(3000, pcm.length - offset)];
+            System.arraycopy(pcm, offset, chunk, 0, chunk.length);
+            stream.write(chunk);
+        }
+        stream.close();
+        // 开头保留200ms，停顿压缩到400ms，结尾保留200ms
+        assertEquals((200 + 1000 + 400 + 1000 + 200) * BYTES_PER_MS, sent.size(), 3 * 20 * BYTES_PER_MS);
+        assertEquals(1, detector.stats().getCalls());
+        assertTrue(detector.stats().getSavedMs() > 5000);
+    }
+
+    @Test
+    void keepLowLevelSpeech() {
+        // 短句几乎没有静音，能量最低的10%帧落在开头约-42dBFS的轻声上
+        byte[] pcm = concat(noise(40), tone(400, -42), tone(800), noise(40));
+        byte[] audio = wav(pcm);
+        assertSame(audio, detector(0).trim(audio));
+
+        // 不限制底噪估计时轻声被当成底噪，开头超出 padding 的部分被裁掉
+        VoiceActivityDetector unbounded = detector(0);
+        ReflectionTestUtils.setField(unbounded, "maxNoiseDb", 0.0);
+        assertTrue(WavHeader.parse(unbounded.trim(audio)).dataLength() < pcm.length - 200 * BYTES_PER_MS);
+    }
+
+    @Test
+    void streamFlushesPaddingWithoutSpeech() {
+        VoiceActivityDetector detector = detector(0);
+        ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        SpeechToTextStream stream = detector.wrap(new SpeechToTextStream() {
+            @Override
+            public void write(byte[] audioData) {
+                sent.writeBytes(audioData);
+            }
+
+            @Override
+            public void close() {
+            }
+
+            @Override
+            public void cancel() {
+            }
+        }, AudioSpec.PCM_16K);
+
+        // 轻声始终没有达到人声阈值，结束时发送缓存的最后200ms和不足一帧的尾部
+        byte[] pcm = tone(1010, -62);
+        for (int offset = 0; offset < pcm.length; offset += 3000) {
+            stream.write(pcm, offset, Math.min(3000, pcm.length - offset));
+        }
+        stream.close();
+        assertEquals((200 + 10) * BYTES_PER_MS, sent.size());
+    }
+
+    @Test
+    void splitAtLongestPause() {
+        VoiceActivityDetector detector = detector(0);
+        byte[] pcm = concat(tone(3000), noise(300), tone(2000), noise(1000), tone(3000), noise(500), tone(3000));
+        List<AudioChunk> chunks = detector.split(wav(pcm), 4000, 8000);
+
+        // 4到8秒之间最长的停顿在5.3秒到6.3秒，从中间切开；剩余部分不超过8秒
+        assertEquals(2, chunks.size());
+        assertEquals(5800, chunks.get(0).endMs(), 40);
+        assertEquals(1000, chunks.get(0).pauseMs(), 40);
+        assertEquals(chunks.get(0).endMs(), chunks.get(1).startMs());
+        assertEquals(0, chunks.get(1).pauseMs());
+        assertEquals(pcm.length, chunks.stream().mapToInt(AudioChunk::length).sum());
+
+        // 没有停顿时按最长时长切分
+        List<AudioChunk> forced = detector.split(wav(tone(10000)), 2000, 4000);
+        assertTrue(forced.size() >= 3);
+        assertTrue(forced.stream().allMatch(chunk -> chunk.endMs() - chunk.startMs() <= 4000));
+    }
+
+    private static VoiceActivityDetector detector(int maxPause) {
+        VoiceActivityDetector detector = new VoiceActivityDetector();
+        ReflectionTestUtils.setField(detector, "enabled", true);
+        ReflectionTestUtils.setField(detector, "streamEnabled", true);
+        ReflectionTestUtils.setField(detector, "frameMs", 20);
+        ReflectionTestUtils.setField(detector, "minEnergyDb", -50.0);
+        ReflectionTestUtils.setField(detector, "marginDb", 10.0);
+        ReflectionTestUtils.setField(detector, "zcrThreshold", 0.25);
+        ReflectionTestUtils.setField(detector, "noisePercentile", 0.1);
+        ReflectionTestUtils.setField(detector, "maxNoiseDb", -55.0);
+        ReflectionTestUtils.setField(detector, "padding", 200);
+        ReflectionTestUtils.setField(detector, "maxPause", maxPause);
+        return detector;
+    }
+
+    /**
+     * 约-60dBFS的底噪
+     */
+    private static byte[] noise(int millis) {
+        Random random = new Random(millis);
+        byte[] pcm = new byte[millis * BYTES_PER_MS];
+        for (int i = 0; i < pcm.length; i += 2) {
+            int sample = (int) (random.nextGaussian() * 30);
+            pcm[i] = (byte) sample;
+            pcm[i + 1] = (byte) (sample >> 8);
+        }
+        return pcm;
+    }
+
+    private static byte[] tone(int millis) {
+        return PcmConverterTests.tone(AudioSpec.PCM_16K, 300, millis / 1000.0);
+    }
+
+    /**
+     * 指定能量的正弦波，dBFS
+     */
+    private static byte[] tone(int millis, double db) {
+        byte[] pcm = new byte[millis * BYTES_PER_MS];
+        double amplitude = Math.sqrt(2) * 32768 * Math.pow(10, db / 20);
+        for (int i = 0; i < pcm.length / 2; i++) {
+            int sample = (int) (Math.sin(2 * Math.PI * 300 * i / 16000) * amplitude);
+            pcm[2 * i] = (byte) sample;
+            pcm[2 * i + 1] = (byte) (sample >> 8);
+        }
+        return pcm;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            output.writeBytes(part);
+        }
+        return output.toByteArray();
+    }
+
+    private static byte[] wav(byte[] pcm) {
+        byte[] wav = new byte[WavHeader.SIZE + pcm.length];
+        WavHeader.write(AudioSpec.PCM_16K, pcm.length, wav, 0);
+        System.arraycopy(pcm, 0, wav, WavHeader.SIZE, pcm.length);
+        return wav;
+    }
+}
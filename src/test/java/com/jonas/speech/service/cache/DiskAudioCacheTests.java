@@ -0,0 +1,48 @@
+package com.jonas.speech.service.cache;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+class DiskAudioCacheTests {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void keepSegmentsWhenSegmentSizeShrinks() throws Exception {
+        byte[] audio = new byte[3000];
+        for (int i = 0; i < audio.length; i++) {
+            audio[i] = (byte) i;
+        }
+        DiskAudioCache cache = new DiskAudioCache(dir, 1 << 20, 8192);
+        cache.put("a", "baidu", "0", audio);
+        cache.close();
+
+        // 调小段大小后重新打开，旧段不截断，已有数据依然可读
+        cache = new DiskAudioCache(dir, 1 << 20, 1024);
+        ByteBuffer buffer = cache.get("a");
+        assertNotNull(buffer);
+        byte[] read = new byte[buffer.remaining()];
+        buffer.get(read);
+        assertArrayEquals(audio, read);
+        assertEquals(8192, Files.size(dir.resolve("segment-0.dat")));
+
+        // 旧段写满后新建的段使用新的大小
+        for (int i = 0; i < 8; i++) {
+            cache.put("b" + i, "baidu", "0", new byte[900]);
+        }
+        for (int i = 0; i < 8; i++) {
+            assertNotNull(cache.get("b" + i));
+        }
+        assertEquals(1024, Files.size(dir.resolve("segment-1.dat")));
+        cache.close();
+    }
+}
@@ -0,0 +1,204 @@
+package com.jonas.speech.service.cluster;
+
+import com.jonas.speech.service.metrics.SpeechMetrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TcpMeshSseRelayTests {
+
+    @Test
+    void forwardToOwnerAndFollowMove() throws Exception {
+        int portA = freePort();
+        int portB = freePort();
+        String peers = "127.0.0.1:" + portA + ",127.0.0.1:" + portB;
+        LocalNode a = new LocalNode(portA, peers, "secret");
+        LocalNode b = new LocalNode(portB, peers, "secret");
+        try {
+            await(() -> a.relay.stats().getPeers().get(0).isConnected() && b.relay.stats().getPeers().get(0).isConnected());
+            // 客户端连在A上，B推送的消息按顺序转给A
+            a.register(7L);
+            await(() -> b.relay.stats().getRemoteClients() == 1);
+            byte[] audio = {1, 2, 3};
+            assertTrue(b.relay.forward(7L, SseRelay.Kind.DATA, "hello".getBytes(StandardCharsets.UTF_8)));
+            assertTrue(b.relay.forward(7L, SseRelay.Kind.AUDIO, audio));
+            assertTrue(b.relay.forward(7L, SseRelay.Kind.COMPLETE, new byte[0]));
+            assertEquals("DATA:hello", a.frames.poll(5, TimeUnit.SECONDS));
+            assertEquals("AUDIO:" + new String(audio, StandardCharsets.ISO_8859_1), a.frames.poll(5, TimeUnit.SECONDS));
+            assertEquals("COMPLETE:", a.frames.poll(5, TimeUnit.SECONDS));
+            // 不知道在哪个节点的客户端不转发
+            assertFalse(b.relay.forward(8L, SseRelay.Kind.DATA, new byte[0]));
+
+            // 客户端重连到B后，A上的旧连接失效，A的推送转给B
+            b.register(7L);
+            await(() -> a.moved.contains(7L));
+            await(() -> a.relay.stats().getRemoteClients() == 1);
+            assertTrue(a.relay.forward(7L, SseRelay.Kind.DATA, "again".getBytes(StandardCharsets.UTF_8)));
+            assertEquals("DATA:again", b.frames.poll(5, TimeUnit.SECONDS));
+
+            b.relay.unregister(7L);
+            await(() -> a.relay.stats().getRemoteClients() == 0);
+            assertEquals(3, a.relay.stats().getReceived());
+            assertEquals(1, b.relay.stats().getReceived());
+        } finally {
+            a.relay.destroy();
+            b.relay.destroy();
+        }
+    }
+
+    @Test
+    void stopDialingSelf() throws Exception {
+        int port = freePort();
+        // peers 中用另一种写法指向本节点
+        LocalNode node = new LocalNode(port, "127.0.0.1:" + port + ",localhost:" + port, "secret");
+        try {
+            await(() -> node.relay.stats().getPeers().isEmpty());
+            node.register(7L);
+            Thread.sleep(100);
+            assertTrue(node.moved.isEmpty());
+            assertEquals(0, node.relay.stats().getRemoteClients());
+        } finally {
+            node.relay.destroy();
+        }
+    }
+
+    @Test
+    void rejectWrongSecret() throws Exception {
+        int portA = freePort();
+        int portB = freePort();
+        String peers = "127.0.0.1:" + portA + ",127.0.0.1:" + portB;
+        LocalNode a = new LocalNode(portA, peers, "secret");
+        LocalNode b = new LocalNode(portB, peers, "other");
+        try {
+            // 连接能建立，但对方校验签名后断开，不接受通告的客户端
+            b.register(7L);
+            await(() -> b.relay.stats().getPeers().get(0).getConnects() >= 2);
+            assertEquals(0, a.relay.stats().getRemoteClients());
+            assertFalse(a.relay.forward(7L, SseRelay.Kind.DATA, new byte[0]));
+        } finally {
+            a.relay.destroy();
+            b.relay.destroy();
+        }
+        // 未配置密钥时不能开启
+        assertThrows(RuntimeException.class, () -> new LocalNode(freePort(), "", ""));
+    }
+
+    @Test
+    void reportForwardFailureWhenQueueFull() throws Exception {
+        int portA = freePort();
+        // 只接受连接、从不读取的节点，接收缓冲区尽量小
+        try (ServerSocket stalled = new ServerSocket()) {
+            stalled.setReceiveBufferSize(4096);
+            stalled.bind(new InetSocketAddress("127.0.0.1", 0));
+            String address = "127.0.0.1:" + stalled.getLocalPort();
+            LocalNode a = new LocalNode(portA, "127.0.0.1:" + portA + "," + address, "secret");
+            ReflectionTestUtils.setField(a.relay, "offerTimeout", 100L);
+            try (Socket outbound = stalled.accept();
+                 Socket inbound = new Socket("127.0.0.1", portA)) {
+                // 以该节点的身份通告客户端7
+                OutputStream output = inbound.getOutputStream();
+                output.write(MeshProtocol.hello(address, "stalled", "127.0.0.1:" + portA, "secret"));
+                output.write(MeshProtocol.own(7L));
+                output.flush();
+                await(() -> a.relay.stats().getRemoteClients() == 1);
+                await(() -> a.relay.stats().getPeers().get(0).isConnected());
+
+                // 对方不读取，写满TCP缓冲区和转发队列后音频等待超时，调用方收到失败
+                byte[] audio = new byte[1000];
+                boolean accepted = true;
+                for (int i = 0; i < 100000 && accepted; i++) {
+                    accepted = a.relay.forward(7L, SseRelay.Kind.AUDIO, audio);
+                }
+                assertFalse(accepted);
+                assertEquals(16, a.relay.stats().getPeers().get(0).getQueueDepth());
+                long start = System.currentTimeMillis();
+                assertFalse(a.relay.forward(7L, SseRelay.Kind.COMPLETE, new byte[0]));
+                assertTrue(System.currentTimeMillis() - start >= 90);
+                // 文本消息不等待
+                start = System.currentTimeMillis();
+                assertFalse(a.relay.forward(7L, SseRelay.Kind.DATA, new byte[1]));
+                assertTrue(System.currentTimeMillis() - start < 90);
+                assertTrue(a.relay.stats().getPeers().get(0).getDropped() >= 3);
+            } finally {
+                a.relay.destroy();
+            }
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "等待超时");
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * 一个节点，记录转来的消息
+     */
+    private static class LocalNode implements SseRelay.FrameHandler {
+        private final TcpMeshSseRelay relay = new TcpMeshSseRelay(new SpeechMetrics(new SimpleMeterRegistry()));
+        private final Set<Long> clients = ConcurrentHashMap.newKeySet();
+        private final Set<Long> moved = ConcurrentHashMap.newKeySet();
+        private final BlockingQueue<String> frames = new LinkedBlockingQueue<>();
+
+        LocalNode(int port, String peers, String secret) {
+            ReflectionTestUtils.setField(relay, "enabled", true);
+            ReflectionTestUtils.setField(relay, "port", port);
+            ReflectionTestUtils.setField(relay, "bind", "127.0.0.1");
+            ReflectionTestUtils.setField(relay, "secret", secret);
+            ReflectionTestUtils.setField(relay, "advertise", "127.0.0.1:" + port);
+            ReflectionTestUtils.setField(relay, "peers", peers);
+            ReflectionTestUtils.setField(relay, "queueCapacity", 16);
+            ReflectionTestUtils.setField(relay, "heartbeatInterval", 1000L);
+            ReflectionTestUtils.setField(relay, "reconnectInterval", 50L);
+            ReflectionTestUtils.setField(relay, "maxFrameBytes", 1024);
+            relay.start(this);
+        }
+
+        void register(long clientId) {
+            clients.add(clientId);
+            relay.register(clientId);
+        }
+
+        @Override
+        public boolean deliver(long clientId, SseRelay.Kind kind, byte[] payload) {
+            if (!clients.contains(clientId)) {
+                return false;
+            }
+            frames.add(kind + ":" + new String(payload,
+                    kind == SseRelay.Kind.AUDIO ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8));
+            return true;
+        }
+
+        @Override
+        public void moved(long clientId) {
+            clients.remove(clientId);
+            moved.add(clientId);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.jonas.speech.service.impl;
+
+import cn.hutool.core.codec.Base64;
+import com.jonas.speech.common.SpeechType;
+import com.jonas.speech.common.ThrottledException;
+import com.jonas.speech.loadtest.FakeProviderServer;
+import com.jonas.speech.service.BlockingCallExecutor;
+import com.jonas.speech.service.credential.CredentialManager;
+import com.jonas.speech.service.http.HttpClientManager;
+import com.jonas.speech.service.metrics.SpeechMetrics;
+import okhttp3.OkHttpClient;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class BaiduSpeechServiceTests {
+
+    @Test
+    void callThroughFakeServer() throws Exception {
+        FakeProviderServer server = fakeServer("0");
+        try {
+            BaiduSpeechService service = service(server.getPort());
+            // 令牌、识别和合成都经过替身服务，不依赖SDK写死的地址
+            assertEquals("今天天气怎么样，适合出去走走吗", service.speechToText(new byte[3200]));
+            assertEquals(32000, Base64.decode(service.textToSpeech("你好")).length);
+            assertEquals("今天天气怎么样，适合出去走走吗", service.speechToTextAsync(new byte[3200]).get());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    void throttledByFakeServer() throws Exception {
+        FakeProviderServer server = fakeServer("1");
+        try {
+            BaiduSpeechService service = service(server.getPort());
+            assertThrows(ThrottledException.class, () -> service.speechToText(new byte[3200]));
+            assertThrows(ThrottledException.class, () -> service.textToSpeech("你好"));
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static FakeProviderServer fakeServer(String throttleRate) throws Exception {
+        System.setProperty("fake.port", "0");
+        System.setProperty("fake.wsPort", "0");
+        System.setProperty("fake.latency", "0");
+        System.setProperty("fake.jitter", "0");
+        System.setProperty("fake.throttleRate", throttleRate);
+        try {
+            FakeProviderServer server = new FakeProviderServer();
+            server.start();
+            return server;
+        } finally {
+            for (String key : new String[]{"fake.port", "fake.wsPort", "fake.latency", "fake.jitter", "fake.throttleRate"}) {
+                System.clearProperty(key);
+            }
+        }
+    }
+
+    private static BaiduSpeechService service(int port) {
+        BlockingCallExecutor blockingCallExecutor = new BlockingCallExecutor();
+        ReflectionTestUtils.setField(blockingCallExecutor, "threads", 1);
+        blockingCallExecutor.init();
+        HttpClientManager httpClientManager = mock(HttpClientManager.class);
+        when(httpClientManager.getClient(SpeechType.BAIDU)).thenReturn(new OkHttpClient());
+        CredentialManager credentialManager = new CredentialManager();
+        ReflectionTestUtils.setField(credentialManager, "checkInterval", 10000L);
+        ReflectionTestUtils.setField(credentialManager, "waitTimeout", 3000L);
+        credentialManager.init();
+
+        BaiduSpeechService service = new BaiduSpeechService(blockingCallExecutor, mock(SpeechMetrics.class),
+                httpClientManager, credentialManager);
+        ReflectionTestUtils.setField(service, "appId", "app");
+        ReflectionTestUtils.setField(service, "apiKey", "key");
+        ReflectionTestUtils.setField(service, "secretKey", "secret");
+        ReflectionTestUtils.setField(service, "useSdk", false);
+        ReflectionTestUtils.setField(service, "asrUrl", "http://127.0.0.1:" + port + "/server_api");
+        ReflectionTestUtils.setField(service, "ttsUrl", "http://127.0.0.1:" + port + "/text2audio");
+        ReflectionTestUtils.setField(service, "tokenUrl", "http://127.0.0.1:" + port + "/oauth/2.0/token");
+        service.initAipSpeech();
+        return service;
+    }
+}
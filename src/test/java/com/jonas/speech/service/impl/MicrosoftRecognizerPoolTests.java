@@ -0,0 +1,196 @@
+package com.jonas.speech.service.impl;
+
+import com.jonas.speech.service.metrics.SpeechMetrics;
+import com.microsoft.cognitiveservices.speech.SpeechRecognizer;
+import com.microsoft.cognitiveservices.speech.audio.AudioStreamFormat;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MicrosoftRecognizerPoolTests {
+
+    @Test
+    void acquireAndRelease() throws Exception {
+        TestPool pool = pool(2, 5000);
+        MicrosoftRecognizerPool.Lease lease = pool.acquire(null);
+        assertEquals(1, pool.stats().getActive());
+        lease.write(new byte[320]);
+        lease.append("你好");
+        lease.append("世界");
+        assertEquals("你好世界", lease.text());
+
+        // 只有第一次结束生效
+        assertTrue(lease.release(SpeechMetrics.SUCCESS));
+        assertFalse(lease.release(SpeechMetrics.ERROR));
+        FakeSession session = pool.sessions.get(0);
+        assertTrue(session.closed.await(5, TimeUnit.SECONDS));
+        assertTrue(session.stopped);
+        assertTrue(session.inputClosed);
+        waitUntil(() -> pool.stats().getActive() == 0);
+        assertEquals(1, pool.stats().getLeased());
+        // 关闭后的写入被忽略
+        lease.write(new byte[320]);
+        assertEquals(1, session.writes.get());
+        pool.destroy();
+    }
+
+    @Test
+    void exhaustedPoolTimesOutAndLeaseExpires() throws Exception {
+        TestPool pool = pool(1, 100);
+        MicrosoftRecognizerPool.Lease lease = pool.acquire(null);
+        AtomicBoolean expired = new AtomicBoolean();
+        lease.onTimeout(() -> expired.set(true));
+
+        // 识别器用完，等待超过 acquireTimeout 后失败
+        long start = System.currentTimeMillis();
+        assertThrows(RuntimeException.class, () -> pool.acquire(null));
+        assertTrue(System.currentTimeMillis() - start >= 90);
+
+        // 超过最长租用时间被强制回收，名额归还
+        assertTrue(pool.sessions.get(0).closed.await(5, TimeUnit.SECONDS));
+        assertTrue(expired.get());
+        assertTrue(lease.isReleased());
+        assertEquals(1, pool.stats().getTimeouts());
+        waitUntil(() -> pool.stats().getActive() == 0);
+        pool.acquire(null).release(SpeechMetrics.SUCCESS);
+        pool.destroy();
+    }
+
+    @Test
+    void leaseReturnedAfterError() throws Exception {
+        TestPool pool = pool(1, 5000);
+        // 创建SDK对象失败时归还名额
+        pool.failOpen = true;
+        assertThrows(RuntimeException.class, () -> pool.acquire(null));
+        pool.failOpen = false;
+
+        // 停止识别和关闭SDK对象出错时依然归还名额
+        MicrosoftRecognizerPool.Lease lease = pool.acquire(null);
+        FakeSession session = pool.sessions.get(0);
+        session.failClose = true;
+        assertTrue(lease.release(SpeechMetrics.ERROR));
+        assertTrue(session.closed.await(5, TimeUnit.SECONDS));
+        waitUntil(() -> pool.stats().getActive() == 0);
+        pool.acquire(null).release(SpeechMetrics.SUCCESS);
+        pool.destroy();
+    }
+
+    @Test
+    void noWriteAfterEndOfStream() throws Exception {
+        TestPool pool = pool(1, 5000);
+        MicrosoftRecognizerPool.Lease lease = pool.acquire(null);
+        FakeSession session = pool.sessions.get(0);
+        // 写入与结束并发，关闭输入流之后不能再有写入
+        Thread writer = new Thread(() -> {
+            while (!lease.isReleased()) {
+                lease.write(new byte[320]);
+            }
+            lease.write(new byte[320]);
+        });
+        writer.start();
+        waitUntil(() -> session.writes.get() > 100);
+        lease.release(SpeechMetrics.CANCELLED);
+        writer.join();
+        assertTrue(session.closed.await(5, TimeUnit.SECONDS));
+        assertFalse(session.writeAfterClose);
+        pool.destroy();
+    }
+
+    private static TestPool pool(int maxRecognizers, long maxLease) {
+        TestPool pool = new TestPool();
+        ReflectionTestUtils.setField(pool, "maxRecognizers", maxRecognizers);
+        ReflectionTestUtils.setField(pool, "acquireTimeout", 100L);
+        ReflectionTestUtils.setField(pool, "maxLease", maxLease);
+        ReflectionTestUtils.setField(pool, "stopTimeout", 1000L);
+        pool.init();
+        return pool;
+    }
+
+    private static void waitUntil(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "等待超时");
+            Thread.sleep(5);
+        }
+    }
+
+    /**
+     * 用假的会话代替SDK对象，不加载本地库
+     */
+    private static class TestPool extends MicrosoftRecognizerPool {
+        private final List<FakeSession> sessions = new ArrayList<>();
+        private volatile boolean failOpen;
+
+        TestPool() {
+            super(new SpeechMetrics(new SimpleMeterRegistry()));
+        }
+
+        @Override
+        Session open(AudioStreamFormat format) {
+            if (failOpen) {
+                throw new RuntimeException("创建识别器失败");
+            }
+            FakeSession session = new FakeSession();
+            sessions.add(session);
+            return session;
+        }
+    }
+
+    private static class FakeSession implements MicrosoftRecognizerPool.Session {
+        private final AtomicInteger writes = new AtomicInteger();
+        private final CountDownLatch closed = new CountDownLatch(1);
+        private volatile boolean inputClosed;
+        private volatile boolean stopped;
+        private volatile boolean writeAfterClose;
+        private volatile boolean failClose;
+
+        @Override
+        public SpeechRecognizer recognizer() {
+            return null;
+        }
+
+        @Override
+        public void write(byte[] audioData) {
+            if (inputClosed) {
+                writeAfterClose = true;
+            }
+            writes.incrementAndGet();
+            // 模拟写入耗时，放大与关闭并发的窗口
+            Thread.yield();
+            if (inputClosed) {
+                writeAfterClose = true;
+            }
+        }
+
+        @Override
+        public void closeInput() {
+            inputClosed = true;
+        }
+
+        @Override
+        public void stop(long timeout) throws Exception {
+            stopped = true;
+            if (failClose) {
+                throw new Exception("停止识别失败");
+            }
+        }
+
+        @Override
+        public void close() {
+            closed.countDown();
+            if (failClose) {
+                throw new RuntimeException("关闭识别器失败");
+            }
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package com.jonas.speech.service.impl;
+
+import com.jonas.speech.common.SessionPoolStats;
+import com.jonas.speech.loadtest.FakeProviderServer;
+import com.jonas.speech.service.AudioStreamService;
+import com.jonas.speech.service.credential.CredentialManager;
+import com.jonas.speech.service.metrics.SpeechMetrics;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Deque;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+class XunFeiTtsSessionPoolTests {
+
+    @Test
+    void warmSessionReused() throws Exception {
+        FakeProviderServer server = fakeServer();
+        XunFeiTtsSessionPool pool = pool(1, 4, 60000, "ws://127.0.0.1:" + server.getWsPort() + "/v2/tts");
+        try {
+            // 第一次现场建连，之后开始预热
+            assertFalse(synthesize(pool).isWarm());
+            waitUntil(() -> pool.stats().getWarm() == 1);
+
+            XunFeiTtsSessionPool.TtsSession session = synthesize(pool);
+            assertTrue(session.isWarm());
+            SessionPoolStats stats = pool.stats();
+            assertEquals(1, stats.getWarmHits());
+            assertEquals(1, stats.getColdStarts());
+            // 合成完成的连接关闭后归还许可，后台补充新的预热连接
+            waitUntil(() -> pool.stats().getBusy() == 0 && pool.stats().getWarm() == 1);
+            assertEquals(3, pool.stats().getCreated());
+        } finally {
+            pool.destroy();
+            server.stop();
+        }
+    }
+
+    @Test
+    void expiredWarmSessionReplaced() throws Exception {
+        FakeProviderServer server = fakeServer();
+        XunFeiTtsSessionPool pool = pool(1, 4, 300, "ws://127.0.0.1:" + server.getWsPort() + "/v2/tts");
+        try {
+            synthesize(pool);
+            waitUntil(() -> pool.stats().getWarm() == 1);
+            XunFeiTtsSessionPool.TtsSession first = warmSessions(pool).peekFirst();
+
+            // 超过空闲时长的预热连接被关闭，换成新建的连接
+            waitUntil(() -> !first.isOpen() && pool.stats().getWarm() == 1 && warmSessions(pool).peekFirst() != first);
+            assertTrue(pool.stats().getCreated() >= 3);
+            waitUntil(() -> pool.stats().getBusy() == 0);
+        } finally {
+            pool.destroy();
+            server.stop();
+        }
+    }
+
+    @Test
+    void warmFailuresBackOffExponentially() throws Exception {
+        XunFeiTtsSessionPool pool = pool(1, 4, 60000, "ws://127.0.0.1:" + closedPort() + "/v2/tts");
+        try {
+            // 现场建连失败，连接关闭后许可归还
+            assertThrows(RuntimeException.class, () -> pool.acquire(handler(new CountDownLatch(1))));
+            waitUntil(() -> failures(pool) == 1);
+            long backoff = (long) ReflectionTestUtils.getField(pool, "retryAt") - System.currentTimeMillis();
+            assertTrue(backoff > 1000 && backoff <= 2000, "第一次失败后退避2秒: " + backoff);
+
+            // 退避期间不再建连
+            ReflectionTestUtils.invokeMethod(pool, "maintain");
+            assertEquals(1, failures(pool));
+
+            // 退避时间随连续失败次数翻倍
+            ReflectionTestUtils.setField(pool, "retryAt", 0L);
+            ReflectionTestUtils.invokeMethod(pool, "maintain");
+            waitUntil(() -> failures(pool) == 2);
+            backoff = (long) ReflectionTestUtils.getField(pool, "retryAt") - System.currentTimeMillis();
+            assertTrue(backoff > 3000 && backoff <= 4000, "第二次失败后退避4秒: " + backoff);
+            waitUntil(() -> pool.stats().getBusy() == 0 && pool.stats().getWarm() == 0);
+        } finally {
+            pool.destroy();
+        }
+    }
+
+    @Test
+    void permitsReturnedOnCloseAndFailure() throws Exception {
+        FakeProviderServer server = fakeServer();
+        XunFeiTtsSessionPool pool = pool(0, 1, 60000, "ws://127.0.0.1:" + server.getWsPort() + "/v2/tts");
+        try {
+            XunFeiTtsSessionPool.TtsSession session = pool.acquire(handler(new CountDownLatch(1)));
+            assertEquals(1, pool.stats().getBusy());
+            // 连接数已满，等待超时失败
+            ReflectionTestUtils.setField(pool, "acquireTimeout", 200L);
+            assertThrows(RuntimeException.class, () -> pool.acquire(handler(new CountDownLatch(1))));
+
+            // 未合成就关闭也归还许可，重复关闭只归还一次
+            session.close();
+            session.close();
+            waitUntil(() -> pool.stats().getBusy() == 0);
+            assertEquals(1, ((Semaphore) ReflectionTestUtils.getField(pool, "permits")).availablePermits());
+            synthesize(pool);
+            waitUntil(() -> pool.stats().getBusy() == 0);
+        } finally {
+            pool.destroy();
+            server.stop();
+        }
+    }
+
+    @Test
+    void interruptedAcquireClosesSession() throws Exception {
+        // 只接受连接、不完成握手的服务端
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            XunFeiTtsSessionPool pool = pool(0, 1, 60000, "ws://127.0.0.1:" + serverSocket.getLocalPort() + "/v2/tts");
+            AtomicReference<Throwable> error = new AtomicReference<>();
+            Thread caller = new Thread(() -> {
+                try {
+                    pool.acquire(handler(new CountDownLatch(1)));
+                } catch (Throwable e) {
+                    error.set(e);
+                }
+            });
+            caller.start();
+            try (Socket socket = serverSocket.accept()) {
+                socket.setSoTimeout(5000);
+                // 收到握手请求后再中断，此时客户端已经在等待握手完成
+                assertTrue(socket.getInputStream().read() > 0);
+                caller.interrupt();
+                caller.join(5000);
+                assertInstanceOf(InterruptedException.class, error.get());
+                // 握手没完成的连接也被关闭，许可归还
+                while (socket.getInputStream().read() != -1) {
+                }
+                waitUntil(() -> pool.stats().getBusy() == 0);
+            } finally {
+                pool.destroy();
+            }
+        }
+    }
+
+    @Test
+    void dropMessagesWithOtherSid() throws Exception {
+        AudioStreamService audioStreamService = mock(AudioStreamService.class);
+        XunFeiTtsSessionPool pool = mock(XunFeiTtsSessionPool.class);
+        XunFeiTtsSessionPool.TtsSession session = mock(XunFeiTtsSessionPool.TtsSession.class);
+        AtomicReference<XunFeiTtsSessionPool.TtsHandler> handler = new AtomicReference<>();
+        when(pool.acquire(any())).thenAnswer(invocation -> {
+            handler.set(invocation.getArgument(0));
+            return session;
+        });
+        when(audioStreamService.audio(anyLong(), any())).thenReturn(true);
+        XunFeiSpeechService service = service(audioStreamService, pool);
+
+        service.textToSpeechStream("你好", 1L);
+        verify(audioStreamService).start(1L);
+        verify(session).send(anyString());
+        handler.get().onMessage(session, "{\"code\":0,\"sid\":\"a\",\"data\":{\"audio\":\"AAA=\",\"status\":1}}");
+        // 不属于本次合成的消息直接丢弃，包括结束帧
+        handler.get().onMessage(session, "{\"code\":0,\"sid\":\"b\",\"data\":{\"audio\":\"AAA=\",\"status\":2}}");
+        handler.get().onMessage(session, "{\"code\":10700,\"sid\":\"b\"}");
+        verify(audioStreamService, times(1)).audio(eq(1L), any());
+        verify(audioStreamService, never()).end(1L);
+        verify(audioStreamService, never()).error(eq(1L), anyString());
+        verify(session, never()).finish();
+
+        handler.get().onMessage(session, "{\"code\":0,\"sid\":\"a\",\"data\":{\"audio\":\"AAA=\",\"status\":2}}");
+        verify(audioStreamService, times(2)).audio(eq(1L), any());
+        verify(audioStreamService).end(1L);
+        verify(session).finish();
+    }
+
+    @Test
+    void connectFailureRethrown() throws Exception {
+        AudioStreamService audioStreamService = mock(AudioStreamService.class);
+        XunFeiTtsSessionPool pool = mock(XunFeiTtsSessionPool.class);
+        when(pool.acquire(any())).thenThrow(new RuntimeException("讯飞语音合成连接数已满"));
+        XunFeiSpeechService service = service(audioStreamService, pool);
+
+        // 建连失败抛给路由记为失败，同时通知客户端
+        assertThrows(RuntimeException.class, () -> service.textToSpeechStream("你好", 1L));
+        verify(audioStreamService).error(eq(1L), anyString());
+        verify(audioStreamService, never()).start(1L);
+    }
+
+    private static XunFeiTtsSessionPool pool(int warmSize, int maxSessions, long maxIdle, String url) {
+        XunFeiTtsSessionPool pool = new XunFeiTtsSessionPool();
+        ReflectionTestUtils.setField(pool, "warmSize", warmSize);
+        ReflectionTestUtils.setField(pool, "maxSessions", maxSessions);
+        ReflectionTestUtils.setField(pool, "maxIdle", maxIdle);
+        ReflectionTestUtils.setField(pool, "acquireTimeout", 3000L);
+        pool.init();
+        pool.start(() -> url);
+        return pool;
+    }
+
+    private static XunFeiSpeechService service(AudioStreamService audioStreamService, XunFeiTtsSessionPool pool) {
+        XunFeiSpeechService service = new XunFeiSpeechService(audioStreamService, mock(CredentialManager.class), pool,
+                mock(SpeechMetrics.class));
+        ReflectionTestUtils.setField(service, "appId", "app");
+        ReflectionTestUtils.setField(service, "vcn", "xiaoyan");
+        return service;
+    }
+
+    /**
+     * 取一个连接完成一次合成，返回用过的连接
+     */
+    private static XunFeiTtsSessionPool.TtsSession synthesize(XunFeiTtsSessionPool pool) throws Exception {
+        CountDownLatch done = new CountDownLatch(1);
+        XunFeiTtsSessionPool.TtsSession session = pool.acquire(handler(done));
+        session.send("{\"data\":{\"text\":\"5L2g5aW9\",\"status\":2}}");
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        return session;
+    }
+
+    /**
+     * 收到最后一帧后结束合成
+     */
+    private static XunFeiTtsSessionPool.TtsHandler handler(CountDownLatch done) {
+        return new XunFeiTtsSessionPool.TtsHandler() {
+            @Override
+            public void onMessage(XunFeiTtsSessionPool.TtsSession session, String message) {
+                if (message.contains("\"status\":2")) {
+                    session.finish();
+                    done.countDown();
+                }
+            }
+
+            @Override
+            public void onClosed(String reason) {
+            }
+        };
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Deque<XunFeiTtsSessionPool.TtsSession> warmSessions(XunFeiTtsSessionPool pool) {
+        return (Deque<XunFeiTtsSessionPool.TtsSession>) ReflectionTestUtils.getField(pool, "warmSessions");
+    }
+
+    private static int failures(XunFeiTtsSessionPool pool) {
+        return ((AtomicInteger) ReflectionTestUtils.getField(pool, "failures")).get();
+    }
+
+    private static int closedPort() throws Exception {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static FakeProviderServer fakeServer() throws Exception {
+        System.setProperty("fake.port", "0");
+        System.setProperty("fake.wsPort", "0");
+        System.setProperty("fake.latency", "0");
+        System.setProperty("fake.jitter", "0");
+        System.setProperty("fake.chunkInterval", "0");
+        try {
+            FakeProviderServer server = new FakeProviderServer();
+            server.start();
+            return server;
+        } finally {
+            for (String key : new String[]{"fake.port", "fake.wsPort", "fake.latency", "fake.jitter", "fake.chunkInterval"}) {
+                System.clearProperty(key);
+            }
+        }
+    }
+
+    private static void waitUntil(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "等待超时");
+            Thread.sleep(5);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.jonas.speech.service.limit;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ProviderLimiterTests {
+
+    @Test
+    void concurrencyLimitShrinksOnThrottleAndGrowsOnSuccess() throws Exception {
+        ProviderLimiter limiter = new ProviderLimiter("local", 0, 1, 4, 1, 8, 0.5, 10);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(limiter.acquire(0));
+        }
+        // 并发已满，排队超时
+        assertFalse(limiter.acquire(20));
+
+        limiter.release(false, true);
+        assertEquals(2, limiter.stats().getLimit());
+        assertEquals(1, limiter.stats().getThrottled());
+        // 上限收缩到2，仍有3个请求进行中
+        assertFalse(limiter.acquire(0));
+
+        limiter.release(true, false);
+        limiter.release(true, false);
+        limiter.release(true, false);
+        assertTrue(limiter.stats().getLimit() > 2);
+        assertEquals(0, limiter.stats().getInFlight());
+    }
+
+    @Test
+    void tokenBucketQueuesUntilNextToken() throws Exception {
+        ProviderLimiter limiter = new ProviderLimiter("local", 20, 1, 10, 1, 10, 0.5, 10);
+        assertTrue(limiter.acquire(0));
+        limiter.release(true, false);
+        // 令牌用完，20qps下约50ms产生下一个令牌
+        assertFalse(limiter.acquire(0));
+        long start = System.nanoTime();
+        assertTrue(limiter.acquire(500));
+        assertTrue(System.nanoTime() - start >= 20_000_000L);
+        assertEquals(1, limiter.stats().getRejected());
+    }
+}
@@ -0,0 +1,53 @@
+package com.jonas.speech.service.metrics;
+
+import com.jonas.speech.common.SpeechCapability;
+import com.jonas.speech.service.SpeechToTextStream;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class SpeechMetricsTests {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final SpeechMetrics metrics = new SpeechMetrics(registry);
+
+    @Test
+    void errorCodesAreBounded() {
+        for (int i = 0; i < SpeechMetrics.MAX_ERROR_CODES + 10; i++) {
+            metrics.upstreamError("xunfei", String.valueOf(10000 + i));
+        }
+        metrics.upstreamError("xunfei", "10000");
+        metrics.upstreamError("xunfei", null);
+
+        assertEquals(2, registry.get("speech.provider.errors").tags("provider", "xunfei", "code", "10000").counter().count());
+        // 超过上限的错误码和空错误码都归入 other
+        assertEquals(11, registry.get("speech.provider.errors")
+                .tags("provider", "xunfei", "code", SpeechMetrics.OTHER_CODE).counter().count());
+    }
+
+    @Test
+    void countStreamingAudio() {
+        SpeechToTextStream stream = metrics.countAudio("aliyun", new SpeechToTextStream() {
+            @Override
+            public void write(byte[] audioData) {
+            }
+
+            @Override
+            public void close() {
+            }
+
+            @Override
+            public void cancel() {
+            }
+        });
+        stream.write(new byte[3200]);
+        stream.write(new byte[1600]);
+        metrics.audioBytes("aliyun", SpeechCapability.SPEECH_TO_TEXT, SpeechMetrics.IN, 1000);
+
+        assertEquals(4800, registry.get("speech.audio.bytes")
+                .tags("provider", "aliyun", "operation", "speechToTextStream", "direction", "in").counter().count());
+        assertEquals(1000, registry.get("speech.audio.bytes")
+                .tags("provider", "aliyun", "operation", "speechToText", "direction", "in").counter().count());
+    }
+}
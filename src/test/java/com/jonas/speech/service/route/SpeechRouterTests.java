@@ -0,0 +1,253 @@
+package com.jonas.speech.service.route;
+
+import com.jonas.speech.common.HedgeStats;
+import com.jonas.speech.common.RouteStats;
+import com.jonas.speech.common.SpeechCapability;
+import com.jonas.speech.common.ThrottledException;
+import com.jonas.speech.service.SpeechService;
+import com.jonas.speech.service.SpeechServiceFactory;
+import com.jonas.speech.service.SpeechToTextCallback;
+import com.jonas.speech.service.limit.SpeechLimiter;
+import com.jonas.speech.service.metrics.SpeechMetrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.env.Environment;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.endsWith;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class SpeechRouterTests {
+
+    private final LocalSpeechService healthy = new LocalSpeechService("healthy", false, 0);
+    private final LocalSpeechService broken = new LocalSpeechService("broken", true, 0);
+    private final LocalSpeechService slow = new LocalSpeechService("slow", false, 2000);
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+    @Test
+    void failoverAndCircuitBreaker() {
+        SpeechRouter router = router("broken,healthy");
+        for (int i = 0; i < 50; i++) {
+            assertEquals("healthy", router.execute(SpeechCapability.SPEECH_TO_TEXT, null, s -> s.speechToText(new byte[0])));
+        }
+        RouteStats brokenStats = stats(router, "broken");
+        assertEquals("OPEN", brokenStats.getState());
+        // 熔断后不再分配流量，调用次数停在触发熔断时
+        assertEquals(brokenStats.getWindowCalls(), brokenStats.getCalls());
+        assertEquals("CLOSED", stats(router, "healthy").getState());
+        assertEquals(50, registry.get("speech.provider.latency")
+                .tags("provider", "healthy", "operation", "speechToText", "outcome", "success").timer().count());
+        assertEquals(brokenStats.getCalls(), registry.get("speech.provider.latency")
+                .tags("provider", "broken", "outcome", "error").timer().count());
+    }
+
+    @Test
+    void pinnedProviderAndCapability() {
+        SpeechRouter router = router("broken,healthy");
+        assertThrows(RuntimeException.class,
+                () -> router.execute(SpeechCapability.SPEECH_TO_TEXT, "broken", s -> s.speechToText(new byte[0])));
+        // 指定服务商时只在该服务商上重试
+        assertEquals(2, stats(router, "broken").getCalls());
+        assertTrue(router.stats().stream().noneMatch(stats -> "healthy".equals(stats.getProvider())));
+        assertThrows(RuntimeException.class,
+                () -> router.execute(SpeechCapability.SPEECH_TO_TEXT_STREAM, null, s -> s.speechToTextStream(null)));
+    }
+
+    @Test
+    void hedgeSlowPrimary() {
+        SpeechRouter router = router("slow,healthy");
+        ReflectionTestUtils.setField(router, "hedgeEnabled", true);
+        ReflectionTestUtils.setField(router, "hedgeMinDelay", 20L);
+        ReflectionTestUtils.setField(router, "defaultLatency", 50L);
+        for (int i = 0; i < 5; i++) {
+            long start = System.currentTimeMillis();
+            assertEquals("healthy", router.hedge(SpeechCapability.SPEECH_TO_TEXT, null,
+                    s -> s.speechToTextAsync(new byte[0]), text -> !text.isEmpty()));
+            assertTrue(System.currentTimeMillis() - start < 1000);
+        }
+        // 慢服务商总会被选为主服务商，对冲后被取消
+        HedgeStats stats = router.hedgeStats().get(0);
+        assertEquals("slow", stats.getPrimary());
+        assertEquals(5, stats.getHedged());
+        assertEquals(5, stats.getSecondaryWins());
+        assertEquals(5, slow.cancelled.get());
+    }
+
+    @Test
+    void executeAsyncFailover() {
+        SpeechRouter router = router("broken,healthy");
+        for (int i = 0; i < 10; i++) {
+            assertEquals("healthy", router.executeAsync(SpeechCapability.SPEECH_TO_TEXT, null,
+                    s -> s.speechToTextAsync(new byte[0]), text -> !text.isEmpty()).join());
+        }
+        assertEquals(10, stats(router, "healthy").getCalls());
+        // 指定服务商时只在该服务商上重试，重试用尽后以最后的异常结束
+        CompletableFuture<String> pinned = router.executeAsync(SpeechCapability.SPEECH_TO_TEXT, "broken",
+                s -> s.speechToTextAsync(new byte[0]), text -> !text.isEmpty());
+        assertThrows(CompletionException.class, pinned::join);
+    }
+
+    @Test
+    void streamHoldsPermitUntilReleased() {
+        SpeechRouter router = router("healthy");
+        // 限流开启，并发上限为1
+        Object limiter = ReflectionTestUtils.getField(router, "speechLimiter");
+        ReflectionTestUtils.setField(limiter, "enabled", true);
+        ReflectionTestUtils.setField(limiter, "queueTimeout", 20L);
+        AtomicReference<SpeechLimiter.Permit> held = new AtomicReference<>();
+        assertEquals("healthy", router.stream(SpeechCapability.SPEECH_TO_TEXT, "healthy", true, (s, permit) -> {
+            held.set(permit);
+            return s.getType();
+        }));
+        // 流没有结束前许可一直被占用
+        assertThrows(ThrottledException.class,
+                () -> router.stream(SpeechCapability.SPEECH_TO_TEXT, "healthy", true, (s, permit) -> s.getType()));
+        held.get().release(true, null);
+        assertEquals("healthy", router.stream(SpeechCapability.SPEECH_TO_TEXT, "healthy", true, (s, permit) -> {
+            permit.release(true, null);
+            return s.getType();
+        }));
+        // 打开失败时由路由归还许可
+        assertThrows(RuntimeException.class, () -> router.stream(SpeechCapability.SPEECH_TO_TEXT, "healthy", false,
+                (s, permit) -> broken.speechToText(new byte[0])));
+        assertEquals("healthy", router.stream(SpeechCapability.SPEECH_TO_TEXT, "healthy", false, (s, permit) -> {
+            permit.release(true, null);
+            return s.getType();
+        }));
+    }
+
+    @Test
+    void callbackTimeout() throws InterruptedException {
+        ReflectionTestUtils.setField(slow, "asyncTimeout", 50L);
+        CountDownLatch latch = new CountDownLatch(1);
+        AtomicReference<String> outcome = new AtomicReference<>();
+        slow.speechToText(new byte[0], new SpeechToTextCallback() {
+            @Override
+            public void onComplete(String text) {
+                outcome.set("complete");
+                latch.countDown();
+            }
+
+            @Override
+            public void onTimeout() {
+                outcome.set("timeout");
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        assertEquals("timeout", outcome.get());
+    }
+
+    private SpeechRouter router(String providers) {
+        SpeechServiceFactory factory = mock(SpeechServiceFactory.class);
+        Map<String, SpeechService> services = Map.of("healthy", healthy, "broken", broken, "slow", slow);
+        when(factory.getServices()).thenReturn(services);
+        when(factory.getService(anyString())).thenAnswer(invocation -> services.get(invocation.<String>getArgument(0)));
+        Environment environment = mock(Environment.class);
+        when(environment.getProperty(anyString(), eq(Double.class), any())).thenReturn(1.0);
+        when(environment.getProperty(endsWith(".qps"), eq(Double.class), any())).thenReturn(0.0);
+        // 故障和慢服务商权重更高，保证优先被选中
+        when(environment.getProperty(eq("speech.router.weight.broken"), eq(Double.class), any())).thenReturn(1.0E6);
+        when(environment.getProperty(eq("speech.router.weight.slow"), eq(Double.class), any())).thenReturn(1.0E6);
+
+        SpeechRouter router = new SpeechRouter(factory, new SpeechLimiter(environment), environment,
+                new SpeechMetrics(registry));
+        ReflectionTestUtils.setField(router, "defaultService", "healthy");
+        ReflectionTestUtils.setField(router, "providers", providers);
+        ReflectionTestUtils.setField(router, "windowSize", 20);
+        ReflectionTestUtils.setField(router, "minCalls", 5);
+        ReflectionTestUtils.setField(router, "failureRate", 0.5);
+        ReflectionTestUtils.setField(router, "openDuration", 60000L);
+        ReflectionTestUtils.setField(router, "defaultLatency", 500L);
+        ReflectionTestUtils.setField(router, "maxAttempts", 2);
+        ReflectionTestUtils.setField(router, "retryRatio", 1.0);
+        ReflectionTestUtils.setField(router, "retryMinTokens", 100);
+        ReflectionTestUtils.setField(router, "backoffBase", 1L);
+        ReflectionTestUtils.setField(router, "backoffMax", 2L);
+        ReflectionTestUtils.setField(router, "hedgePercentile", 0.95);
+        ReflectionTestUtils.setField(router, "hedgeBudgetRatio", 1.0);
+        ReflectionTestUtils.setField(router, "hedgeMinTokens", 100);
+        ReflectionTestUtils.setField(router, "hedgeTimeout", 5000L);
+        ReflectionTestUtils.setField(router, "streamTimeout", 60000L);
+        router.init();
+        return router;
+    }
+
+    private static RouteStats stats(SpeechRouter router, String provider) {
+        return router.stats().stream().filter(stats -> provider.equals(stats.getProvider())).findFirst().orElseThrow();
+    }
+
+    /**
+     * 本地替身服务，只支持同步识别
+     */
+    private static class LocalSpeechService extends SpeechService {
+
+        private final String name;
+        private final boolean fail;
+        private final long delay;
+        private final AtomicInteger cancelled = new AtomicInteger();
+
+        LocalSpeechService(String name, boolean fail, long delay) {
+            this.name = name;
+            this.fail = fail;
+            this.delay = delay;
+        }
+
+        @Override
+        public CompletableFuture<String> speechToTextAsync(byte[] audioData) {
+            if (fail) {
+                return CompletableFuture.failedFuture(new RuntimeException("服务异常"));
+            }
+            CompletableFuture<String> future = new CompletableFuture<String>()
+                    .completeOnTimeout(name, delay, TimeUnit.MILLISECONDS);
+            future.whenComplete((text, e) -> {
+                if (future.isCancelled()) {
+                    cancelled.incrementAndGet();
+                }
+            });
+            return future;
+        }
+
+        @Override
+        public String speechToText(byte[] audioData) {
+            if (fail) {
+                throw new RuntimeException("服务异常");
+            }
+            return name;
+        }
+
+        @Override
+        public String textToSpeech(String text) {
+            return null;
+        }
+
+        @Override
+        public void textToSpeechStream(String text, Long clientId) {
+        }
+
+        @Override
+        public String getType() {
+            return name;
+        }
+
+        @Override
+        public Set<SpeechCapability> getCapabilities() {
+            return EnumSet.of(SpeechCapability.SPEECH_TO_TEXT);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.jonas.speech.service.stt;
+
+import com.jonas.speech.common.AsyncSttStatus;
+import com.jonas.speech.service.SpeechBusinessService;
+import com.jonas.speech.service.SseService;
+import com.jonas.speech.service.metrics.SpeechMetrics;
+import com.jonas.speech.service.upload.AudioUpload;
+import com.jonas.speech.service.upload.AudioUploadService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class AsyncSttServiceTests {
+
+    @TempDir
+    Path spillDir;
+
+    @Test
+    void completedResultsDoNotCountAgainstLimit() throws Exception {
+        SpeechBusinessService business = mock(SpeechBusinessService.class);
+        CompletableFuture<String> slow = new CompletableFuture<>();
+        when(business.speechToTextAsync(any(AudioUpload.class), isNull()))
+                .thenReturn(CompletableFuture.completedFuture("你好"), slow);
+        AudioUploadService uploads = uploads();
+        AsyncSttService service = service(business, 1, 60000);
+
+        // 已完成的结果仍然保留，但不占用识别中的名额
+        assertEquals(AsyncSttStatus.SUCCESS, service.get(service.submit(upload(uploads), null, null).getTaskId()).getStatus());
+        String taskId = service.submit(upload(uploads), null, null).getTaskId();
+        assertThrows(RuntimeException.class, () -> service.submit(upload(uploads), null, null));
+        // 被拒绝的上传已经关闭
+        assertEquals(1, uploads.stats().getBuffersInUse());
+
+        slow.complete("世界");
+        assertEquals("世界", service.get(taskId).getText());
+        assertEquals(0, uploads.stats().getBuffersInUse());
+        service.destroy();
+    }
+
+    @Test
+    void timeoutCancelsRecognition() throws Exception {
+        SpeechBusinessService business = mock(SpeechBusinessService.class);
+        CompletableFuture<String> never = new CompletableFuture<>();
+        when(business.speechToTextAsync(any(AudioUpload.class), isNull())).thenReturn(never);
+        AudioUploadService uploads = uploads();
+        AsyncSttService service = service(business, 10, 50);
+
+        String taskId = service.submit(upload(uploads), null, null).getTaskId();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (service.get(taskId).getStatus() == AsyncSttStatus.PENDING && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(AsyncSttStatus.TIMEOUT, service.get(taskId).getStatus());
+        // 超时作用在识别返回的 future 上，由它取消底层调用
+        assertTrue(never.isCompletedExceptionally());
+        assertEquals(0, uploads.stats().getBuffersInUse());
+        service.destroy();
+    }
+
+    private AudioUploadService uploads() throws Exception {
+        AudioUploadService service = new AudioUploadService(new SpeechMetrics(new SimpleMeterRegistry()));
+        ReflectionTestUtils.setField(service, "bufferSize", 1024);
+        ReflectionTestUtils.setField(service, "poolSize", 4);
+        ReflectionTestUtils.setField(service, "maxSize", 1024L * 1024);
+        ReflectionTestUtils.setField(service, "spillDir", spillDir.toString());
+        service.init();
+        return service;
+    }
+
+    private static AudioUpload upload(AudioUploadService uploads) throws Exception {
+        return uploads.read(new ByteArrayInputStream(new byte[320]), 320);
+    }
+
+    private static AsyncSttService service(SpeechBusinessService business, int maxTasks, long timeout) {
+        AsyncSttService service = new AsyncSttService(business, mock(SseService.class),
+                new SpeechMetrics(new SimpleMeterRegistry()));
+        ReflectionTestUtils.setField(service, "timeout", timeout);
+        ReflectionTestUtils.setField(service, "resultTtl", 600000L);
+        ReflectionTestUtils.setField(service, "maxTasks", maxTasks);
+        service.init();
+        return service;
+    }
+}
@@ -0,0 +1,157 @@
+package com.jonas.speech.service.stt;
+
+import com.jonas.speech.common.BatchResult;
+import com.jonas.speech.common.BatchSummary;
+import com.jonas.speech.service.SpeechBusinessService;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class BatchSttServiceTests {
+
+    @Test
+    void streamResultsInCompletionOrder() throws Exception {
+        SpeechBusinessService business = mock(SpeechBusinessService.class);
+        // 音频内容为识别耗时，"fail"表示识别失败
+        when(business.speechToText(any(byte[].class), isNull())).thenAnswer(invocation -> {
+            String audio = new String(invocation.<byte[]>getArgument(0), StandardCharsets.UTF_8);
+            if ("fail".equals(audio)) {
+                throw new RuntimeException("服务异常");
+            }
+            Thread.sleep(Long.parseLong(audio));
+            return "text" + audio;
+        });
+        BatchSttService service = service(business);
+
+        ByteArrayOutputStream zip = new ByteArrayOutputStream();
+        try (ZipOutputStream output = new ZipOutputStream(zip)) {
+            output.putNextEntry(new ZipEntry("a/100.wav"));
+            output.write("100".getBytes(StandardCharsets.UTF_8));
+            output.putNextEntry(new ZipEntry("a/fail.wav"));
+            output.write("fail".getBytes(StandardCharsets.UTF_8));
+        }
+        List<BatchResult> results = new ArrayList<>();
+        BatchSummary summary = service.recognize(List.of(
+                new MockMultipartFile("audioData", "300.wav", null, "300".getBytes(StandardCharsets.UTF_8)),
+                new MockMultipartFile("audioData", "clips.zip", null, zip.toByteArray())), null, results::add);
+        // 失败的最先返回，慢的最后返回，失败不影响其他音频
+        assertEquals(List.of(2, 1, 0), results.stream().map(BatchResult::getIndex).toList());
+        assertEquals("a/fail.wav", results.get(0).getName());
+        assertEquals("服务异常", results.get(0).getError());
+        assertEquals("text300", results.get(2).getText());
+        assertEquals(3, summary.getTotal());
+        assertEquals(1, summary.getFailed());
+        assertTrue(summary.getClipsPerSecond() > 0);
+    }
+
+    @Test
+    void rejectTooManyItems() {
+        BatchSttService service = service(mock(SpeechBusinessService.class));
+        ReflectionTestUtils.setField(service, "maxItems", 1);
+        MockMultipartFile file = new MockMultipartFile("audioData", "1.wav", null, new byte[1]);
+        assertThrows(RuntimeException.class, () -> service.recognize(List.of(file, file), null, result -> {
+        }));
+    }
+
+    @Test
+    void rejectTooManyZipEntries() throws Exception {
+        BatchSttService service = service(mock(SpeechBusinessService.class));
+        ReflectionTestUtils.setField(service, "maxItems", 2);
+        // 目录也计入条目数
+        ByteArrayOutputStream zip = new ByteArrayOutputStream();
+        try (ZipOutputStream output = new ZipOutputStream(zip)) {
+            for (int i = 0; i < 3; i++) {
+                output.putNextEntry(new ZipEntry("dir" + i + "/"));
+            }
+        }
+        assertThrows(RuntimeException.class, () -> service.recognize(
+                new ByteArrayInputStream(zip.toByteArray()), null, result -> {
+                }));
+    }
+
+    @Test
+    void streamItemsUntilTotalLimit() throws Exception {
+        SpeechBusinessService business = mock(SpeechBusinessService.class);
+        when(business.speechToText(any(byte[].class), isNull())).thenReturn("text");
+        BatchSttService service = service(business);
+        ReflectionTestUtils.setField(service, "parallel", 1);
+        ReflectionTestUtils.setField(service, "maxTotalBytes", 2048L);
+        // 每个文件都不超过单个文件的限制，但解压后的总大小超出限制
+        ByteArrayOutputStream zip = new ByteArrayOutputStream();
+        try (ZipOutputStream output = new ZipOutputStream(zip)) {
+            for (int i = 0; i < 5; i++) {
+                output.putNextEntry(new ZipEntry(i + ".wav"));
+                output.write(new byte[1000]);
+            }
+        }
+
+        List<BatchResult> results = new ArrayList<>();
+        assertThrows(RuntimeException.class, () -> service.recognize(
+                new ByteArrayInputStream(zip.toByteArray()), null, results::add));
+        // 超出限制前读取的音频已经识别并返回
+        assertFalse(results.isEmpty());
+        assertEquals("text", results.get(0).getText());
+    }
+
+    @Test
+    void returnCompletedResultsAfterDeadline() throws Exception {
+        SpeechBusinessService business = mock(SpeechBusinessService.class);
+        when(business.speechToText(any(byte[].class), isNull())).thenAnswer(invocation -> {
+            String audio = new String(invocation.<byte[]>getArgument(0), StandardCharsets.UTF_8);
+            Thread.sleep(Long.parseLong(audio));
+            return "text" + audio;
+        });
+        BatchSttService service = service(business);
+        ReflectionTestUtils.setField(service, "timeout", 500L);
+
+        List<BatchResult> results = new ArrayList<>();
+        service.recognize(List.of(
+                new MockMultipartFile("audioData", "0.wav", null, "0".getBytes(StandardCharsets.UTF_8)),
+                new MockMultipartFile("audioData", "100.wav", null, "100".getBytes(StandardCharsets.UTF_8)),
+                new MockMultipartFile("audioData", "5000.wav", null, "5000".getBytes(StandardCharsets.UTF_8))),
+                null, result -> {
+                    results.add(result);
+                    // 第一条结果交出时拖过截止时间，期间完成的识别依然返回结果
+                    if (results.size() == 1) {
+                        sleep(700);
+                    }
+                });
+        assertEquals(3, results.size());
+        assertEquals("text0", results.get(0).getText());
+        assertEquals("text100", results.get(1).getText());
+        assertEquals("识别超时", results.get(2).getError());
+        assertEquals("5000.wav", results.get(2).getName());
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static BatchSttService service(SpeechBusinessService business) {
+        BatchSttService service = new BatchSttService(business);
+        ReflectionTestUtils.setField(service, "parallel", 4);
+        ReflectionTestUtils.setField(service, "maxItems", 10);
+        ReflectionTestUtils.setField(service, "maxItemBytes", 1024L);
+        ReflectionTestUtils.setField(service, "maxTotalBytes", 1024L * 1024);
+        ReflectionTestUtils.setField(service, "timeout", 5000L);
+        return service;
+    }
+}
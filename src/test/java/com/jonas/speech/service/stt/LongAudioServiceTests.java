@@ -0,0 +1,90 @@
+package com.jonas.speech.service.stt;
+
+import com.jonas.speech.common.Transcript;
+import com.jonas.speech.service.audio.AudioNormalizer;
+import com.jonas.speech.service.audio.AudioSpec;
+import com.jonas.speech.service.audio.VoiceActivityDetector;
+import com.jonas.speech.service.audio.WavHeader;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LongAudioServiceTests {
+
+    @Test
+    void repairPunctuationAtBoundaries() {
+        // 短停顿处的句号改为逗号，长停顿处补句号，去掉下一段开头的标点
+        List<String> repaired = LongAudioService.repair(
+                List.of("今天天气很好。", "，我们去公园", "然后回家。"), List.of(100L, 800L, 0L), 400);
+        assertEquals(List.of("今天天气很好，", "我们去公园。", "然后回家。"), repaired);
+        assertEquals("今天天气很好，我们去公园。然后回家。", LongAudioService.join(repaired));
+
+        List<String> english = LongAudioService.repair(List.of("hello world.", "how are you"), List.of(100L, 0L), 400);
+        assertEquals("hello world, how are you", LongAudioService.join(english));
+    }
+
+    @Test
+    void recognizeChunksInOrder() {
+        VoiceActivityDetector detector = new VoiceActivityDetector();
+        ReflectionTestUtils.setField(detector, "frameMs", 20);
+        ReflectionTestUtils.setField(detector, "minEnergyDb", -50.0);
+        ReflectionTestUtils.setField(detector, "marginDb", 10.0);
+        ReflectionTestUtils.setField(detector, "zcrThreshold", 0.25);
+        ReflectionTestUtils.setField(detector, "noisePercentile", 0.1);
+        ReflectionTestUtils.setField(detector, "maxNoiseDb", -55.0);
+        LongAudioService service = new LongAudioService(new AudioNormalizer(), detector);
+        ReflectionTestUtils.setField(service, "enabled", true);
+        ReflectionTestUtils.setField(service, "threshold", 5000L);
+        ReflectionTestUtils.setField(service, "minChunk", 2000);
+        ReflectionTestUtils.setField(service, "maxChunk", 4000);
+        ReflectionTestUtils.setField(service, "parallel", 2);
+        ReflectionTestUtils.setField(service, "timeout", 5000L);
+        ReflectionTestUtils.setField(service, "sentencePause", 400L);
+
+        ByteArrayOutputStream pcm = new ByteArrayOutputStream();
+        for (int i = 0; i < 4; i++) {
+            pcm.writeBytes(tone(2500));
+            pcm.writeBytes(new byte[16000]);
+        }
+        byte[] wav = new byte[WavHeader.SIZE + pcm.size()];
+        WavHeader.write(AudioSpec.PCM_16K, pcm.size(), wav, 0);
+        System.arraycopy(pcm.toByteArray(), 0, wav, WavHeader.SIZE, pcm.size());
+        assertTrue(service.isLong(wav));
+
+        // 每3秒一个停顿，切成4段；其中一段失败不影响其余片段
+        AtomicInteger index = new AtomicInteger();
+        Transcript transcript = service.recognize(wav, chunk -> {
+            int n = index.getAndIncrement();
+            int seconds = WavHeader.parse(chunk).dataLength() / 32000;
+            if (n == 1) {
+                throw new RuntimeException("服务异常");
+            }
+            return "第" + seconds + "秒";
+        });
+        assertEquals(12000, transcript.getDurationMs());
+        assertEquals(4, transcript.getSegments().size());
+        assertEquals(0, transcript.getSegments().get(0).getStartMs());
+        assertEquals(transcript.getSegments().get(0).getEndMs(), transcript.getSegments().get(1).getStartMs());
+        assertEquals(12000, transcript.getSegments().get(3).getEndMs());
+        assertEquals(1, transcript.getSegments().stream().filter(segment -> null != segment.getError()).count());
+        assertFalse(transcript.isComplete());
+    }
+
+    /**
+     * 16k 16bit 单声道的300Hz正弦波
+     */
+    private static byte[] tone(int millis) {
+        byte[] pcm = new byte[millis * 32];
+        for (int i = 0; i < pcm.length / 2; i++) {
+            int sample = (int) (Math.sin(2 * Math.PI * 300 * i / 16000.0) * 8000);
+            pcm[2 * i] = (byte) sample;
+            pcm[2 * i + 1] = (byte) (sample >> 8);
+        }
+        return pcm;
+    }
+}
@@ -0,0 +1,153 @@
+package com.jonas.speech.service.timing;
+
+import com.jonas.speech.common.RequestTimingStats;
+import com.jonas.speech.service.http.HttpClientManager;
+import com.jonas.speech.service.metrics.SpeechMetrics;
+import com.jonas.speech.util.HttpUtil;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.env.Environment;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class RequestTimingServiceTests {
+
+    @Test
+    void nestedCallsShareOuterTimingAndSlowRingKeepsNewest() {
+        RequestTimingService service = service(0, 2);
+        for (int i = 0; i < 3; i++) {
+            RequestTiming outer = service.begin("op" + i);
+            assertSame(outer, RequestTiming.current());
+            // 内层调用由外层记录
+            assertNull(service.begin("inner"));
+            outer.add(TimingPhase.PREPARE, 1_500_000);
+            service.end(outer);
+            assertNull(RequestTiming.current());
+        }
+        String serverTiming = service.takeServerTiming();
+        assertTrue(serverTiming.startsWith("prepare;dur=1.5, total;dur="), serverTiming);
+        assertNull(service.takeServerTiming());
+
+        List<RequestTimingStats> slow = service.slowRequests();
+        assertEquals(List.of("op2", "op1"), slow.stream().map(RequestTimingStats::getOperation).toList());
+        assertEquals(1.5, slow.get(0).getPhases().get("prepare"));
+    }
+
+    @Test
+    void httpPhasesRecordedThroughRequestTag() throws Exception {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            byte[] body = "{\"result\":\"ok\"}".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        server.start();
+        try {
+            HttpClientManager manager = httpClientManager();
+            RequestTimingService service = service(10_000, 10);
+            RequestTiming timing = service.begin("speechToText");
+            String body = HttpUtil.sendPostData(manager.getClient("local"),
+                    "http://127.0.0.1:" + server.getAddress().getPort() + "/", Map.of(), new byte[64 * 1024]);
+            service.end(timing);
+            assertEquals("{\"result\":\"ok\"}", body);
+
+            Map<String, Double> phases = timing.stats().getPhases();
+            assertTrue(phases.get("connect") > 0, phases.toString());
+            assertTrue(phases.get("upload") > 0, phases.toString());
+            assertTrue(phases.get("vendor") >= 45, phases.toString());
+            assertTrue(phases.get("ttfb") >= phases.get("vendor"), phases.toString());
+            assertTrue(phases.containsKey("decode"), phases.toString());
+            // 未超过慢请求阈值
+            assertTrue(service.slowRequests().isEmpty());
+            manager.destroy();
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    void concurrentAttemptsTimedSeparately() throws Exception {
+        // 路径为服务商处理耗时
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/", exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            try {
+                Thread.sleep(Long.parseLong(exchange.getRequestURI().getPath().substring(1)));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        });
+        server.start();
+        try {
+            HttpClientManager manager = httpClientManager();
+            RequestTimingService service = service(10_000, 10);
+            RequestTiming timing = service.begin("speechToText");
+            String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+            // 对冲请求在另一个线程上并发，共用同一个记录对象，先开始的慢请求不能被后开始的快请求覆盖
+            Thread hedge = new Thread(() -> {
+                RequestTiming.setCurrent(timing);
+                HttpUtil.sendPostData(manager.getClient("local"), url + "300", Map.of(), new byte[16]);
+            });
+            hedge.start();
+            Thread.sleep(50);
+            HttpUtil.sendPostData(manager.getClient("local"), url + "50", Map.of(), new byte[16]);
+            hedge.join();
+            service.end(timing);
+
+            Map<String, Double> phases = timing.stats().getPhases();
+            assertTrue(phases.get("vendor") >= 340, phases.toString());
+            manager.destroy();
+        } finally {
+            server.stop(0);
+            ((ExecutorService) server.getExecutor()).shutdownNow();
+        }
+    }
+
+    private static RequestTimingService service(long slowThreshold, int slowCapacity) {
+        RequestTimingService service = new RequestTimingService();
+        ReflectionTestUtils.setField(service, "enabled", true);
+        ReflectionTestUtils.setField(service, "slowThreshold", slowThreshold);
+        ReflectionTestUtils.setField(service, "slowCapacity", slowCapacity);
+        service.init();
+        return service;
+    }
+
+    private static HttpClientManager httpClientManager() {
+        Environment environment = mock(Environment.class);
+        when(environment.getProperty(anyString(), any(Class.class), any()))
+                .thenAnswer(invocation -> invocation.getArgument(2));
+        HttpClientManager manager = new HttpClientManager(environment, new SpeechMetrics(new SimpleMeterRegistry()));
+        ReflectionTestUtils.setField(manager, "connectTimeout", 5000L);
+        ReflectionTestUtils.setField(manager, "readTimeout", 5000L);
+        ReflectionTestUtils.setField(manager, "writeTimeout", 5000L);
+        ReflectionTestUtils.setField(manager, "maxIdleConnections", 4);
+        ReflectionTestUtils.setField(manager, "keepAliveDuration", 60000L);
+        ReflectionTestUtils.setField(manager, "maxRequests", 16);
+        ReflectionTestUtils.setField(manager, "maxRequestsPerHost", 16);
+        manager.init();
+        return manager;
+    }
+}
@@ -0,0 +1,174 @@
+package com.jonas.speech.service.tts;
+
+import cn.hutool.core.codec.Base64;
+import com.jonas.speech.common.SpeechCapability;
+import com.jonas.speech.service.AudioStreamService;
+import com.jonas.speech.service.SpeechService;
+import com.jonas.speech.service.audio.AudioSpec;
+import com.jonas.speech.service.audio.PcmConverter;
+import com.jonas.speech.service.audio.WavHeader;
+import com.jonas.speech.service.cache.CachedAudio;
+import com.jonas.speech.service.cache.TtsCacheService;
+import com.jonas.speech.service.route.SpeechRouter;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class SegmentedTtsServiceTests {
+
+    @Test
+    void emitInOrderWithBoundedWindow() throws Exception {
+        // 第二段要等第三段开始合成后才返回，窗口为2时两段并行合成；第三段先完成，仍排在第二段之后下发
+        List<String> segments = List.of("第一段。", "第二段。", "第三段。", "第四段。", "第五段。");
+        CountDownLatch thirdStarted = new CountDownLatch(1);
+        AtomicBoolean overlapped = new AtomicBoolean();
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+
+        SpeechService speechService = mock(SpeechService.class);
+        when(speechService.getType()).thenReturn("local");
+        when(speechService.toStreamAudio(any())).thenAnswer(invocation -> invocation.getArgument(0));
+        SpeechRouter router = mock(SpeechRouter.class);
+        when(router.execute(eq(SpeechCapability.TEXT_TO_SPEECH), any(), any())).thenAnswer(invocation -> {
+            Function<SpeechService, byte[]> call = invocation.getArgument(2);
+            return call.apply(speechService);
+        });
+        TtsCacheService cache = mock(TtsCacheService.class);
+        when(speechService.textToSpeech(any())).thenAnswer(invocation -> {
+            String text = invocation.getArgument(0);
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            try {
+                if ("第三段。".equals(text)) {
+                    thirdStarted.countDown();
+                } else if ("第二段。".equals(text)) {
+                    overlapped.set(thirdStarted.await(5, TimeUnit.SECONDS));
+                }
+            } finally {
+                running.decrementAndGet();
+            }
+            return Base64.encode(text);
+        });
+
+        List<String> received = new CopyOnWriteArrayList<>();
+        CountDownLatch end = new CountDownLatch(1);
+        AudioStreamService audioStreamService = mock(AudioStreamService.class);
+        doAnswer(invocation -> received.add(new String(invocation.<byte[]>getArgument(1), StandardCharsets.UTF_8)))
+                .when(audioStreamService).audio(anyLong(), any());
+        doAnswer(invocation -> {
+            end.countDown();
+            return null;
+        }).when(audioStreamService).end(anyLong());
+
+        SegmentedTtsService service = new SegmentedTtsService(router, cache, audioStreamService);
+        ReflectionTestUtils.setField(service, "window", 2);
+        ReflectionTestUtils.setField(service, "timeout", 10000L);
+        service.synthesize(segments, 1L, null);
+        assertTrue(end.await(10, TimeUnit.SECONDS));
+        service.destroy();
+
+        assertEquals(segments, received);
+        assertTrue(overlapped.get());
+        assertTrue(maxRunning.get() <= 2);
+    }
+
+    @Test
+    void segmentsShareStreamFormat() throws Exception {
+        // 服务商返回WAV，各段去掉WAV头并转换为流式合成的 16k 裸PCM 后下发
+        SpeechService speechService = mock(SpeechService.class);
+        when(speechService.getType()).thenReturn("local");
+        when(speechService.toStreamAudio(any())).thenCallRealMethod();
+        when(speechService.textToSpeech(any())).thenAnswer(invocation -> Base64.encode(wav(
+                "第一段。".equals(invocation.getArgument(0)) ? AudioSpec.PCM_8K : AudioSpec.PCM_16K, 1600)));
+        SpeechRouter router = mock(SpeechRouter.class);
+        when(router.execute(eq(SpeechCapability.TEXT_TO_SPEECH), any(), any())).thenAnswer(invocation -> {
+            Function<SpeechService, byte[]> call = invocation.getArgument(2);
+            return call.apply(speechService);
+        });
+
+        List<byte[]> received = new CopyOnWriteArrayList<>();
+        CountDownLatch end = new CountDownLatch(1);
+        AudioStreamService audioStreamService = mock(AudioStreamService.class);
+        doAnswer(invocation -> received.add(invocation.getArgument(1))).when(audioStreamService).audio(anyLong(), any());
+        doAnswer(invocation -> {
+            end.countDown();
+            return null;
+        }).when(audioStreamService).end(anyLong());
+
+        SegmentedTtsService service = new SegmentedTtsService(router, mock(TtsCacheService.class), audioStreamService);
+        ReflectionTestUtils.setField(service, "window", 2);
+        ReflectionTestUtils.setField(service, "timeout", 10000L);
+        service.synthesize(List.of("第一段。", "第二段。"), 1L, null);
+        assertTrue(end.await(10, TimeUnit.SECONDS));
+        service.destroy();
+
+        assertEquals(2, received.size());
+        // 8k的800个采样升采样到16k，16k的原样保留
+        assertEquals(PcmConverter.outputBytes(AudioSpec.PCM_8K, AudioSpec.PCM_16K, 1600), received.get(0).length);
+        assertEquals(1600, received.get(1).length);
+        received.forEach(audio -> assertNull(WavHeader.parse(audio)));
+    }
+
+    @Test
+    void cacheHitSkipsRouter() throws Exception {
+        SpeechService speechService = mock(SpeechService.class);
+        when(speechService.getType()).thenReturn("local");
+        when(speechService.toStreamAudio(any())).thenAnswer(invocation -> invocation.getArgument(0));
+        when(speechService.textToSpeech(any())).thenAnswer(invocation -> Base64.encode(invocation.<String>getArgument(0)));
+        SpeechRouter router = mock(SpeechRouter.class);
+        when(router.services(eq(SpeechCapability.TEXT_TO_SPEECH), any())).thenReturn(List.of(speechService));
+        when(router.execute(eq(SpeechCapability.TEXT_TO_SPEECH), any(), any())).thenAnswer(invocation -> {
+            Function<SpeechService, byte[]> call = invocation.getArgument(2);
+            return call.apply(speechService);
+        });
+        TtsCacheService cache = mock(TtsCacheService.class);
+        when(cache.lookup(any(List.class), eq("第一段。"))).thenReturn(new CachedAudio("local", Base64.encode("第一段。")));
+
+        List<String> received = new CopyOnWriteArrayList<>();
+        CountDownLatch end = new CountDownLatch(1);
+        AudioStreamService audioStreamService = mock(AudioStreamService.class);
+        doAnswer(invocation -> received.add(new String(invocation.<byte[]>getArgument(1), StandardCharsets.UTF_8)))
+                .when(audioStreamService).audio(anyLong(), any());
+        doAnswer(invocation -> {
+            end.countDown();
+            return null;
+        }).when(audioStreamService).end(anyLong());
+
+        SegmentedTtsService service = new SegmentedTtsService(router, cache, audioStreamService);
+        ReflectionTestUtils.setField(service, "window", 2);
+        ReflectionTestUtils.setField(service, "timeout", 5000L);
+        service.synthesize(List.of("第一段。", "第二段。"), 1L, null);
+        assertTrue(end.await(5, TimeUnit.SECONDS));
+        service.destroy();
+
+        assertEquals(List.of("第一段。", "第二段。"), received);
+        // 命中缓存的段不经过路由，未命中的段合成后写入缓存，后续段使用命中缓存的服务商
+        verify(router, times(1)).execute(eq(SpeechCapability.TEXT_TO_SPEECH), eq("local"), any());
+        verify(cache).put(speechService, "第二段。", Base64.encode("第二段。"));
+    }
+
+    private static byte[] wav(AudioSpec spec, int dataLength) {
+        byte[] wav = new byte[WavHeader.SIZE + dataLength];
+        WavHeader.write(spec, dataLength, wav, 0);
+        return wav;
+    }
+}
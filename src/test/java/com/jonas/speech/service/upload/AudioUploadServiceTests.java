@@ -0,0 +1,193 @@
+package com.jonas.speech.service.upload;
+
+import com.jonas.speech.service.audio.AudioPayload;
+import com.jonas.speech.service.metrics.SpeechMetrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AudioUploadServiceTests {
+
+    @TempDir
+    Path spillDir;
+
+    @Test
+    void smallUploadsReusePooledBuffer() throws Exception {
+        AudioUploadService service = service(1024, 1);
+        byte[] audio = random(600);
+        try (AudioUpload upload = service.read(new ByteArrayInputStream(audio), -1)) {
+            assertFalse(upload.isSpilled());
+            assertEquals(ByteBuffer.wrap(audio), upload.audio());
+            // 唯一的缓冲区正在使用，第二个上传写入临时文件
+            try (AudioUpload second = service.read(new ByteArrayInputStream(audio), audio.length)) {
+                assertTrue(second.isSpilled());
+                assertEquals(ByteBuffer.wrap(audio), second.audio());
+            }
+        }
+        try (AudioUpload upload = service.read(new ByteArrayInputStream(audio), audio.length)) {
+            assertFalse(upload.isSpilled());
+        }
+        assertEquals(1, service.stats().getBuffers());
+        assertEquals(0, service.stats().getBuffersInUse());
+        assertEquals(1, service.stats().getSpilled());
+        try (var files = Files.list(spillDir)) {
+            assertEquals(0, files.count());
+        }
+    }
+
+    @Test
+    void largeUploadSpillsWithBoundedAllocation() throws Exception {
+        AudioUploadService service = service(64 * 1024, 4);
+        byte[] audio = random(4 * 1024 * 1024);
+        ingestAndSend(service, audio);
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long before = threads.getCurrentThreadAllocatedBytes();
+        ingestAndSend(service, audio);
+        long allocated = threads.getCurrentThreadAllocatedBytes() - before;
+        // 读入、写出整段音频只分配复制用的小块缓冲区
+        assertTrue(allocated < 512 * 1024, "allocated " + allocated);
+
+        try (AudioUpload upload = service.read(new ByteArrayInputStream(audio), -1)) {
+            assertTrue(upload.isSpilled());
+            AudioPayload payload = AudioPayload.of(ByteBuffer.wrap(new byte[]{1, 2}), upload.audio());
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            payload.writeTo(out);
+            byte[] expected = new byte[audio.length + 2];
+            expected[0] = 1;
+            expected[1] = 2;
+            System.arraycopy(audio, 0, expected, 2, audio.length);
+            assertArrayEquals(expected, out.toByteArray());
+            assertEquals(Base64.getEncoder().encodeToString(expected), payload.base64());
+        }
+        assertThrows(RuntimeException.class, () -> service.read(new ByteArrayInputStream(new byte[0]), 1L << 31));
+    }
+
+    @Test
+    void losingAttemptKeepsBufferUntilDoneReading() throws Exception {
+        AudioUploadService service = service(1024, 1);
+        byte[] audio = random(600);
+        AudioUpload upload = service.read(new ByteArrayInputStream(audio), audio.length);
+        AudioPayload payload = AudioPayload.of(upload.audio()).readFrom(upload);
+
+        // 落败的请求写出一半后停住，胜出的请求已经返回，上传方关闭上传
+        CountDownLatch reading = new CountDownLatch(1);
+        CountDownLatch resume = new CountDownLatch(1);
+        ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        OutputStream slow = new OutputStream() {
+            @Override
+            public void write(int b) {
+                sent.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                sent.write(b, off, 100);
+                reading.countDown();
+                try {
+                    resume.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                sent.write(b, off + 100, len - 100);
+            }
+        };
+        Thread loser = new Thread(() -> {
+            try {
+                payload.writeTo(slow);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        loser.start();
+        assertTrue(reading.await(5, TimeUnit.SECONDS));
+        upload.close();
+
+        // 缓冲区仍被落败的请求读取，新的上传不能复用它
+        byte[] other = random(700);
+        try (AudioUpload next = service.read(new ByteArrayInputStream(other), other.length)) {
+            assertTrue(next.isSpilled());
+        }
+        assertEquals(1, service.stats().getBuffersInUse());
+        resume.countDown();
+        loser.join();
+        assertArrayEquals(audio, sent.toByteArray());
+
+        // 读完后归还，之后不能再读取
+        assertEquals(0, service.stats().getBuffersInUse());
+        assertThrows(IOException.class, () -> payload.writeTo(OutputStream.nullOutputStream()));
+        try (AudioUpload next = service.read(new ByteArrayInputStream(other), other.length)) {
+            assertFalse(next.isSpilled());
+        }
+    }
+
+    private static void ingestAndSend(AudioUploadService service, byte[] audio) throws Exception {
+        try (AudioUpload upload = service.read(new ChunkedInputStream(audio), -1)) {
+            assertTrue(upload.isSpilled());
+            AudioPayload.of(upload.audio()).writeTo(OutputStream.nullOutputStream());
+        }
+    }
+
+    private AudioUploadService service(int bufferSize, int poolSize) throws Exception {
+        AudioUploadService service = new AudioUploadService(new SpeechMetrics(new SimpleMeterRegistry()));
+        ReflectionTestUtils.setField(service, "bufferSize", bufferSize);
+        ReflectionTestUtils.setField(service, "poolSize", poolSize);
+        ReflectionTestUtils.setField(service, "maxSize", 64L * 1024 * 1024);
+        ReflectionTestUtils.setField(service, "spillDir", spillDir.toString());
+        service.init();
+        return service;
+    }
+
+    private static byte[] random(int length) {
+        byte[] audio = new byte[length];
+        new Random(length).nextBytes(audio);
+        return audio;
+    }
+
+    /**
+     * 每次最多返回8KB，模拟网络上传
+     */
+    private static class ChunkedInputStream extends InputStream {
+        private final byte[] data;
+        private int position;
+
+        ChunkedInputStream(byte[] data) {
+            this.data = data;
+        }
+
+        @Override
+        public int read() {
+            return position < data.length ? data[position++] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (position >= data.length) {
+                return -1;
+            }
+            int count = Math.min(Math.min(len, 8192), data.length - position);
+            System.arraycopy(data, position, b, off, count);
+            position += count;
+            return count;
+        }
+    }
+}
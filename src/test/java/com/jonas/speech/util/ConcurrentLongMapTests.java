@@ -0,0 +1,52 @@
+package com.jonas.speech.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ConcurrentLongMapTests {
+
+    @Test
+    void putGetRemove() {
+        ConcurrentLongMap<String> map = new ConcurrentLongMap<>();
+        assertNull(map.put(1L, "a"));
+        assertEquals("a", map.put(1L, "b"));
+        assertEquals("b", map.get(1L));
+        assertNull(map.get(2L));
+
+        // 只有当前值是同一个对象时才删除
+        String other = new String("b");
+        assertFalse(map.remove(1L, other));
+        assertTrue(map.remove(1L, map.get(1L)));
+        assertNull(map.remove(1L));
+        assertEquals(0, map.size());
+    }
+
+    @Test
+    void matchHashMapUnderRandomOperations() {
+        ConcurrentLongMap<Long> map = new ConcurrentLongMap<>();
+        Map<Long, Long> expected = new HashMap<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 200000; i++) {
+            // 键范围较小，扩容和删除后前移都会频繁发生
+            long key = random.nextInt(2000) - 1000L;
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(key), map.remove(key));
+            } else {
+                long value = random.nextLong();
+                assertEquals(expected.put(key, value), map.put(key, value));
+            }
+        }
+        assertEquals(expected.size(), map.size());
+        expected.forEach((key, value) -> assertEquals(value, map.get(key)));
+        assertEquals(new HashSet<>(expected.values()), new HashSet<>(map.values()));
+    }
+}
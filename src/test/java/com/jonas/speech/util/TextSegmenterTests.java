@@ -0,0 +1,43 @@
+package com.jonas.speech.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TextSegmenterTests {
+
+    @Test
+    void splitAtSentenceBoundaries() {
+        List<String> segments = TextSegmenter.split("今天天气很好。我们去公园吧！你觉得呢？“好的。”他说。", 4, 50);
+        assertEquals(List.of("今天天气很好。", "我们去公园吧！", "你觉得呢？", "“好的。”他说。"), segments);
+
+        // 小数和缩写中的句点不切分，单词间空格保留
+        segments = TextSegmenter.split("Pi is 3.14 roughly. It is e.g. useful. Yes.", 6, 50);
+        assertEquals(List.of("Pi is 3.14 roughly.", "It is e.g. useful. Yes."), segments);
+    }
+
+    @Test
+    void mergeShortAndSplitLongSentences() {
+        // 过短的句子与后一句合并
+        assertEquals(List.of("好。我们出发吧。"), TextSegmenter.split("好。我们出发吧。", 6, 50));
+
+        String clauses = "第一个分句比较长，第二个分句也比较长，第三个分句同样很长。";
+        List<String> segments = TextSegmenter.split(clauses, 2, 20);
+        assertEquals(List.of("第一个分句比较长，第二个分句也比较长，", "第三个分句同样很长。"), segments);
+
+        String plain = "一".repeat(45);
+        segments = TextSegmenter.split(plain, 2, 20);
+        assertEquals(3, segments.size());
+        assertTrue(segments.stream().allMatch(segment -> segment.length() <= 20));
+        assertEquals(plain, String.join("", segments));
+    }
+
+    @Test
+    void normalizeWhitespace() {
+        assertEquals("a b\n第二行", TextSegmenter.normalize("  a \t b \r\n\n 第二行\u0007  "));
+        assertEquals(List.of("第一行内容", "第二行内容"), TextSegmenter.split(TextSegmenter.normalize("第一行内容\n第二行内容"), 2, 50));
+    }
+}